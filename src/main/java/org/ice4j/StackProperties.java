@@ -120,6 +120,16 @@ public class StackProperties
      */
     public static final String NO_KEEP_ALIVES = "org.ice4j.NO_KEEP_ALIVES";
 
+    /**
+     * The name of the property that sets the number of entries of the cache
+     * through which the stack answers incoming binding requests instead of
+     * creating a server transaction for each of them. Binding requests use
+     * regular server transactions when the property is not set or is not
+     * positive.
+     */
+    public static final String BINDING_RESPONSE_CACHE_SIZE
+                                = "org.ice4j.BINDING_RESPONSE_CACHE_SIZE";
+
     /**
      * Returns the String value of the specified property (minus all
      * encompassing whitespaces)and null in case no property value was mapped
@@ -42,6 +42,12 @@ public class StunResponseEvent
      */
     private final Request request;
 
+    /**
+     * The round-trip time of the transaction in microseconds, or <tt>-1</tt>
+     * if it is unknown.
+     */
+    private final long roundTripTime;
+
     /**
      * Creates a new instance of this event.
      *
@@ -59,9 +65,34 @@ public class StunResponseEvent
             Response response,
             Request request,
             TransactionID transactionID)
+    {
+        this(stunStack, rawMessage, response, request, transactionID, -1);
+    }
+
+    /**
+     * Creates a new instance of this event.
+     *
+     * @param stunStack the <tt>StunStack</tt> to be associated with the new
+     * instance
+     * @param rawMessage the crude message we got off the wire.
+     * @param response the STUN {@link Response} that we've just received.
+     * @param request  the message itself
+     * @param transactionID a reference to the exact {@link TransactionID}
+     * instance that represents the corresponding client transaction.
+     * @param roundTripTime the round-trip time of the transaction in
+     * microseconds, or <tt>-1</tt> if it is unknown.
+     */
+    public StunResponseEvent(
+            StunStack stunStack,
+            RawMessage rawMessage,
+            Response response,
+            Request request,
+            TransactionID transactionID,
+            long roundTripTime)
     {
         super(stunStack, rawMessage, response);
         this.request = request;
+        this.roundTripTime = roundTripTime;
         super.setTransactionID(transactionID);
     }
 
@@ -88,4 +119,18 @@ public class StunResponseEvent
     {
         return (Response)getMessage();
     }
+
+    /**
+     * Returns the round-trip time of the transaction that this
+     * {@link Response} has just arrived in. The round-trip time is unknown if
+     * the request has been retransmitted, because the response may then
+     * answer any of the copies of the request.
+     *
+     * @return the round-trip time of the transaction in microseconds, or
+     * <tt>-1</tt> if it is unknown.
+     */
+    public long getRoundTripTime()
+    {
+        return roundTripTime;
+    }
 }
@@ -199,38 +199,52 @@ abstract class AddressAttribute extends Attribute
      * @return a binary representation of this attribute.
      */
     public byte[] encode()
+    {
+        byte binValue[] = new byte[HEADER_LENGTH + getDataLength()];
+
+        encodeTo(binValue, 0);
+        return binValue;
+    }
+
+    /**
+     * Writes the binary representation of this attribute into <tt>buf</tt>
+     * starting at <tt>offset</tt>.
+     *
+     * @param buf the array to write this attribute into.
+     * @param offset the index in <tt>buf</tt> at which this attribute is to
+     * start.
+     *
+     * @return the number of bytes written.
+     */
+    @Override
+    public int encodeTo(byte[] buf, int offset)
     {
         char type = getAttributeType();
         if (!isTypeValid(type))
             throw new IllegalStateException(((int)type)
                             + "is not a valid address attribute!");
-        byte binValue[] = new byte[HEADER_LENGTH + getDataLength()];
 
-        //Type
-        binValue[0] = (byte)(type >> 8);
-        binValue[1] = (byte)(type & 0x00FF);
-        //Length
-        binValue[2] = (byte)(getDataLength() >> 8);
-        binValue[3] = (byte)(getDataLength() & 0x00FF);
+        int i = encodeHeader(buf, offset);
+
         //Not used
-        binValue[4] = 0x00;
+        buf[i] = 0x00;
         //Family
-        binValue[5] = getFamily();
+        buf[i + 1] = getFamily();
         //port
-        binValue[6] = (byte)(getPort() >> 8);
-        binValue[7] = (byte)(getPort() & 0x00FF);
+        buf[i + 2] = (byte)(getPort() >> 8);
+        buf[i + 3] = (byte)(getPort() & 0x00FF);
 
         //address
         if (getFamily() == ADDRESS_FAMILY_IPV6)
         {
-            System.arraycopy(getAddressBytes(), 0, binValue, 8, 16);
+            System.arraycopy(getAddressBytes(), 0, buf, i + 4, 16);
         }
         else
         {
-            System.arraycopy(getAddressBytes(), 0, binValue, 8, 4);
+            System.arraycopy(getAddressBytes(), 0, buf, i + 4, 4);
         }
 
-        return binValue;
+        return HEADER_LENGTH + getDataLength();
     }
 
     /**
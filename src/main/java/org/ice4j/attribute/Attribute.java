@@ -349,6 +349,55 @@ public abstract class Attribute
      */
     public abstract byte[] encode();
 
+    /**
+     * Writes the binary representation of this attribute (i.e. the same bytes
+     * as {@link #encode()}) into <tt>buf</tt> starting at <tt>offset</tt>.
+     * <tt>buf</tt> must have enough room for the attribute and its padding.
+     * <p>
+     * The default implementation copies the result of {@link #encode()}.
+     * Attributes which are part of most messages write themselves directly
+     * into <tt>buf</tt>.
+     *
+     * @param buf the array to write this attribute into.
+     * @param offset the index in <tt>buf</tt> at which this attribute is to
+     * start.
+     *
+     * @return the number of bytes written, which may or may not include the
+     * padding of this attribute.
+     */
+    public int encodeTo(byte[] buf, int offset)
+    {
+        byte[] binValue = encode();
+
+        System.arraycopy(binValue, 0, buf, offset, binValue.length);
+        return binValue.length;
+    }
+
+    /**
+     * Writes the header (i.e. the type and the length) of this attribute into
+     * <tt>buf</tt> starting at <tt>offset</tt>.
+     *
+     * @param buf the array to write the header into.
+     * @param offset the index in <tt>buf</tt> at which this attribute starts.
+     *
+     * @return the index in <tt>buf</tt> at which the value of this attribute
+     * starts.
+     */
+    protected int encodeHeader(byte[] buf, int offset)
+    {
+        char type = getAttributeType();
+        char dataLength = getDataLength();
+
+        //Type
+        buf[offset] = (byte)(type >> 8);
+        buf[offset + 1] = (byte)(type & 0x00FF);
+        //Length
+        buf[offset + 2] = (byte)(dataLength >> 8);
+        buf[offset + 3] = (byte)(dataLength & 0x00FF);
+
+        return offset + HEADER_LENGTH;
+    }
+
     /**
      * For attributes that have arriving in incoming messages, this method
      * stores their original location in the binary array so that we could
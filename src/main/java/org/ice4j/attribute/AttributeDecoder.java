@@ -17,11 +17,21 @@
  */
 package org.ice4j.attribute;
 
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
 import org.ice4j.*;
 
 /**
  * The class provides utilities for decoding a binary stream into an Attribute
  * class.
+ * <p>
+ * Attributes are decoded by {@link Codec}s registered per attribute type.
+ * Types without a registered codec are decoded as {@link OptionalAttribute}s.
+ * Each of the first {@link #MAX_PRESENCE_BITS} registered types is also
+ * assigned a bit, so that the presence of attributes in a message can be
+ * tracked with a bitset (see {@link #getPresenceMask(char)}).
  *
  * @author Emil Ivov
  * @author Sebastien Vincent
@@ -29,6 +39,222 @@ import org.ice4j.*;
  */
 public class AttributeDecoder
 {
+    /**
+     * The maximum number of attribute types which are assigned a presence
+     * bit.
+     */
+    public static final int MAX_PRESENCE_BITS = Long.SIZE;
+
+    /**
+     * The registered codecs by attribute type.
+     */
+    private static final Map<Character, Registration> registrations
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The number of presence bits assigned so far. Guarded by
+     * {@link #registrations}.
+     */
+    private static int presenceBits = 0;
+
+    static
+    {
+        /* STUN attributes */
+        register(Attribute.CHANGE_REQUEST, ChangeRequestAttribute::new, 4);
+        register(Attribute.CHANGED_ADDRESS, ChangedAddressAttribute::new, 8);
+        register(Attribute.MAPPED_ADDRESS, MappedAddressAttribute::new, 8);
+        register(Attribute.ERROR_CODE, ErrorCodeAttribute::new, 4);
+        register(Attribute.MESSAGE_INTEGRITY, MessageIntegrityAttribute::new);
+        //Attribute.PASSWORD is handled as an unknown attribute
+        register(Attribute.REFLECTED_FROM, ReflectedFromAttribute::new, 8);
+        register(
+                Attribute.RESPONSE_ADDRESS,
+                ResponseAddressAttribute::new,
+                8);
+        register(Attribute.SOURCE_ADDRESS, SourceAddressAttribute::new, 8);
+        register(
+                Attribute.UNKNOWN_ATTRIBUTES,
+                UnknownAttributesAttribute::new);
+        register(
+                Attribute.XOR_MAPPED_ADDRESS,
+                XorMappedAddressAttribute::new,
+                8);
+        register(Attribute.XOR_ONLY, XorOnlyAttribute::new);
+        register(Attribute.SOFTWARE, SoftwareAttribute::new);
+        register(Attribute.USERNAME, UsernameAttribute::new);
+        register(Attribute.REALM, RealmAttribute::new);
+        register(Attribute.NONCE, NonceAttribute::new);
+        register(Attribute.FINGERPRINT, FingerprintAttribute::new);
+        register(
+                Attribute.ALTERNATE_SERVER,
+                AlternateServerAttribute::new,
+                8);
+
+        /* TURN attributes */
+        register(Attribute.CHANNEL_NUMBER, ChannelNumberAttribute::new, 4);
+        register(Attribute.LIFETIME, LifetimeAttribute::new, 4);
+        register(Attribute.XOR_PEER_ADDRESS, XorPeerAddressAttribute::new, 8);
+        register(Attribute.DATA, DataAttribute::new);
+        register(
+                Attribute.XOR_RELAYED_ADDRESS,
+                XorRelayedAddressAttribute::new,
+                8);
+        register(Attribute.EVEN_PORT, EvenPortAttribute::new, 4);
+        register(
+                Attribute.REQUESTED_TRANSPORT,
+                RequestedTransportAttribute::new,
+                4);
+        register(Attribute.DONT_FRAGMENT, DontFragmentAttribute::new);
+        register(
+                Attribute.RESERVATION_TOKEN,
+                ReservationTokenAttribute::new,
+                8);
+
+        /* ICE attributes */
+        register(Attribute.PRIORITY, PriorityAttribute::new, 4);
+        register(Attribute.ICE_CONTROLLING, IceControllingAttribute::new, 8);
+        register(Attribute.ICE_CONTROLLED, IceControlledAttribute::new, 8);
+        register(Attribute.USE_CANDIDATE, UseCandidateAttribute::new);
+
+        register(
+                Attribute.REQUESTED_ADDRESS_FAMILY,
+                RequestedAddressFamilyAttribute::new,
+                RequestedAddressFamilyAttribute.DATA_LENGTH);
+        register(
+                Attribute.CONNECTION_ID,
+                ConnectionIdAttribute::new,
+                ConnectionIdAttribute.DATA_LENGTH);
+    }
+
+    /**
+     * Registers <tt>codec</tt> as the codec of the attributes of type
+     * <tt>attributeType</tt>, replacing the previously registered codec for
+     * that type, if any.
+     *
+     * @param attributeType the type of the attributes to be decoded by
+     * <tt>codec</tt>.
+     * @param codec the {@link Codec} to register.
+     */
+    public static void register(char attributeType, Codec codec)
+    {
+        register(attributeType, codec, 0);
+    }
+
+    /**
+     * Registers <tt>codec</tt> as the codec of the attributes of type
+     * <tt>attributeType</tt>, replacing the previously registered codec for
+     * that type, if any. Attributes of that type whose value is shorter than
+     * <tt>minDataLength</tt> are rejected when the message which contains
+     * them is decoded, even though their value is only decoded by
+     * <tt>codec</tt> when it is accessed.
+     *
+     * @param attributeType the type of the attributes to be decoded by
+     * <tt>codec</tt>.
+     * @param codec the {@link Codec} to register.
+     * @param minDataLength the minimum length of the value of the attributes
+     * of type <tt>attributeType</tt>.
+     */
+    public static void register(
+            char attributeType,
+            Codec codec,
+            int minDataLength)
+    {
+        if (codec == null)
+            throw new NullPointerException("codec");
+
+        synchronized (registrations)
+        {
+            Registration registration = registrations.get(attributeType);
+            int presenceBit;
+
+            if (registration != null)
+                presenceBit = registration.presenceBit;
+            else if (presenceBits < MAX_PRESENCE_BITS)
+                presenceBit = presenceBits++;
+            else
+                presenceBit = -1;
+
+            registrations.put(
+                    attributeType,
+                    new Registration(codec, presenceBit, minDataLength));
+        }
+    }
+
+    /**
+     * Registers a codec which decodes the attributes of type
+     * <tt>attributeType</tt> in new instances created by <tt>factory</tt>.
+     *
+     * @param attributeType the type of the attributes to decode.
+     * @param factory creates the attributes of type <tt>attributeType</tt>.
+     */
+    private static void register(
+            char attributeType,
+            Supplier<? extends Attribute> factory)
+    {
+        register(attributeType, factory, 0);
+    }
+
+    /**
+     * Registers a codec which decodes the attributes of type
+     * <tt>attributeType</tt> in new instances created by <tt>factory</tt>.
+     *
+     * @param attributeType the type of the attributes to decode.
+     * @param factory creates the attributes of type <tt>attributeType</tt>.
+     * @param minDataLength the minimum length of the value of the attributes
+     * of type <tt>attributeType</tt>.
+     */
+    private static void register(
+            char attributeType,
+            Supplier<? extends Attribute> factory,
+            int minDataLength)
+    {
+        register(
+                attributeType,
+                (type, bytes, offset, length) ->
+                {
+                    Attribute attribute = factory.get();
+
+                    attribute.setAttributeType(type);
+                    attribute.decodeAttributeBody(bytes, offset, length);
+                    return attribute;
+                },
+                minDataLength);
+    }
+
+    /**
+     * Determines whether a codec is registered for <tt>attributeType</tt>.
+     * Attributes of other types are decoded as {@link OptionalAttribute}s.
+     *
+     * @param attributeType the attribute type to check.
+     *
+     * @return <tt>true</tt> if a codec is registered for
+     * <tt>attributeType</tt> and <tt>false</tt> otherwise.
+     */
+    public static boolean isRegistered(char attributeType)
+    {
+        return registrations.containsKey(attributeType);
+    }
+
+    /**
+     * Returns the mask of the presence bit of <tt>attributeType</tt>, to be
+     * matched against {@link org.ice4j.message.Message#getAttributePresence()}.
+     *
+     * @param attributeType the attribute type whose presence bit is to be
+     * returned.
+     *
+     * @return a <tt>long</tt> with only the presence bit of
+     * <tt>attributeType</tt> set or <tt>0</tt> if <tt>attributeType</tt> has
+     * no presence bit.
+     */
+    public static long getPresenceMask(char attributeType)
+    {
+        Registration registration = registrations.get(attributeType);
+
+        return (registration == null || registration.presenceBit < 0)
+            ? 0L
+            : 1L << registration.presenceBit;
+    }
+
     /**
      * Decodes the specified binary array and returns the corresponding
      * attribute object.
@@ -47,104 +273,205 @@ public class AttributeDecoder
                                    int   length)
         throws StunException
     {
-        if (bytes == null || bytes.length < Attribute.HEADER_LENGTH)
+        char attributeType = readAttributeHeader(bytes, offset);
+        char attributeLength = readAttributeLength(bytes, offset);
+
+        Attribute decodedAttribute
+            = decodeAttributeBody(
+                    attributeType,
+                    bytes,
+                    (char) (Attribute.HEADER_LENGTH + offset),
+                    attributeLength);
+
+        decodedAttribute.setLocationInMessage(offset);
+
+        return decodedAttribute;
+    }
+
+    /**
+     * Decodes the header of the attribute at <tt>offset</tt> in
+     * <tt>bytes</tt> and defers the decoding of its value until it is needed:
+     * the returned attribute is a {@link LazyAttribute} which references
+     * <tt>bytes</tt>, so <tt>bytes</tt> must not be modified afterwards.
+     * Attributes of unregistered types and FINGERPRINT attributes (which are
+     * always validated) are decoded right away.
+     *
+     * @param bytes the binary array that should be decoded.
+     * @param offset the index where the attribute starts.
+     *
+     * @return a {@link LazyAttribute} or, if the attribute cannot be decoded
+     * lazily, the decoded attribute.
+     *
+     * @throws StunException if the header of the attribute is not valid or
+     * its value is shorter than the values of its type may be.
+     */
+    public static Attribute decodeLazily(byte[] bytes, int offset)
+        throws StunException
+    {
+        char attributeType = readAttributeHeader(bytes, offset);
+        Registration registration = registrations.get(attributeType);
+
+        if (attributeType == Attribute.FINGERPRINT || registration == null)
+            return decode(bytes, offset, bytes.length - offset);
+
+        char attributeLength = readAttributeLength(bytes, offset);
+
+        if (Attribute.HEADER_LENGTH + attributeLength > bytes.length - offset)
+        {
+            throw new StunException( StunException.ILLEGAL_ARGUMENT,
+                            "Could not decode the specified binary array.");
+        }
+        if (attributeLength < registration.minDataLength)
+        {
+            throw new StunException( StunException.ILLEGAL_ARGUMENT,
+                            "Attribute " + (int) attributeType
+                                + " is too short: " + (int) attributeLength);
+        }
+
+        LazyAttribute lazyAttribute = new LazyAttribute(attributeType);
+
+        lazyAttribute.decodeAttributeBody(
+                bytes,
+                (char) (offset + Attribute.HEADER_LENGTH),
+                attributeLength);
+        return lazyAttribute;
+    }
+
+    /**
+     * Decodes the value of an attribute of type <tt>attributeType</tt> with
+     * the codec registered for that type.
+     *
+     * @param attributeType the type of the attribute to decode.
+     * @param bytes the binary array that contains the attribute value.
+     * @param offset the index where the attribute value starts.
+     * @param length the length of the attribute value.
+     *
+     * @return the decoded attribute.
+     *
+     * @throws StunException if the value is not valid.
+     */
+    static Attribute decodeAttributeBody(
+            char attributeType,
+            byte[] bytes,
+            char offset,
+            char length)
+        throws StunException
+    {
+        Registration registration = registrations.get(attributeType);
+        Attribute decodedAttribute;
+
+        if (registration != null)
+        {
+            decodedAttribute
+                = registration.codec.decode(
+                        attributeType, bytes, offset, length);
+        }
+        else
+        {
+            //According to rfc3489 we should silently ignore unknown
+            //attributes.
+            decodedAttribute
+                = new OptionalAttribute(Attribute.UNKNOWN_OPTIONAL_ATTRIBUTE);
+            decodedAttribute.setAttributeType(attributeType);
+            decodedAttribute.decodeAttributeBody(bytes, offset, length);
+        }
+
+        return decodedAttribute;
+    }
+
+    /**
+     * Returns the type of the attribute at <tt>offset</tt> in <tt>bytes</tt>
+     * after checking that its header and value fit in <tt>bytes</tt>.
+     *
+     * @param bytes the binary array that contains the attribute.
+     * @param offset the index where the attribute starts.
+     *
+     * @return the type of the attribute.
+     *
+     * @throws StunException if the attribute does not fit in <tt>bytes</tt>.
+     */
+    private static char readAttributeHeader(byte[] bytes, int offset)
+        throws StunException
+    {
+        if (bytes == null
+                || bytes.length < Attribute.HEADER_LENGTH
+                || offset + Attribute.HEADER_LENGTH > bytes.length)
         {
             throw new StunException( StunException.ILLEGAL_ARGUMENT,
                          "Could not decode the specified binary array.");
         }
 
-        //Discover attribute type
-        char attributeType = (char)
-            (((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF));
-        char attributeLength = (char)
-            (((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF));
+        char attributeLength = readAttributeLength(bytes, offset);
 
         if (attributeLength > bytes.length - offset )
             throw new StunException( StunException.ILLEGAL_ARGUMENT,
                             "Could not decode the specified binary array.");
 
-        Attribute decodedAttribute = null;
+        //Discover attribute type
+        return (char)
+            (((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF));
+    }
 
-        switch(attributeType)
-        {
-            /* STUN attributes */
-            case Attribute.CHANGE_REQUEST:
-                decodedAttribute = new ChangeRequestAttribute(); break;
-            case Attribute.CHANGED_ADDRESS:
-                decodedAttribute = new ChangedAddressAttribute(); break;
-            case Attribute.MAPPED_ADDRESS:
-                decodedAttribute = new MappedAddressAttribute(); break;
-            case Attribute.ERROR_CODE:
-                decodedAttribute = new ErrorCodeAttribute(); break;
-            case Attribute.MESSAGE_INTEGRITY:
-                decodedAttribute = new MessageIntegrityAttribute(); break;
-            //case Attribute.PASSWORD: //handle as an unknown attribute
-            case Attribute.REFLECTED_FROM:
-                decodedAttribute = new ReflectedFromAttribute(); break;
-            case Attribute.RESPONSE_ADDRESS:
-                decodedAttribute = new ResponseAddressAttribute(); break;
-            case Attribute.SOURCE_ADDRESS:
-                decodedAttribute = new SourceAddressAttribute(); break;
-            case Attribute.UNKNOWN_ATTRIBUTES:
-                decodedAttribute = new UnknownAttributesAttribute(); break;
-            case Attribute.XOR_MAPPED_ADDRESS:
-                decodedAttribute = new XorMappedAddressAttribute(); break;
-            case Attribute.XOR_ONLY:
-                decodedAttribute = new XorOnlyAttribute(); break;
-            case Attribute.SOFTWARE:
-                decodedAttribute = new SoftwareAttribute(); break;
-            case Attribute.USERNAME:
-                decodedAttribute = new UsernameAttribute(); break;
-            case Attribute.REALM:
-                decodedAttribute = new RealmAttribute(); break;
-            case Attribute.NONCE:
-                decodedAttribute = new NonceAttribute(); break;
-            case Attribute.FINGERPRINT:
-                decodedAttribute = new FingerprintAttribute(); break;
-            case Attribute.ALTERNATE_SERVER:
-                decodedAttribute = new AlternateServerAttribute(); break;
-            case Attribute.CHANNEL_NUMBER:
-                decodedAttribute = new ChannelNumberAttribute(); break;
-            case Attribute.LIFETIME:
-                decodedAttribute = new LifetimeAttribute(); break;
-            case Attribute.XOR_PEER_ADDRESS:
-                decodedAttribute = new XorPeerAddressAttribute(); break;
-            case Attribute.DATA:
-                decodedAttribute = new DataAttribute(); break;
-            case Attribute.XOR_RELAYED_ADDRESS:
-                decodedAttribute = new XorRelayedAddressAttribute(); break;
-            case Attribute.EVEN_PORT:
-                decodedAttribute = new EvenPortAttribute(); break;
-            case Attribute.REQUESTED_TRANSPORT:
-                decodedAttribute = new RequestedTransportAttribute(); break;
-            case Attribute.DONT_FRAGMENT:
-                decodedAttribute = new DontFragmentAttribute(); break;
-            case Attribute.RESERVATION_TOKEN:
-                decodedAttribute = new ReservationTokenAttribute(); break;
-            case Attribute.PRIORITY:
-                decodedAttribute = new PriorityAttribute(); break;
-            case Attribute.ICE_CONTROLLING:
-                decodedAttribute = new IceControllingAttribute(); break;
-            case Attribute.ICE_CONTROLLED:
-                decodedAttribute = new IceControlledAttribute(); break;
-            case Attribute.USE_CANDIDATE:
-                decodedAttribute = new UseCandidateAttribute(); break;
-            case Attribute.REQUESTED_ADDRESS_FAMILY:
-                decodedAttribute = new RequestedAddressFamilyAttribute(); break;
-            case Attribute.CONNECTION_ID:
-                decodedAttribute = new ConnectionIdAttribute(); break;
-            //According to rfc3489 we should silently ignore unknown attributes.
-            default: decodedAttribute
-                = new OptionalAttribute( Attribute.UNKNOWN_OPTIONAL_ATTRIBUTE);
-                break;
-        }
+    /**
+     * Returns the length of the value of the attribute at <tt>offset</tt> in
+     * <tt>bytes</tt>.
+     *
+     * @param bytes the binary array that contains the attribute.
+     * @param offset the index where the attribute starts.
+     *
+     * @return the length of the value of the attribute.
+     */
+    private static char readAttributeLength(byte[] bytes, int offset)
+    {
+        return (char)
+            (((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF));
+    }
 
-        decodedAttribute.setAttributeType(attributeType);
-        decodedAttribute.setLocationInMessage(offset);
+    /**
+     * Decodes the value of attributes of a specific type.
+     */
+    @FunctionalInterface
+    public interface Codec
+    {
+        /**
+         * Decodes the value of an attribute.
+         *
+         * @param attributeType the type of the attribute.
+         * @param bytes the binary array that contains the attribute value.
+         * @param offset the index where the attribute value (i.e. not its
+         * header) starts.
+         * @param length the length of the attribute value.
+         *
+         * @return the decoded attribute.
+         *
+         * @throws StunException if the value is not valid.
+         */
+        Attribute decode(
+                char attributeType,
+                byte[] bytes,
+                char offset,
+                char length)
+            throws StunException;
+    }
 
-        decodedAttribute.decodeAttributeBody(bytes,
-                (char)(Attribute.HEADER_LENGTH + offset), attributeLength);
+    /**
+     * A {@link Codec} registered for an attribute type, the presence bit
+     * assigned to that type and the minimum length of the values of that
+     * type.
+     */
+    private static class Registration
+    {
+        private final Codec codec;
 
-        return decodedAttribute;
+        private final int presenceBit;
+
+        private final int minDataLength;
+
+        Registration(Codec codec, int presenceBit, int minDataLength)
+        {
+            this.codec = codec;
+            this.presenceBit = presenceBit;
+            this.minDataLength = minDataLength;
+        }
     }
 }
@@ -49,4 +49,35 @@ public interface ContentDependentAttribute
     public byte[] encode(
             StunStack stunStack,
             byte[] content, int offset, int length);
+
+    /**
+     * Writes the binary representation of this attribute into
+     * <tt>message</tt> right after the content that it depends on, i.e. the
+     * part of the message which has already been written. The "Message
+     * Length" in the header of the message is expected to have been set to
+     * the length of the message up to and including this attribute.
+     * <p>
+     * The default implementation copies the result of
+     * {@link #encode(StunStack, byte[], int, int)}.
+     *
+     * @param stunStack the <tt>StunStack</tt> in the context of which the
+     * request to encode this <tt>ContentDependentAttribute</tt> is being made
+     * @param message the array that the message is being written into
+     * @param messageOffset the index in <tt>message</tt> at which the message
+     * starts
+     * @param offset the index in <tt>message</tt> at which this attribute is
+     * to be written, i.e. the end of the content that it depends on
+     *
+     * @return the number of bytes written.
+     */
+    public default int encodeTo(
+            StunStack stunStack,
+            byte[] message, int messageOffset, int offset)
+    {
+        byte[] binValue
+            = encode(stunStack, message, messageOffset, offset - messageOffset);
+
+        System.arraycopy(binValue, 0, message, offset, binValue.length);
+        return binValue.length;
+    }
 }
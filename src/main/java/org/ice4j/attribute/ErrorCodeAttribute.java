@@ -457,25 +457,37 @@ public class ErrorCodeAttribute extends Attribute
                                     //add padding
                                     + (4 - getDataLength() % 4) % 4];
 
-        //Type
-        binValue[0] = (byte) (getAttributeType() >> 8);
-        binValue[1] = (byte) (getAttributeType() & 0x00FF);
-        //Length
-        binValue[2] = (byte) (getDataLength() >> 8);
-        binValue[3] = (byte) (getDataLength() & 0x00FF);
+        encodeTo(binValue, 0);
+        return binValue;
+    }
+
+    /**
+     * Writes the binary representation of this attribute into <tt>buf</tt>
+     * starting at <tt>offset</tt>.
+     *
+     * @param buf the array to write this attribute into.
+     * @param offset the index in <tt>buf</tt> at which this attribute is to
+     * start.
+     *
+     * @return the number of bytes written.
+     */
+    @Override
+    public int encodeTo(byte[] buf, int offset)
+    {
+        int i = encodeHeader(buf, offset);
 
         //Not used
-        binValue[4] = 0x00;
-        binValue[5] = 0x00;
+        buf[i] = 0x00;
+        buf[i + 1] = 0x00;
 
         //Error code
-        binValue[6] = getErrorClass();
-        binValue[7] = getErrorNumber();
+        buf[i + 2] = getErrorClass();
+        buf[i + 3] = getErrorNumber();
 
         if (reasonPhrase != null)
-            System.arraycopy(reasonPhrase, 0, binValue, 8, reasonPhrase.length);
+            System.arraycopy(reasonPhrase, 0, buf, i + 4, reasonPhrase.length);
 
-        return binValue;
+        return HEADER_LENGTH + getDataLength();
     }
 
     /**
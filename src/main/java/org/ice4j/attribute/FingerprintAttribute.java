@@ -194,6 +194,41 @@ public class FingerprintAttribute
         return binValue;
     }
 
+    /**
+     * Writes the binary representation of this attribute into
+     * <tt>message</tt> with the checksum of the content which precedes it.
+     *
+     * @param stunStack the <tt>StunStack</tt> in the context of which the
+     * request to encode this <tt>ContentDependentAttribute</tt> is being made
+     * @param message the array that the message is being written into
+     * @param messageOffset the index in <tt>message</tt> at which the message
+     * starts
+     * @param offset the index in <tt>message</tt> at which this attribute is
+     * to be written
+     *
+     * @return the number of bytes written.
+     */
+    @Override
+    public int encodeTo(
+            StunStack stunStack,
+            byte[] message, int messageOffset, int offset)
+    {
+        //calculate the check sum
+        CRC32 checksum = new CRC32();
+
+        checksum.update(message, messageOffset, offset - messageOffset);
+
+        long crc = checksum.getValue();
+        int i = encodeHeader(message, offset);
+
+        message[i]     = (byte)((byte)((crc >> 24) & 0xff) ^ XOR_MASK[0]);
+        message[i + 1] = (byte)((byte)((crc >> 16) & 0xff) ^ XOR_MASK[1]);
+        message[i + 2] = (byte)((byte)((crc >> 8)  & 0xff) ^ XOR_MASK[2]);
+        message[i + 3] = (byte)((byte) (crc        & 0xff) ^ XOR_MASK[3]);
+
+        return HEADER_LENGTH + getDataLength();
+    }
+
     /**
      * Sets this attribute's fields according to the message and attributeValue
      * arrays.
@@ -91,28 +91,38 @@ public abstract class IceControlAttribute
      */
     public byte[] encode()
     {
-        char type = getAttributeType();
         byte[] binValue = new byte[HEADER_LENGTH + getDataLength()];
 
-        //Type
-        binValue[0] = (byte)(type >> 8);
-        binValue[1] = (byte)(type & 0x00FF);
+        encodeTo(binValue, 0);
+        return binValue;
+    }
 
-        //Length
-        binValue[2] = (byte)(getDataLength() >> 8);
-        binValue[3] = (byte)(getDataLength() & 0x00FF);
+    /**
+     * Writes the binary representation of this attribute into <tt>buf</tt>
+     * starting at <tt>offset</tt>.
+     *
+     * @param buf the array to write this attribute into.
+     * @param offset the index in <tt>buf</tt> at which this attribute is to
+     * start.
+     *
+     * @return the number of bytes written.
+     */
+    @Override
+    public int encodeTo(byte[] buf, int offset)
+    {
+        int i = encodeHeader(buf, offset);
 
         //Tie-Breaker
-        binValue[4]  = (byte)((tieBreaker & 0xFF00000000000000L) >> 56);
-        binValue[5]  = (byte)((tieBreaker & 0x00FF000000000000L) >> 48);
-        binValue[6]  = (byte)((tieBreaker & 0x0000FF0000000000L) >> 40);
-        binValue[7]  = (byte)((tieBreaker & 0x000000FF00000000L) >> 32);
-        binValue[8]  = (byte)((tieBreaker & 0x00000000FF000000L) >> 24);
-        binValue[9]  = (byte)((tieBreaker & 0x0000000000FF0000L) >> 16);
-        binValue[10] = (byte)((tieBreaker & 0x000000000000FF00L) >> 8);
-        binValue[11] = (byte)( tieBreaker & 0x00000000000000FFL);
-
-        return binValue;
+        buf[i]     = (byte)((tieBreaker & 0xFF00000000000000L) >> 56);
+        buf[i + 1] = (byte)((tieBreaker & 0x00FF000000000000L) >> 48);
+        buf[i + 2] = (byte)((tieBreaker & 0x0000FF0000000000L) >> 40);
+        buf[i + 3] = (byte)((tieBreaker & 0x000000FF00000000L) >> 32);
+        buf[i + 4] = (byte)((tieBreaker & 0x00000000FF000000L) >> 24);
+        buf[i + 5] = (byte)((tieBreaker & 0x0000000000FF0000L) >> 16);
+        buf[i + 6] = (byte)((tieBreaker & 0x000000000000FF00L) >> 8);
+        buf[i + 7] = (byte)( tieBreaker & 0x00000000000000FFL);
+
+        return HEADER_LENGTH + getDataLength();
     }
 
     /**
@@ -0,0 +1,149 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.attribute;
+
+import org.ice4j.*;
+
+/**
+ * Stands for an attribute of an incoming message whose value has not been
+ * decoded yet. Decoding the body of a <tt>LazyAttribute</tt> only keeps the
+ * length of the attribute along with a reference to the array that the
+ * message was received in. The value is decoded by {@link #decode()} with
+ * the codec registered in {@link AttributeDecoder} when the attribute is
+ * first accessed (see {@link org.ice4j.message.Message#getAttribute(char)}).
+ * <p>
+ * Messages never return <tt>LazyAttribute</tt>s from their accessors.
+ */
+public final class LazyAttribute
+    extends Attribute
+{
+    /**
+     * The length of the value of this attribute.
+     */
+    private char dataLength;
+
+    /**
+     * The array which contains this attribute at
+     * {@link #getLocationInMessage()}.
+     */
+    private byte[] bytes;
+
+    /**
+     * Creates a new <tt>LazyAttribute</tt>.
+     *
+     * @param attributeType the type of the attribute.
+     */
+    LazyAttribute(char attributeType)
+    {
+        super(attributeType);
+    }
+
+    /**
+     * Decodes this attribute.
+     *
+     * @return the decoded attribute.
+     *
+     * @throws StunException if the value of this attribute is not valid.
+     */
+    public Attribute decode()
+        throws StunException
+    {
+        int location = getLocationInMessage();
+        Attribute attribute
+            = AttributeDecoder.decodeAttributeBody(
+                    getAttributeType(),
+                    bytes,
+                    (char) (location + HEADER_LENGTH),
+                    dataLength);
+
+        attribute.setLocationInMessage(location);
+        return attribute;
+    }
+
+    /**
+     * Returns the length of the value of this attribute.
+     *
+     * @return the length of the value of this attribute.
+     */
+    @Override
+    public char getDataLength()
+    {
+        return dataLength;
+    }
+
+    /**
+     * Returns the human readable name of this attribute.
+     *
+     * @return this attribute's name.
+     */
+    @Override
+    public String getName()
+    {
+        return "LAZY-ATTRIBUTE";
+    }
+
+    /**
+     * Compares two <tt>LazyAttribute</tt>s by identity: they have to be
+     * decoded in order to be compared by value.
+     *
+     * @param obj the object to compare this attribute with.
+     *
+     * @return <tt>true</tt> if <tt>obj</tt> is this attribute.
+     */
+    @Override
+    public boolean equals(Object obj)
+    {
+        return obj == this;
+    }
+
+    /**
+     * Returns the binary representation of this attribute as it was
+     * received.
+     *
+     * @return the binary representation of this attribute.
+     */
+    @Override
+    public byte[] encode()
+    {
+        byte[] binValue = new byte[HEADER_LENGTH + dataLength];
+
+        System.arraycopy(
+                bytes, getLocationInMessage(),
+                binValue, 0,
+                binValue.length);
+        return binValue;
+    }
+
+    /**
+     * Keeps a reference to <tt>attributeValue</tt> so that the value of this
+     * attribute can be decoded later on by {@link #decode()}. The location of
+     * this attribute in the message is set to the start of its header.
+     *
+     * @param attributeValue the array which contains the attribute. It must
+     * not be modified afterwards.
+     * @param offset the index where the value of the attribute starts.
+     * @param length the length of the value of the attribute.
+     */
+    @Override
+    void decodeAttributeBody(byte[] attributeValue, char offset, char length)
+    {
+        this.bytes = attributeValue;
+        this.dataLength = length;
+        setLocationInMessage(offset - HEADER_LENGTH);
+    }
+}
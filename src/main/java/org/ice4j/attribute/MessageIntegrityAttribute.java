@@ -109,6 +109,17 @@ public class MessageIntegrityAttribute
      */
     public static final char DATA_LENGTH = (char)20;
 
+    /**
+     * The HMAC-SHA1 <tt>Mac</tt> of each thread along with the key it was last
+     * initialized with. Looking up the <tt>Mac</tt> implementation is much
+     * more expensive than computing an HMAC and consecutive messages are
+     * usually computed with the same key (e.g. the requests and responses of
+     * one agent), so the <tt>Mac</tt>s are reused and are only initialized
+     * again when the key changes.
+     */
+    private static final ThreadLocal<KeyedMac> keyedMacs
+        = ThreadLocal.withInitial(KeyedMac::new);
+
     /**
      * The actual content of the message
      */
@@ -194,33 +205,101 @@ public class MessageIntegrityAttribute
                                            byte[] key)
         throws IllegalArgumentException
     {
-        byte[] hmac;
+        Mac mac = getMac(key);
+
+        // compute the hmac on input data bytes
+        mac.update(message, offset, length);
+        return mac.doFinal();
+    }
+
+    /**
+     * Calculates the HMAC-SHA1 that the sender of a received message is
+     * expected to have put in its MESSAGE-INTEGRITY attribute. The HMAC is
+     * computed over the bytes of the message which precede the attribute,
+     * with a "Message Length" which counts the attributes up to and
+     * including MESSAGE-INTEGRITY but not the ones after it (e.g.
+     * FINGERPRINT). The length is patched on the fly so that
+     * <tt>message</tt> is neither copied nor modified.
+     *
+     * @param message the received STUN message.
+     * @param offset the index where the message starts in <tt>message</tt>.
+     * @param location the index in <tt>message</tt> at which the
+     * MESSAGE-INTEGRITY attribute starts (see
+     * {@link Attribute#getLocationInMessage()}).
+     * @param key the key that the HMAC is to be calculated with.
+     *
+     * @return the expected value of the MESSAGE-INTEGRITY attribute of
+     * <tt>message</tt>.
+     *
+     * @throws IllegalArgumentException if the encoding fails for some reason.
+     */
+    public static byte[] calculateIncomingHmacSha1(byte[] message,
+                                                   int    offset,
+                                                   int    location,
+                                                   byte[] key)
+        throws IllegalArgumentException
+    {
+        char messageLength
+            = (char)
+                (location - offset
+                    + HEADER_LENGTH
+                    + DATA_LENGTH
+                    - Message.HEADER_LENGTH);
+        Mac mac = getMac(key);
+
+        // Message Type
+        mac.update(message, offset, 2);
+        // Message Length
+        mac.update((byte) (messageLength >> 8));
+        mac.update((byte) (messageLength & 0xFF));
+        // Magic Cookie, Transaction ID and the attributes before
+        // MESSAGE-INTEGRITY
+        mac.update(message, offset + 4, location - offset - 4);
+        return mac.doFinal();
+    }
+
+    /**
+     * Returns the HMAC-SHA1 <tt>Mac</tt> of the current thread initialized
+     * with <tt>key</tt>. The <tt>Mac</tt> must not be used beyond the
+     * computation of one HMAC.
+     *
+     * @param key the raw bytes of the key.
+     *
+     * @return an HMAC-SHA1 <tt>Mac</tt> initialized with <tt>key</tt>.
+     *
+     * @throws IllegalArgumentException if the <tt>Mac</tt> cannot be created.
+     */
+    private static Mac getMac(byte[] key)
+        throws IllegalArgumentException
+    {
+        KeyedMac keyedMac = keyedMacs.get();
 
         try
         {
-            // get an HMAC-SHA1 key from the raw key bytes
-            SecretKeySpec signingKey
-                = new SecretKeySpec(key, HMAC_SHA1_ALGORITHM);
-            // get an HMAC-SHA1 Mac instance and initialize it with the key
-            Mac mac = Mac.getInstance(HMAC_SHA1_ALGORITHM);
-
-            mac.init(signingKey);
-
-            // compute the hmac on input data bytes
-            byte[] macInput = new byte[length];
-
-            //doFinal seems incapable to only work with a part of an array
-            //so we'd need to create an array that only contains what we
-            //actually need to work with.
-            System.arraycopy(message, offset, macInput, 0, length);
-            hmac = mac.doFinal(macInput);
+            if (keyedMac.mac == null)
+            {
+                // get an HMAC-SHA1 Mac instance
+                keyedMac.mac = Mac.getInstance(HMAC_SHA1_ALGORITHM);
+            }
+            if (keyedMac.key == null || !Arrays.equals(keyedMac.key, key))
+            {
+                // initialize it with an HMAC-SHA1 key from the raw key bytes
+                keyedMac.key = null;
+                keyedMac.mac.init(
+                        new SecretKeySpec(key, HMAC_SHA1_ALGORITHM));
+                keyedMac.key = key.clone();
+            }
+            else
+            {
+                keyedMac.mac.reset();
+            }
+            return keyedMac.mac;
         }
         catch (Exception exc)
         {
             throw new IllegalArgumentException(
                         "Could not create HMAC-SHA1 request encoding: ", exc);
         }
-        return hmac;
     }
 
     /**
@@ -287,9 +366,71 @@ public class MessageIntegrityAttribute
         binValue[2] = (byte)(getDataLength() >> 8);
         binValue[3] = (byte)(getDataLength() & 0x00FF);
 
-        byte[] key = null;
         char msgType =
             (char) (((content[0] & 0xFF) << 8) | (content[1] & 0xFF));
+        byte[] key = getKey(stunStack, msgType);
+
+        //now calculate the HMAC-SHA1
+        this.hmacSha1Content = calculateHmacSha1(content, offset, length, key);
+
+        //username
+        System.arraycopy(hmacSha1Content, 0, binValue, HEADER_LENGTH, getDataLength());
+
+        return binValue;
+    }
+
+    /**
+     * Writes the binary representation of this attribute into
+     * <tt>message</tt> with the HMAC-SHA1 of the content which precedes it.
+     *
+     * @param stunStack the <tt>StunStack</tt> in the context of which the
+     * request to encode this <tt>ContentDependentAttribute</tt> is being made
+     * @param message the array that the message is being written into
+     * @param messageOffset the index in <tt>message</tt> at which the message
+     * starts
+     * @param offset the index in <tt>message</tt> at which this attribute is
+     * to be written
+     *
+     * @return the number of bytes written.
+     */
+    @Override
+    public int encodeTo(
+            StunStack stunStack,
+            byte[] message, int messageOffset, int offset)
+    {
+        char msgType
+            = (char)
+                (((message[messageOffset] & 0xFF) << 8)
+                    | (message[messageOffset + 1] & 0xFF));
+        byte[] key = getKey(stunStack, msgType);
+
+        //now calculate the HMAC-SHA1
+        this.hmacSha1Content
+            = calculateHmacSha1(
+                    message, messageOffset, offset - messageOffset, key);
+
+        int i = encodeHeader(message, offset);
+
+        System.arraycopy(hmacSha1Content, 0, message, i, getDataLength());
+
+        return HEADER_LENGTH + getDataLength();
+    }
+
+    /**
+     * Returns the key with which this attribute is to be computed in a
+     * message of type <tt>msgType</tt>.
+     *
+     * @param stunStack the <tt>StunStack</tt> in the context of which the
+     * message is being encoded
+     * @param msgType the type of the message.
+     *
+     * @return the key with which this attribute is to be computed.
+     *
+     * @throws NullPointerException if no key is available.
+     */
+    private byte[] getKey(StunStack stunStack, char msgType)
+    {
+        byte[] key = null;
 
         if (Message.isRequestType(msgType))
         {
@@ -309,13 +450,7 @@ public class MessageIntegrityAttribute
         }
 
         Objects.requireNonNull(key, "key=null; msgType=" + String.format("%04X", (int)msgType));
-        //now calculate the HMAC-SHA1
-        this.hmacSha1Content = calculateHmacSha1(content, offset, length, key);
-
-        //username
-        System.arraycopy(hmacSha1Content, 0, binValue, HEADER_LENGTH, getDataLength());
-
-        return binValue;
+        return key;
     }
 
     /**
@@ -361,4 +496,21 @@ public class MessageIntegrityAttribute
 
         return true;
     }
+
+    /**
+     * An HMAC-SHA1 <tt>Mac</tt> along with the key it is initialized with.
+     */
+    private static class KeyedMac
+    {
+        /**
+         * The key with which {@link #mac} is initialized, or <tt>null</tt> if
+         * it isn't initialized.
+         */
+        private byte[] key;
+
+        /**
+         * The HMAC-SHA1 <tt>Mac</tt>.
+         */
+        private Mac mac;
+    }
 }
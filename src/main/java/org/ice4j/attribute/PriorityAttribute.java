@@ -89,24 +89,34 @@ public class PriorityAttribute
      */
     public byte[] encode()
     {
-        char type = getAttributeType();
         byte[] binValue = new byte[HEADER_LENGTH + getDataLength()];
 
-        //Type
-        binValue[0] = (byte)(type >> 8);
-        binValue[1] = (byte)(type & 0x00FF);
+        encodeTo(binValue, 0);
+        return binValue;
+    }
 
-        //Length
-        binValue[2] = (byte)(getDataLength() >> 8);
-        binValue[3] = (byte)(getDataLength() & 0x00FF);
+    /**
+     * Writes the binary representation of this attribute into <tt>buf</tt>
+     * starting at <tt>offset</tt>.
+     *
+     * @param buf the array to write this attribute into.
+     * @param offset the index in <tt>buf</tt> at which this attribute is to
+     * start.
+     *
+     * @return the number of bytes written.
+     */
+    @Override
+    public int encodeTo(byte[] buf, int offset)
+    {
+        int i = encodeHeader(buf, offset);
 
         //Priority
-        binValue[4] = (byte)((priority & 0xFF000000L) >> 24);
-        binValue[5] = (byte)((priority & 0x00FF0000L) >> 16);
-        binValue[6] = (byte)((priority & 0x0000FF00L) >> 8);
-        binValue[7] = (byte)(priority & 0x000000FFL);
+        buf[i]     = (byte)((priority & 0xFF000000L) >> 24);
+        buf[i + 1] = (byte)((priority & 0x00FF0000L) >> 16);
+        buf[i + 2] = (byte)((priority & 0x0000FF00L) >> 8);
+        buf[i + 3] = (byte)(priority & 0x000000FFL);
 
-        return binValue;
+        return HEADER_LENGTH + getDataLength();
     }
 
     /**
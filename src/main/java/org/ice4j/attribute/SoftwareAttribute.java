@@ -70,23 +70,33 @@ public class SoftwareAttribute
      */
     public byte[] encode()
     {
-        char type = getAttributeType();
         byte binValue[] = new byte[HEADER_LENGTH + getDataLength()
                                    //add padding
                                    + (4 - getDataLength() % 4) % 4];
 
-        //Type
-        binValue[0] = (byte)(type >> 8);
-        binValue[1] = (byte)(type & 0x00FF);
+        encodeTo(binValue, 0);
+        return binValue;
+    }
 
-        //Length
-        binValue[2] = (byte)(getDataLength() >> 8);
-        binValue[3] = (byte)(getDataLength() & 0x00FF);
+    /**
+     * Writes the binary representation of this attribute into <tt>buf</tt>
+     * starting at <tt>offset</tt>.
+     *
+     * @param buf the array to write this attribute into.
+     * @param offset the index in <tt>buf</tt> at which this attribute is to
+     * start.
+     *
+     * @return the number of bytes written.
+     */
+    @Override
+    public int encodeTo(byte[] buf, int offset)
+    {
+        int i = encodeHeader(buf, offset);
 
         //software
-        System.arraycopy(software, 0, binValue, 4, getDataLength());
+        System.arraycopy(software, 0, buf, i, getDataLength());
 
-        return binValue;
+        return HEADER_LENGTH + getDataLength();
     }
 
     /**
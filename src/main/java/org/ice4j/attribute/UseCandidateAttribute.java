@@ -66,20 +66,29 @@ public class UseCandidateAttribute
      */
     public byte[] encode()
     {
-        char type = getAttributeType();
         byte[] binValue = new byte[HEADER_LENGTH + DATA_LENGTH_USE_CANDIDATE];
 
-        // Type
-        binValue[0] = (byte)(type >> 8);
-        binValue[1] = (byte)(type & 0x00FF);
-
-        // Length
-        binValue[2] = (byte)(DATA_LENGTH_USE_CANDIDATE >> 8);
-        binValue[3] = (byte)(DATA_LENGTH_USE_CANDIDATE & 0x00FF);
-
+        encodeTo(binValue, 0);
         return binValue;
     }
 
+    /**
+     * Writes the binary representation of this attribute into <tt>buf</tt>
+     * starting at <tt>offset</tt>.
+     *
+     * @param buf the array to write this attribute into.
+     * @param offset the index in <tt>buf</tt> at which this attribute is to
+     * start.
+     *
+     * @return the number of bytes written.
+     */
+    @Override
+    public int encodeTo(byte[] buf, int offset)
+    {
+        encodeHeader(buf, offset);
+        return HEADER_LENGTH + DATA_LENGTH_USE_CANDIDATE;
+    }
+
     /**
      * Compares two STUN Attributes. Two attributes are considered equal when
      * they have the same type, length and value.
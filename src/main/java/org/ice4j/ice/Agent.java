@@ -19,6 +19,7 @@ package org.ice4j.ice;
 
 import org.ice4j.*;
 import org.ice4j.ice.harvest.*;
+import org.ice4j.metrics.*;
 import org.ice4j.stack.*;
 import org.ice4j.util.PeriodicRunnable;
 import org.jitsi.utils.concurrent.*;
@@ -243,6 +244,27 @@ public class Agent
      */
     private StunStack stunStack;
 
+    /**
+     * Whether {@link #stunStack} is owned by this <tt>Agent</tt> and is to be
+     * shut down when this <tt>Agent</tt> is freed, i.e. whether it is not the
+     * process-wide {@link #sharedStunStack}. Guarded by the monitor of this
+     * <tt>Agent</tt>.
+     */
+    private boolean ownsStunStack = true;
+
+    /**
+     * The process-wide <tt>StunStack</tt> shared by the agents when
+     * {@link AgentConfig#getUseSharedStunStack()} is enabled. Created on
+     * first use and never shut down.
+     */
+    private static StunStack sharedStunStack;
+
+    /**
+     * The ICE metrics of this <tt>Agent</tt>, which add up in
+     * {@link Metrics#GLOBAL}.
+     */
+    private final Metrics metrics = new Metrics(Metrics.GLOBAL);
+
     /**
      * The scheduled task to terminate this <tt>Agent</tt>
      */
@@ -678,17 +700,40 @@ public class Agent
     }
 
     /**
-     * Starts an asynchronous(?) harvest across all components and reports newly
-     * discovered candidates to <tt>trickleCallback</tt>.
+     * Starts a harvest across all components and reports newly discovered
+     * candidates to <tt>trickleCallback</tt>. Returns when the harvest has
+     * completed.
      *
      * @param trickleCallback the callback that will be notified for all newly
      * discovered candidates.
      *
      * @throws IllegalStateException if we try calling this method without being
      * in a trickling state.
+     * @see #startCandidateTrickleAsync(TrickleCallback)
      */
     public void startCandidateTrickle(TrickleCallback trickleCallback)
         throws IllegalStateException
+    {
+        startCandidateTrickleAsync(trickleCallback).join();
+    }
+
+    /**
+     * Starts an asynchronous harvest across all components and reports newly
+     * discovered candidates to <tt>trickleCallback</tt> as soon as they are
+     * discovered. When the harvest has completed (or its deadline has passed),
+     * <tt>trickleCallback</tt> is notified with <tt>null</tt>, the WebRTC way.
+     *
+     * @param trickleCallback the callback that will be notified for all newly
+     * discovered candidates.
+     * @return a <tt>CompletableFuture</tt> which is completed when the harvest
+     * has completed and <tt>trickleCallback</tt> has been notified of it.
+     *
+     * @throws IllegalStateException if we try calling this method without being
+     * in a trickling state.
+     */
+    public CompletableFuture<Void> startCandidateTrickleAsync(
+            TrickleCallback trickleCallback)
+        throws IllegalStateException
     {
         if (!isTrickling())
         {
@@ -710,10 +755,9 @@ public class Agent
             components.addAll(stream.getComponents());
         }
 
-        harvesters.harvest(components, trickleCallback);
-
-        //tell the tricklers that we are done (the WebRTC way, with null):
-        trickleCallback.onIceCandidates(null);
+        return harvesters.harvestAsync(components, trickleCallback)
+            //tell the tricklers that we are done (the WebRTC way, with null):
+            .thenRun(() -> trickleCallback.onIceCandidates(null));
     }
 
     /**
@@ -1290,9 +1334,25 @@ public class Agent
     public synchronized StunStack getStunStack()
     {
         if (stunStack == null)
-            stunStack = new StunStack();
+        {
+            ownsStunStack = !config.getUseSharedStunStack();
+            stunStack = ownsStunStack ? new StunStack() : getSharedStunStack();
+        }
         return stunStack;
     }
+
+    /**
+     * Gets the process-wide <tt>StunStack</tt> shared by the agents which
+     * are configured to use it, creating it if necessary.
+     *
+     * @return the process-wide <tt>StunStack</tt>.
+     */
+    private static synchronized StunStack getSharedStunStack()
+    {
+        if (sharedStunStack == null)
+            sharedStunStack = new StunStack();
+        return sharedStunStack;
+    }
     
     /**
      * Sets the <tt>StunStack</tt> used by this <tt>Agent</tt>.
@@ -1300,9 +1360,22 @@ public class Agent
      * @param stunStack the stunStack to be used by this Agent.
      * 
      */
-    public void setStunStack(StunStack stunStack)
+    public synchronized void setStunStack(StunStack stunStack)
     {
         this.stunStack = stunStack;
+        ownsStunStack = true;
+    }
+
+    /**
+     * Returns the registry of the ICE metrics of this <tt>Agent</tt> (the
+     * connectivity checks and the TURN refreshes). The STUN metrics are
+     * maintained by the <tt>StunStack</tt> of this <tt>Agent</tt>.
+     *
+     * @return the registry of the ICE metrics of this <tt>Agent</tt>.
+     */
+    public Metrics getMetrics()
+    {
+        return metrics;
     }
 
     /**
@@ -1854,6 +1927,43 @@ public class Agent
         this.nominator.setStrategy(strategy);
     }
 
+    /**
+     * Returns the {@link NominationPolicy} that we use in order to decide if
+     * and when we should nominate valid pairs.
+     *
+     * @return the policy that we are using for nominating valid
+     * {@link CandidatePair}s or <tt>null</tt> if this agent doesn't nominate
+     * pairs.
+     */
+    public NominationPolicy getNominationPolicy()
+    {
+        return this.nominator.getPolicy();
+    }
+
+    /**
+     * Specifies a custom {@link NominationPolicy} that we should use in order
+     * to decide if and when we should nominate valid pairs, instead of the
+     * built-in policy of the current {@link NominationStrategy}.
+     *
+     * @param policy the policy that we'd like to use for nominating valid
+     * {@link CandidatePair}s or <tt>null</tt> to not nominate pairs.
+     */
+    public void setNominationPolicy(NominationPolicy policy)
+    {
+        this.nominator.setPolicy(policy);
+    }
+
+    /**
+     * Returns the <tt>ScheduledExecutorService</tt> shared by all agents to
+     * execute their scheduled tasks.
+     *
+     * @return the <tt>ScheduledExecutorService</tt> shared by all agents.
+     */
+    ScheduledExecutorService getScheduledExecutorService()
+    {
+        return agentTasksScheduler;
+    }
+
     /**
      * Indicates that we have received a response to a request that either
      * contained the <tt>USE-CANDIDATE</tt> attribute or was triggered by an
@@ -2333,6 +2443,9 @@ public class Agent
         //stop sending keep alives (STUN Binding Indications).
         stunKeepAliveRunner.cancel();
 
+        //cancel the nominations which may have been scheduled.
+        nominator.stop();
+
         // cancel termination timer in case agent is freed
         // before termination timer is triggered
         synchronized (terminationFutureSyncRoot)
@@ -2359,8 +2472,21 @@ public class Agent
             terminate(IceProcessingState.TERMINATED);
         }
 
-        /* Stop all outstanding transactions */
-        getStunStack().shutDown();
+        /*
+         * Stop all outstanding transactions. The transactions of an agent
+         * which uses the shared stack are cancelled along with the sockets of
+         * its candidates below, and the stack itself lives on.
+         */
+        StunStack stunStack;
+        boolean ownsStunStack;
+
+        synchronized (this)
+        {
+            stunStack = getStunStack();
+            ownsStunStack = this.ownsStunStack;
+        }
+        if (ownsStunStack)
+            stunStack.shutDown();
 
         // Free its IceMediaStreams, Components and Candidates.
         boolean interrupted = false;
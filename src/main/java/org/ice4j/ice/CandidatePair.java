@@ -20,6 +20,7 @@ package org.ice4j.ice;
 import java.net.*;
 import java.util.*;
 
+import org.ice4j.metrics.*;
 import org.ice4j.socket.*;
 import org.ice4j.stack.*;
 
@@ -121,6 +122,20 @@ public class CandidatePair
      */
     private long consentFreshness = CONSENT_FRESHNESS_UNKNOWN;
 
+    /**
+     * The {@link CheckList} that this pair is currently a member of, or
+     * <tt>null</tt> if it isn't in a check list. The check list is notified of
+     * the changes of the state of this pair. Guarded by the monitor of this
+     * pair.
+     */
+    private CheckList checkList = null;
+
+    /**
+     * The round-trip times of the connectivity checks (keep-alives included)
+     * over this pair, in microseconds.
+     */
+    private final LatencySummary roundTripTimes = new LatencySummary();
+
     /**
      * Creates a <tt>CandidatePair</tt> instance mapping <tt>localCandidate</tt>
      * to <tt>remoteCandidate</tt>.
@@ -213,6 +228,29 @@ public class CandidatePair
         return state;
     }
 
+    /**
+     * Returns the {@link CheckList} that this pair is currently a member of.
+     *
+     * @return the {@link CheckList} that this pair is a member of or
+     * <tt>null</tt> if it isn't in a check list.
+     */
+    synchronized CheckList getCheckList()
+    {
+        return checkList;
+    }
+
+    /**
+     * Sets the {@link CheckList} that this pair is a member of. Called by the
+     * check list when the pair is added to or removed from it.
+     *
+     * @param checkList the {@link CheckList} that this pair is now a member of
+     * or <tt>null</tt> if it has been removed from its check list.
+     */
+    synchronized void setCheckList(CheckList checkList)
+    {
+        this.checkList = checkList;
+    }
+
     /**
      * Sets the <tt>CandidatePairState</tt> of this pair to
      * {@link CandidatePairState#FAILED}. This method should only be called by
@@ -289,6 +327,8 @@ public class CandidatePair
         CandidatePairState oldState = this.state;
 
         this.state = newState;
+        if (checkList != null)
+            checkList.pairStateChanged(this, oldState, newState);
 
         if (newState == CandidatePairState.IN_PROGRESS)
         {
@@ -698,6 +738,18 @@ public class CandidatePair
                 true);
     }
 
+    /**
+     * Returns the round-trip times of the connectivity checks over this pair,
+     * in microseconds. Only the checks which got a response to their first
+     * transmission are taken into account.
+     *
+     * @return the round-trip times of the connectivity checks over this pair.
+     */
+    public LatencySummary getRoundTripTimes()
+    {
+        return roundTripTimes;
+    }
+
     /**
      * Gets the time in milliseconds of the latest consent freshness
      * confirmation.
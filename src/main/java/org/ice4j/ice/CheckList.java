@@ -17,11 +17,13 @@
  */
 package org.ice4j.ice;
 
+import org.ice4j.*;
 import org.jitsi.utils.logging2.*;
 
 import java.beans.*;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * A check list is a list of <tt>CandidatePair</tt>s with a state (i.e. a
@@ -30,17 +32,35 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * in-use media stream resulting from the offer/answer exchange.
  * <p>
  * Given the asynchronous nature of ice, a check list may be accessed from
- * different locations. This class therefore stores pairs in a <tt>Vector</tt>
+ * different locations. This class therefore keeps its pairs in a copy-on-write
+ * array, in decreasing order of priority. Mutations are serialized on the
+ * monitor of the check list, while reads and iterations work on a snapshot and
+ * don't need any locking.
+ * <p>
+ * The check list is a <tt>List</tt> which keeps its own order: pairs are added
+ * with {@link #add(CandidatePair)} or {@link #addAll(Collection)} and removed
+ * by value or by index, but inserting or replacing a pair at a given index is
+ * not supported. The list iterators and sub lists are read-only views of a
+ * snapshot.
+ * <p>
+ * The check list also keeps track of the number of its pairs in each
+ * {@link CandidatePairState} (the pairs report their state changes to the list
+ * they belong to), so that {@link #isActive()}, {@link #isFrozen()} and
+ * {@link #allChecksCompleted()} don't need to go through the pairs, and keeps
+ * its <tt>Waiting</tt> pairs in a priority queue from which the next ordinary
+ * check is taken.
+ * <p>
+ * In addition to the list itself, the check list maintains hash indexes of its
+ * pairs by local and remote transport address and by local and remote ufrag,
+ * so that incoming connectivity checks can be matched to a pair without
+ * scanning the whole list. The indexes are updated by the mutators of this
+ * list and are guarded by its monitor.
+ *
  * @author Emil Ivov
  */
 public class CheckList
-    extends Vector<CandidatePair>
+    extends AbstractList<CandidatePair>
 {
-    /**
-     * A dummy serialization id.
-     */
-    private static final long serialVersionUID = 1L;
-
     /**
      * The name of the {@link PropertyChangeEvent} that we use to deliver
      * changes on the state of this check list.
@@ -53,6 +73,11 @@ public class CheckList
      */
     public static final String PROPERTY_CHECK_LIST_CHECKS = "CheckListChecks";
 
+    /**
+     * An empty array of pairs, the content of an empty check list.
+     */
+    private static final CandidatePair[] NO_PAIRS = new CandidatePair[0];
+
     /**
      * The state of this check list.
      */
@@ -63,13 +88,47 @@ public class CheckList
      */
     private AtomicBoolean paceMakerStarted = new AtomicBoolean(false);
 
+    /**
+     * The pairs of this check list in decreasing order of priority. The array
+     * is never modified once published: mutators replace it with a new one
+     * while holding the monitor of this list.
+     */
+    private volatile CandidatePair[] pairs = NO_PAIRS;
+
+    /**
+     * The number of pairs of this check list in each
+     * {@link CandidatePairState}, indexed by the ordinal of the state. When a
+     * pair changes its state, the counter of its new state is incremented
+     * before the one of its old state is decremented.
+     */
+    private final AtomicIntegerArray stateCounts
+        = new AtomicIntegerArray(CandidatePairState.values().length);
+
+    /**
+     * The pairs of this check list which have entered the <tt>Waiting</tt>
+     * state, highest priority first. Entries are not removed when pairs leave
+     * the <tt>Waiting</tt> state or this list, they are rather skipped by
+     * {@link #getNextOrdinaryPairToCheck()}.
+     */
+    private final PriorityBlockingQueue<CandidatePair> waitingPairs
+        = new PriorityBlockingQueue<>(11, CandidatePair.comparator);
+
     /**
      * The <tt>triggeredCheckQueue</tt> is a FIFO queue containing candidate
      * pairs for which checks are to be sent at the next available opportunity.
      * A pair would get into a triggered check queue as soon as we receive
      * a check on its local candidate.
      */
-    private final List<CandidatePair> triggeredCheckQueue = new LinkedList<>();
+    private final Queue<CandidatePair> triggeredCheckQueue
+        = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The pairs in {@link #triggeredCheckQueue} indexed by the transport
+     * addresses of their local and remote candidates. Used to not schedule
+     * more than one triggered check for the same pair.
+     */
+    private final Map<AddressPair, CandidatePair> triggeredPairs
+        = new ConcurrentHashMap<>();
 
     /**
      * A reference to the {@link IceMediaStream} that we belong to.
@@ -90,6 +149,22 @@ public class CheckList
     private final List<PropertyChangeListener> checkListeners
         = new LinkedList<>();
 
+    /**
+     * The pairs in this check list indexed by the transport addresses of their
+     * local and remote candidates. Pairs with the same key are kept in the
+     * order in which they were added.
+     */
+    private final Map<AddressPair, List<CandidatePair>> pairsByAddresses
+        = new HashMap<>();
+
+    /**
+     * The pairs in this check list indexed by the ufrags of their local and
+     * remote candidates. Pairs with the same key are kept in the order in which
+     * they were added.
+     */
+    private final Map<String, List<CandidatePair>> pairsByUfrags
+        = new HashMap<>();
+
     /**
      * The {@link Logger} used by {@link CheckList} instances.
      */
@@ -139,13 +214,10 @@ public class CheckList
      */
     protected void scheduleTriggeredCheck(CandidatePair pair)
     {
-        synchronized(triggeredCheckQueue)
+        if (triggeredPairs.putIfAbsent(new AddressPair(pair), pair) == null)
         {
-            if (!triggeredCheckQueue.contains(pair))
-            {
-                triggeredCheckQueue.add(pair);
-                pair.setStateWaiting();
-            }
+            triggeredCheckQueue.add(pair);
+            pair.setStateWaiting();
         }
     }
 
@@ -158,12 +230,11 @@ public class CheckList
      */
     protected CandidatePair popTriggeredCheck()
     {
-        synchronized(triggeredCheckQueue)
-        {
-            if (triggeredCheckQueue.size() > 0)
-                return triggeredCheckQueue.remove(0);
-        }
-        return null;
+        CandidatePair pair = triggeredCheckQueue.poll();
+
+        if (pair != null)
+            triggeredPairs.remove(new AddressPair(pair), pair);
+        return pair;
     }
 
     /**
@@ -171,69 +242,236 @@ public class CheckList
      * connectivity check. According to RFC 5245 this would be the highest
      * priority pair that is in the <tt>Waiting</tt> state or, if there is
      * no such pair, the highest priority <tt>Frozen</tt> {@link CandidatePair}.
+     * <p>
+     * The returned pair is removed from the queue of <tt>Waiting</tt> pairs,
+     * so the caller is expected to move it out of the <tt>Waiting</tt> state.
      *
      * @return the next {@link CandidatePair} that is eligible for a regular
      * connectivity check, which would either be the highest priority
      * <tt>Waiting</tt> pair or, when there's no such pair, the highest priority
      * <tt>Frozen</tt> pair or <tt>null</tt> otherwise
      */
-    protected synchronized CandidatePair getNextOrdinaryPairToCheck()
+    protected CandidatePair getNextOrdinaryPairToCheck()
     {
-        if (size() < 1)
-            return null;
+        CandidatePair pair;
 
-        CandidatePair highestPriorityPair = null;
-
-        for (CandidatePair pair : this)
+        while ((pair = waitingPairs.poll()) != null)
         {
-            if (pair.getState() == CandidatePairState.WAITING)
+            synchronized (pair)
             {
-                if (highestPriorityPair == null
-                   || pair.getPriority() > highestPriorityPair.getPriority())
+                if (pair.getState() == CandidatePairState.WAITING
+                        && pair.getCheckList() == this)
                 {
-                    highestPriorityPair = pair;
+                    return pair;
                 }
             }
         }
 
-        if (highestPriorityPair != null)
-            return highestPriorityPair;
+        if (getStateCount(CandidatePairState.FROZEN) == 0)
+            return null;
 
-        for (CandidatePair pair : this)
+        // The pairs are in decreasing order of priority, so the first Frozen
+        // one is the one with the highest priority.
+        for (CandidatePair frozenPair : pairs)
         {
-            if (pair.getState() == CandidatePairState.FROZEN)
+            synchronized (frozenPair)
             {
-                if (highestPriorityPair == null
-                   || pair.getPriority() > highestPriorityPair.getPriority())
+                if (frozenPair.getState() == CandidatePairState.FROZEN)
                 {
-                    highestPriorityPair = pair;
-                    pair.setStateWaiting();
+                    frozenPair.setStateWaiting();
+                    return frozenPair;
                 }
             }
         }
 
-        return highestPriorityPair; //return even if null
+        return null;
     }
 
     /**
      * Returns a pair which matches the specified local and remote candidates'
      * transport addresses, if any, otherwise null.
      */
-    public synchronized CandidatePair findPairMatching(LocalCandidate local, RemoteCandidate remote)
+    public CandidatePair findPairMatching(LocalCandidate local, RemoteCandidate remote)
     {
-        for (CandidatePair pair : this)
+        return findPair(local.getTransportAddress(), remote.getTransportAddress());
+    }
+
+    /**
+     * Returns the first {@link CandidatePair} in this check list whose local
+     * and remote candidates have the specified transport addresses or
+     * <tt>null</tt> if there is no such pair.
+     *
+     * @param localAddress the local {@link TransportAddress} of the pair we
+     * are looking for.
+     * @param remoteAddress the remote {@link TransportAddress} of the pair we
+     * are looking for.
+     *
+     * @return the {@link CandidatePair} with the specified local and remote
+     * addresses or <tt>null</tt> if there is no such pair.
+     */
+    public synchronized CandidatePair findPair(TransportAddress localAddress,
+                                               TransportAddress remoteAddress)
+    {
+        if (localAddress == null || remoteAddress == null)
+            return null;
+
+        List<CandidatePair> pairs
+            = pairsByAddresses.get(new AddressPair(localAddress, remoteAddress));
+
+        return (pairs == null) ? null : pairs.get(0);
+    }
+
+    /**
+     * Returns the first {@link CandidatePair} in this check list whose local
+     * candidate has the ufrag <tt>remoteUFrag</tt> and whose remote candidate
+     * has the ufrag <tt>localUFrag</tt> or <tt>null</tt> if there is no such
+     * pair. The (somewhat confusing) naming of the parameters is the one used
+     * by {@link Agent#findCandidatePair(String, String)}.
+     *
+     * @param localUFrag the ufrag of the remote candidate of the pair.
+     * @param remoteUFrag the ufrag of the local candidate of the pair.
+     *
+     * @return the {@link CandidatePair} with the specified ufrags or
+     * <tt>null</tt> if there is no such pair.
+     */
+    public synchronized CandidatePair findPair(String localUFrag,
+                                               String remoteUFrag)
+    {
+        if (localUFrag == null || remoteUFrag == null)
+            return null;
+
+        List<CandidatePair> pairs
+            = pairsByUfrags.get(ufragsKey(remoteUFrag, localUFrag));
+
+        if (pairs != null)
         {
-            if (pair.getLocalCandidate() == local ||
-                pair.getLocalCandidate().getTransportAddress().equals(local.getTransportAddress()))
+            for (CandidatePair pair : pairs)
             {
-                if (pair.getRemoteCandidate() == remote ||
-                    pair.getRemoteCandidate().getTransportAddress().equals(remote.getTransportAddress()))
+                if (remoteUFrag.equals(pair.getLocalCandidate().getUfrag())
+                        && localUFrag.equals(
+                                pair.getRemoteCandidate().getUfrag()))
+                {
                     return pair;
+                }
             }
         }
         return null;
     }
 
+    /**
+     * Inserts <tt>pair</tt> into this check list based on its priority, i.e.
+     * after all pairs with a higher or equal priority. The pairs in this list
+     * are kept in decreasing order of priority, so the insertion point is found
+     * with a binary search. Inserting a pair which is already in this list has
+     * no effect.
+     *
+     * @param pair the {@link CandidatePair} to insert.
+     *
+     * @return <tt>true</tt> if <tt>pair</tt> was inserted and <tt>false</tt>
+     * if it was already in this list.
+     */
+    protected synchronized boolean insertByPriority(CandidatePair pair)
+    {
+        if (pair.getCheckList() == this)
+            return false;
+
+        CandidatePair[] pairs = this.pairs;
+        long priority = pair.getPriority();
+        int low = 0;
+        int high = pairs.length;
+
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+
+            if (pairs[mid].getPriority() >= priority)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        CandidatePair[] newPairs = new CandidatePair[pairs.length + 1];
+
+        System.arraycopy(pairs, 0, newPairs, 0, low);
+        newPairs[low] = pair;
+        System.arraycopy(pairs, low, newPairs, low + 1, pairs.length - low);
+
+        attachPair(pair);
+        this.pairs = newPairs;
+        return true;
+    }
+
+    /**
+     * Merges <tt>pairs</tt> into this check list. A pair whose local and
+     * remote addresses match those of a pair already in the list updates the
+     * existing pair (this can happen for pairs with remote peer-reflexive
+     * candidates, since those candidates aren't added to the candidate list
+     * even though the pair is added to the check list). Other pairs are
+     * inserted based on their priority. Once the list holds <tt>maxSize</tt>
+     * pairs, a new pair only replaces the lowest priority pair, and only if
+     * that pair has a lower priority and has not been checked yet.
+     *
+     * @param pairs the pairs to merge into this list.
+     * @param maxSize the maximum number of pairs in this list.
+     */
+    protected synchronized void mergePairs(
+            Collection<CandidatePair> pairs,
+            int maxSize)
+    {
+        for (CandidatePair pair : pairs)
+        {
+            CandidatePair existingPair
+                = findPairMatching(
+                        pair.getLocalCandidate(),
+                        pair.getRemoteCandidate());
+
+            if (existingPair != null)
+            {
+                logger.info("existing Pair updated: " +
+                    existingPair.toRedactedShortString() +
+                    " to " + pair.toRedactedShortString() + ".");
+
+                //the priority and the ufrags may change, so take the pair out
+                //of the list (and its indexes) while updating it. It has to
+                //be taken out of the queue of Waiting pairs as well, or the
+                //queue would no longer be ordered by priority.
+                removePairs(Collections.singleton(existingPair));
+                waitingPairs.removeIf(p -> p == existingPair);
+                existingPair.setRemoteCandidate(pair.getRemoteCandidate());
+                existingPair.computePriority();
+                insertByPriority(existingPair);
+                continue;
+            }
+
+            if (size() >= maxSize)
+            {
+                CandidatePair[] currentPairs = this.pairs;
+                CandidatePair lowestPair
+                    = (currentPairs.length == 0)
+                        ? null
+                        : currentPairs[currentPairs.length - 1];
+
+                if (lowestPair == null
+                        || lowestPair.getPriority() >= pair.getPriority()
+                        || (lowestPair.getState() != CandidatePairState.FROZEN
+                            && lowestPair.getState()
+                                != CandidatePairState.WAITING))
+                {
+                    logger.debug(() -> "Check list full, not adding pair: "
+                        + pair.toRedactedShortString());
+                    continue;
+                }
+                removePairs(Collections.singleton(lowestPair));
+                logger.debug(() -> "Check list full, replacing pair "
+                    + lowestPair.toRedactedShortString());
+            }
+
+            insertByPriority(pair);
+            logger.info("new Pair added: " + pair.toRedactedShortString()
+                + ".");
+        }
+    }
+
     /**
      * Determines whether this <tt>CheckList</tt> can be considered active.
      * RFC 5245 says: A check list with at least one pair that is Waiting is
@@ -242,14 +480,9 @@ public class CheckList
      * @return <tt>true</tt> if this list is active and <tt>false</tt>
      * otherwise.
      */
-    public synchronized boolean isActive()
+    public boolean isActive()
     {
-        for (CandidatePair pair : this)
-        {
-            if (pair.getState() == CandidatePairState.WAITING)
-                return true;
-        }
-        return false;
+        return getStateCount(CandidatePairState.WAITING) > 0;
     }
 
     /**
@@ -260,19 +493,11 @@ public class CheckList
      * succeeded or failed (but non are are currently waiting or in progress)
      * or <tt>false</tt> otherwise..
      */
-    public synchronized boolean allChecksCompleted()
+    public boolean allChecksCompleted()
     {
-        for (CandidatePair pair : this)
-        {
-            CandidatePairState pairState = pair.getState();
-
-            if ((pairState != CandidatePairState.SUCCEEDED)
-                    && (pairState != CandidatePairState.FAILED))
-            {
-                return false;
-            }
-        }
-        return true;
+        return getStateCount(CandidatePairState.FROZEN) == 0
+            && getStateCount(CandidatePairState.WAITING) == 0
+            && getStateCount(CandidatePairState.IN_PROGRESS) == 0;
     }
 
     /**
@@ -283,14 +508,49 @@ public class CheckList
      * @return <tt>true</tt> if all pairs in this list are frozen and
      * <tt>false</tt> otherwise.
      */
-    public synchronized boolean isFrozen()
+    public boolean isFrozen()
     {
-        for (CandidatePair pair : this)
-        {
-            if (pair.getState() != CandidatePairState.FROZEN)
-                return false;
-        }
-        return true;
+        return getStateCount(CandidatePairState.WAITING) == 0
+            && getStateCount(CandidatePairState.IN_PROGRESS) == 0
+            && getStateCount(CandidatePairState.SUCCEEDED) == 0
+            && getStateCount(CandidatePairState.FAILED) == 0;
+    }
+
+    /**
+     * Returns the number of pairs in this check list which are in the
+     * specified <tt>state</tt>.
+     *
+     * @param state the {@link CandidatePairState} of the pairs to count.
+     *
+     * @return the number of pairs in this check list which are in
+     * <tt>state</tt>.
+     */
+    public int getStateCount(CandidatePairState state)
+    {
+        return stateCounts.get(state.ordinal());
+    }
+
+    /**
+     * Updates the state counters and the queue of <tt>Waiting</tt> pairs of
+     * this check list after a change of the state of one of its pairs. Called
+     * by the pair while holding its monitor.
+     *
+     * @param pair the {@link CandidatePair} whose state has changed.
+     * @param oldState the previous state of <tt>pair</tt>.
+     * @param newState the new state of <tt>pair</tt>.
+     */
+    void pairStateChanged(
+            CandidatePair pair,
+            CandidatePairState oldState,
+            CandidatePairState newState)
+    {
+        if (oldState == newState)
+            return;
+
+        stateCounts.incrementAndGet(newState.ordinal());
+        stateCounts.decrementAndGet(oldState.ordinal());
+        if (newState == CandidatePairState.WAITING)
+            waitingPairs.add(pair);
     }
 
     /**
@@ -305,10 +565,11 @@ public class CheckList
     @Override
     public String toString()
     {
+        CandidatePair[] pairs = this.pairs;
         StringBuilder buff = new StringBuilder("CheckList. (num pairs=");
-        buff.append(size()).append(")\n");
+        buff.append(pairs.length).append(")\n");
 
-        for (CandidatePair pair : this)
+        for (CandidatePair pair : pairs)
             buff.append(pair).append("\n");
 
         return buff.toString();
@@ -373,9 +634,22 @@ public class CheckList
      */
     protected synchronized void recomputePairPriorities()
     {
+        CandidatePair[] newPairs = pairs.clone();
+
         //first, determine the pairs that we'd need to put in the waiting state.
-        for (CandidatePair pair : this)
+        for (CandidatePair pair : newPairs)
             pair.computePriority();
+
+        //restore the decreasing order of priority.
+        Arrays.sort(newPairs, CandidatePair.comparator);
+        pairs = newPairs;
+
+        //the order of the queue of Waiting pairs depends on the priorities as
+        //well, so rebuild it.
+        List<CandidatePair> waiting = new ArrayList<>();
+
+        waitingPairs.drainTo(waiting);
+        waitingPairs.addAll(waiting);
     }
 
     /**
@@ -415,38 +689,409 @@ public class CheckList
 
         cmp.setSelectedPair(nominatedPair);
 
-        Iterator<CandidatePair> pairsIter = iterator();
-        while (pairsIter.hasNext())
+        List<CandidatePair> pairsToRemove = new ArrayList<>();
+
+        for (CandidatePair pair : pairs)
+        {
+            if (isObsoletedByNomination(pair, nominatedPair))
+                pairsToRemove.add(pair);
+        }
+        removePairs(pairsToRemove);
+
+        Iterator<CandidatePair> triggeredPairsIter
+            = triggeredCheckQueue.iterator();
+        while (triggeredPairsIter.hasNext())
         {
-            CandidatePair pair = pairsIter.next();
-            if (pair.getParentComponent() == cmp
-                 &&( pair.getState() == CandidatePairState.WAITING
-                     || pair.getState() == CandidatePairState.FROZEN
-                     || (pair.getState() == CandidatePairState.IN_PROGRESS
-                         && pair.getPriority() < nominatedPair.getPriority())))
+            CandidatePair pair = triggeredPairsIter.next();
+            if (isObsoletedByNomination(pair, nominatedPair))
             {
-                pairsIter.remove();
+                triggeredPairsIter.remove();
+                triggeredPairs.remove(new AddressPair(pair), pair);
             }
         }
+    }
+
+    /**
+     * Determines whether <tt>pair</tt> is to be removed from this check list
+     * and its triggered check queue upon the confirmation of the nomination of
+     * <tt>nominatedPair</tt>.
+     *
+     * @param pair the {@link CandidatePair} to check.
+     * @param nominatedPair the {@link CandidatePair} whose nomination was
+     * confirmed.
+     *
+     * @return <tt>true</tt> if <tt>pair</tt> belongs to the same component as
+     * <tt>nominatedPair</tt> and is either <tt>Waiting</tt>, <tt>Frozen</tt>
+     * or <tt>In-Progress</tt> with a lower priority than
+     * <tt>nominatedPair</tt>.
+     */
+    private static boolean isObsoletedByNomination(
+            CandidatePair pair,
+            CandidatePair nominatedPair)
+    {
+        CandidatePairState pairState = pair.getState();
 
-        synchronized(triggeredCheckQueue)
+        return pair.getParentComponent() == nominatedPair.getParentComponent()
+            && (pairState == CandidatePairState.WAITING
+                || pairState == CandidatePairState.FROZEN
+                || (pairState == CandidatePairState.IN_PROGRESS
+                    && pair.getPriority() < nominatedPair.getPriority()));
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the pairs in this check list, in
+     * decreasing order of priority. The iterator does not reflect later
+     * changes of the list and never throws
+     * {@link ConcurrentModificationException}. Its <tt>remove</tt> method
+     * removes the last returned pair from this list.
+     *
+     * @return an iterator over the pairs in this check list.
+     */
+    @Override
+    public Iterator<CandidatePair> iterator()
+    {
+        final CandidatePair[] snapshot = pairs;
+
+        return new Iterator<CandidatePair>()
         {
-            Iterator<CandidatePair> triggeredPairsIter
-                = triggeredCheckQueue.iterator();
-            while (triggeredPairsIter.hasNext())
+            private int next = 0;
+
+            @Override
+            public boolean hasNext()
             {
-                CandidatePair pair = triggeredPairsIter.next();
-                if (pair.getParentComponent() == cmp
-                    &&( pair.getState() == CandidatePairState.WAITING
-                        || pair.getState() == CandidatePairState.FROZEN
-                        || (pair.getState() == CandidatePairState.IN_PROGRESS
-                            && pair.getPriority() < nominatedPair
-                                                        .getPriority())))
-                {
-                    triggeredPairsIter.remove();
-                }
+                return next < snapshot.length;
+            }
+
+            @Override
+            public CandidatePair next()
+            {
+                if (next >= snapshot.length)
+                    throw new NoSuchElementException();
+                return snapshot[next++];
+            }
+
+            @Override
+            public void remove()
+            {
+                if (next == 0)
+                    throw new IllegalStateException();
+                removePairs(Collections.singleton(snapshot[next - 1]));
+            }
+        };
+    }
+
+    /**
+     * Returns a read-only list iterator over a snapshot of the pairs in this
+     * check list, in decreasing order of priority.
+     *
+     * @param index the index of the first pair to be returned by
+     * <tt>next</tt>.
+     *
+     * @return a list iterator over the pairs in this check list.
+     */
+    @Override
+    public ListIterator<CandidatePair> listIterator(int index)
+    {
+        return
+            Collections.unmodifiableList(Arrays.asList(pairs))
+                .listIterator(index);
+    }
+
+    /**
+     * Returns a read-only view of a snapshot of a part of this check list.
+     *
+     * @param fromIndex the index of the first pair of the sub list.
+     * @param toIndex the index after the last pair of the sub list.
+     *
+     * @return a read-only view of a snapshot of a part of this check list.
+     */
+    @Override
+    public List<CandidatePair> subList(int fromIndex, int toIndex)
+    {
+        return
+            Collections.unmodifiableList(
+                    Arrays.asList(pairs).subList(fromIndex, toIndex));
+    }
+
+    /**
+     * Returns the pair at a specific position in this check list.
+     *
+     * @param index the position of the pair to return.
+     *
+     * @return the pair at <tt>index</tt>.
+     */
+    @Override
+    public CandidatePair get(int index)
+    {
+        return pairs[index];
+    }
+
+    /**
+     * Returns the number of pairs in this check list.
+     *
+     * @return the number of pairs in this check list.
+     */
+    @Override
+    public int size()
+    {
+        return pairs.length;
+    }
+
+    /**
+     * Inserts <tt>pair</tt> into this check list based on its priority.
+     *
+     * @param pair the {@link CandidatePair} to add.
+     *
+     * @return <tt>true</tt> if <tt>pair</tt> was added and <tt>false</tt> if
+     * it was already in this list.
+     *
+     * @see #insertByPriority(CandidatePair)
+     */
+    @Override
+    public boolean add(CandidatePair pair)
+    {
+        return insertByPriority(pair);
+    }
+
+    /**
+     * Adds all the pairs in <tt>c</tt> to this check list and restores the
+     * decreasing order of priority. Pairs which are already in this list are
+     * ignored.
+     *
+     * @param c the pairs to add.
+     *
+     * @return <tt>true</tt> if this list changed as a result of the call.
+     */
+    @Override
+    public synchronized boolean addAll(Collection<? extends CandidatePair> c)
+    {
+        List<CandidatePair> newPairs = new ArrayList<>(pairs.length + c.size());
+
+        newPairs.addAll(Arrays.asList(pairs));
+        for (CandidatePair pair : c)
+        {
+            if (pair.getCheckList() != this)
+            {
+                attachPair(pair);
+                newPairs.add(pair);
             }
         }
+        if (newPairs.size() == pairs.length)
+            return false;
+
+        //the sort is stable, so pairs with equal priorities keep the order in
+        //which they were added.
+        newPairs.sort(CandidatePair.comparator);
+        pairs = newPairs.toArray(NO_PAIRS);
+        return true;
+    }
+
+    /**
+     * Removes the pair at a specific position from this check list.
+     *
+     * @param index the position of the pair to remove.
+     *
+     * @return the removed pair.
+     */
+    @Override
+    public synchronized CandidatePair remove(int index)
+    {
+        CandidatePair pair = pairs[index];
+
+        removePairs(Collections.singleton(pair));
+        return pair;
+    }
+
+    /**
+     * Removes a pair equal to <tt>o</tt> from this check list.
+     *
+     * @param o the pair to remove.
+     *
+     * @return <tt>true</tt> if a pair was removed and <tt>false</tt> otherwise.
+     */
+    @Override
+    public synchronized boolean remove(Object o)
+    {
+        for (CandidatePair pair : pairs)
+        {
+            if (pair.equals(o))
+                return removePairs(Collections.singleton(pair));
+        }
+        return false;
+    }
+
+    /**
+     * Removes the pairs which are contained in <tt>c</tt> from this check list
+     * with a single copy of the underlying array.
+     *
+     * @param c the pairs to remove.
+     *
+     * @return <tt>true</tt> if this list changed as a result of the call.
+     */
+    @Override
+    public synchronized boolean removeAll(Collection<?> c)
+    {
+        List<CandidatePair> pairsToRemove = new ArrayList<>();
+
+        for (CandidatePair pair : pairs)
+        {
+            if (c.contains(pair))
+                pairsToRemove.add(pair);
+        }
+        return !pairsToRemove.isEmpty() && removePairs(pairsToRemove);
+    }
+
+    /**
+     * Removes all pairs from this check list.
+     */
+    @Override
+    public synchronized void clear()
+    {
+        for (CandidatePair pair : pairs)
+            detachPair(pair);
+        pairs = NO_PAIRS;
+        pairsByAddresses.clear();
+        pairsByUfrags.clear();
+        waitingPairs.clear();
+    }
+
+    /**
+     * Removes the specified pairs (compared by identity) from this check list
+     * with a single copy of the underlying array.
+     *
+     * @param pairsToRemove the pairs to remove.
+     *
+     * @return <tt>true</tt> if at least one pair was removed and
+     * <tt>false</tt> otherwise.
+     */
+    private synchronized boolean removePairs(
+            Collection<CandidatePair> pairsToRemove)
+    {
+        Set<CandidatePair> removed
+            = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        removed.addAll(pairsToRemove);
+
+        List<CandidatePair> newPairs = new ArrayList<>(pairs.length);
+
+        for (CandidatePair pair : pairs)
+        {
+            if (removed.contains(pair))
+                detachPair(pair);
+            else
+                newPairs.add(pair);
+        }
+        if (newPairs.size() == pairs.length)
+            return false;
+
+        pairs = newPairs.toArray(NO_PAIRS);
+        return true;
+    }
+
+    /**
+     * Makes <tt>pair</tt> a member of this check list: indexes it and starts
+     * counting its state. Called while holding the monitor of this list.
+     *
+     * @param pair the {@link CandidatePair} that is being added to this list.
+     */
+    private void attachPair(CandidatePair pair)
+    {
+        indexPair(pair);
+        synchronized (pair)
+        {
+            pair.setCheckList(this);
+
+            CandidatePairState pairState = pair.getState();
+
+            stateCounts.incrementAndGet(pairState.ordinal());
+            if (pairState == CandidatePairState.WAITING)
+                waitingPairs.add(pair);
+        }
+    }
+
+    /**
+     * Ends the membership of <tt>pair</tt> in this check list: removes it from
+     * the indexes and stops counting its state. Called while holding the
+     * monitor of this list.
+     *
+     * @param pair the {@link CandidatePair} that is being removed from this
+     * list.
+     */
+    private void detachPair(CandidatePair pair)
+    {
+        unindexPair(pair);
+        synchronized (pair)
+        {
+            pair.setCheckList(null);
+            stateCounts.decrementAndGet(pair.getState().ordinal());
+        }
+    }
+
+    /**
+     * Adds <tt>pair</tt> to the lookup indexes of this check list. Adding a
+     * pair which is already indexed has no effect.
+     *
+     * @param pair the {@link CandidatePair} to index.
+     */
+    private void indexPair(CandidatePair pair)
+    {
+        addToIndex(pairsByAddresses, new AddressPair(pair), pair);
+        addToIndex(pairsByUfrags, ufragsKey(pair), pair);
+    }
+
+    /**
+     * Removes <tt>pair</tt> from the lookup indexes of this check list.
+     * Removing a pair which is not indexed has no effect.
+     *
+     * @param pair the {@link CandidatePair} to remove from the indexes.
+     */
+    private void unindexPair(CandidatePair pair)
+    {
+        removeFromIndex(pairsByAddresses, new AddressPair(pair), pair);
+        removeFromIndex(pairsByUfrags, ufragsKey(pair), pair);
+    }
+
+    private static <K> void addToIndex(
+            Map<K, List<CandidatePair>> index,
+            K key,
+            CandidatePair pair)
+    {
+        List<CandidatePair> pairs
+            = index.computeIfAbsent(key, k -> new ArrayList<>(1));
+
+        for (CandidatePair p : pairs)
+        {
+            if (p == pair)
+                return;
+        }
+        pairs.add(pair);
+    }
+
+    private static <K> void removeFromIndex(
+            Map<K, List<CandidatePair>> index,
+            K key,
+            CandidatePair pair)
+    {
+        List<CandidatePair> pairs = index.get(key);
+
+        if (pairs != null)
+        {
+            pairs.removeIf(p -> p == pair);
+            if (pairs.isEmpty())
+                index.remove(key);
+        }
+    }
+
+    private static String ufragsKey(CandidatePair pair)
+    {
+        return ufragsKey(
+                pair.getLocalCandidate().getUfrag(),
+                pair.getRemoteCandidate().getUfrag());
+    }
+
+    private static String ufragsKey(String localUfrag, String remoteUfrag)
+    {
+        return localUfrag + ":" + remoteUfrag;
     }
 
     /**
@@ -477,7 +1122,7 @@ public class CheckList
      * appears in checklist but in valid list.
      */
     @Deprecated
-    public synchronized boolean containsNomineeForComponent(
+    public boolean containsNomineeForComponent(
                                                         Component component)
     {
         for (CandidatePair pair : this)
@@ -615,4 +1260,50 @@ public class CheckList
     {
         return paceMakerStarted.compareAndSet(false, true);
     }
+
+    /**
+     * The key of {@link #pairsByAddresses}: the transport addresses of the
+     * local and the remote candidate of a pair. Unlike
+     * {@link java.net.InetSocketAddress#equals(Object)}, the transports of the
+     * addresses are taken into account.
+     */
+    private static final class AddressPair
+    {
+        private final TransportAddress localAddress;
+
+        private final TransportAddress remoteAddress;
+
+        AddressPair(CandidatePair pair)
+        {
+            this(
+                pair.getLocalCandidate().getTransportAddress(),
+                pair.getRemoteCandidate().getTransportAddress());
+        }
+
+        AddressPair(TransportAddress localAddress, TransportAddress remoteAddress)
+        {
+            this.localAddress = localAddress;
+            this.remoteAddress = remoteAddress;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (obj == this)
+                return true;
+            if (!(obj instanceof AddressPair))
+                return false;
+
+            AddressPair other = (AddressPair) obj;
+
+            return localAddress.equals(other.localAddress)
+                && remoteAddress.equals(other.remoteAddress);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * localAddress.hashCode() + remoteAddress.hashCode();
+        }
+    }
 }
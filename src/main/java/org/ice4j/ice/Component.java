@@ -91,6 +91,24 @@ public class Component
     private final List<RemoteCandidate> remoteUpdateCandidates
         = new LinkedList<>();
 
+    /**
+     * The local candidates of this component indexed by transport address.
+     * Candidates with the same address are kept in the same (priority) order as
+     * in {@link #localCandidates}. Modified only while holding the lock of
+     * {@link #localCandidates}, read without locking.
+     */
+    private final Map<TransportAddress, List<LocalCandidate>>
+        localCandidatesByAddress = new ConcurrentHashMap<>();
+
+    /**
+     * The remote candidates of this component indexed by transport address.
+     * Candidates with the same address are kept in the same order as in
+     * {@link #remoteCandidates}. Modified only while holding the lock of
+     * {@link #remoteCandidates}, read without locking.
+     */
+    private final Map<TransportAddress, List<RemoteCandidate>>
+        remoteCandidatesByAddress = new ConcurrentHashMap<>();
+
     /**
      * A <tt>Comparator</tt> that we use for sorting <tt>Candidate</tt>s by
      * their priority.
@@ -281,6 +299,7 @@ public class Component
 
             //we are done adding ... now let's just order by priority.
             Collections.sort(localCandidates);
+            indexCandidate(localCandidatesByAddress, candidate, true);
 
             return true;
         }
@@ -355,6 +374,7 @@ public class Component
         synchronized(remoteCandidates)
         {
             remoteCandidates.add(candidate);
+            indexCandidate(remoteCandidatesByAddress, candidate, false);
         }
     }
 
@@ -403,7 +423,7 @@ public class Component
      */
     public void updateRemoteCandidates()
     {
-        List<CandidatePair> checkList;
+        List<CandidatePair> checkList = new ArrayList<>();
         List<RemoteCandidate> newRemoteCandidates;
 
         synchronized(remoteUpdateCandidates)
@@ -413,101 +433,30 @@ public class Component
 
             newRemoteCandidates = new LinkedList<>(remoteUpdateCandidates);
 
-            List<LocalCandidate> localCnds = getLocalCandidates();
-
-            // remove UPnP base from local candidate
-            LocalCandidate upnpBase = null;
-            for (LocalCandidate lc : localCnds)
-            {
-                if (lc instanceof UPNPCandidate)
-                {
-                    upnpBase = lc.getBase();
-                }
-            }
-
-            checkList = new Vector<>();
-
-            for (LocalCandidate localCnd : localCnds)
-            {
-                if (localCnd == upnpBase)
-                    continue;
-
-                //pair each of the new remote candidates with each of our locals
-                for (RemoteCandidate remoteCnd : remoteUpdateCandidates)
-                {
-                    if (localCnd.canReach(remoteCnd)
-                            && remoteCnd.getTransportAddress().getPort() != 0)
-                    {
-                        // A single LocalCandidate might be/become connected
-                        // to more more than one remote address, and that's ok
-                        // (that is, we need to form pairs with them all).
-                        /*
-                        if (localCnd.getTransport() == Transport.TCP &&
-                            localCnd.getIceSocketWrapper().getTCPSocket().
-                                isConnected())
-                        {
-                            if (!localCnd.getIceSocketWrapper().getTCPSocket().
-                                getRemoteSocketAddress().equals(
-                                    remoteCnd.getTransportAddress()))
-                            {
-                                continue;
-                            }
-                        }
-                        */
-
-                        CandidatePair pair
-                            = getParentStream()
-                                .getParentAgent()
-                                    .createCandidatePair(localCnd, remoteCnd);
-                        checkList.add(pair);
-                    }
-                }
-            }
+            //pair each of the new remote candidates with each of our locals
+            parentStream.createPairs(
+                    getLocalCandidates(),
+                    remoteUpdateCandidates,
+                    checkList);
             remoteUpdateCandidates.clear();
         }
 
         synchronized (remoteCandidates)
         {
             remoteCandidates.addAll(newRemoteCandidates);
+            for (RemoteCandidate candidate : newRemoteCandidates)
+                indexCandidate(remoteCandidatesByAddress, candidate, false);
         }
 
-        //sort and prune update checklist
-        Collections.sort(checkList, CandidatePair.comparator);
+        //prune (and order) the update checklist
         parentStream.pruneCheckList(checkList);
 
         if (parentStream.getCheckList().getState().equals(
                 CheckListState.RUNNING))
         {
-            //add the updated CandidatePair list to the currently running
+            //merge the updated CandidatePair list into the currently running
             //checklist
-            CheckList streamCheckList = parentStream.getCheckList();
-            synchronized(streamCheckList)
-            {
-                for (CandidatePair pair : checkList)
-                {
-                    /* Check whether the pair is already in the check list.
-                     * (This can happen for pairs with remote peer-reflexive candidates,
-                     *  since those candidates aren't added to the candidate list even
-                     *  though the pair is added to the check list).
-                     */
-                    CandidatePair existingPair
-                        = streamCheckList.findPairMatching(pair.getLocalCandidate(), pair.getRemoteCandidate());
-                    if (existingPair != null)
-                    {
-                        logger.info("existing Pair updated: " +
-                            existingPair.toRedactedShortString() +
-                            " to " + pair.toRedactedShortString() + ".");
-                        existingPair.setRemoteCandidate(pair.getRemoteCandidate());
-                        existingPair.computePriority();
-                    }
-                    else
-                    {
-                        streamCheckList.add(pair);
-                        logger.info("new Pair added: " + pair.toRedactedShortString()
-                            + ".");
-                    }
-                }
-            }
+            parentStream.mergeIntoCheckList(checkList);
         }
     }
 
@@ -537,6 +486,8 @@ public class Component
         synchronized(remoteCandidates)
         {
             remoteCandidates.addAll(candidates);
+            for (RemoteCandidate candidate : candidates)
+                indexCandidate(remoteCandidatesByAddress, candidate, false);
         }
     }
 
@@ -689,9 +640,19 @@ public class Component
             Arrays.sort(candidates, candidatePrioritizer);
 
             //now re-add the candidates in the order they've been sorted in.
+            //the index is updated key by key rather than cleared, so that the
+            //lookups which don't lock never miss a candidate.
+            Map<TransportAddress, List<LocalCandidate>> newIndex
+                = new HashMap<>();
+
             localCandidates.clear();
             for (LocalCandidate cand : candidates)
+            {
                 localCandidates.add(cand);
+                indexCandidate(newIndex, cand, false);
+            }
+            localCandidatesByAddress.putAll(newIndex);
+            localCandidatesByAddress.keySet().retainAll(newIndex.keySet());
         }
     }
 
@@ -736,6 +697,7 @@ public class Component
                             && (cand.getPriority() >= cand2.getPriority()))
                     {
                         localCandidates.remove(j);
+                        unindexCandidate(localCandidatesByAddress, cand2);
                         logger.trace(() -> "eliminating redundant cand: "+ cand2);
                     }
                     else
@@ -887,6 +849,9 @@ public class Component
                     {
                         free(localCandidate);
                         localCandidateIter.remove();
+                        unindexCandidate(
+                                localCandidatesByAddress,
+                                localCandidate);
                     }
                 }
             }
@@ -902,6 +867,7 @@ public class Component
                 free(localCandidate);
                 localCandidateIter.remove();
             }
+            localCandidatesByAddress.clear();
         }
 
         getParentStream().removePairStateChangeListener(this);
@@ -972,7 +938,15 @@ public class Component
      */
     public LocalCandidate findLocalCandidate(TransportAddress address, LocalCandidate base)
     {
-        for (LocalCandidate localCandidate : localCandidates)
+        if (address == null)
+            return null;
+
+        List<LocalCandidate> candidates = localCandidatesByAddress.get(address);
+
+        if (candidates == null)
+            return null;
+
+        for (LocalCandidate localCandidate : candidates)
         {
             if (localCandidate.getTransportAddress().equals(address))
             {
@@ -985,7 +959,7 @@ public class Component
         // In case the above loop failed to find a result because `base` was
         // specified, fallback to the original behavior and return the first
         // candidate matching `address` regardless of `base`.
-        for (LocalCandidate localCandidate : localCandidates)
+        for (LocalCandidate localCandidate : candidates)
         {
             if (localCandidate.getTransportAddress().equals(address))
             {
@@ -1013,17 +987,81 @@ public class Component
      */
     public RemoteCandidate findRemoteCandidate(TransportAddress remoteAddress)
     {
-        for (RemoteCandidate remoteCnd : remoteCandidates)
+        if (remoteAddress == null)
+            return null;
+
+        List<RemoteCandidate> candidates
+            = remoteCandidatesByAddress.get(remoteAddress);
+
+        if (candidates != null)
         {
-            if (remoteCnd.getTransportAddress().equals(remoteAddress))
+            for (RemoteCandidate remoteCnd : candidates)
             {
-                return remoteCnd;
+                if (remoteCnd.getTransportAddress().equals(remoteAddress))
+                {
+                    return remoteCnd;
+                }
             }
         }
 
         return null;
     }
 
+    /**
+     * Adds <tt>candidate</tt> to <tt>index</tt> under its transport address.
+     * The lists in the index are never modified in place, but replaced, so
+     * that they can be iterated without locking. Note that
+     * {@link TransportAddress} inherits its <tt>equals(Object)</tt> and
+     * <tt>hashCode()</tt> from {@link InetSocketAddress}, so candidates with
+     * the same address and port but different transports share a key.
+     *
+     * @param index the index to add <tt>candidate</tt> to.
+     * @param candidate the candidate to add.
+     * @param sort whether to sort the candidates with the same address
+     * (by decreasing priority) after adding <tt>candidate</tt>.
+     */
+    private static <T extends Candidate<T>> void indexCandidate(
+            Map<TransportAddress, List<T>> index,
+            T candidate,
+            boolean sort)
+    {
+        index.compute(
+            candidate.getTransportAddress(),
+            (address, candidates) ->
+            {
+                List<T> newCandidates
+                    = (candidates == null)
+                        ? new ArrayList<>(1)
+                        : new ArrayList<>(candidates);
+
+                newCandidates.add(candidate);
+                if (sort)
+                    Collections.sort(newCandidates);
+                return newCandidates;
+            });
+    }
+
+    /**
+     * Removes <tt>candidate</tt> from <tt>index</tt>.
+     *
+     * @param index the index to remove <tt>candidate</tt> from.
+     * @param candidate the candidate to remove.
+     */
+    private static <T extends Candidate<T>> void unindexCandidate(
+            Map<TransportAddress, List<T>> index,
+            T candidate)
+    {
+        index.computeIfPresent(
+            candidate.getTransportAddress(),
+            (address, candidates) ->
+            {
+                List<T> newCandidates = new ArrayList<>(candidates);
+
+                newCandidates.removeIf(c -> c == candidate);
+                return newCandidates.isEmpty() ? null : newCandidates;
+            });
+    }
+
     /**
      * Sets the {@link CandidatePair} selected for use by ICE processing and
      * that the application would use.
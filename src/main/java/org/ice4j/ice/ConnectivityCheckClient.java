@@ -25,6 +25,7 @@ import java.util.concurrent.*;
 import org.ice4j.*;
 import org.ice4j.attribute.*;
 import org.ice4j.message.*;
+import org.ice4j.metrics.*;
 import org.ice4j.socket.*;
 import org.ice4j.stack.*;
 import org.ice4j.util.*;
@@ -66,6 +67,20 @@ class ConnectivityCheckClient
     private final Queue<PaceMaker> paceMakers
         = new ConcurrentLinkedQueue<>();
 
+    /**
+     * The {@link PacedCheckList}s through which the process-wide
+     * {@link ConnectivityCheckPacer} is running checks for this client.
+     * Synchronized by {@link #paceMakers}.
+     */
+    private final List<PacedCheckList> pacedCheckLists = new ArrayList<>();
+
+    /**
+     * The process-wide {@link ConnectivityCheckPacer} or <tt>null</tt> if each
+     * check list is paced independently by a {@link PaceMaker}.
+     */
+    private final ConnectivityCheckPacer pacer
+        = ConnectivityCheckPacer.getGlobalPacer();
+
     /**
      * Whether this {@link ConnectivityCheckClient} has been stopped.
      * Synchronized by {@link #paceMakers}.
@@ -89,6 +104,26 @@ class ConnectivityCheckClient
      */
     private Logger logger;
 
+    /**
+     * The number of connectivity checks sent by this client.
+     */
+    private final Counter checksSent;
+
+    /**
+     * The number of connectivity checks which succeeded.
+     */
+    private final Counter checksSucceeded;
+
+    /**
+     * The number of connectivity checks which failed.
+     */
+    private final Counter checksFailed;
+
+    /**
+     * The round-trip times of the connectivity checks, in microseconds.
+     */
+    private final Histogram checkRtt;
+
     /**
      * Creates a new <tt>ConnectivityCheckClient</tt> setting
      * <tt>parentAgent</tt> as the agent that will be used for retrieving
@@ -111,6 +146,13 @@ class ConnectivityCheckClient
         logger = parentAgent.getLogger().createChildLogger(this.getClass().getName());
 
         stunStack = this.parentAgent.getStunStack();
+
+        Metrics metrics = parentAgent.getMetrics();
+
+        checksSent = metrics.counter("ice.checks.sent");
+        checksSucceeded = metrics.counter("ice.checks.succeeded");
+        checksFailed = metrics.counter("ice.checks.failed");
+        checkRtt = metrics.histogram("ice.check.rtt_us");
     }
 
     /**
@@ -177,12 +219,114 @@ class ConnectivityCheckClient
             {
                 return;
             }
+            if (pacer != null)
+            {
+                PacedCheckList pacedCheckList = new PacedCheckList(checkList);
+                pacedCheckLists.add(pacedCheckList);
+                pacer.register(pacedCheckList);
+                return;
+            }
             PaceMaker paceMaker = new PaceMaker(checkList);
             paceMakers.add(paceMaker);
             paceMaker.schedule();
         }
     }
 
+    /**
+     * Sends the next connectivity check for <tt>checkList</tt>, which is the
+     * first pair in its triggered check queue or, if that queue is empty, its
+     * next ordinary pair to check. Fires the end of ordinary checks for
+     * <tt>checkList</tt> if there is no such pair.
+     *
+     * @param checkList the {@link CheckList} to send a check for.
+     *
+     * @return <tt>true</tt> if a check was sent (or at least attempted) and
+     * <tt>false</tt> if <tt>checkList</tt> had no pair to check.
+     */
+    private boolean sendNextCheck(CheckList checkList)
+    {
+        CandidatePair pairToCheck = checkList.popTriggeredCheck();
+
+        if (pairToCheck != null)
+        {
+            logger.trace("Starting triggered check " + pairToCheck.toRedactedString());
+        }
+        //if there are no triggered checks, go for an ordinary one.
+        if (pairToCheck == null)
+        {
+            pairToCheck = checkList.getNextOrdinaryPairToCheck();
+            if (pairToCheck != null)
+            {
+                logger.trace("Starting ordinary check " + pairToCheck.toRedactedString());
+            }
+        }
+
+        if (pairToCheck != null)
+        {
+            /*
+             * Since we suspect that it is possible to
+             * startCheckForPair, processSuccessResponse and only
+             * then setStateInProgress, we'll synchronize. The
+             * synchronization root is the one of the
+             * CandidatePair#setState method.
+             */
+            synchronized (pairToCheck)
+            {
+                TransactionID transactionID
+                    = startCheckForPair(pairToCheck);
+
+                if (transactionID == null)
+                {
+                    logger.info(
+                        "Pair failed: "
+                            + pairToCheck.toRedactedShortString());
+                    checksFailed.increment();
+                    pairToCheck.setStateFailed();
+                }
+                else
+                {
+                    pairToCheck.setStateInProgress(transactionID);
+                }
+            }
+            if (pairToCheck.getState() == CandidatePairState.FAILED)
+            {
+                updateCheckListAndTimerStates(pairToCheck);
+            }
+            return true;
+        }
+        else
+        {
+            /*
+             * We are done sending checks for this list. We'll set
+             * its final state in either the processResponse(),
+             * processTimeout() or processFailure() method.
+             */
+            logger.trace(() -> "will skip a check beat.");
+            checkList.fireEndOfOrdinaryChecks();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the interval between two consecutive checks of a check list,
+     * i.e. <tt>Ta</tt> multiplied by the number of active check lists.
+     *
+     * @return the interval between two consecutive checks of a check list.
+     */
+    private Duration getCheckInterval()
+    {
+        int activeCheckLists = parentAgent.getActiveCheckListCount();
+
+        if (activeCheckLists < 1)
+        {
+            //don't multiply by 0. even when we no longer have active check
+            //lists we may still have nomination checks to
+            activeCheckLists = 1;
+        }
+
+        return Duration.ofMillis(parentAgent.calculateTa() * activeCheckLists);
+    }
+
     /**
      * Creates a STUN Binding {@link Indication} to a candidate pair. It is used
      * as a keep-alive.
@@ -346,6 +490,7 @@ class ConnectivityCheckClient
                         originalWaitInterval,
                         maxWaitInterval,
                         maxRetransmissions);
+            checksSent.increment();
             if (logger.isTraceEnabled())
             {
                 logger.trace("checking pair " + candidatePair.toRedactedString() + " tid " + tran);
@@ -400,12 +545,20 @@ class ConnectivityCheckClient
 
         CandidatePair checkedPair
             = (CandidatePair) ev.getTransactionID().getApplicationData();
+        long roundTripTime = ev.getRoundTripTime();
+
+        if (roundTripTime >= 0)
+        {
+            checkRtt.record(roundTripTime);
+            checkedPair.getRoundTripTimes().record(roundTripTime);
+        }
 
         //make sure that the response came from the right place.
         if (!checkSymmetricAddresses(ev))
         {
             logger.info("Received a non-symmetric response for pair: "
                                 + checkedPair.toRedactedShortString() + ". Failing.");
+            checksFailed.increment();
             checkedPair.setStateFailed();
         }
         else
@@ -543,6 +696,7 @@ class ConnectivityCheckClient
                     + "XOR_MAPPED_ADDRESS attribute.");
             logger.info("Pair failed (no XOR-MAPPED-ADDRESS): "
                     + checkedPair.toRedactedShortString() + ".");
+            checksFailed.increment();
             checkedPair.setStateFailed();
             return; //malformed error response
         }
@@ -655,6 +809,7 @@ class ConnectivityCheckClient
                 logger.info("Pair succeeded: " + checkedPair.toRedactedShortString()
                                 + ".");
             }
+            checksSucceeded.increment();
             checkedPair.setStateSucceeded();
         }
 
@@ -673,10 +828,7 @@ class ConnectivityCheckClient
 
         synchronized (this)
         {
-            Vector<CandidatePair> parentCheckList
-                = new Vector<>(parentStream.getCheckList());
-
-            for (CandidatePair pair : parentCheckList)
+            for (CandidatePair pair : parentStream.getCheckList())
             {
                 if (pair.getState() == CandidatePairState.FROZEN
                         && checkedPair.getFoundation().equals(
@@ -699,16 +851,13 @@ class ConnectivityCheckClient
             CheckList checkList = stream.getCheckList();
             boolean wasFrozen = checkList.isFrozen();
 
-            synchronized (checkList)
+            for (CandidatePair pair : checkList)
             {
-                for (CandidatePair pair : checkList)
+                if (parentStream.validListContainsFoundation(
+                            pair.getFoundation())
+                        && pair.getState() == CandidatePairState.FROZEN)
                 {
-                    if (parentStream.validListContainsFoundation(
-                                pair.getFoundation())
-                            && pair.getState() == CandidatePairState.FROZEN)
-                    {
-                        pair.setStateWaiting();
-                    }
+                    pair.setStateWaiting();
                 }
             }
 
@@ -867,6 +1016,7 @@ class ConnectivityCheckClient
                     "Error response for pair: " + pair.toRedactedShortString() +
                     ", failing.  Code = " + code +
                     "(class=" + cl + "; number=" + co + "): " + trimmedReason);
+            checksFailed.increment();
             pair.setStateFailed();
         }
     }
@@ -885,6 +1035,7 @@ class ConnectivityCheckClient
             = (CandidatePair) ev.getTransactionID() .getApplicationData();
 
         logger.info("timeout for pair: " + pair.toRedactedShortString() + ", failing.");
+        checksFailed.increment();
         pair.setStateFailed();
         updateCheckListAndTimerStates(pair);
     }
@@ -929,63 +1080,7 @@ class ConnectivityCheckClient
         @Override
         protected void run()
         {
-            CandidatePair pairToCheck = checkList.popTriggeredCheck();
-
-            if (pairToCheck != null)
-            {
-                logger.trace("Starting triggered check " + pairToCheck.toRedactedString());
-            }
-            //if there are no triggered checks, go for an ordinary one.
-            if (pairToCheck == null)
-            {
-                pairToCheck = checkList.getNextOrdinaryPairToCheck();
-                if (pairToCheck != null)
-                {
-                    logger.trace("Starting ordinary check " + pairToCheck.toRedactedString());
-                }
-            }
-
-            if (pairToCheck != null)
-            {
-                /*
-                 * Since we suspect that it is possible to
-                 * startCheckForPair, processSuccessResponse and only
-                 * then setStateInProgress, we'll synchronize. The
-                 * synchronization root is the one of the
-                 * CandidatePair#setState method.
-                 */
-                synchronized (pairToCheck)
-                {
-                    TransactionID transactionID
-                        = startCheckForPair(pairToCheck);
-
-                    if (transactionID == null)
-                    {
-                        logger.info(
-                            "Pair failed: "
-                                + pairToCheck.toRedactedShortString());
-                        pairToCheck.setStateFailed();
-                    }
-                    else
-                    {
-                        pairToCheck.setStateInProgress(transactionID);
-                    }
-                }
-                if (pairToCheck.getState() == CandidatePairState.FAILED)
-                {
-                    updateCheckListAndTimerStates(pairToCheck);
-                }
-            }
-            else
-            {
-                /*
-                 * We are done sending checks for this list. We'll set
-                 * its final state in either the processResponse(),
-                 * processTimeout() or processFailure() method.
-                 */
-                logger.trace(() -> "will skip a check beat.");
-                checkList.fireEndOfOrdinaryChecks();
-            }
+            sendNextCheck(checkList);
         }
 
         /**
@@ -1004,16 +1099,46 @@ class ConnectivityCheckClient
                 return Duration.ZERO;
             }
 
-            int activeCheckLists = parentAgent.getActiveCheckListCount();
+            return getCheckInterval();
+        }
+    }
 
-            if (activeCheckLists < 1)
-            {
-                //don't multiply by 0. even when we no longer have active check
-                //lists we may still have nomination checks to
-                activeCheckLists = 1;
-            }
+    /**
+     * Runs the checks for a particular check list through the process-wide
+     * {@link ConnectivityCheckPacer}, at the pace defined in RFC 5245 but
+     * within the global budget of the pacer.
+     */
+    private final class PacedCheckList
+        implements ConnectivityCheckPacer.CheckSource
+    {
+        /**
+         * The {@link CheckList} that this <tt>PacedCheckList</tt> will be
+         * running checks for.
+         */
+        private final CheckList checkList;
+
+        /**
+         * Creates a new {@link PacedCheckList} for this
+         * <tt>ConnectivityCheckClient</tt>.
+         *
+         * @param checkList the {@link CheckList} that we'll be sending checks
+         * for
+         */
+        PacedCheckList(CheckList checkList)
+        {
+            this.checkList = checkList;
+        }
 
-            return Duration.ofMillis(parentAgent.calculateTa() * activeCheckLists);
+        @Override
+        public boolean sendNextCheck()
+        {
+            return ConnectivityCheckClient.this.sendNextCheck(checkList);
+        }
+
+        @Override
+        public Duration getCheckInterval()
+        {
+            return ConnectivityCheckClient.this.getCheckInterval();
         }
     }
 
@@ -1034,6 +1159,11 @@ class ConnectivityCheckClient
                 }
                 paceMaker.cancel();
             }
+            for (PacedCheckList pacedCheckList : pacedCheckLists)
+            {
+                pacer.unregister(pacedCheckList);
+            }
+            pacedCheckLists.clear();
         }
     }
 
@@ -0,0 +1,503 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice;
+
+import org.jitsi.utils.concurrent.*;
+import org.jitsi.utils.logging2.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Paces the connectivity checks of all the check lists registered with it
+ * against a single budget of checks per second. Without it, every check list
+ * is paced independently by its {@link ConnectivityCheckClient}, so that many
+ * agents starting their checks at the same time (e.g. at the beginning of a
+ * large conference) send bursts of checks with no overall bound.
+ * <p>
+ * The pacer runs every {@link #TICK} on a single thread. At every tick, it
+ * refills a token bucket according to the budget and then serves the check
+ * lists in a round-robin fashion, each of which may send one check per turn
+ * provided that its own pace (i.e. <tt>Ta</tt> as computed by its agent) allows
+ * it. Check lists which are due but can't be served because the budget has
+ * been exhausted are served first at the next tick.
+ * <p>
+ * The process-wide instance is configured with
+ * {@link AgentConfig#getMaxChecksPerSecond()} and is returned by
+ * {@link #getGlobalPacer()}.
+ */
+public class ConnectivityCheckPacer
+{
+    /**
+     * The {@link Logger} used by the {@link ConnectivityCheckPacer} class for
+     * logging output.
+     */
+    private static final Logger logger
+        = new LoggerImpl(ConnectivityCheckPacer.class.getName());
+
+    /**
+     * The interval at which the pacer serves its check lists.
+     */
+    public static final Duration TICK = Duration.ofMillis(5);
+
+    /**
+     * The <tt>ScheduledExecutorService</tt> which runs the process-wide
+     * pacer.
+     */
+    private static final ScheduledExecutorService globalTimer
+        = ExecutorFactory.createSingleThreadScheduledExecutor(
+            "ice4j.ConnectivityCheckPacer-timer-", 60, TimeUnit.SECONDS);
+
+    /**
+     * The process-wide pacer, created on first use. Guarded by the monitor of
+     * the {@link ConnectivityCheckPacer} class.
+     */
+    private static ConnectivityCheckPacer globalPacer;
+
+    /**
+     * Whether {@link #globalPacer} has been initialized. Guarded by the monitor
+     * of the {@link ConnectivityCheckPacer} class.
+     */
+    private static boolean globalPacerInitialized = false;
+
+    /**
+     * Returns the process-wide <tt>ConnectivityCheckPacer</tt> or <tt>null</tt>
+     * if the rate of connectivity checks is not limited globally (i.e.
+     * {@link AgentConfig#getMaxChecksPerSecond()} is not positive).
+     *
+     * @return the process-wide <tt>ConnectivityCheckPacer</tt> or
+     * <tt>null</tt> if checks are not paced globally.
+     */
+    public static synchronized ConnectivityCheckPacer getGlobalPacer()
+    {
+        if (!globalPacerInitialized)
+        {
+            globalPacerInitialized = true;
+
+            int maxChecksPerSecond = AgentConfig.config.getMaxChecksPerSecond();
+
+            if (maxChecksPerSecond > 0)
+            {
+                logger.info("Pacing connectivity checks globally at "
+                        + maxChecksPerSecond + " checks per second.");
+                globalPacer
+                    = new ConnectivityCheckPacer(
+                            maxChecksPerSecond, globalTimer);
+            }
+        }
+        return globalPacer;
+    }
+
+    /**
+     * The maximum number of checks per second that this pacer lets through.
+     */
+    private final int maxChecksPerSecond;
+
+    /**
+     * The maximum number of tokens in the bucket, i.e. the number of checks
+     * that may be sent in one tick.
+     */
+    private final double maxTokens;
+
+    /**
+     * The executor which runs {@link #tick()}.
+     */
+    private final ScheduledExecutorService timer;
+
+    /**
+     * The registered check sources in the order in which they'll be served.
+     * Guarded by the monitor of this pacer.
+     */
+    private final Deque<Entry> entries = new ArrayDeque<>();
+
+    /**
+     * The future of the periodic execution of {@link #tick()} or
+     * <tt>null</tt> if this pacer is not running (i.e. has no registered check
+     * sources). Guarded by the monitor of this pacer.
+     */
+    private ScheduledFuture<?> tickFuture;
+
+    /**
+     * The number of checks that may currently be sent. Guarded by the monitor
+     * of this pacer.
+     */
+    private double tokens;
+
+    /**
+     * The time (in nanoseconds) of the last refill of {@link #tokens}. Guarded
+     * by the monitor of this pacer.
+     */
+    private long lastRefillTime;
+
+    /**
+     * The number of check sources which were due at the end of the last tick
+     * but were not served because the budget had been exhausted.
+     */
+    private volatile int queueDepth = 0;
+
+    /**
+     * The largest value of {@link #queueDepth} observed so far.
+     */
+    private volatile int maxQueueDepth = 0;
+
+    /**
+     * The total number of checks sent through this pacer.
+     */
+    private volatile long checksSent = 0;
+
+    /**
+     * The total number of times a check source which was due was not served
+     * because the budget had been exhausted.
+     */
+    private volatile long checksDeferred = 0;
+
+    /**
+     * Creates a new <tt>ConnectivityCheckPacer</tt>.
+     *
+     * @param maxChecksPerSecond the maximum number of checks per second that
+     * the new pacer is to let through.
+     * @param timer the <tt>ScheduledExecutorService</tt> which is to run the
+     * new pacer.
+     */
+    public ConnectivityCheckPacer(
+            int maxChecksPerSecond,
+            ScheduledExecutorService timer)
+    {
+        if (maxChecksPerSecond <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "maxChecksPerSecond: " + maxChecksPerSecond);
+        }
+        if (timer == null)
+            throw new IllegalArgumentException("timer is null");
+
+        this.maxChecksPerSecond = maxChecksPerSecond;
+        this.timer = timer;
+        maxTokens = Math.max(1D, maxChecksPerSecond * toSeconds(TICK.toNanos()));
+        tokens = maxTokens;
+        lastRefillTime = System.nanoTime();
+    }
+
+    /**
+     * Registers <tt>source</tt> with this pacer. Its first check is sent at
+     * the next tick, budget permitting.
+     *
+     * @param source the {@link CheckSource} to register.
+     */
+    public synchronized void register(CheckSource source)
+    {
+        entries.addLast(new Entry(source, System.nanoTime()));
+        if (tickFuture == null)
+        {
+            lastRefillTime = System.nanoTime();
+            tickFuture
+                = timer.scheduleAtFixedRate(
+                        this::tick,
+                        0,
+                        TICK.toNanos(),
+                        TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Unregisters <tt>source</tt> from this pacer. This pacer stops running
+     * when it has no more registered sources.
+     *
+     * @param source the {@link CheckSource} to unregister.
+     */
+    public synchronized void unregister(CheckSource source)
+    {
+        entries.removeIf(entry -> entry.source == source);
+        if (entries.isEmpty() && tickFuture != null)
+        {
+            tickFuture.cancel(false);
+            tickFuture = null;
+            queueDepth = 0;
+        }
+    }
+
+    /**
+     * Runs one tick of this pacer at the current time.
+     */
+    private void tick()
+    {
+        try
+        {
+            tick(System.nanoTime());
+        }
+        catch (Throwable t)
+        {
+            // Don't let an exception cancel the periodic execution.
+            logger.warn("Failed to run connectivity checks", t);
+        }
+    }
+
+    /**
+     * Runs one tick of this pacer: refills the token bucket and serves the
+     * check sources which are due in a round-robin fashion for as long as
+     * the budget allows.
+     * <p>
+     * The checks are sent without holding the monitor of this pacer because
+     * sending a check may take the locks of the agent of its source, which
+     * in turn may (un)register check sources with this pacer. Instead, the
+     * sources to serve are picked and their tokens are taken while holding
+     * the monitor, and the tokens of the sources which turn out to have
+     * nothing to send are given back so that other sources may use them in
+     * the same tick.
+     *
+     * @param now the current time in nanoseconds.
+     */
+    void tick(long now)
+    {
+        synchronized (this)
+        {
+            tokens
+                = Math.min(
+                        maxTokens,
+                        tokens
+                            + maxChecksPerSecond
+                                * toSeconds(
+                                        Math.max(0, now - lastRefillTime)));
+            lastRefillTime = now;
+        }
+
+        List<Entry> due;
+
+        while (!(due = takeDueEntries(now)).isEmpty())
+        {
+            for (Entry entry : due)
+                serve(entry, now);
+        }
+
+        synchronized (this)
+        {
+            // The entries which are still due have to wait for the next tick.
+            // They are now at the head of the line, so they'll be served
+            // first.
+            int depth = 0;
+
+            for (Entry entry : entries)
+            {
+                if (entry.nextCheckTime - now <= 0)
+                    depth++;
+            }
+            queueDepth = depth;
+            if (depth > maxQueueDepth)
+                maxQueueDepth = depth;
+            checksDeferred += depth;
+        }
+    }
+
+    /**
+     * Picks the entries which are due and have not been served yet in the
+     * tick at <tt>now</tt>, in a round-robin fashion and as long as there are
+     * tokens left, and takes one token for each of them.
+     *
+     * @param now the time of the current tick in nanoseconds.
+     *
+     * @return the entries to serve.
+     */
+    private synchronized List<Entry> takeDueEntries(long now)
+    {
+        List<Entry> due = null;
+        int remaining = entries.size();
+
+        while (remaining-- > 0 && tokens >= 1)
+        {
+            Entry entry = entries.pollFirst();
+
+            if (entry == null)
+                break;
+
+            // Served or not, the entry goes to the end of the line.
+            entries.addLast(entry);
+            if (entry.nextCheckTime - now > 0
+                    || (entry.served && entry.lastTickTime == now))
+            {
+                continue;
+            }
+
+            entry.served = true;
+            entry.lastTickTime = now;
+            tokens -= 1;
+            if (due == null)
+                due = new ArrayList<>();
+            due.add(entry);
+        }
+        return (due == null) ? Collections.emptyList() : due;
+    }
+
+    /**
+     * Sends the next check of the source of <tt>entry</tt>, for which a token
+     * has been taken by {@link #takeDueEntries(long)}. Must not be called
+     * while holding the monitor of this pacer.
+     *
+     * @param entry the entry to serve.
+     * @param now the time of the current tick in nanoseconds.
+     */
+    private void serve(Entry entry, long now)
+    {
+        boolean sent = false;
+
+        try
+        {
+            sent = entry.source.sendNextCheck();
+        }
+        catch (Throwable t)
+        {
+            logger.warn("Failed to send a connectivity check", t);
+        }
+
+        long interval = entry.source.getCheckInterval().toNanos();
+
+        synchronized (this)
+        {
+            if (sent)
+                checksSent++;
+            else
+                tokens = Math.min(maxTokens, tokens + 1);
+            entry.nextCheckTime = now + interval;
+        }
+    }
+
+    /**
+     * Returns the maximum number of checks per second that this pacer lets
+     * through.
+     *
+     * @return the maximum number of checks per second that this pacer lets
+     * through.
+     */
+    public int getMaxChecksPerSecond()
+    {
+        return maxChecksPerSecond;
+    }
+
+    /**
+     * Returns the number of check sources currently registered with this
+     * pacer.
+     *
+     * @return the number of check sources currently registered with this
+     * pacer.
+     */
+    public synchronized int getCheckSourceCount()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of check sources which were due at the end of the
+     * last tick but had to wait because the budget had been exhausted.
+     *
+     * @return the current depth of the queue of check sources waiting for the
+     * budget.
+     */
+    public int getQueueDepth()
+    {
+        return queueDepth;
+    }
+
+    /**
+     * Returns the largest queue depth (see {@link #getQueueDepth()}) observed
+     * by this pacer.
+     *
+     * @return the largest queue depth observed by this pacer.
+     */
+    public int getMaxQueueDepth()
+    {
+        return maxQueueDepth;
+    }
+
+    /**
+     * Returns the total number of checks sent through this pacer.
+     *
+     * @return the total number of checks sent through this pacer.
+     */
+    public long getChecksSent()
+    {
+        return checksSent;
+    }
+
+    /**
+     * Returns the total number of times a check source which was due had to
+     * wait for the next tick because the budget had been exhausted.
+     *
+     * @return the total number of deferred checks.
+     */
+    public long getChecksDeferred()
+    {
+        return checksDeferred;
+    }
+
+    private static double toSeconds(long nanos)
+    {
+        return nanos / 1_000_000_000D;
+    }
+
+    /**
+     * A source of connectivity checks paced by a
+     * {@link ConnectivityCheckPacer}, typically a {@link CheckList}.
+     */
+    public interface CheckSource
+    {
+        /**
+         * Sends the next connectivity check of this source, if any.
+         *
+         * @return <tt>true</tt> if a check was sent and <tt>false</tt> if this
+         * source had nothing to send.
+         */
+        boolean sendNextCheck();
+
+        /**
+         * Returns the minimum interval between two consecutive checks of this
+         * source.
+         *
+         * @return the minimum interval between two consecutive checks of this
+         * source.
+         */
+        Duration getCheckInterval();
+    }
+
+    /**
+     * A {@link CheckSource} registered with this pacer along with the time of
+     * its next check. Guarded by the monitor of the pacer.
+     */
+    private static class Entry
+    {
+        private final CheckSource source;
+
+        private long nextCheckTime;
+
+        /**
+         * Whether this entry has ever been served, i.e. whether
+         * {@link #lastTickTime} is meaningful.
+         */
+        private boolean served = false;
+
+        /**
+         * The time of the last tick in which this entry was served.
+         */
+        private long lastTickTime;
+
+        Entry(CheckSource source, long nextCheckTime)
+        {
+            this.source = source;
+            this.nextCheckTime = nextCheckTime;
+        }
+    }
+}
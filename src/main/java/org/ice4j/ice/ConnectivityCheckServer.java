@@ -74,7 +74,6 @@ class ConnectivityCheckServer
         logger = parentAgent.getLogger().createChildLogger(this.getClass().getName());
 
         stunStack = this.parentAgent.getStunStack();
-        stunStack.getCredentialsManager().registerAuthority(this);
 
         start();
     }
@@ -356,6 +355,17 @@ class ConnectivityCheckServer
         return ufrag.equals(parentAgent.getLocalUfrag());
     }
 
+    /**
+     * Returns the local ufrag of the parent agent, which all the local user
+     * names known to this server start with.
+     *
+     * @return the local ufrag of the parent agent.
+     */
+    public String getLocalUfrag()
+    {
+        return parentAgent.getLocalUfrag();
+    }
+
     /**
      * Implements the {@link CredentialsAuthority#getLocalKey(String)} method in
      * a way that would return this handler's parent agent password if
@@ -420,12 +430,17 @@ class ConnectivityCheckServer
     /**
      * Starts this <tt>ConnectivityCheckServer</tt>. If it is not currently
      * running, does nothing.
+     * <p>
+     * The server is registered for the requests addressed to the local ufrag
+     * of its agent only, so that a <tt>StunStack</tt> shared by many agents
+     * hands each request directly to the agent it is meant for.
      */
-    public void start()
+    public synchronized void start()
     {
         if (!started)
         {
-            stunStack.addRequestListener(this);
+            stunStack.getCredentialsManager().registerAuthority(this);
+            stunStack.addRequestListener(parentAgent.getLocalUfrag(), this);
             started = true;
         }
     }
@@ -435,9 +450,10 @@ class ConnectivityCheckServer
      * <tt>ConnectivityCheckServer</tt> can be restarted by calling
      * {@link #start()} on it.
      */
-    public void stop()
+    public synchronized void stop()
     {
-        stunStack.removeRequestListener(this);
+        stunStack.removeRequestListener(parentAgent.getLocalUfrag(), this);
+        stunStack.getCredentialsManager().unregisterAuthority(this);
         started = false;
     }
 }
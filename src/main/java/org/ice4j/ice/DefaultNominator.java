@@ -20,10 +20,17 @@ package org.ice4j.ice;
 import org.jitsi.utils.logging2.*;
 
 import java.beans.*;
+import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
- * Implements ice4j internal nomination strategies.
+ * Implements ice4j internal nomination strategies. The decision to nominate a
+ * pair is delegated to a {@link NominationPolicy}: either the built-in policy
+ * for the current {@link NominationStrategy} or one installed by the
+ * application. Policies which need to delay a nomination do so on the shared
+ * scheduler of the agents rather than on dedicated threads.
  *
  * @author Emil Ivov
  */
@@ -42,10 +49,10 @@ public class DefaultNominator
         = NominationStrategy.NOMINATE_FIRST_VALID;
 
     /**
-     * Map that will remember association between validated relayed candidate
-     * and a timer. It is used with the NOMINATE_FIRST_HIGHEST_VALID strategy.
+     * The policy which decides which pairs this nominator nominates or
+     * <tt>null</tt> if this nominator doesn't nominate pairs.
      */
-    private final Map<String, TimerTask> validatedCandidates = new HashMap<>();
+    private volatile NominationPolicy policy = createPolicy(strategy);
 
     /**
      * The {@link Logger} used by {@link DefaultNominator} instances.
@@ -86,11 +93,14 @@ public class DefaultNominator
             {
                 stream.addPairChangeListener(this);
                 stream.getCheckList().addStateChangeListener(this);
+                stream.getCheckList().addChecksListener(this);
             }
         }
 
+        NominationPolicy policy = this.policy;
+
         if (!parentAgent.isControlling() //CONTROLLED agents cannot nominate
-                || strategy == NominationStrategy.NONE)
+                || policy == null)
         {
             return;
         }
@@ -117,72 +127,67 @@ public class DefaultNominator
             }
         }
 
-        if (strategy == NominationStrategy.NOMINATE_FIRST_VALID)
-            strategyNominateFirstValid(ev);
-        else if (strategy == NominationStrategy.NOMINATE_HIGHEST_PRIO)
-            strategyNominateHighestPrio(ev);
-        else if (strategy
-                == NominationStrategy.NOMINATE_FIRST_HOST_OR_REFLEXIVE_VALID)
-            strategyNominateFirstHostOrReflexiveValid(ev);
+        policy.propertyChange(ev, this);
     }
 
     /**
-     * Implements a basic nomination strategy that consists in nominating the
-     * first pair that has become valid for a check list.
+     * Nominates <tt>pair</tt> unless it has already been nominated.
      *
-     * @param evt the {@link PropertyChangeEvent} containing the pair which
-     * has been validated.
+     * @param pair the {@link CandidatePair} to nominate.
+     *
+     * @see Agent#nominate(CandidatePair)
      */
-    private void strategyNominateFirstValid(PropertyChangeEvent evt)
+    public void nominate(CandidatePair pair)
     {
-        if (IceMediaStream.PROPERTY_PAIR_VALIDATED
-                    .equals(evt.getPropertyName()))
-        {
-            CandidatePair validPair = (CandidatePair)evt.getSource();
-
-            logger.info("Nominate (first valid): " + validPair.toRedactedShortString()
-                + ".");
-            parentAgent.nominate(validPair);
-        }
+        parentAgent.nominate(pair);
     }
 
     /**
-     * Implements a nomination strategy that allows checks for several (or all)
-     * pairs in a check list to conclude before nominating the one with the
-     * highest priority.
+     * Schedules <tt>task</tt> to run after <tt>delay</tt> on the scheduler
+     * shared by all agents. The task must not block.
+     *
+     * @param task the task to run.
+     * @param delay the delay after which <tt>task</tt> is to run.
      *
-     * @param ev the {@link PropertyChangeEvent} containing the new state and
-     * the source {@link CheckList}.
+     * @return a {@link ScheduledFuture} which may be used to cancel
+     * <tt>task</tt>.
      */
-    private void strategyNominateHighestPrio(PropertyChangeEvent ev)
+    public ScheduledFuture<?> schedule(Runnable task, Duration delay)
     {
-        String pname = ev.getPropertyName();
-
-        if (IceMediaStream.PROPERTY_PAIR_VALIDATED.equals(pname)
-                || (IceMediaStream.PROPERTY_PAIR_STATE_CHANGED.equals(pname)
-                        && (ev.getNewValue() == CandidatePairState.FAILED)))
-        {
-            CandidatePair validPair = (CandidatePair) ev.getSource();
-            Component parentComponent = validPair.getParentComponent();
-            IceMediaStream parentStream = parentComponent.getParentStream();
-            CheckList parentCheckList = parentStream.getCheckList();
-
-            if (!parentCheckList.allChecksCompleted())
-                return;
+        return parentAgent.getScheduledExecutorService().schedule(
+                () ->
+                {
+                    try
+                    {
+                        task.run();
+                    }
+                    catch (Throwable t)
+                    {
+                        logger.warn("Nomination task failed", t);
+                    }
+                },
+                delay.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
 
-            for (Component component : parentStream.getComponents())
-            {
-                CandidatePair pair = parentStream.getValidPair(component);
+    /**
+     * Returns the {@link Agent} whose pairs this nominator nominates.
+     *
+     * @return the {@link Agent} whose pairs this nominator nominates.
+     */
+    public Agent getAgent()
+    {
+        return parentAgent;
+    }
 
-                if (pair != null)
-                {
-                    logger.info(
-                            "Nominate (highest priority): "
-                                + validPair.toRedactedShortString());
-                    parentAgent.nominate(pair);
-                }
-            }
-        }
+    /**
+     * Returns the {@link Logger} used by this nominator.
+     *
+     * @return the {@link Logger} used by this nominator.
+     */
+    public Logger getLogger()
+    {
+        return logger;
     }
 
     /**
@@ -200,204 +205,407 @@ public class DefaultNominator
     /**
      * The {@link NominationStrategy} that this nominator should use when
      * deciding whether or not a valid {@link CandidatePair} is suitable for
-     * nomination.
+     * nomination. Replaces the current {@link NominationPolicy} with the
+     * built-in policy for <tt>strategy</tt>.
      *
      * @param strategy the {@link NominationStrategy} we should be using.
      */
     public void setStrategy(NominationStrategy strategy)
     {
         this.strategy = strategy;
+        setPolicy(createPolicy(strategy));
     }
 
     /**
-     * Implements a nomination strategy that consists in nominating directly
-     * host or server reflexive pair that has become valid for a
-     * check list. For relayed pair, a timer is armed to see if no other host or
-     * server reflexive pair gets validated prior to timeout, the relayed ones
-     * gets nominated.
+     * Returns the {@link NominationPolicy} which decides which pairs this
+     * nominator nominates.
+     *
+     * @return the current {@link NominationPolicy} or <tt>null</tt> if this
+     * nominator doesn't nominate pairs.
+     */
+    public NominationPolicy getPolicy()
+    {
+        return policy;
+    }
+
+    /**
+     * Sets the {@link NominationPolicy} which decides which pairs this
+     * nominator nominates. The previous policy is stopped. Note that
+     * {@link #getStrategy()} keeps returning the last strategy set with
+     * {@link #setStrategy(NominationStrategy)}.
      *
-     * @param evt the {@link PropertyChangeEvent} containing the pair which
-     * has been validated.
+     * @param policy the {@link NominationPolicy} to use or <tt>null</tt> to
+     * not nominate pairs.
      */
-    private void strategyNominateFirstHostOrReflexiveValid(
-            PropertyChangeEvent evt)
+    public void setPolicy(NominationPolicy policy)
     {
-        if (IceMediaStream.PROPERTY_PAIR_VALIDATED.equals(evt.getPropertyName()))
+        NominationPolicy oldPolicy;
+
+        synchronized (this)
         {
-            CandidatePair validPair = (CandidatePair) evt.getSource();
+            oldPolicy = this.policy;
+            this.policy = policy;
+        }
+        if (oldPolicy != null && oldPolicy != policy)
+            oldPolicy.stop();
+    }
 
-            Component component = validPair.getParentComponent();
-            LocalCandidate localCandidate = validPair.getLocalCandidate();
-            boolean isRelayed
-                = (localCandidate instanceof RelayedCandidate)
-                    || localCandidate.getType().equals(
-                            CandidateType.RELAYED_CANDIDATE)
-                    || validPair.getRemoteCandidate().getType().equals(
-                            CandidateType.RELAYED_CANDIDATE);
-            boolean nominate = false;
+    /**
+     * Stops the current {@link NominationPolicy}, cancelling the nominations
+     * it may have scheduled. Called when the agent is freed.
+     */
+    public void stop()
+    {
+        NominationPolicy policy = this.policy;
+
+        if (policy != null)
+            policy.stop();
+    }
+
+    /**
+     * Returns the built-in {@link NominationPolicy} implementing
+     * <tt>strategy</tt>.
+     *
+     * @param strategy the {@link NominationStrategy} to implement.
+     *
+     * @return the built-in {@link NominationPolicy} implementing
+     * <tt>strategy</tt> or <tt>null</tt> if there is no such policy.
+     */
+    private static NominationPolicy createPolicy(NominationStrategy strategy)
+    {
+        if (strategy == null)
+            return null;
+
+        switch (strategy)
+        {
+        case NOMINATE_FIRST_VALID:
+            return new FirstValidPolicy();
+        case NOMINATE_HIGHEST_PRIO:
+            return new HighestPriorityPolicy();
+        case NOMINATE_FIRST_HOST_OR_REFLEXIVE_VALID:
+            return new FirstHostOrReflexiveValidPolicy();
+        default:
+            return null;
+        }
+    }
 
-            synchronized (validatedCandidates)
+    /**
+     * Implements a basic nomination strategy that consists in nominating the
+     * first pair that has become valid for a check list.
+     */
+    private static class FirstValidPolicy
+        implements NominationPolicy
+    {
+        @Override
+        public void propertyChange(
+                PropertyChangeEvent evt,
+                DefaultNominator nominator)
+        {
+            if (IceMediaStream.PROPERTY_PAIR_VALIDATED
+                        .equals(evt.getPropertyName()))
             {
-                TimerTask task
-                    = validatedCandidates.get(component.toShortString());
+                CandidatePair validPair = (CandidatePair)evt.getSource();
 
-                if (isRelayed && task == null)
-                {
-                    /* armed a timer and see if a host or server reflexive pair
-                     * gets nominated. Otherwise nominate the relayed candidate
-                     * pair
-                     */
-                    Timer timer = new Timer();
-                    task = new RelayedCandidateTask(validPair);
-
-                    logger.info("Wait timeout to nominate relayed candidate");
-                    timer.schedule(task, 0);
-                    validatedCandidates.put(component.toShortString(), task);
-                }
-                else if (!isRelayed)
+                nominator.getLogger().info("Nominate (first valid): "
+                    + validPair.toRedactedShortString() + ".");
+                nominator.nominate(validPair);
+            }
+        }
+    }
+
+    /**
+     * Implements a nomination strategy that allows checks for several (or all)
+     * pairs in a check list to conclude before nominating the one with the
+     * highest priority.
+     */
+    private static class HighestPriorityPolicy
+        implements NominationPolicy
+    {
+        @Override
+        public void propertyChange(
+                PropertyChangeEvent ev,
+                DefaultNominator nominator)
+        {
+            String pname = ev.getPropertyName();
+
+            if (IceMediaStream.PROPERTY_PAIR_VALIDATED.equals(pname)
+                    || (IceMediaStream.PROPERTY_PAIR_STATE_CHANGED.equals(pname)
+                            && (ev.getNewValue() == CandidatePairState.FAILED)))
+            {
+                CandidatePair validPair = (CandidatePair) ev.getSource();
+                Component parentComponent = validPair.getParentComponent();
+                IceMediaStream parentStream = parentComponent.getParentStream();
+                CheckList parentCheckList = parentStream.getCheckList();
+
+                if (!parentCheckList.allChecksCompleted())
+                    return;
+
+                for (Component component : parentStream.getComponents())
                 {
-                    // host or server reflexive candidate pair
-                    if (task != null)
+                    CandidatePair pair = parentStream.getValidPair(component);
+
+                    if (pair != null)
                     {
-                        task.cancel();
-                        logger.info(
-                                "Found a better candidate pair to nominate for "
-                                    + component.toShortString());
+                        nominator.getLogger().info(
+                                "Nominate (highest priority): "
+                                    + validPair.toRedactedShortString());
+                        nominator.nominate(pair);
                     }
-
-                    logger.info(
-                            "Nominate (first highest valid): "
-                                + validPair.toRedactedShortString());
-                    nominate = true;
                 }
             }
-
-            if (nominate)
-                parentAgent.nominate(validPair);
         }
     }
 
     /**
-     * TimerTask that will wait a certain amount of time to let other candidate
-     * pair to be validated and possibly be better than the relayed candidate.
-     *
-     * @author Sebastien Vincent
+     * Implements a nomination strategy that consists in nominating directly
+     * host or server reflexive pair that has become valid for a
+     * check list. For relayed pair, a nomination is scheduled after
+     * {@link #RELAYED_NOMINATION_DELAY} and only happens if no other host or
+     * server reflexive pair gets validated in the meantime. The relayed pair
+     * is nominated immediately if all other pairs of its check list fail
+     * before that.
      */
-    private class RelayedCandidateTask
-        extends TimerTask
-        implements PropertyChangeListener
+    private static class FirstHostOrReflexiveValidPolicy
+        implements NominationPolicy
     {
         /**
-         * Wait time in milliseconds.
+         * The time to wait for a host or server reflexive pair to get
+         * validated before nominating a relayed pair.
          */
-        private static final int WAIT_TIME = 800;
+        private static final Duration RELAYED_NOMINATION_DELAY
+            = Duration.ofMillis(800);
 
         /**
-         * The relayed candidate pair.
+         * The scheduled nominations of relayed pairs, by component. Guarded by
+         * its monitor.
          */
-        private final CandidatePair pair;
+        private final Map<Component, RelayedNomination> relayedNominations
+            = new HashMap<>();
 
-        /**
-         * If the task has been cancelled.
-         */
-        private boolean cancelled = false;
+        @Override
+        public void propertyChange(
+                PropertyChangeEvent evt,
+                DefaultNominator nominator)
+        {
+            String propertyName = evt.getPropertyName();
+
+            if (IceMediaStream.PROPERTY_PAIR_VALIDATED.equals(propertyName))
+                pairValidated((CandidatePair) evt.getSource(), nominator);
+            else if (CheckList.PROPERTY_CHECK_LIST_CHECKS.equals(propertyName))
+                endOfOrdinaryChecks((CheckList) evt.getSource(), nominator);
+        }
 
         /**
-         * Constructor.
+         * Nominates <tt>validPair</tt> if it is a host or server reflexive
+         * pair, or schedules its nomination if it is a relayed one.
          *
-         * @param pair relayed candidate pair
+         * @param validPair the {@link CandidatePair} which has been validated.
+         * @param nominator the {@link DefaultNominator} to nominate through.
          */
-        public RelayedCandidateTask(CandidatePair pair)
+        private void pairValidated(
+                CandidatePair validPair,
+                DefaultNominator nominator)
         {
-            this.pair = pair;
-            pair.getParentComponent().getParentStream().getCheckList().
-                addChecksListener(this);
+            Component component = validPair.getParentComponent();
+            LocalCandidate localCandidate = validPair.getLocalCandidate();
+            boolean isRelayed
+                = (localCandidate instanceof RelayedCandidate)
+                    || localCandidate.getType().equals(
+                            CandidateType.RELAYED_CANDIDATE)
+                    || validPair.getRemoteCandidate().getType().equals(
+                            CandidateType.RELAYED_CANDIDATE);
+            Logger logger = nominator.getLogger();
+
+            synchronized (relayedNominations)
+            {
+                RelayedNomination relayedNomination
+                    = relayedNominations.get(component);
+
+                if (isRelayed)
+                {
+                    if (relayedNomination == null)
+                    {
+                        /* schedule the nomination of the relayed pair unless
+                         * a host or server reflexive pair gets validated in
+                         * the meantime.
+                         */
+                        logger.info("Wait timeout to nominate relayed candidate");
+
+                        RelayedNomination newNomination
+                            = new RelayedNomination(validPair);
+
+                        relayedNominations.put(component, newNomination);
+                        newNomination.future
+                            = nominator.schedule(
+                                    () -> complete(newNomination, nominator),
+                                    RELAYED_NOMINATION_DELAY);
+                    }
+                    return;
+                }
+
+                // host or server reflexive candidate pair
+                if (relayedNomination != null
+                        && relayedNomination.cancel(relayedNominations))
+                {
+                    logger.info(
+                            "Found a better candidate pair to nominate for "
+                                + component.toShortString());
+                }
+            }
+
+            logger.info(
+                    "Nominate (first highest valid): "
+                        + validPair.toRedactedShortString());
+            nominator.nominate(validPair);
         }
 
         /**
-         * Tracks end of checks of the {@link CheckList}.
+         * Nominates immediately the relayed pairs of <tt>checkList</tt> whose
+         * nomination is scheduled if all the other pairs of
+         * <tt>checkList</tt> have failed.
          *
-         * @param evt the event
+         * @param checkList the {@link CheckList} which has run out of ordinary
+         * checks.
+         * @param nominator the {@link DefaultNominator} to nominate through.
          */
-        public void propertyChange(PropertyChangeEvent evt)
+        private void endOfOrdinaryChecks(
+                CheckList checkList,
+                DefaultNominator nominator)
         {
-            // Make it clear that PROPERTY_CHECK_LIST_CHECKS is in use here.
-            if (!CheckList.PROPERTY_CHECK_LIST_CHECKS.equals(
-                        evt.getPropertyName()))
+            List<RelayedNomination> nominations;
+
+            synchronized (relayedNominations)
             {
-                return;
+                if (relayedNominations.isEmpty())
+                    return;
+                nominations = new ArrayList<>(relayedNominations.values());
             }
 
-            // check list has run out of ordinary checks, see if all other
-            // candidates are FAILED, in which case we nominate immediately
-            // the relayed candidate
-            CheckList checkList = (CheckList)evt.getSource();
-            boolean allFailed = true;
-
-            synchronized (checkList)
+            for (RelayedNomination nomination : nominations)
             {
-                for (CandidatePair c : checkList)
+                CandidatePair pair = nomination.pair;
+
+                if (pair.getParentComponent().getParentStream().getCheckList()
+                            == checkList
+                        && !pair.isNominated()
+                        && allOtherPairsFailed(checkList, pair))
                 {
-                    if (c != pair && c.getState() != CandidatePairState.FAILED)
-                    {
-                        allFailed = false;
-                        break;
-                    }
+                    // all other pairs are failed to do not waste time, nominate
+                    // the relayed candidate now.
+                    complete(nomination, nominator);
                 }
             }
-
-            if (allFailed && !pair.isNominated())
-            {
-                // all other pairs are failed to do not waste time, cancel
-                // timer and nominate ourself (the relayed candidate).
-                this.cancel();
-
-                logger.info(
-                        "Nominate (first highest valid): "
-                            + pair.toRedactedShortString());
-                parentAgent.nominate(pair);
-            }
         }
 
         /**
-         * Cancel task.
+         * Determines whether all pairs of <tt>checkList</tt> other than
+         * <tt>pair</tt> have failed.
+         *
+         * @param checkList the {@link CheckList} to check.
+         * @param pair the {@link CandidatePair} to not take into account.
+         *
+         * @return <tt>true</tt> if all pairs of <tt>checkList</tt> other than
+         * <tt>pair</tt> are in the <tt>Failed</tt> state.
          */
-        @Override
-        public boolean cancel()
+        private static boolean allOtherPairsFailed(
+                CheckList checkList,
+                CandidatePair pair)
         {
-            cancelled = true;
-            return super.cancel();
+            int pairs = checkList.size();
+            int failedPairs
+                = checkList.getStateCount(CandidatePairState.FAILED);
+
+            if (pair.getCheckList() == checkList)
+            {
+                pairs--;
+                if (pair.getState() == CandidatePairState.FAILED)
+                    failedPairs--;
+            }
+            return failedPairs >= pairs;
         }
 
         /**
-         * Task entry point.
+         * Nominates the relayed pair of <tt>nomination</tt> unless the
+         * nomination has already been completed or cancelled.
+         *
+         * @param nomination the {@link RelayedNomination} to complete.
+         * @param nominator the {@link DefaultNominator} to nominate through.
          */
-        public void run()
+        private void complete(
+                RelayedNomination nomination,
+                DefaultNominator nominator)
         {
-            try
+            synchronized (relayedNominations)
             {
-                Thread.sleep(WAIT_TIME);
+                if (!nomination.cancel(relayedNominations))
+                    return;
             }
-            catch (InterruptedException e)
+
+            nominator.getLogger().info(
+                    "Nominate (first highest valid): "
+                        + nomination.pair.toRedactedShortString());
+            nominator.nominate(nomination.pair);
+        }
+
+        @Override
+        public void stop()
+        {
+            synchronized (relayedNominations)
             {
-                cancelled = true;
+                for (RelayedNomination nomination
+                        : new ArrayList<>(relayedNominations.values()))
+                {
+                    nomination.cancel(relayedNominations);
+                }
             }
+        }
+    }
 
-            Component component = pair.getParentComponent();
+    /**
+     * A scheduled nomination of a relayed pair.
+     */
+    private static class RelayedNomination
+    {
+        /**
+         * The relayed pair to nominate.
+         */
+        private final CandidatePair pair;
 
-            component.getParentStream().getCheckList().removeChecksListener(
-                    this);
-            validatedCandidates.remove(component.toShortString());
+        /**
+         * Whether this nomination has been completed or cancelled.
+         */
+        private final AtomicBoolean done = new AtomicBoolean(false);
 
-            if (cancelled)
-                return;
+        /**
+         * The scheduled execution of this nomination.
+         */
+        private volatile ScheduledFuture<?> future;
 
-            logger.info(
-                    "Nominate (first highest valid): " + pair.toRedactedShortString());
+        RelayedNomination(CandidatePair pair)
+        {
+            this.pair = pair;
+        }
+
+        /**
+         * Marks this nomination as done, cancels its scheduled execution and
+         * removes it from <tt>nominations</tt>.
+         *
+         * @param nominations the map of nominations this one belongs to.
+         *
+         * @return <tt>true</tt> if this nomination was pending and
+         * <tt>false</tt> if it had already been completed or cancelled.
+         */
+        boolean cancel(Map<Component, RelayedNomination> nominations)
+        {
+            if (!done.compareAndSet(false, true))
+                return false;
+
+            ScheduledFuture<?> future = this.future;
 
-            // task has not been cancelled after WAIT_TIME milliseconds so
-            // nominate the pair
-            parentAgent.nominate(pair);
+            if (future != null)
+                future.cancel(false);
+            nominations.remove(pair.getParentComponent(), this);
+            return true;
         }
     }
 }
@@ -356,14 +356,19 @@ public class IceMediaStream
      */
     protected void initCheckList()
     {
-        //first init the check list.
+        //first init the check list. The pairs are pruned (which also orders
+        //them) before they are added to the check list because pruning may
+        //replace their local candidates, and the check list indexes its pairs
+        //by address.
+        List<CandidatePair> pairs = new ArrayList<>();
+
+        createCheckList(pairs);
+        pruneCheckList(pairs);
+
         synchronized(checkList)
         {
             checkList.clear();
-            createCheckList(checkList);
-
-            orderCheckList();
-            pruneCheckList(checkList);
+            checkList.addAll(pairs);
             logger.trace(() -> "Checklist initialized.");
         }
     }
@@ -391,8 +396,25 @@ public class IceMediaStream
     private void createCheckList(final Component           component,
                                  final List<CandidatePair> checkList)
     {
-        List<LocalCandidate> localCnds = component.getLocalCandidates();
-        List<RemoteCandidate> remoteCnds = component.getRemoteCandidates();
+        createPairs(
+                component.getLocalCandidates(),
+                component.getRemoteCandidates(),
+                checkList);
+    }
+
+    /**
+     * Pairs each of <tt>localCnds</tt> with each of <tt>remoteCnds</tt> that
+     * it can reach and adds the resulting pairs to <tt>pairs</tt>. The base of
+     * a UPnP candidate is not paired.
+     *
+     * @param localCnds the local candidates to pair.
+     * @param remoteCnds the remote candidates to pair.
+     * @param pairs the collection that we need to update with the new pairs.
+     */
+    protected void createPairs(List<LocalCandidate>        localCnds,
+                               Collection<RemoteCandidate> remoteCnds,
+                               Collection<CandidatePair>   pairs)
+    {
         LocalCandidate upnpBase = null;
 
         for (LocalCandidate lc : localCnds)
@@ -410,81 +432,129 @@ public class IceMediaStream
 
             for (RemoteCandidate remoteCnd : remoteCnds)
             {
+                // A single LocalCandidate might be/become connected to more
+                // than one remote address, and that's ok (that is, we need to
+                // form pairs with them all).
                 if (localCnd.canReach(remoteCnd)
                         && remoteCnd.getTransportAddress().getPort() != 0)
                 {
                     CandidatePair pair
                         = getParentAgent()
                             .createCandidatePair(localCnd, remoteCnd);
-                    checkList.add(pair);
+                    pairs.add(pair);
                 }
             }
         }
     }
 
-    /**
-     * Orders this stream's pair check list in decreasing order of pair
-     * priority. If two pairs have identical priority, the ordering amongst
-     * them is arbitrary.
-     */
-    private void orderCheckList()
-    {
-        Collections.sort(checkList, CandidatePair.comparator);
-    }
-
     /**
      *  Removes or, as per the ICE spec, "prunes" pairs that we don't need to
      *  run checks for. For example, since we cannot send requests directly
      *  from a reflexive candidate, but only from its base, we go through the
-     *  sorted list of candidate pairs and in every pair where the local
-     *  candidate is server reflexive, we replace the local server reflexive
-     *  candidate with its base. Once this has been done, we remove each pair
-     *  where the local and remote candidates are identical to the local and
-     *  remote candidates of a pair higher up on the priority list.
+     *  list of candidate pairs and in every pair where the local candidate is
+     *  server reflexive, we replace the local server reflexive candidate with
+     *  its base. Once this has been done, of all the pairs with identical
+     *  local and remote candidates we only keep the one with the highest
+     *  priority.
      *  <br>
      *  In addition, in order to limit the attacks described in Section 18.5.2
      *  of the ICE spec, we limit the total number of pairs and hence
-     *  (connectivity checks) to a specific value, (a total of 100 by default).
+     *  (connectivity checks) to a specific value, (a total of 100 by default),
+     *  keeping the pairs with the highest priorities.
+     *  <br>
+     *  Duplicates are detected with a hash lookup and the pairs to keep are
+     *  selected with a heap bounded by the maximum check list size, so the
+     *  pruning is linear in the number of pairs (and logarithmic in the
+     *  maximum size), and the list does not need to be sorted beforehand.
      *
-     * @param checkList the checklist to prune
+     * @param checkList the checklist to prune. On return it contains the
+     * remaining pairs in decreasing order of priority.
      */
     protected void pruneCheckList(List<CandidatePair> checkList)
     {
-        //a list that we only use for storing pairs that we've already gone
-        //through. The list is destroyed at the end of this method.
-        List<CandidatePair> tmpCheckList = new ArrayList<>(checkList.size());
+        //the pairs that we keep, by their local and remote candidates.
+        Map<List<Candidate<?>>, CandidatePair> uniquePairs
+            = new LinkedHashMap<>();
 
-        Iterator<CandidatePair> ckListIter = checkList.iterator();
-
-        while (ckListIter.hasNext())
+        for (CandidatePair pair : checkList)
         {
-            CandidatePair pair = ckListIter.next();
-
-            //drop all pairs above MAX_CHECK_LIST_SIZE.
-            if (tmpCheckList.size() > maxCheckListSize)
-            {
-                ckListIter.remove();
-                continue;
-            }
-
             //replace local server reflexive candidates with their base.
             LocalCandidate localCnd = pair.getLocalCandidate();
             if ( localCnd.getType()
                         == CandidateType.SERVER_REFLEXIVE_CANDIDATE)
             {
                 pair.setLocalCandidate(localCnd.getBase());
-
-                //if the new pair corresponds to another one with a higher
-                //priority, then remove it.
-                if (tmpCheckList.contains(pair))
-                {
-                    ckListIter.remove();
-                    continue;
-                }
             }
 
-            tmpCheckList.add(pair);
+            //if the pair corresponds to another one with a higher priority,
+            //then drop it.
+            uniquePairs.merge(
+                    Arrays.<Candidate<?>>asList(
+                            pair.getLocalCandidate(),
+                            pair.getRemoteCandidate()),
+                    pair,
+                    (oldPair, newPair) ->
+                        newPair.getPriority() > oldPair.getPriority()
+                            ? newPair
+                            : oldPair);
         }
+
+        //drop all pairs above MAX_CHECK_LIST_SIZE.
+        List<CandidatePair> prunedCheckList
+            = selectHighestPriority(uniquePairs.values(), maxCheckListSize);
+
+        checkList.clear();
+        checkList.addAll(prunedCheckList);
+    }
+
+    /**
+     * Selects the (at most) <tt>maxCount</tt> pairs with the highest
+     * priorities from <tt>pairs</tt>.
+     *
+     * @param pairs the pairs to select from.
+     * @param maxCount the maximum number of pairs to select.
+     *
+     * @return the selected pairs in decreasing order of priority.
+     */
+    static List<CandidatePair> selectHighestPriority(
+            Collection<CandidatePair> pairs,
+            int maxCount)
+    {
+        if (pairs.size() <= maxCount)
+        {
+            List<CandidatePair> selected = new ArrayList<>(pairs);
+
+            selected.sort(CandidatePair.comparator);
+            return selected;
+        }
+        if (maxCount <= 0)
+            return new ArrayList<>();
+
+        //a min-heap of the highest priority pairs seen so far.
+        PriorityQueue<CandidatePair> heap
+            = new PriorityQueue<>(
+                    maxCount + 1,
+                    CandidatePair.comparator.reversed());
+
+        for (CandidatePair pair : pairs)
+        {
+            if (heap.size() < maxCount)
+            {
+                heap.add(pair);
+            }
+            else if (pair.getPriority() > heap.peek().getPriority())
+            {
+                heap.poll();
+                heap.add(pair);
+            }
+        }
+
+        CandidatePair[] selected = new CandidatePair[heap.size()];
+
+        for (int i = selected.length - 1; i >= 0; i--)
+            selected[i] = heap.poll();
+
+        return new ArrayList<>(Arrays.asList(selected));
     }
 
     /**
@@ -580,20 +650,7 @@ public class IceMediaStream
     public CandidatePair findCandidatePair(TransportAddress localAddress,
                                            TransportAddress remoteAddress)
     {
-        synchronized(checkList)
-        {
-            for (CandidatePair pair : checkList)
-            {
-                if (pair.getLocalCandidate().getTransportAddress()
-                            .equals(localAddress)
-                        && pair.getRemoteCandidate().getTransportAddress()
-                                .equals(remoteAddress))
-                {
-                    return pair;
-                }
-            }
-        }
-        return null;
+        return checkList.findPair(localAddress, remoteAddress);
     }
 
     /**
@@ -610,21 +667,7 @@ public class IceMediaStream
     public CandidatePair findCandidatePair(String localUFrag,
                                            String remoteUFrag)
     {
-        synchronized(checkList)
-        {
-            for (CandidatePair pair : checkList)
-            {
-                LocalCandidate local = pair.getLocalCandidate();
-                RemoteCandidate remote = pair.getRemoteCandidate();
-
-                if (local.getUfrag().equals(remoteUFrag)
-                        && remote.getUfrag().equals(localUFrag))
-                {
-                    return pair;
-                }
-            }
-        }
-        return null;
+        return checkList.findPair(localUFrag, remoteUFrag);
     }
 
     /**
@@ -646,18 +689,29 @@ public class IceMediaStream
     }
 
     /**
-     * Adds <tt>candidatePair</tt> to this stream's check list. The method
-     * is meant for use during the connectivity checks phase when new pairs
-     * with remote PEER-REFLEXIVE-CANDIDATEs are discovered.
+     * Inserts <tt>candidatePair</tt> into this stream's check list based on
+     * its priority. The method is meant for use during the connectivity checks
+     * phase when new pairs with remote PEER-REFLEXIVE-CANDIDATEs are
+     * discovered.
      *
      * @param candidatePair the pair that we'd like to add to this streams.
      */
     protected void addToCheckList(CandidatePair candidatePair)
     {
-        synchronized(checkList)
-        {
-            checkList.add(candidatePair);
-        }
+        checkList.insertByPriority(candidatePair);
+    }
+
+    /**
+     * Merges <tt>pairs</tt> into this stream's check list. The method is meant
+     * for use during the connectivity checks phase when new remote candidates
+     * are trickled in. See {@link CheckList#mergePairs(Collection, int)}.
+     *
+     * @param pairs the new pairs, already pruned with
+     * {@link #pruneCheckList(List)}.
+     */
+    protected void mergeIntoCheckList(Collection<CandidatePair> pairs)
+    {
+        checkList.mergePairs(pairs, maxCheckListSize);
     }
 
     /**
@@ -0,0 +1,58 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice;
+
+import java.beans.*;
+
+/**
+ * Decides if and when the valid pairs of a controlling {@link Agent} are
+ * nominated. The {@link DefaultNominator} of an agent uses one of its built-in
+ * policies for each of the {@link NominationStrategy} values, and applications
+ * may install their own policy with
+ * {@link Agent#setNominationPolicy(NominationPolicy)}.
+ * <p>
+ * Policies are driven by the events of the agent and must not block: a policy
+ * which needs to wait before nominating a pair should use
+ * {@link DefaultNominator#schedule(Runnable, java.time.Duration)}.
+ */
+public interface NominationPolicy
+{
+    /**
+     * Notifies this policy of a change of a {@link CandidatePair} (see
+     * {@link IceMediaStream#PROPERTY_PAIR_VALIDATED} and
+     * {@link IceMediaStream#PROPERTY_PAIR_STATE_CHANGED} for example) or of a
+     * {@link CheckList} (see {@link CheckList#PROPERTY_CHECK_LIST_STATE} and
+     * {@link CheckList#PROPERTY_CHECK_LIST_CHECKS}). The method is only called
+     * while the agent is controlling, and not for pairs whose component
+     * already has a nominated pair.
+     *
+     * @param ev the event describing the change.
+     * @param nominator the {@link DefaultNominator} through which pairs are to
+     * be nominated.
+     */
+    void propertyChange(PropertyChangeEvent ev, DefaultNominator nominator);
+
+    /**
+     * Releases the resources of this policy, for example the nominations that
+     * it has scheduled. Called when the policy is replaced and when the agent
+     * is freed.
+     */
+    default void stop()
+    {
+    }
+}
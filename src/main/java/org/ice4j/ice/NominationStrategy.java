@@ -26,6 +26,10 @@ package org.ice4j.ice;
  * <p>
  * Note that NominationStrategies are an ice4j concept and they are not
  * mentioned in RFC 5245.
+ * <p>
+ * Each strategy is implemented by a built-in {@link NominationPolicy}.
+ * Applications which need a different policy can install their own with
+ * {@link Agent#setNominationPolicy(NominationPolicy)}.
  *
  * @author Emil Ivov
  */
@@ -55,8 +59,8 @@ public enum NominationStrategy
     /**
      * The strategy consists in nominating the first host or server reflexive
      * that's confirmed as valid pair. When a relayed candidate pair is
-     * validated first, a timer is armed and only if no host or server
-     * reflexive pair gets validated prior to timeout, the relayed ones
+     * validated first, its nomination is scheduled and only if no host or
+     * server reflexive pair gets validated prior to timeout, the relayed ones
      * gets nominated.
      */
     NOMINATE_FIRST_HOST_OR_REFLEXIVE_VALID("NominateFirstHostOrReflexiveValid"),
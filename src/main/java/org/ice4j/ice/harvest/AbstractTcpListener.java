@@ -41,6 +41,10 @@ import static org.ice4j.ice.harvest.HarvestConfig.config;
  * message from an accepted socket and, based on the STUN username, passes it
  * to the appropriate session.
  *
+ * When the listening endpoints are shared with other listeners (see
+ * {@link #AbstractTcpListener(List, boolean)}), the connections are accepted
+ * by {@link MuxServerSocketChannel} instead of the 'accept' thread.
+ *
  * @author Boris Grozev
  * @author Lyubomir Marinov
  */
@@ -120,11 +124,32 @@ public abstract class AbstractTcpListener
      */
     protected final List<TransportAddress> localAddresses = new LinkedList<>();
 
+    /**
+     * Whether this instance shares its listening endpoints with other
+     * listeners (e.g. a web server) through {@link MuxServerSocketChannel}s
+     * rather than binding its own <tt>ServerSocketChannel</tt>s.
+     */
+    private final boolean muxed;
+
+    /**
+     * The {@link MuxServerSocketChannel.Acceptor} which receives the ICE-TCP
+     * connections from {@link #muxServerSocketChannels}.
+     */
+    private final MuxServerSocketChannel.Acceptor muxAcceptor
+        = this::acceptMuxedChannel;
+
+    /**
+     * The shared listening endpoints which hand ICE-TCP connections over to
+     * this instance, if {@link #muxed}.
+     */
+    private final List<MuxServerSocketChannel> muxServerSocketChannels
+        = new LinkedList<>();
+
     /**
      * Channels pending to be added to the list that {@link #readThread} reads
      * from.
      */
-    private final List<SocketChannel> newChannels = new LinkedList<>();
+    private final List<ChannelDesc> newChannels = new LinkedList<>();
 
     /**
      * The <tt>Selector</tt> used by {@link #readThread}.
@@ -188,6 +213,31 @@ public abstract class AbstractTcpListener
     public AbstractTcpListener(List<TransportAddress> transportAddresses)
         throws IOException
     {
+        this(transportAddresses, false);
+    }
+
+    /**
+     * Initializes a new <tt>TcpHarvester</tt>, which is to listen on the
+     * specified list of <tt>TransportAddress</tt>es, optionally sharing them
+     * with other listeners.
+     *
+     * @param transportAddresses the transport addresses to listen on.
+     * @param muxed <tt>true</tt> to share the listening endpoints with other
+     * listeners (e.g. a web server on port 443) which open them with
+     * {@link MuxServerSocketChannelFactory#openAndBindMuxServerSocketChannel(
+     * Map, SocketAddress, int, DatagramPacketFilter,
+     * MuxServerSocketChannel.Acceptor)}. Only the connections accepted by
+     * {@link IceTcpDemuxFilter} are handled by the new instance.
+     * @throws IOException when {@link HarvestConfig#getAllowedAddresses()} or
+     * {@link HarvestConfig#getBlockedAddresses()} contains invalid values, or
+     * if an I/O error occurs.
+     */
+    public AbstractTcpListener(
+            List<TransportAddress> transportAddresses,
+            boolean muxed)
+        throws IOException
+    {
+        this.muxed = muxed;
         addLocalAddresses(transportAddresses);
         init();
     }
@@ -220,6 +270,13 @@ public abstract class AbstractTcpListener
     public void close()
     {
         close = true;
+
+        for (MuxServerSocketChannel muxServerSocketChannel
+                : muxServerSocketChannels)
+        {
+            muxServerSocketChannel.removeAcceptor(muxAcceptor);
+        }
+        readSelector.wakeup();
     }
 
     /**
@@ -245,13 +302,30 @@ public abstract class AbstractTcpListener
             ) );
         }
 
-        for (InetSocketAddress addressToBind : addressesToBind )
+        if (muxed)
         {
-            addSocketChannel( addressToBind );
+            for (InetSocketAddress addressToBind : addressesToBind)
+            {
+                muxServerSocketChannels.add(
+                        MuxServerSocketChannelFactory
+                            .openAndBindMuxServerSocketChannel(
+                                    null,
+                                    addressToBind,
+                                    0,
+                                    new IceTcpDemuxFilter(),
+                                    muxAcceptor));
+            }
         }
+        else
+        {
+            for (InetSocketAddress addressToBind : addressesToBind )
+            {
+                addSocketChannel( addressToBind );
+            }
 
-        acceptThread = new AcceptThread();
-        acceptThread.start();
+            acceptThread = new AcceptThread();
+            acceptThread.start();
+        }
 
         readThread = new ReadThread();
         readThread.start();
@@ -270,6 +344,22 @@ public abstract class AbstractTcpListener
         serverSocketChannels.add(channel);
     }
 
+    /**
+     * Takes over an ICE-TCP connection accepted by one of
+     * {@link #muxServerSocketChannels}.
+     *
+     * @param channel the accepted connection.
+     * @param preRead the bytes already read from <tt>channel</tt>.
+     */
+    private void acceptMuxedChannel(SocketChannel channel, ByteBuffer preRead)
+    {
+        synchronized (newChannels)
+        {
+            newChannels.add(new ChannelDesc(channel, preRead));
+        }
+        readSelector.wakeup();
+    }
+
     /**
      * Accepts a session.
      * @param socket the {@link Socket} for the session.
@@ -333,7 +423,7 @@ public abstract class AbstractTcpListener
                 }
 
                 IOException exception = null;
-                List<SocketChannel> channelsToAdd = new LinkedList<>();
+                List<ChannelDesc> channelsToAdd = new LinkedList<>();
                 // Allow to go on, so we can quit if closed.
                 long selectTimeout = 3000;
 
@@ -360,7 +450,7 @@ public abstract class AbstractTcpListener
                         // 'read' thread to it up.
                         if (channel != null)
                         {
-                            channelsToAdd.add(channel);
+                            channelsToAdd.add(new ChannelDesc(channel, null));
                         }
                         else if (acceptable)
                         {
@@ -437,6 +527,14 @@ public abstract class AbstractTcpListener
          */
         ByteBuffer buffer = null;
 
+        /**
+         * The bytes read from {@link #channel} by a
+         * {@link MuxServerSocketChannel} before it was handed over to us, which
+         * are to be read before the bytes of the channel itself, or
+         * <tt>null</tt>.
+         */
+        ByteBuffer preRead;
+
         /**
          * Whether we had checked for initial "pseudo" SSL handshake.
          */
@@ -458,10 +556,14 @@ public abstract class AbstractTcpListener
         /**
          * Initializes a new <tt>ChannelDesc</tt> with the given channel.
          * @param channel the channel.
+         * @param preRead the bytes already read from <tt>channel</tt>, or
+         * <tt>null</tt>.
          */
-        public ChannelDesc(SocketChannel channel)
+        public ChannelDesc(SocketChannel channel, ByteBuffer preRead)
         {
             this.channel = channel;
+            this.preRead
+                = (preRead == null || !preRead.hasRemaining()) ? null : preRead;
         }
     }
 
@@ -612,20 +714,20 @@ public abstract class AbstractTcpListener
         {
             synchronized (newChannels)
             {
-                for (SocketChannel channel : newChannels)
+                for (ChannelDesc channel : newChannels)
                 {
                     try
                     {
-                        channel.configureBlocking(false);
-                        channel.register(
+                        channel.channel.configureBlocking(false);
+                        channel.channel.register(
                                 readSelector,
                                 SelectionKey.OP_READ,
-                                new ChannelDesc(channel));
+                                channel);
                     }
                     catch (IOException ioe)
                     {
                         logger.info("Failed to register channel: " + ioe);
-                        closeNoExceptions(channel);
+                        closeNoExceptions(channel.channel);
                     }
                 }
                 newChannels.clear();
@@ -678,10 +780,28 @@ public abstract class AbstractTcpListener
 
             try
             {
-                int read = channel.channel.read(channel.buffer);
+                if (channel.preRead != null)
+                {
+                    ByteBuffer preRead = channel.preRead;
+                    int length
+                        = Math.min(
+                                preRead.remaining(),
+                                channel.buffer.remaining());
+                    int limit = preRead.limit();
+
+                    preRead.limit(preRead.position() + length);
+                    channel.buffer.put(preRead);
+                    preRead.limit(limit);
+                    if (!preRead.hasRemaining())
+                        channel.preRead = null;
+                }
+                if (channel.buffer.hasRemaining())
+                {
+                    int read = channel.channel.read(channel.buffer);
 
-                if (read == -1)
-                    throw new IOException("End of stream!");
+                    if (read == -1)
+                        throw new IOException("End of stream!");
+                }
 
                 if (!channel.buffer.hasRemaining())
                 {
@@ -899,9 +1019,9 @@ public abstract class AbstractTcpListener
             //we are all done, clean up.
             synchronized (newChannels)
             {
-                for (SocketChannel channel : newChannels)
+                for (ChannelDesc channel : newChannels)
                 {
-                    closeNoExceptions(channel);
+                    closeNoExceptions(channel.channel);
                 }
                 newChannels.clear();
             }
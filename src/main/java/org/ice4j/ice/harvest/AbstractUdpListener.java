@@ -20,13 +20,14 @@ package org.ice4j.ice.harvest;
 import org.ice4j.*;
 import org.ice4j.attribute.*;
 import org.ice4j.message.*;
+import org.ice4j.metrics.*;
 import org.ice4j.socket.*;
 import org.ice4j.util.*;
 import org.jetbrains.annotations.*;
-import org.jitsi.utils.queue.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
@@ -45,6 +46,13 @@ import static org.ice4j.ice.harvest.HarvestConfig.config;
  * the remote address of the datagram, which will be used for further packets
  * from this address.
  *
+ * Datagrams from unknown sources go through the cheapest checks first, so
+ * that garbage and spoofed requests cost as little as possible on the single
+ * receiving thread: the STUN header is checked, then the ufrag is found in
+ * place and looked up with {@link #isKnownUfrag(UfragKey)} without allocating,
+ * then the source is rate limited per address prefix, and only then is the
+ * message fully decoded.
+ *
  * @author Boris Grozev
  */
 public abstract class AbstractUdpListener
@@ -55,6 +63,75 @@ public abstract class AbstractUdpListener
     private static final Logger logger
             = Logger.getLogger(AbstractUdpListener.class.getName());
 
+    /**
+     * The number of packets dropped because the queue of their
+     * <tt>MySocket</tt> was full.
+     */
+    private static final Counter queueDrops
+        = Metrics.GLOBAL.counter("harvest.udp.queue_drops");
+
+    /**
+     * The number of packets added to the queues of <tt>MySocket</tt>s.
+     */
+    private static final Counter queueEnqueued
+        = Metrics.GLOBAL.counter("harvest.udp.queue_enqueued");
+
+    /**
+     * The time, in microseconds, that packets spend in the queues of
+     * <tt>MySocket</tt>s.
+     */
+    private static final Histogram queueResidenceTime
+        = Metrics.GLOBAL.histogram("harvest.udp.queue_residence_us");
+
+    /**
+     * The number of datagrams from unknown sources which were admitted and
+     * offered to {@link #maybeAcceptNewSession}.
+     */
+    private static final Counter unknownSourceAdmitted
+        = Metrics.GLOBAL.counter("harvest.udp.unknown_source.admitted");
+
+    /**
+     * The number of datagrams from unknown sources which were dropped because
+     * their header is not the one of a STUN Binding Request.
+     */
+    private static final Counter unknownSourceNotBindingRequest
+        = Metrics.GLOBAL.counter(
+                "harvest.udp.unknown_source.not_binding_request");
+
+    /**
+     * The number of datagrams from unknown sources which were dropped because
+     * they have no well-formed USERNAME attribute.
+     */
+    private static final Counter unknownSourceNoUsername
+        = Metrics.GLOBAL.counter("harvest.udp.unknown_source.no_username");
+
+    /**
+     * The number of datagrams from unknown sources which were dropped because
+     * their ufrag is not known.
+     */
+    private static final Counter unknownSourceUnknownUfrag
+        = Metrics.GLOBAL.counter("harvest.udp.unknown_source.unknown_ufrag");
+
+    /**
+     * The number of datagrams from unknown sources which were dropped because
+     * their source exceeded its rate.
+     */
+    private static final Counter unknownSourceRateLimited
+        = Metrics.GLOBAL.counter("harvest.udp.unknown_source.rate_limited");
+
+    /**
+     * The number of datagrams from unknown sources which were dropped because
+     * they failed to decode as a STUN message.
+     */
+    private static final Counter unknownSourceMalformed
+        = Metrics.GLOBAL.counter("harvest.udp.unknown_source.malformed");
+
+    /**
+     * The minimum interval in milliseconds between two log messages about
+     * packets dropped because a queue was full.
+     */
+    private static final long DROP_LOG_INTERVAL = 10_000;
+
     /**
      * The size for newly allocated <tt>Buffer</tt> instances. This limits the
      * maximum size of datagrams we can receive.
@@ -176,6 +253,69 @@ public abstract class AbstractUdpListener
         return null;
     }
 
+    /**
+     * Checks whether the header of a datagram is the one of a STUN Binding
+     * Request (RFC5389, Section 6) whose length matches the datagram. Only
+     * looks at the first 20 bytes.
+     *
+     * @param buf the bytes.
+     * @param off the offset.
+     * @param len the length.
+     * @return <tt>true</tt> if the datagram has the header of a STUN Binding
+     * Request and <tt>false</tt> otherwise.
+     */
+    static boolean isBindingRequest(byte[] buf, int off, int len)
+    {
+        if (buf == null || off < 0 || buf.length < off + len
+                || len < Message.HEADER_LENGTH)
+        {
+            return false;
+        }
+
+        int messageLength = ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+
+        return buf[off] == 0
+            && buf[off + 1] == Message.BINDING_REQUEST
+            && messageLength == len - Message.HEADER_LENGTH
+            && (messageLength & 3) == 0
+            && (buf[off + 4] & 0xFF) == 0x21
+            && (buf[off + 5] & 0xFF) == 0x12
+            && (buf[off + 6] & 0xFF) == 0xA4
+            && (buf[off + 7] & 0xFF) == 0x42;
+    }
+
+    /**
+     * Finds the USERNAME attribute of a STUN message in place, by walking the
+     * attribute headers. The message is assumed to have passed
+     * {@link #isBindingRequest(byte[], int, int)}.
+     *
+     * @param buf the bytes.
+     * @param off the offset.
+     * @param len the length.
+     * @return the index in <tt>buf</tt> of the value of the USERNAME
+     * attribute, whose length is in the two bytes which precede it, or -1 if
+     * there is no USERNAME attribute or the attributes are malformed.
+     */
+    static int findUsername(byte[] buf, int off, int len)
+    {
+        int end = off + len;
+        int i = off + Message.HEADER_LENGTH;
+
+        while (i + Attribute.HEADER_LENGTH <= end)
+        {
+            int type = ((buf[i] & 0xFF) << 8) | (buf[i + 1] & 0xFF);
+            int length = ((buf[i + 2] & 0xFF) << 8) | (buf[i + 3] & 0xFF);
+            int value = i + Attribute.HEADER_LENGTH;
+
+            if (value + length > end)
+                return -1;
+            if (type == Attribute.USERNAME)
+                return value;
+            i = value + ((length + 3) & ~3);
+        }
+        return -1;
+    }
+
     /**
      * The map which keeps the known remote addresses and their associated
      * candidateSockets.
@@ -215,6 +355,31 @@ public abstract class AbstractUdpListener
      */
     private boolean close = false;
 
+    /**
+     * The number of packets dropped since drops were last logged. Only
+     * accessed by {@link #thread}.
+     */
+    private long dropsSinceLastLog = 0;
+
+    /**
+     * The time in milliseconds at which drops were last logged. Only accessed
+     * by {@link #thread}.
+     */
+    private long lastDropLogTime = 0;
+
+    /**
+     * The key reused to look up the ufrags of datagrams from unknown sources.
+     * Only accessed by {@link #thread}.
+     */
+    private final UfragKey ufragProbe = new UfragKey();
+
+    /**
+     * Limits the rate of datagrams from unknown sources which are fully
+     * decoded, per source, or <tt>null</tt> if they are not limited. Only
+     * accessed by {@link #thread}.
+     */
+    private final SourceRateLimiter sourceRateLimiter;
+
     /**
      * Initializes a new <tt>SinglePortUdpHarvester</tt> instance which is to
      * bind on the specified local address.
@@ -261,6 +426,17 @@ public abstract class AbstractUdpListener
         }
         this.localAddress = tempAddress;
 
+        int rate = config.udpUnknownSourceRate();
+
+        sourceRateLimiter
+            = (rate > 0)
+                ? new SourceRateLimiter(
+                        rate,
+                        config.udpUnknownSourceBurst(),
+                        config.udpUnknownSourceIpv4PrefixLength(),
+                        config.udpUnknownSourceIpv6PrefixLength())
+                : null;
+
         String logMessage
             = "Initialized AbstractUdpListener with address " + this.localAddress;
         logMessage += ". Receive buffer size " + receiveSocket.getReceiveBufferSize();
@@ -357,11 +533,14 @@ public abstract class AbstractUdpListener
             else
             {
                 // Packet from an unknown source. Is it a STUN Binding Request?
-                String ufrag = getUfrag(buf.getBuffer(), buf.getOffset(), buf.getLength());
+                String ufrag = admitUnknownSource(
+                        buf.getBuffer(), buf.getOffset(), buf.getLength(),
+                        remoteAddress);
                 if (ufrag == null)
                 {
-                    // Not a STUN Binding Request or doesn't have a valid
-                    // USERNAME attribute. Drop it.
+                    // Not a STUN Binding Request for a known ufrag, or its
+                    // source is over its rate. Drop it.
+                    pool.offer(buf);
                     continue;
                 }
 
@@ -434,10 +613,10 @@ public abstract class AbstractUdpListener
             if (destinationSocket == null)
             {
                 // Packet from an unknown source. Is it a STUN Binding Request?
-                String ufrag = getUfrag(pkt.getData(), pkt.getOffset(), pkt.getLength());
+                String ufrag = admitUnknownSource(pkt.getData(), pkt.getOffset(), pkt.getLength(), remoteAddress);
                 if (ufrag == null)
                 {
-                    // Not a STUN Binding Request or doesn't have a valid USERNAME attribute. Drop it.
+                    // Not a STUN Binding Request for a known ufrag, or its source is over its rate. Drop it.
                     continue;
                 }
 
@@ -477,6 +656,144 @@ public abstract class AbstractUdpListener
         socketPool.close();
     }
 
+    /**
+     * Decides whether a datagram from an unknown source is to be offered to
+     * {@link #maybeAcceptNewSession}, running the cheapest checks first and
+     * counting the datagrams rejected by each. Nothing is allocated until the
+     * ufrag is known to this listener. Only called by {@link #thread}.
+     *
+     * @param buf the bytes.
+     * @param off the offset.
+     * @param len the length.
+     * @param remoteAddress the source of the datagram.
+     * @return the local ufrag from the USERNAME attribute of the STUN Binding
+     * Request in <tt>buf</tt> if the datagram is admitted, or <tt>null</tt>.
+     */
+    private String admitUnknownSource(
+            byte[] buf, int off, int len,
+            InetSocketAddress remoteAddress)
+    {
+        if (!isBindingRequest(buf, off, len))
+        {
+            unknownSourceNotBindingRequest.increment();
+            return null;
+        }
+
+        int username = findUsername(buf, off, len);
+
+        if (username < 0)
+        {
+            unknownSourceNoUsername.increment();
+            return null;
+        }
+
+        int usernameLength
+            = ((buf[username - 2] & 0xFF) << 8) | (buf[username - 1] & 0xFF);
+        int ufragLength = 0;
+
+        while (ufragLength < usernameLength
+                && buf[username + ufragLength] != ':')
+        {
+            ufragLength++;
+        }
+        ufragProbe.set(buf, username, ufragLength);
+        if (ufragLength == 0 || !isKnownUfrag(ufragProbe))
+        {
+            unknownSourceUnknownUfrag.increment();
+            return null;
+        }
+
+        if (sourceRateLimiter != null
+                && !sourceRateLimiter.tryAcquire(
+                        remoteAddress.getAddress(), System.nanoTime()))
+        {
+            unknownSourceRateLimited.increment();
+            return null;
+        }
+
+        try
+        {
+            Message.decode(buf, off, len);
+        }
+        catch (Exception e)
+        {
+            // Catch everything, the packet is dropped anyway.
+            unknownSourceMalformed.increment();
+            if (logger.isLoggable(Level.FINE))
+            {
+                logger.fine("Failed to decode a STUN Binding Request: " + e);
+            }
+            return null;
+        }
+
+        unknownSourceAdmitted.increment();
+        return ufragProbe.toString();
+    }
+
+    /**
+     * Determines whether a ufrag may have a session accepted by
+     * {@link #maybeAcceptNewSession}. Called for every STUN Binding Request
+     * from an unknown source before it is decoded, so implementations which
+     * can tell should answer without allocating. The default implementation
+     * returns <tt>true</tt>.
+     *
+     * Note that this is meant to only be executed by
+     * {@link AbstractUdpListener}'s read thread. <tt>ufrag</tt> is reused for
+     * the next datagram and must not be kept.
+     *
+     * @param ufrag the local ufrag of the STUN Binding Request.
+     * @return <tt>true</tt> if <tt>ufrag</tt> may be accepted and
+     * <tt>false</tt> if the request is to be dropped.
+     */
+    protected boolean isKnownUfrag(UfragKey ufrag)
+    {
+        return true;
+    }
+
+    /**
+     * Releases a <tt>Buffer</tt> which is no longer used, according to the
+     * memory model in use (see {@link #USE_PUSH_API}).
+     *
+     * @param buf the <tt>Buffer</tt> to release.
+     */
+    private void releaseBuffer(Buffer buf)
+    {
+        if (USE_PUSH_API)
+        {
+            BufferPool.returnBuffer.invoke(buf);
+        }
+        else
+        {
+            pool.offer(buf);
+        }
+    }
+
+    /**
+     * Accounts for a packet dropped because the queue of <tt>socket</tt> was
+     * full, and logs the drops at most once per {@link #DROP_LOG_INTERVAL}
+     * so that logging does not add to the load. Only called by
+     * {@link #thread}.
+     *
+     * @param socket the socket whose queue was full.
+     */
+    private void packetDropped(MySocket socket)
+    {
+        queueDrops.increment();
+        dropsSinceLastLog++;
+
+        long now = System.currentTimeMillis();
+
+        if (now - lastDropLogTime >= DROP_LOG_INTERVAL)
+        {
+            logger.info(
+                    "Dropped " + dropsSinceLastLog + " packet(s) because a"
+                        + " queue was full. Last remote address = "
+                        + socket.remoteAddress + " ufrag=" + socket.ufrag);
+            dropsSinceLastLog = 0;
+            lastDropLogTime = now;
+        }
+    }
+
     private Buffer bufferFromPacket(DatagramPacket p, Instant receivedTime)
     {
         int off = BYTES_TO_LEAVE_AT_START_OF_PACKET;
@@ -552,6 +869,113 @@ public abstract class AbstractUdpListener
     }
 
 
+    /**
+     * A ufrag as a range of bytes, so that the ufrags of received datagrams
+     * can be looked up in hash tables without creating <tt>String</tt>s.
+     * Two keys are equal if their bytes are.
+     */
+    protected static final class UfragKey
+    {
+        /**
+         * The array which holds the bytes of the ufrag.
+         */
+        private byte[] bytes;
+
+        /**
+         * The index of the first byte of the ufrag in {@link #bytes}.
+         */
+        private int offset;
+
+        /**
+         * The number of bytes of the ufrag.
+         */
+        private int length;
+
+        /**
+         * The hash code of the ufrag.
+         */
+        private int hash;
+
+        /**
+         * Initializes a new <tt>UfragKey</tt> for a specific ufrag.
+         *
+         * @param ufrag the ufrag.
+         */
+        public UfragKey(String ufrag)
+        {
+            byte[] bytes = ufrag.getBytes(StandardCharsets.UTF_8);
+
+            set(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Initializes a new empty <tt>UfragKey</tt>, to be used as a probe.
+         */
+        private UfragKey()
+        {
+            bytes = new byte[0];
+        }
+
+        /**
+         * Points this key at a range of bytes, without copying them.
+         *
+         * @param bytes the array which holds the ufrag.
+         * @param offset the index of the first byte of the ufrag.
+         * @param length the number of bytes of the ufrag.
+         */
+        private void set(byte[] bytes, int offset, int length)
+        {
+            int hash = 1;
+
+            for (int i = offset, end = offset + length; i < end; i++)
+                hash = 31 * hash + bytes[i];
+
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof UfragKey))
+                return false;
+
+            UfragKey other = (UfragKey) obj;
+
+            return hash == other.hash
+                && Arrays.equals(
+                        bytes, offset, offset + length,
+                        other.bytes, other.offset, other.offset + other.length);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        /**
+         * Returns the ufrag.
+         *
+         * @return the ufrag.
+         */
+        @Override
+        public String toString()
+        {
+            return new String(bytes, offset, length, StandardCharsets.UTF_8);
+        }
+    }
+
     /**
      * Implements a <tt>DatagramSocket</tt> for the purposes of a specific
      * <tt>MyCandidate</tt>.
@@ -563,20 +987,23 @@ public abstract class AbstractUdpListener
             extends DatagramSocket
     {
         /**
-         * The size of {@link #queue}.
+         * The FIFO which acts as a buffer for this socket.
          */
-        private static final int QUEUE_SIZE = 128;
+        private final ReceiveQueue queue
+            = new ReceiveQueue(config.udpReceiveQueueSize());
 
         /**
-         * The FIFO which acts as a buffer for this socket.
+         * The lock on which threads in {@link #receive(DatagramPacket)} wait
+         * for {@link #queue} to have an element.
          */
-        private final ArrayBlockingQueue<Buffer> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        private final Object receiveLock = new Object();
 
         /**
-         * The {@link QueueStatistics} instance optionally used to collect and
-         * print detailed statistics about {@link #queue}.
+         * The number of threads waiting on {@link #receiveLock}. Only changed
+         * with {@link #receiveLock} held, it spares {@link #addBuffer(Buffer)}
+         * from taking the lock when nobody waits.
          */
-        private final QueueStatistics queueStatistics;
+        private volatile int waitingReceivers = 0;
 
         /**
          * The remote address that is associated with this socket.
@@ -587,7 +1014,7 @@ public abstract class AbstractUdpListener
          * The flag which indicates that this <tt>DatagramSocket</tt> has been
          * closed.
          */
-        private boolean closed = false;
+        private volatile boolean closed = false;
 
         private final String ufrag;
 
@@ -610,14 +1037,6 @@ public abstract class AbstractUdpListener
             this.ufrag = ufrag;
             this.bufferHandler = bufferHandler;
             this.remoteAddress = remoteAddress;
-            if (logger.isLoggable(Level.FINEST))
-            {
-                queueStatistics = new QueueStatistics(QUEUE_SIZE, Clock.systemUTC());
-            }
-            else
-            {
-                queueStatistics = null;
-            }
         }
 
         /**
@@ -626,29 +1045,23 @@ public abstract class AbstractUdpListener
          */
         public void addBuffer(Buffer buf)
         {
-            synchronized (queue)
+            // The queue drops the first rather than the current packet, so
+            // that receivers can notice the loss earlier.
+            Buffer dropped = queue.offer(buf);
+
+            queueEnqueued.increment();
+            if (dropped != null)
             {
-                // Drop the first rather than the current packet, so that
-                // receivers can notice the loss earlier.
-                if (queue.size() == QUEUE_SIZE)
-                {
-                    logger.info(
-                            "Dropping a packet because the queue is full. Remote address = "
-                                    + remoteAddress + " ufrag=" + ufrag);
-                    if (queueStatistics != null)
-                    {
-                        queueStatistics.dropped();
-                    }
-                    queue.poll();
-                }
+                packetDropped(this);
+                releaseBuffer(dropped);
+            }
 
-                queue.offer(buf);
-                if (queueStatistics != null)
+            if (waitingReceivers > 0)
+            {
+                synchronized (receiveLock)
                 {
-                    queueStatistics.added();
+                    receiveLock.notify();
                 }
-
-                queue.notify();
             }
         }
 
@@ -733,12 +1146,22 @@ public abstract class AbstractUdpListener
         @Override
         public void close()
         {
-            synchronized (queue)
+            synchronized (receiveLock)
             {
                 closed = true;
 
                 // Wake up any threads still in receive()
-                queue.notifyAll();
+                receiveLock.notifyAll();
+            }
+
+            if (logger.isLoggable(Level.FINE) && remoteAddress != null)
+            {
+                logger.fine(
+                        "Closing socket for " + remoteAddress + " ufrag="
+                            + ufrag + ": enqueued=" + queue.getEnqueued()
+                            + " dropped=" + queue.getDropped()
+                            + " high-water mark=" + queue.getHighWaterMark()
+                            + "/" + queue.capacity());
             }
 
             // We could be called by the super-class constructor, in which
@@ -761,34 +1184,40 @@ public abstract class AbstractUdpListener
         public void receive(DatagramPacket p)
            throws IOException
         {
+            long[] residenceTime = new long[1];
             Buffer buf = null;
 
             while (buf == null)
             {
-                synchronized (queue)
+                if (closed)
                 {
-                    if (closed)
-                    {
-                        throw new SocketException("Socket closed");
-                    }
+                    throw new SocketException("Socket closed");
+                }
 
-                    if (queue.isEmpty())
+                buf = queue.poll(residenceTime);
+                if (buf == null)
+                {
+                    synchronized (receiveLock)
                     {
+                        waitingReceivers++;
                         try
                         {
-                            queue.wait();
+                            // Check again now that addBuffer will notify us.
+                            if (queue.isEmpty() && !closed)
+                            {
+                                receiveLock.wait();
+                            }
                         }
                         catch (InterruptedException ie)
                         {}
-                    }
-
-                    buf = queue.poll();
-                    if (buf != null && queueStatistics != null)
-                    {
-                        queueStatistics.removed(queue.size(), null);
+                        finally
+                        {
+                            waitingReceivers--;
+                        }
                     }
                 }
             }
+            queueResidenceTime.record(residenceTime[0] / 1000);
 
             byte[] pData = p.getData();
 
@@ -802,14 +1231,7 @@ public abstract class AbstractUdpListener
             p.setSocketAddress(remoteAddress);
 
             // We use a different memory model with the push API.
-            if (USE_PUSH_API)
-            {
-                BufferPool.returnBuffer.invoke(buf);
-            }
-            else
-            {
-                pool.offer(buf);
-            }
+            releaseBuffer(buf);
         }
 
         /**
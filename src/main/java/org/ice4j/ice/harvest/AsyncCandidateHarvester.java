@@ -0,0 +1,55 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice.harvest;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.ice4j.ice.*;
+
+/**
+ * A <tt>CandidateHarvester</tt> which gathers candidates without blocking the
+ * calling thread, e.g. because it waits for responses from a server. A
+ * {@link CandidateHarvesterSet} starts the harvests of such harvesters
+ * directly instead of dedicating a thread to each of them, and trickles their
+ * candidates as soon as they are discovered.
+ */
+public interface AsyncCandidateHarvester
+    extends CandidateHarvester
+{
+    /**
+     * Starts gathering all candidate addresses of the type that this
+     * <tt>CandidateHarvester</tt> supports and returns without waiting for
+     * the gathering to complete. As with
+     * {@link CandidateHarvester#harvest(Component)}, the gathered candidate
+     * addresses are to be added to the specified <tt>Component</tt> as soon as
+     * they are discovered.
+     *
+     * @param component the {@link Component} that we'd like to gather candidate
+     * addresses for.
+     * @param trickleCallback the {@link TrickleCallback} to be notified about
+     * the candidates as soon as they are discovered, or <tt>null</tt>. It must
+     * never be notified with <tt>null</tt>.
+     * @return a <tt>CompletableFuture</tt> which is completed with the
+     * <tt>LocalCandidate</tt>s gathered by this <tt>CandidateHarvester</tt>
+     * when the gathering has completed.
+     */
+    CompletableFuture<Collection<LocalCandidate>> harvestAsync(
+            Component component,
+            TrickleCallback trickleCallback);
+}
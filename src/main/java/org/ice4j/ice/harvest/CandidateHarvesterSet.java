@@ -19,6 +19,7 @@ package org.ice4j.ice.harvest;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.logging.*;
 
 import org.ice4j.*;
@@ -104,6 +105,8 @@ public class CandidateHarvesterSet
      * Gathers candidate addresses for a specific <tt>Component</tt>.
      * <tt>CandidateHarvesterSet</tt> delegates to the
      * <tt>CandidateHarvester</tt>s which are its <tt>Set</tt> elements.
+     * Blocks until all harvesters have completed or the harvest deadline (see
+     * {@link #harvestAsync(List, TrickleCallback)}) has passed.
      *
      * @param components the <tt>Component</tt> to gather candidate addresses for
      * @see CandidateHarvester#harvest(Component)
@@ -114,139 +117,114 @@ public class CandidateHarvesterSet
     public void harvest(final List<Component> components,
                               TrickleCallback trickleCallback)
     {
-        synchronized (elements)
-        {
-            harvest(
-                elements.iterator(), components, threadPool, trickleCallback);
-        }
+        harvestAsync(components, trickleCallback).join();
     }
 
     /**
-     * Gathers candidate addresses for a specific <tt>Component</tt> using
-     * specific <tt>CandidateHarvester</tt>s.
+     * Starts gathering candidate addresses for specific <tt>Component</tt>s
+     * using the <tt>CandidateHarvester</tt>s which are the elements of this
+     * set, without waiting for them.
+     * <p>
+     * {@link AsyncCandidateHarvester}s are started directly and their
+     * candidates are fed to <tt>trickleCallback</tt> as soon as they are
+     * discovered. The other harvesters are executed by a pool of threads and
+     * their candidates are fed to <tt>trickleCallback</tt> when they return.
+     * The harvest completes when all harvesters have completed, or after
+     * <tt>ice4j.harvest.timeout</tt> at the latest, in which case the
+     * harvesters which have not completed are disabled and their candidates
+     * are no longer fed to <tt>trickleCallback</tt>.
      *
-     * @param harvesters the <tt>CandidateHarvester</tt>s to gather candidate
-     * addresses for the specified <tt>Component</tt>
      * @param components the <tt>Component</tt>s to gather candidate addresses
      * for.
-     * @param executorService the <tt>ExecutorService</tt> to schedule the
-     * execution of the gathering of candidate addresses performed by the
-     * specified <tt>harvesters</tt>
      * @param trickleCallback the {@link TrickleCallback} that we will be
      * feeding candidates to, or <tt>null</tt> in case the application doesn't
      * want us trickling any candidates
+     * @return a <tt>CompletableFuture</tt> which is completed when the harvest
+     * has completed. It is never completed exceptionally.
      */
-    private void harvest(
-            final Iterator<CandidateHarvesterSetElement> harvesters,
-            final List<Component>                        components,
-                  ExecutorService                        executorService,
-            final TrickleCallback                        trickleCallback)
+    public CompletableFuture<Void> harvestAsync(
+            List<Component> components,
+            TrickleCallback trickleCallback)
     {
-        /*
-         * Start asynchronously executing the
-         * CandidateHarvester#harvest(Component) method of the harvesters.
-         */
-        Map<CandidateHarvesterSetTask, Future<?>> tasks = new HashMap<>();
+        List<CandidateHarvesterSetElement> harvesters;
+        List<Component> componentsCopy;
 
-        while (true)
+        synchronized (elements)
         {
-            /*
-             * Find the next CandidateHarvester which is to start gathering
-             * candidates.
-             */
-            CandidateHarvesterSetElement harvester;
+            harvesters = new ArrayList<>(elements);
+        }
+        synchronized (components)
+        {
+            componentsCopy = new ArrayList<>(components);
+        }
 
-            synchronized (harvesters)
-            {
-                if (harvesters.hasNext())
-                    harvester = harvesters.next();
-                else
-                    break;
-            }
+        long timeout = HarvestConfig.config.timeout().toMillis();
+        AtomicBoolean completed = new AtomicBoolean();
+        TrickleCallback harvestTrickleCallback
+            = (trickleCallback == null)
+                ? null
+                : candidates ->
+                {
+                    // Do not trickle after the end of the harvest.
+                    if (!completed.get())
+                        trickleCallback.onIceCandidates(candidates);
+                };
+        List<CompletableFuture<?>> tasks = new ArrayList<>();
 
+        for (CandidateHarvesterSetElement harvester : harvesters)
+        {
             if (!harvester.isEnabled())
                 continue;
 
-            List<Component> componentsCopy;
+            CompletableFuture<Void> task;
 
-            synchronized (components)
+            if (harvester.isAsync())
             {
-                componentsCopy = new ArrayList<>(components);
+                task
+                    = harvester.harvestAsync(
+                            componentsCopy,
+                            harvestTrickleCallback);
             }
-
-            // Asynchronously start gathering candidates using the harvester.
-            CandidateHarvesterSetTask task = new CandidateHarvesterSetTask(
-                harvester, componentsCopy, trickleCallback);
-
-            tasks.put(task, executorService.submit(task));
-        }
-
-        /*
-         * Wait for all harvesters to be given a chance to execute their
-         * CandidateHarvester#harvest(Component) method.
-         */
-        Iterator<Map.Entry<CandidateHarvesterSetTask, Future<?>>> taskIter
-            = tasks.entrySet().iterator();
-
-        while (taskIter.hasNext())
-        {
-            Map.Entry<CandidateHarvesterSetTask, Future<?>> task
-                = taskIter.next();
-            Future<?> future = task.getValue();
-
-            do
+            else
             {
-                try
-                {
-                    future.get(HarvestConfig.config.timeout().toMillis(), TimeUnit.MILLISECONDS);
-                    break;
-                }
-                catch (TimeoutException te)
-                {
-                    CandidateHarvesterSetElement harvester = task.getKey().getHarvester();
-                    if (harvester != null)
-                    {
-                        harvester.setEnabled(false);
-                    }
-                    logger.warning("timed out while harvesting from " + harvester);
-                    break;
-                }
-                catch (CancellationException ce)
-                {
-                    logger.info("harvester cancelled");
-                    /*
-                     * It got cancelled so we cannot say that the fault is with
-                     * its current harvester.
-                     */
-                    break;
-                }
-                catch (ExecutionException ee)
-                {
-                    CandidateHarvesterSetElement harvester
-                        = task.getKey().getHarvester();
-
-                    /*
-                     * A problem appeared during the execution of the task.
-                     * CandidateHarvesterSetTask clears its harvester property
-                     * for the purpose of determining whether the problem has
-                     * appeared while working with a harvester.
-                     */
-                    logger.info(
-                        "disabling harvester "+ harvester.getHarvester()
-                            + " due to ExecutionException: " +
-                            ee.getLocalizedMessage());
-
-                    if (harvester != null)
-                        harvester.setEnabled(false);
-                    break;
-                }
-                catch (InterruptedException ie)
-                {
-                }
+                // Asynchronously start gathering candidates using the
+                // harvester.
+                task
+                    = CompletableFuture.runAsync(
+                            new CandidateHarvesterSetTask(
+                                    harvester,
+                                    componentsCopy,
+                                    harvestTrickleCallback),
+                            threadPool);
             }
-            while (true);
-            taskIter.remove();
+
+            tasks.add(
+                task.orTimeout(timeout, TimeUnit.MILLISECONDS)
+                    .handle((v, t) ->
+                    {
+                        if (t instanceof TimeoutException)
+                        {
+                            harvester.setEnabled(false);
+                            logger.warning(
+                                "timed out while harvesting from "
+                                    + harvester.getHarvester());
+                        }
+                        else if (t != null)
+                        {
+                            logger.info(
+                                "disabling harvester "
+                                    + harvester.getHarvester()
+                                    + " due to exception: "
+                                    + t.getLocalizedMessage());
+                            harvester.setEnabled(false);
+                        }
+                        return null;
+                    }));
         }
+
+        return
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((v, t) -> completed.set(true));
     }
 
     /**
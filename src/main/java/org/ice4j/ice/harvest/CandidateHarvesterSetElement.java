@@ -20,6 +20,7 @@ package org.ice4j.ice.harvest;
 import org.ice4j.ice.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 
 /**
@@ -43,7 +44,7 @@ class CandidateHarvesterSetElement
      * {@link CandidateHarvester#harvest(org.ice4j.ice.Component)} is to be
      * called on {@link #harvester}.
      */
-    private boolean enabled = true;
+    private volatile boolean enabled = true;
 
     /**
      * The <tt>CandidateHarvester</tt> which is an element in a
@@ -103,6 +104,83 @@ class CandidateHarvesterSetElement
 
     }
 
+    /**
+     * Starts gathering candidates for specific <tt>Component</tt>s with the
+     * associated <tt>AsyncCandidateHarvester</tt>, if <tt>enabled</tt>,
+     * without waiting for the gathering to complete.
+     *
+     * @param components the <tt>Component</tt>s to gather candidates for
+     * @param trickleCallback the {@link TrickleCallback} that we will be
+     * feeding candidates to as soon as they are discovered, or <tt>null</tt>
+     * in case the application doesn't want us trickling any candidates
+     * @return a <tt>CompletableFuture</tt> which is completed when the
+     * gathering has completed for all of <tt>components</tt>
+     */
+    public CompletableFuture<Void> harvestAsync(
+            Collection<Component> components,
+            TrickleCallback trickleCallback)
+    {
+        if (!isEnabled())
+            return CompletableFuture.completedFuture(null);
+
+        AsyncCandidateHarvester asyncHarvester
+            = (AsyncCandidateHarvester) harvester;
+        List<CompletableFuture<Collection<LocalCandidate>>> futures
+            = new ArrayList<>(components.size());
+
+        startHarvestTiming();
+        for (Component component : components)
+        {
+            CompletableFuture<Collection<LocalCandidate>> future;
+
+            try
+            {
+                future = asyncHarvester.harvestAsync(component, trickleCallback);
+            }
+            catch (Throwable t)
+            {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(t);
+            }
+            futures.add(future);
+        }
+
+        return
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .handle((v, t) ->
+                {
+                    List<LocalCandidate> candidates = new ArrayList<>();
+
+                    for (CompletableFuture<Collection<LocalCandidate>> future
+                            : futures)
+                    {
+                        Collection<LocalCandidate> componentCandidates
+                            = future.isCompletedExceptionally()
+                                ? null
+                                : future.getNow(null);
+
+                        if (componentCandidates != null)
+                            candidates.addAll(componentCandidates);
+                    }
+                    stopHarvestTiming(candidates);
+
+                    if (t != null)
+                    {
+                        logger.info(
+                            "disabling harvester due to exception: "
+                                + t.getLocalizedMessage());
+                        setEnabled(false);
+                    }
+                    // As with harvest(Component, TrickleCallback), a harvester
+                    // which has not gathered any candidates is not used again.
+                    else if (candidates.isEmpty())
+                    {
+                        setEnabled(false);
+                    }
+                    return null;
+                });
+    }
+
     /**
      * Determines whether the associated <tt>CandidateHarvester</tt> is
      * considered to be the same as a specific <tt>CandidateHarvester</tt>.
@@ -118,6 +196,19 @@ class CandidateHarvesterSetElement
         return this.harvester.equals(harvester);
     }
 
+    /**
+     * Determines whether the associated <tt>CandidateHarvester</tt> gathers
+     * candidates asynchronously i.e. implements
+     * {@link AsyncCandidateHarvester}.
+     *
+     * @return <tt>true</tt> if the associated <tt>CandidateHarvester</tt>
+     * gathers candidates asynchronously.
+     */
+    public boolean isAsync()
+    {
+        return harvester instanceof AsyncCandidateHarvester;
+    }
+
     /**
      * Gets the indicator which determines whether
      * {@link CandidateHarvester#harvest(Component)} is to be called on the
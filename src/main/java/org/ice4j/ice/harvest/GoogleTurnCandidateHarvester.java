@@ -86,6 +86,18 @@ public class GoogleTurnCandidateHarvester
             new GoogleTurnCandidateHarvest(this, hostCandidate, getPassword());
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A TURN harvest allocates a relayed candidate, so it cannot be answered
+     * from cached server reflexive addresses.
+     */
+    @Override
+    protected boolean usesMappingCache()
+    {
+        return false;
+    }
+
     /**
      * Returns the password for this candidate.
      * @return the password for this candidate.
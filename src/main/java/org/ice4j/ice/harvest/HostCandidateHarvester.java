@@ -21,7 +21,6 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.logging.*;
-import java.util.stream.*;
 
 import org.ice4j.*;
 import org.ice4j.ice.*;
@@ -55,25 +54,13 @@ public class HostCandidateHarvester
 
     /**
      * @return the list of all local IP addresses from all allowed network
-     * interfaces, which are allowed addresses.
+     * interfaces, which are allowed addresses, as found in the
+     * {@link NetworkInterfaceInventory}.
      */
     public static List<InetAddress> getAllAllowedAddresses()
     {
-        List<InetAddress> addresses = new LinkedList<>();
-        for (NetworkInterface iface : getAllowedInterfaces())
-        {
-            Enumeration<InetAddress> ifaceAddresses = iface.getInetAddresses();
-            while (ifaceAddresses.hasMoreElements())
-            {
-                InetAddress address = ifaceAddresses.nextElement();
-                if (isAddressAllowed(address))
-                {
-                    addresses.add(address);
-                }
-            }
-        }
-
-        return addresses;
+        return new LinkedList<>(
+                NetworkInterfaceInventory.getInstance().getInetAddresses());
     }
 
     /**
@@ -116,90 +103,85 @@ public class HostCandidateHarvester
             throw new IllegalArgumentException("Transport protocol not supported: " + transport);
         }
 
+        NetworkInterfaceInventory inventory
+            = NetworkInterfaceInventory.getInstance();
         boolean boundAtLeastOneSocket = false;
-        boolean foundAtLeastOneUsableInterface = false;
+        boolean foundAtLeastOneUsableInterface
+            = !inventory.getInterfaces().isEmpty();
         boolean foundAtLeastOneUsableAddress = false;
-        for (NetworkInterface iface: getAllowedInterfaces())
+
+        // The allowed addresses are enumerated and filtered in the
+        // background by the inventory.
+        for (NetworkInterfaceInventory.AllowedAddress allowedAddress
+                : inventory.getAddresses())
         {
-            foundAtLeastOneUsableInterface = true;
+            InetAddress addr = allowedAddress.getAddress();
 
-            Enumeration<InetAddress> addresses = iface.getInetAddresses();
+            foundAtLeastOneUsableAddress = true;
 
-            while (addresses.hasMoreElements())
+            IceSocketWrapper sock = null;
+            try
             {
-                InetAddress addr = addresses.nextElement();
-
-                if (!isAddressAllowed(addr))
+                if (transport == Transport.UDP)
                 {
-                    continue;
+                    sock = createDatagramSocket(addr, preferredPort, minPort, maxPort);
+                    boundAtLeastOneSocket = true;
                 }
-
-                foundAtLeastOneUsableAddress = true;
-
-                IceSocketWrapper sock = null;
-                try
+                else if (transport == Transport.TCP)
                 {
-                    if (transport == Transport.UDP)
+                    if (addr instanceof Inet6Address)
                     {
-                        sock = createDatagramSocket(addr, preferredPort, minPort, maxPort);
-                        boundAtLeastOneSocket = true;
-                    }
-                    else if (transport == Transport.TCP)
-                    {
-                        if (addr instanceof Inet6Address)
-                        {
-                            continue;
-                        }
-                        sock = createServerSocket(
-                                addr,
-                                preferredPort,
-                                minPort,
-                                maxPort,
-                                component);
-                        boundAtLeastOneSocket = true;
+                        continue;
                     }
+                    sock = createServerSocket(
+                            addr,
+                            preferredPort,
+                            minPort,
+                            maxPort,
+                            component);
+                    boundAtLeastOneSocket = true;
                 }
-                catch (IOException exc)
+            }
+            catch (IOException exc)
+            {
+                // There seems to be a problem with this particular
+                // address let's just move on for now and hope we will
+                // find better
+                if (logger.isLoggable(Level.WARNING))
                 {
-                    // There seems to be a problem with this particular
-                    // address let's just move on for now and hope we will
-                    // find better
-                    if (logger.isLoggable(Level.WARNING))
-                    {
-                        logger.warning(
-                                "Failed to create a socket for:"
-                                        + "\naddr:" + addr
-                                        + "\npreferredPort:" + preferredPort
-                                        + "\nminPort:" + minPort
-                                        + "\nmaxPort:" + maxPort
-                                        + "\nprotocol:" + transport
-                                        + "\nContinuing with next address");
-                    }
-                    continue;
+                    logger.warning(
+                            "Failed to create a socket for:"
+                                    + "\naddr:" + addr
+                                    + "\npreferredPort:" + preferredPort
+                                    + "\nminPort:" + minPort
+                                    + "\nmaxPort:" + maxPort
+                                    + "\nprotocol:" + transport
+                                    + "\nContinuing with next address");
                 }
+                continue;
+            }
 
-                HostCandidate candidate = new HostCandidate(sock, component, transport);
-                candidate.setVirtual(iface.isVirtual());
-                component.addLocalCandidate(candidate);
+            HostCandidate candidate = new HostCandidate(sock, component, transport);
+            candidate.setVirtual(allowedAddress.isVirtual());
+            component.addLocalCandidate(candidate);
 
-                if (transport == Transport.TCP)
-                {
-                    // have to wait a client connection to add a STUN socket
-                    // to the StunStack
-                    continue;
-                }
+            if (transport == Transport.TCP)
+            {
+                // have to wait a client connection to add a STUN socket
+                // to the StunStack
+                continue;
+            }
 
-                // We are most certainly going to use all local host
-                // candidates for sending and receiving STUN connectivity
-                // checks. In case we have enabled STUN, we are going to use
-                // them as well while harvesting reflexive candidates.
-                createAndRegisterStunSocket(candidate);
+            // We are most certainly going to use all local host
+            // candidates for sending and receiving STUN connectivity
+            // checks. In case we have enabled STUN, we are going to use
+            // them as well while harvesting reflexive candidates.
+            createAndRegisterStunSocket(candidate);
 
-                ComponentSocket componentSocket = component.getComponentSocket();
-                if (componentSocket != null)
-                {
-                    componentSocket.add(sock);
-                }
+            ComponentSocket componentSocket = component.getComponentSocket();
+            if (componentSocket != null)
+            {
+                componentSocket.add(sock);
             }
         }
 
@@ -265,20 +247,11 @@ public class HostCandidateHarvester
 
     /**
      * Get the list of network interfaces suitable for host candidate harvesting, that is they are up, non-loopback
-     * and are allowed by configuration.
+     * and are allowed by configuration, as found in the {@link NetworkInterfaceInventory}.
      */
     public static List<NetworkInterface> getAllowedInterfaces()
     {
-        try
-        {
-            return NetworkInterface.networkInterfaces()
-                    .filter(HostCandidateHarvester::isInterfaceAllowed).collect(Collectors.toList());
-        }
-        catch (IOException ioe)
-        {
-            logger.warning("Failed to get network interfaces: " + ioe.getMessage());
-            return Collections.emptyList();
-        }
+        return NetworkInterfaceInventory.getInstance().getInterfaces();
     }
 
     /**
@@ -465,42 +438,11 @@ public class HostCandidateHarvester
                         StackProperties.BIND_RETRIES,
                         StackProperties.BIND_RETRIES_DEFAULT_VALUE);
 
-        int port = preferredPort;
-        for (int i = 0; i < bindRetries; i++)
-        {
-            try
-            {
-                IceSocketWrapper sock
-                                = new IceUdpSocketWrapper(new
-                                    MultiplexingDatagramSocket(port, laddr));
-
-                if (logger.isLoggable(Level.FINEST))
-                {
-                    logger.log(
-                            Level.FINEST,
-                            "just bound to: " + sock.getLocalSocketAddress());
-                }
-                return sock;
-            }
-            catch (SocketException se)
-            {
-                logger.log(
-                        Level.INFO,
-                        "Retrying a bind because of a failure to bind to"
-                            + " address " + laddr
-                            + " and port " + port
-                            + " (" + se.getMessage() +")");
-                logger.log(Level.FINEST, "", se);
-            }
-
-            port ++;
-
-            if (port > maxPort)
-                port = minPort;
-        }
-
-        throw new BindException("Could not bind to any port between "
-                        + minPort + " and " + (port - 1));
+        // The allocator goes straight to a free port of the range and may
+        // hand out a socket which it has bound in advance.
+        return new IceUdpSocketWrapper(
+                UdpPortAllocator.getInstance().allocate(
+                        laddr, preferredPort, minPort, maxPort, bindRetries));
     }
 
     /**
@@ -0,0 +1,445 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice.harvest;
+
+import java.io.*;
+import java.net.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+import org.jitsi.utils.concurrent.*;
+
+import static org.ice4j.ice.harvest.HarvestConfig.config;
+
+/**
+ * A process-wide inventory of the network interfaces and addresses which are
+ * allowed for host candidates (see
+ * {@link HostCandidateHarvester#isInterfaceAllowed(NetworkInterface)} and
+ * {@link HostCandidateHarvester#isAddressAllowed(InetAddress)}). Enumerating
+ * and filtering the interfaces is slow on hosts with many interfaces, so it is
+ * done once in the background every
+ * <tt>ice4j.harvest.interfaces-refresh-interval</tt> rather than on every
+ * harvest. {@link #refresh()} refreshes the inventory on demand, e.g. when the
+ * application learns that the network has changed.
+ * <p>
+ * If the refresh interval is zero, the inventory is refreshed every time it is
+ * read.
+ */
+public final class NetworkInterfaceInventory
+{
+    /**
+     * Our class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(NetworkInterfaceInventory.class.getName());
+
+    /**
+     * The process-wide inventory.
+     */
+    private static final NetworkInterfaceInventory instance
+        = new NetworkInterfaceInventory(config.interfacesRefreshInterval());
+
+    /**
+     * The executor which refreshes the inventory in the background.
+     */
+    private static final ScheduledExecutorService scheduler
+        = ExecutorFactory.createSingleThreadScheduledExecutor(
+            "ice4j.NetworkInterfaceInventory-", 60, TimeUnit.SECONDS);
+
+    /**
+     * The interval at which the inventory is refreshed in the background.
+     */
+    private final Duration refreshInterval;
+
+    /**
+     * The listeners notified when the allowed addresses change.
+     */
+    private final List<ChangeListener> listeners
+        = new CopyOnWriteArrayList<>();
+
+    /**
+     * The current contents of the inventory, or <tt>null</tt> if it has not
+     * been read yet.
+     */
+    private volatile Snapshot snapshot;
+
+    /**
+     * Whether the background refresh of the inventory has been scheduled.
+     */
+    private volatile boolean refreshScheduled = false;
+
+    /**
+     * Returns the process-wide inventory.
+     *
+     * @return the process-wide inventory.
+     */
+    public static NetworkInterfaceInventory getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Initializes a new <tt>NetworkInterfaceInventory</tt>.
+     *
+     * @param refreshInterval the interval at which the inventory is to be
+     * refreshed in the background, or zero to refresh it every time it is
+     * read.
+     */
+    NetworkInterfaceInventory(Duration refreshInterval)
+    {
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Returns the allowed network interfaces.
+     *
+     * @return the allowed network interfaces.
+     */
+    public List<NetworkInterface> getInterfaces()
+    {
+        return getSnapshot().interfaces;
+    }
+
+    /**
+     * Returns the allowed addresses of the allowed network interfaces.
+     *
+     * @return the allowed addresses of the allowed network interfaces.
+     */
+    public List<AllowedAddress> getAddresses()
+    {
+        return getSnapshot().addresses;
+    }
+
+    /**
+     * Returns the allowed addresses of the allowed network interfaces as
+     * <tt>InetAddress</tt>es.
+     *
+     * @return the allowed addresses of the allowed network interfaces.
+     */
+    public List<InetAddress> getInetAddresses()
+    {
+        return getSnapshot().inetAddresses;
+    }
+
+    /**
+     * Registers a listener to be notified when the allowed addresses change.
+     *
+     * @param listener the listener to register.
+     */
+    public void addChangeListener(ChangeListener listener)
+    {
+        listeners.add(Objects.requireNonNull(listener));
+        getSnapshot();
+    }
+
+    /**
+     * Unregisters a listener registered with
+     * {@link #addChangeListener(ChangeListener)}.
+     *
+     * @param listener the listener to unregister.
+     */
+    public void removeChangeListener(ChangeListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Enumerates the network interfaces again and notifies the listeners if
+     * the allowed addresses have changed.
+     *
+     * @return <tt>true</tt> if the allowed addresses have changed and
+     * <tt>false</tt> otherwise.
+     */
+    public boolean refresh()
+    {
+        Snapshot newSnapshot;
+        Snapshot oldSnapshot;
+
+        // The interfaces are enumerated with the lock held so that concurrent
+        // refreshes cannot install an older snapshot over a newer one.
+        // Readers do not take the lock.
+        synchronized (this)
+        {
+            newSnapshot = enumerate();
+            oldSnapshot = snapshot;
+            snapshot = newSnapshot;
+        }
+
+        if (oldSnapshot == null)
+            return false;
+
+        // The order in which the addresses are enumerated is not meaningful.
+        Set<InetAddress> oldAddresses
+            = new LinkedHashSet<>(oldSnapshot.inetAddresses);
+        Set<InetAddress> newAddresses
+            = new LinkedHashSet<>(newSnapshot.inetAddresses);
+
+        if (oldAddresses.equals(newAddresses))
+            return false;
+
+        List<InetAddress> removed = new ArrayList<>(oldAddresses);
+        List<InetAddress> added = new ArrayList<>(newAddresses);
+
+        removed.removeAll(newAddresses);
+        added.removeAll(oldAddresses);
+        logger.info(
+                "The allowed addresses have changed. Added: " + added
+                    + ", removed: " + removed);
+
+        for (ChangeListener listener : listeners)
+        {
+            try
+            {
+                listener.addressesChanged(
+                        Collections.unmodifiableList(added),
+                        Collections.unmodifiableList(removed));
+            }
+            catch (Throwable t)
+            {
+                logger.log(
+                        Level.WARNING,
+                        "A NetworkInterfaceInventory listener failed.",
+                        t);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the current contents of the inventory, reading them the first
+     * time and scheduling the background refresh.
+     *
+     * @return the current contents of the inventory.
+     */
+    private Snapshot getSnapshot()
+    {
+        if (refreshInterval.isZero() || refreshInterval.isNegative())
+        {
+            refresh();
+            return snapshot;
+        }
+
+        if (!refreshScheduled)
+        {
+            synchronized (this)
+            {
+                if (!refreshScheduled)
+                {
+                    if (snapshot == null)
+                        snapshot = enumerate();
+
+                    long interval = refreshInterval.toMillis();
+
+                    scheduler.scheduleWithFixedDelay(
+                            this::refreshInBackground,
+                            interval,
+                            interval,
+                            TimeUnit.MILLISECONDS);
+                    refreshScheduled = true;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Refreshes the inventory from {@link #scheduler}, making sure the task
+     * keeps getting executed.
+     */
+    private void refreshInBackground()
+    {
+        try
+        {
+            refresh();
+        }
+        catch (Throwable t)
+        {
+            logger.log(
+                    Level.WARNING,
+                    "Failed to refresh the network interfaces.",
+                    t);
+        }
+    }
+
+    /**
+     * Enumerates the allowed network interfaces and addresses.
+     *
+     * @return the allowed network interfaces and addresses.
+     */
+    private static Snapshot enumerate()
+    {
+        List<NetworkInterface> interfaces;
+
+        try
+        {
+            interfaces
+                = NetworkInterface.networkInterfaces()
+                    .filter(HostCandidateHarvester::isInterfaceAllowed)
+                    .collect(Collectors.toList());
+        }
+        catch (IOException ioe)
+        {
+            logger.warning(
+                    "Failed to get network interfaces: " + ioe.getMessage());
+            interfaces = Collections.emptyList();
+        }
+
+        List<AllowedAddress> addresses = new ArrayList<>();
+
+        for (NetworkInterface iface : interfaces)
+        {
+            Enumeration<InetAddress> ifaceAddresses = iface.getInetAddresses();
+
+            while (ifaceAddresses.hasMoreElements())
+            {
+                InetAddress address = ifaceAddresses.nextElement();
+
+                if (HostCandidateHarvester.isAddressAllowed(address))
+                    addresses.add(new AllowedAddress(address, iface));
+            }
+        }
+        return new Snapshot(interfaces, addresses);
+    }
+
+    /**
+     * An allowed address and the network interface it belongs to.
+     */
+    public static final class AllowedAddress
+    {
+        /**
+         * The address.
+         */
+        private final InetAddress address;
+
+        /**
+         * The network interface to which {@link #address} belongs.
+         */
+        private final NetworkInterface iface;
+
+        /**
+         * Whether {@link #iface} is virtual, read when the inventory was
+         * refreshed.
+         */
+        private final boolean virtual;
+
+        /**
+         * Initializes a new <tt>AllowedAddress</tt>.
+         *
+         * @param address the address.
+         * @param iface the network interface to which <tt>address</tt>
+         * belongs.
+         */
+        AllowedAddress(InetAddress address, NetworkInterface iface)
+        {
+            this.address = address;
+            this.iface = iface;
+            this.virtual = iface.isVirtual();
+        }
+
+        /**
+         * Returns the address.
+         *
+         * @return the address.
+         */
+        public InetAddress getAddress()
+        {
+            return address;
+        }
+
+        /**
+         * Returns the network interface to which the address belongs.
+         *
+         * @return the network interface to which the address belongs.
+         */
+        public NetworkInterface getInterface()
+        {
+            return iface;
+        }
+
+        /**
+         * Determines whether the network interface to which the address
+         * belongs is virtual.
+         *
+         * @return <tt>true</tt> if the network interface is virtual and
+         * <tt>false</tt> otherwise.
+         */
+        public boolean isVirtual()
+        {
+            return virtual;
+        }
+    }
+
+    /**
+     * Listens to changes of the allowed addresses.
+     */
+    public interface ChangeListener
+    {
+        /**
+         * Notifies this listener that the allowed addresses have changed.
+         *
+         * @param added the addresses which have become allowed.
+         * @param removed the addresses which are no longer allowed.
+         */
+        void addressesChanged(List<InetAddress> added, List<InetAddress> removed);
+    }
+
+    /**
+     * The immutable contents of the inventory at some point in time.
+     */
+    private static final class Snapshot
+    {
+        /**
+         * The allowed network interfaces.
+         */
+        final List<NetworkInterface> interfaces;
+
+        /**
+         * The allowed addresses of {@link #interfaces}.
+         */
+        final List<AllowedAddress> addresses;
+
+        /**
+         * The allowed addresses of {@link #interfaces} as
+         * <tt>InetAddress</tt>es.
+         */
+        final List<InetAddress> inetAddresses;
+
+        /**
+         * Initializes a new <tt>Snapshot</tt>.
+         *
+         * @param interfaces the allowed network interfaces.
+         * @param addresses the allowed addresses of <tt>interfaces</tt>.
+         */
+        Snapshot(
+                List<NetworkInterface> interfaces,
+                List<AllowedAddress> addresses)
+        {
+            this.interfaces = Collections.unmodifiableList(interfaces);
+            this.addresses = Collections.unmodifiableList(addresses);
+
+            List<InetAddress> inetAddresses = new ArrayList<>(addresses.size());
+
+            for (AllowedAddress address : addresses)
+                inetAddresses.add(address.getAddress());
+            this.inetAddresses = Collections.unmodifiableList(inetAddresses);
+        }
+    }
+}
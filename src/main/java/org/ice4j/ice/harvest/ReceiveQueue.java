@@ -0,0 +1,226 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice.harvest;
+
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.util.*;
+
+/**
+ * A bounded, lock-free FIFO of received <tt>Buffer</tt>s. It has a single
+ * producer, the thread of an {@link AbstractUdpListener}, and any number of
+ * consumers. When the queue is full the producer drops the oldest element
+ * rather than the new one, so that receivers notice the loss earlier.
+ * <p>
+ * The queue keeps count of the elements which went through it and of those
+ * which were dropped, and of the largest number of elements it has held.
+ * Blocking until an element is available is left to the user of the queue.
+ */
+final class ReceiveQueue
+{
+    /**
+     * The elements of this queue. The element at position <tt>i</tt> is in
+     * slot <tt>i &amp; mask</tt>. Slots are not cleared when their elements
+     * are removed, they are only ever read between {@link #head} and
+     * {@link #tail}.
+     */
+    private final Buffer[] slots;
+
+    /**
+     * The times (as returned by {@link System#nanoTime()}) at which the
+     * elements in {@link #slots} were added.
+     */
+    private final long[] enqueueTimes;
+
+    /**
+     * The mask which maps positions to slots.
+     */
+    private final int mask;
+
+    /**
+     * The position of the first element. Advanced by consumers and by the
+     * producer when it drops an element, hence atomic.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * The position after the last element. Only the producer writes it.
+     * Writing it publishes the slot filled before it.
+     */
+    private volatile long tail;
+
+    /**
+     * The number of elements dropped because this queue was full.
+     */
+    private volatile long dropped;
+
+    /**
+     * The largest number of elements this queue has held.
+     */
+    private volatile int highWaterMark;
+
+    /**
+     * Initializes a new <tt>ReceiveQueue</tt>.
+     *
+     * @param capacity the maximum number of elements of the new queue. It is
+     * rounded up to a power of two.
+     */
+    ReceiveQueue(int capacity)
+    {
+        int size
+            = (capacity <= 1) ? 1 : (Integer.highestOneBit(capacity - 1) << 1);
+
+        slots = new Buffer[size];
+        enqueueTimes = new long[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an element at the end of this queue. Must only be called by the
+     * producer thread.
+     *
+     * @param buffer the element to add.
+     * @return the element which was dropped to make room for <tt>buffer</tt>,
+     * or <tt>null</tt> if this queue was not full.
+     */
+    Buffer offer(Buffer buffer)
+    {
+        long t = tail;
+        Buffer droppedBuffer = null;
+
+        while (droppedBuffer == null && t - head.get() >= slots.length)
+        {
+            long h = head.get();
+            Buffer oldest = slots[(int) h & mask];
+
+            if (t - h >= slots.length && head.compareAndSet(h, h + 1))
+            {
+                droppedBuffer = oldest;
+                dropped++;
+            }
+        }
+
+        int index = (int) t & mask;
+
+        slots[index] = buffer;
+        enqueueTimes[index] = System.nanoTime();
+        tail = t + 1;
+
+        int size = (int) (t + 1 - head.get());
+
+        if (size > highWaterMark)
+            highWaterMark = size;
+
+        return droppedBuffer;
+    }
+
+    /**
+     * Removes the first element of this queue.
+     *
+     * @param residenceTime an array of at least one element in which to
+     * return the time in nanoseconds that the removed element spent in this
+     * queue, or <tt>null</tt>.
+     * @return the first element of this queue, or <tt>null</tt> if this queue
+     * is empty.
+     */
+    Buffer poll(long[] residenceTime)
+    {
+        while (true)
+        {
+            long h = head.get();
+
+            if (h >= tail)
+                return null;
+
+            int index = (int) h & mask;
+            Buffer buffer = slots[index];
+            long enqueueTime = enqueueTimes[index];
+
+            // The slot cannot be refilled before the head moves past it, so
+            // what was read above is valid if the head has not moved.
+            if (head.compareAndSet(h, h + 1))
+            {
+                if (residenceTime != null)
+                    residenceTime[0] = System.nanoTime() - enqueueTime;
+                return buffer;
+            }
+        }
+    }
+
+    /**
+     * Determines whether this queue is empty.
+     *
+     * @return <tt>true</tt> if this queue is empty and <tt>false</tt>
+     * otherwise.
+     */
+    boolean isEmpty()
+    {
+        return head.get() >= tail;
+    }
+
+    /**
+     * Returns the number of elements in this queue.
+     *
+     * @return the number of elements in this queue.
+     */
+    int size()
+    {
+        return (int) Math.max(0, tail - head.get());
+    }
+
+    /**
+     * Returns the maximum number of elements of this queue.
+     *
+     * @return the maximum number of elements of this queue.
+     */
+    int capacity()
+    {
+        return slots.length;
+    }
+
+    /**
+     * Returns the number of elements added to this queue, including those
+     * which were dropped later.
+     *
+     * @return the number of elements added to this queue.
+     */
+    long getEnqueued()
+    {
+        return tail;
+    }
+
+    /**
+     * Returns the number of elements dropped because this queue was full.
+     *
+     * @return the number of elements dropped because this queue was full.
+     */
+    long getDropped()
+    {
+        return dropped;
+    }
+
+    /**
+     * Returns the largest number of elements this queue has held.
+     *
+     * @return the largest number of elements this queue has held.
+     */
+    int getHighWaterMark()
+    {
+        return highWaterMark;
+    }
+}
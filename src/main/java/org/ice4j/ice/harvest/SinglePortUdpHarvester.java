@@ -90,7 +90,7 @@ public class SinglePortUdpHarvester
      * this harvester. The keys are the local username fragments (ufrags) of
      * the components for which the candidates are harvested.
      */
-    private final Map<String, MyCandidate> candidates
+    private final Map<UfragKey, MyCandidate> candidates
             = new ConcurrentHashMap<>();
 
     /**
@@ -132,7 +132,7 @@ public class SinglePortUdpHarvester
                                          InetSocketAddress remoteAddress,
                                          String ufrag)
     {
-        MyCandidate candidate = candidates.get(ufrag);
+        MyCandidate candidate = candidates.get(new UfragKey(ufrag));
         if (candidate == null)
         {
             // A STUN Binding Request with an unknown USERNAME. Drop it.
@@ -168,6 +168,18 @@ public class SinglePortUdpHarvester
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Looks for an ICE candidate registered with this harvester, which has a
+     * local ufrag of {@code ufrag}.
+     */
+    @Override
+    protected boolean isKnownUfrag(UfragKey ufrag)
+    {
+        return candidates.containsKey(ufrag);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -193,7 +205,7 @@ public class SinglePortUdpHarvester
 
         MyCandidate candidate = new MyCandidate(component, ufrag);
 
-        candidates.put(ufrag, candidate);
+        candidates.put(new UfragKey(ufrag), candidate);
         component.addLocalCandidate(candidate);
 
         return new ArrayList<LocalCandidate>(Arrays.asList(candidate));
@@ -277,7 +289,7 @@ public class SinglePortUdpHarvester
                 freed = true;
             }
 
-            candidates.remove(ufrag);
+            candidates.remove(new UfragKey(ufrag));
 
             synchronized (sockets)
             {
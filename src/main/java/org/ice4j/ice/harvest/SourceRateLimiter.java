@@ -0,0 +1,313 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice.harvest;
+
+import java.net.*;
+import java.security.*;
+
+/**
+ * A token bucket per source address prefix, which limits the rate of STUN
+ * Binding Requests from unknown sources that an {@link AbstractUdpListener}
+ * fully decodes and offers to its implementation.
+ * <p>
+ * The buckets live in a fixed-size table, so the memory used does not depend
+ * on the number of sources. Each prefix may use one of two slots, chosen by
+ * a hash which is seeded randomly per instance so that the slots of a prefix
+ * cannot be predicted from the outside. A prefix which finds both its slots
+ * held by other prefixes takes over the least recently used one together
+ * with the tokens left in its bucket, never with a full bucket. Packets with
+ * a spoofed colliding source therefore cannot reset the bucket of a source,
+ * and colliding sources share a bucket instead of refilling each other's.
+ * <p>
+ * Instances are not thread-safe, they are only used by the thread of their
+ * <tt>AbstractUdpListener</tt>.
+ */
+final class SourceRateLimiter
+{
+    /**
+     * The default number of slots in the table. A power of two.
+     */
+    private static final int SLOTS = 4096;
+
+    /**
+     * The number of slots in the table minus one. The number of slots is a
+     * power of two.
+     */
+    private final int slotMask;
+
+    /**
+     * The random seed of the hash of the prefixes.
+     */
+    private final long seed;
+
+    /**
+     * The prefixes which hold the slots.
+     */
+    private final long[] prefixes;
+
+    /**
+     * Whether a slot is held by a prefix.
+     */
+    private final boolean[] used;
+
+    /**
+     * The number of tokens in the bucket of each slot.
+     */
+    private final double[] tokens;
+
+    /**
+     * The time (as returned by {@link System#nanoTime()}) at which the bucket
+     * of each slot was last refilled.
+     */
+    private final long[] refillTimes;
+
+    /**
+     * The number of tokens added to a bucket per nanosecond.
+     */
+    private final double tokensPerNano;
+
+    /**
+     * The maximum number of tokens in a bucket.
+     */
+    private final int burst;
+
+    /**
+     * The number of leading bits of IPv4 addresses which identify a source.
+     */
+    private final int ipv4PrefixLength;
+
+    /**
+     * The number of leading bits of IPv6 addresses which identify a source.
+     */
+    private final int ipv6PrefixLength;
+
+    /**
+     * Initializes a new <tt>SourceRateLimiter</tt>.
+     *
+     * @param rate the number of packets per second accepted from a source.
+     * @param burst the number of packets accepted from a source in a burst.
+     * @param ipv4PrefixLength the number of leading bits of IPv4 addresses
+     * which identify a source, between 0 and 32.
+     * @param ipv6PrefixLength the number of leading bits of IPv6 addresses
+     * which identify a source, between 0 and 128.
+     */
+    SourceRateLimiter(
+            int rate,
+            int burst,
+            int ipv4PrefixLength,
+            int ipv6PrefixLength)
+    {
+        this(
+            rate,
+            burst,
+            ipv4PrefixLength,
+            ipv6PrefixLength,
+            SLOTS,
+            new SecureRandom().nextLong());
+    }
+
+    /**
+     * Initializes a new <tt>SourceRateLimiter</tt> with a specific number of
+     * slots and hash seed.
+     *
+     * @param rate the number of packets per second accepted from a source.
+     * @param burst the number of packets accepted from a source in a burst.
+     * @param ipv4PrefixLength the number of leading bits of IPv4 addresses
+     * which identify a source, between 0 and 32.
+     * @param ipv6PrefixLength the number of leading bits of IPv6 addresses
+     * which identify a source, between 0 and 128.
+     * @param slots the number of slots in the table, a power of two.
+     * @param seed the seed of the hash of the prefixes.
+     */
+    SourceRateLimiter(
+            int rate,
+            int burst,
+            int ipv4PrefixLength,
+            int ipv6PrefixLength,
+            int slots,
+            long seed)
+    {
+        if (rate <= 0)
+            throw new IllegalArgumentException("rate=" + rate);
+        if (ipv4PrefixLength < 0 || ipv4PrefixLength > 32)
+        {
+            throw new IllegalArgumentException(
+                    "ipv4PrefixLength=" + ipv4PrefixLength);
+        }
+        if (ipv6PrefixLength < 0 || ipv6PrefixLength > 128)
+        {
+            throw new IllegalArgumentException(
+                    "ipv6PrefixLength=" + ipv6PrefixLength);
+        }
+        if (slots <= 0 || Integer.bitCount(slots) != 1)
+            throw new IllegalArgumentException("slots=" + slots);
+
+        this.slotMask = slots - 1;
+        this.seed = seed;
+        this.prefixes = new long[slots];
+        this.used = new boolean[slots];
+        this.tokens = new double[slots];
+        this.refillTimes = new long[slots];
+        this.tokensPerNano = rate / 1e9;
+        this.burst = Math.max(1, burst);
+        this.ipv4PrefixLength = ipv4PrefixLength;
+        this.ipv6PrefixLength = ipv6PrefixLength;
+    }
+
+    /**
+     * Takes a token from the bucket of the prefix of a source address.
+     *
+     * @param address the source address.
+     * @param now the current time as returned by {@link System#nanoTime()}.
+     * @return <tt>true</tt> if a token was available and the packet is to be
+     * accepted, and <tt>false</tt> otherwise.
+     */
+    boolean tryAcquire(InetAddress address, long now)
+    {
+        byte[] bytes = address.getAddress();
+        long prefix
+            = getPrefix(
+                    bytes,
+                    (bytes.length == 4) ? ipv4PrefixLength : ipv6PrefixLength);
+        long hash = hash(prefix);
+        int slot = (int) hash & slotMask;
+
+        if (!isHeldBy(slot, prefix))
+        {
+            int otherSlot = (int) (hash >>> 32) & slotMask;
+
+            slot
+                = isHeldBy(otherSlot, prefix)
+                    ? otherSlot
+                    : takeOver(slot, otherSlot, prefix, now);
+        }
+
+        refill(slot, now);
+        if (tokens[slot] < 1)
+            return false;
+        tokens[slot] -= 1;
+        return true;
+    }
+
+    /**
+     * Determines whether a slot is held by a prefix.
+     *
+     * @param slot the slot.
+     * @param prefix the prefix.
+     * @return <tt>true</tt> if <tt>slot</tt> is held by <tt>prefix</tt>.
+     */
+    private boolean isHeldBy(int slot, long prefix)
+    {
+        return used[slot] && prefixes[slot] == prefix;
+    }
+
+    /**
+     * Gives one of the two slots of a prefix to the prefix. An unused slot
+     * comes with a full bucket. Otherwise, the least recently used slot is
+     * taken over with the tokens left in its bucket.
+     *
+     * @param slot the first slot of <tt>prefix</tt>.
+     * @param otherSlot the second slot of <tt>prefix</tt>.
+     * @param prefix the prefix.
+     * @param now the current time as returned by {@link System#nanoTime()}.
+     * @return the slot given to <tt>prefix</tt>.
+     */
+    private int takeOver(int slot, int otherSlot, long prefix, long now)
+    {
+        if (used[slot]
+                && (!used[otherSlot]
+                        || refillTimes[otherSlot] - refillTimes[slot] < 0))
+        {
+            slot = otherSlot;
+        }
+
+        if (!used[slot])
+        {
+            used[slot] = true;
+            tokens[slot] = burst;
+            refillTimes[slot] = now;
+        }
+        prefixes[slot] = prefix;
+        return slot;
+    }
+
+    /**
+     * Adds to the bucket of a slot the tokens accrued since it was last
+     * refilled.
+     *
+     * @param slot the slot.
+     * @param now the current time as returned by {@link System#nanoTime()}.
+     */
+    private void refill(int slot, long now)
+    {
+        tokens[slot]
+            = Math.min(
+                    burst,
+                    tokens[slot] + (now - refillTimes[slot]) * tokensPerNano);
+        refillTimes[slot] = now;
+    }
+
+    /**
+     * Folds the first <tt>prefixLength</tt> bits of an address into a
+     * <tt>long</tt>. IPv4 prefixes are kept apart from IPv6 ones by a bit
+     * which is never set by an IPv4 address.
+     *
+     * @param address the address.
+     * @param prefixLength the number of leading bits to keep.
+     * @return the prefix of <tt>address</tt>.
+     */
+    static long getPrefix(byte[] address, int prefixLength)
+    {
+        long high = 0;
+        long low = 0;
+
+        for (int i = 0; i < address.length; i++)
+        {
+            int bits = Math.min(8, Math.max(0, prefixLength - i * 8));
+            long b = address[i] & (0xFF00 >>> bits) & 0xFF;
+
+            if (i < 8)
+                high = (high << 8) | b;
+            else
+                low = (low << 8) | b;
+        }
+
+        return (address.length == 4)
+            ? high | (1L << 32)
+            : high ^ (low * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * Spreads the bits of a prefix, mixed with the seed of this instance, so
+     * that prefixes which differ in any bits are likely to use different
+     * slots. The low and high halves of the hash choose the two slots of the
+     * prefix.
+     *
+     * @param prefix the prefix.
+     * @return the hash of <tt>prefix</tt>.
+     */
+    private long hash(long prefix)
+    {
+        // The finalizer of MurmurHash3.
+        long h = prefix + seed;
+
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+}
@@ -422,35 +422,66 @@ public class StunCandidateHarvest
 
         if (addr != null)
         {
-            ServerReflexiveCandidate srvrRflxCand
-                = createServerReflexiveCandidate(addr);
+            harvester.mappedAddressResolved(hostCandidate, addr);
+            addServerReflexiveCandidate(addr);
+        }
+    }
+
+    /**
+     * Completes the harvesting of <tt>Candidate</tt>s for
+     * {@link #hostCandidate} with a server reflexive address which is already
+     * known (e.g. from {@link StunMappingCache}) instead of querying the STUN
+     * server.
+     *
+     * @param addr the server reflexive address of {@link #hostCandidate}
+     */
+    void completeWithMappedAddress(TransportAddress addr)
+    {
+        if (!completedResolvingCandidate)
+        {
+            addServerReflexiveCandidate(addr);
+            completedResolvingCandidate(null, null);
+        }
+    }
+
+    /**
+     * Creates a <tt>ServerReflexiveCandidate</tt> using {@link #hostCandidate}
+     * as its base and a specific <tt>TransportAddress</tt> as its address, and
+     * adds it to the candidates harvested by this harvest unless it is
+     * redundant.
+     *
+     * @param addr the <tt>TransportAddress</tt> of the new candidate
+     */
+    private void addServerReflexiveCandidate(TransportAddress addr)
+    {
+        ServerReflexiveCandidate srvrRflxCand
+            = createServerReflexiveCandidate(addr);
 
-            if (srvrRflxCand != null)
+        if (srvrRflxCand != null)
+        {
+            try
             {
-                try
-                {
-                    addCandidate(srvrRflxCand);
-                }
-                finally
+                addCandidate(srvrRflxCand);
+            }
+            finally
+            {
+                // Free srvrRflxCand if it has not been consumed.
+                if (!containsCandidate(srvrRflxCand))
                 {
-                    // Free srvrRflxCand if it has not been consumed.
-                    if (!containsCandidate(srvrRflxCand))
+                    try
                     {
-                        try
-                        {
-                            srvrRflxCand.free();
-                        }
-                        catch (Exception ex)
+                        srvrRflxCand.free();
+                    }
+                    catch (Exception ex)
+                    {
+                        if (logger.isLoggable(Level.FINE))
                         {
-                            if (logger.isLoggable(Level.FINE))
-                            {
-                                logger.log(
-                                        Level.FINE,
-                                        "Failed to free"
-                                            + " ServerReflexiveCandidate: "
-                                            + srvrRflxCand,
-                                        ex);
-                            }
+                            logger.log(
+                                    Level.FINE,
+                                    "Failed to free"
+                                        + " ServerReflexiveCandidate: "
+                                        + srvrRflxCand,
+                                    ex);
                         }
                     }
                 }
@@ -543,6 +574,21 @@ public class StunCandidateHarvest
      * attribute of <tt>response</tt>
      */
     protected TransportAddress getMappedAddress(Response response)
+    {
+        return extractMappedAddress(response);
+    }
+
+    /**
+     * Gets the <tt>TransportAddress</tt> specified in the XOR-MAPPED-ADDRESS
+     * attribute, or in the MAPPED-ADDRESS attribute of old STUN servers, of a
+     * specific <tt>Response</tt>.
+     *
+     * @param response the <tt>Response</tt> from which the address is to be
+     * retrieved
+     * @return the <tt>TransportAddress</tt> specified in the XOR-MAPPED-ADDRESS
+     * or MAPPED-ADDRESS attribute of <tt>response</tt>, or <tt>null</tt>
+     */
+    static TransportAddress extractMappedAddress(Response response)
     {
         Attribute attribute
             = response.getAttribute(Attribute.XOR_MAPPED_ADDRESS);
@@ -19,6 +19,7 @@ package org.ice4j.ice.harvest;
 
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 
 import org.ice4j.*;
@@ -37,6 +38,7 @@ import org.ice4j.stack.*;
  */
 public class StunCandidateHarvester
     extends AbstractCandidateHarvester
+    implements AsyncCandidateHarvester
 {
 
     /**
@@ -46,13 +48,6 @@ public class StunCandidateHarvester
     private static final Logger logger
         = Logger.getLogger(StunCandidateHarvester.class.getName());
 
-    /**
-     * The list of <tt>StunCandidateHarvest</tt>s which have been successfully
-     * completed i.e. have harvested <tt>Candidate</tt>s.
-     */
-    private final List<StunCandidateHarvest> completedHarvests
-        = new LinkedList<>();
-
     /**
      * The username used by this <tt>StunCandidateHarvester</tt> for the
      * purposes of the STUN short-term credential mechanism.
@@ -60,12 +55,13 @@ public class StunCandidateHarvester
     private final String shortTermCredentialUsername;
 
     /**
-     * The list of <tt>StunCandidateHarvest</tt>s which have been started to
-     * harvest <tt>Candidate</tt>s for <tt>HostCandidate</tt>s and which have
-     * not completed yet so {@link #harvest(Component)} has to wait for them.
+     * The <tt>StunCandidateHarvest</tt>s which have been started to harvest
+     * <tt>Candidate</tt>s for <tt>HostCandidate</tt>s and which have not
+     * completed yet, mapped to the harvests of the components that they are
+     * part of.
      */
-    private final List<StunCandidateHarvest> startedHarvests
-        = new LinkedList<>();
+    private final Map<StunCandidateHarvest, ComponentHarvest> startedHarvests
+        = new ConcurrentHashMap<>();
 
     /**
      * The address of the STUN server that we will be sending our requests to.
@@ -119,40 +115,19 @@ public class StunCandidateHarvester
 
     /**
      * Notifies this <tt>StunCandidateHarvester</tt> that a specific
-     * <tt>StunCandidateHarvest</tt> has been completed. If the specified
-     * harvest has harvested <tt>Candidates</tt>, it is moved from
-     * {@link #startedHarvests} to {@link #completedHarvests}. Otherwise, it is
-     * just removed from {@link #startedHarvests}.
+     * <tt>StunCandidateHarvest</tt> has been completed. The
+     * <tt>Candidate</tt>s that it has harvested, if any, are reported right
+     * away, and the harvest of the component that it is part of completes
+     * with the last of its <tt>StunCandidateHarvest</tt>s.
      *
      * @param harvest the <tt>StunCandidateHarvest</tt> which has been completed
      */
     void completedResolvingCandidate(StunCandidateHarvest harvest)
     {
-        boolean doNotify = false;
-
-        synchronized (startedHarvests)
-        {
-            startedHarvests.remove(harvest);
-
-            // If this was the last candidate, we are done with the STUN
-            // resolution and need to notify the waiters.
-            if (startedHarvests.isEmpty())
-                doNotify = true;
-        }
+        ComponentHarvest componentHarvest = startedHarvests.remove(harvest);
 
-        synchronized (completedHarvests)
-        {
-            if (harvest.getCandidateCount() < 1)
-                completedHarvests.remove(harvest);
-            else if (!completedHarvests.contains(harvest))
-                completedHarvests.add(harvest);
-        }
-
-        synchronized(startedHarvests)
-        {
-            if (doNotify)
-                startedHarvests.notify();
-        }
+        if (componentHarvest != null)
+            componentHarvest.completed(harvest);
     }
 
     /**
@@ -169,6 +144,44 @@ public class StunCandidateHarvester
         return new StunCandidateHarvest(this, hostCandidate);
     }
 
+    /**
+     * Determines whether this harvester answers its harvests from the
+     * server reflexive addresses cached by {@link StunMappingCache}, and
+     * records the addresses that it learns there. The default implementation
+     * does so when the cache is enabled and the STUN short-term credential
+     * mechanism is not used; harvesters which allocate more than server
+     * reflexive candidates (e.g. TURN) override it.
+     *
+     * @return <tt>true</tt> if this harvester uses the mapping cache
+     */
+    protected boolean usesMappingCache()
+    {
+        return
+            StunMappingCache.getInstance().isEnabled()
+                && getShortTermCredentialUsername() == null;
+    }
+
+    /**
+     * Notifies this harvester that a specific server reflexive address has
+     * been learned from the STUN server for a specific host candidate.
+     *
+     * @param hostCandidate the host candidate.
+     * @param mappedAddress the server reflexive address of
+     * <tt>hostCandidate</tt>.
+     */
+    void mappedAddressResolved(
+            HostCandidate hostCandidate,
+            TransportAddress mappedAddress)
+    {
+        if (usesMappingCache())
+        {
+            StunMappingCache.getInstance().put(
+                    hostCandidate.getTransportAddress(),
+                    stunServer,
+                    mappedAddress);
+        }
+    }
+
     /**
      * Creates a <tt>LongTermCredential</tt> to be used by a specific
      * <tt>StunCandidateHarvest</tt> for the purposes of the long-term
@@ -227,7 +240,8 @@ public class StunCandidateHarvester
      * Gathers STUN candidates for all host <tt>Candidate</tt>s that are already
      * present in the specified <tt>component</tt>. This method relies on the
      * specified <tt>component</tt> to already contain all its host candidates
-     * so that it would resolve them.
+     * so that it would resolve them. Blocks until the harvest completes (see
+     * {@link #harvestAsync(Component, TrickleCallback)}).
      *
      * @param component the {@link Component} that we'd like to gather candidate
      * STUN <tt>Candidate</tt>s for
@@ -236,6 +250,28 @@ public class StunCandidateHarvester
      */
     @Override
     public Collection<LocalCandidate> harvest(Component component)
+    {
+        return harvestAsync(component, null).join();
+    }
+
+    /**
+     * Starts gathering STUN candidates for all host <tt>Candidate</tt>s that
+     * are already present in the specified <tt>component</tt>. The requests
+     * are sent right away and the candidates of each host candidate are
+     * reported to <tt>trickleCallback</tt> as soon as the response is
+     * received, without any thread waiting for it.
+     *
+     * @param component the {@link Component} that we'd like to gather candidate
+     * STUN <tt>Candidate</tt>s for
+     * @param trickleCallback the {@link TrickleCallback} to be notified about
+     * the candidates as soon as they are discovered, or <tt>null</tt>
+     * @return a <tt>CompletableFuture</tt> which is completed with the
+     * <tt>LocalCandidate</tt>s gathered by this <tt>CandidateHarvester</tt>
+     */
+    @Override
+    public CompletableFuture<Collection<LocalCandidate>> harvestAsync(
+            Component component,
+            TrickleCallback trickleCallback)
     {
         if (logger.isLoggable(Level.FINE))
         {
@@ -244,47 +280,32 @@ public class StunCandidateHarvester
         }
         stunStack = component.getParentStream().getParentAgent().getStunStack();
 
+        ComponentHarvest componentHarvest
+            = new ComponentHarvest(trickleCallback);
+
         for (Candidate<?> cand : component.getLocalCandidates())
         {
             if ((cand instanceof HostCandidate)
                     && (cand.getTransport() == stunServer.getTransport()))
             {
-                startResolvingCandidate((HostCandidate) cand);
+                startResolvingCandidate(
+                        (HostCandidate) cand,
+                        componentHarvest);
             }
         }
 
-        waitForResolutionEnd();
-
-        /*
-         * Report the LocalCandidates gathered by this CandidateHarvester so
-         * that the harvest is sure to be considered successful.
-         */
-        Collection<LocalCandidate> candidates = new HashSet<>();
+        componentHarvest.startedAll();
 
-        synchronized (completedHarvests)
+        return componentHarvest.future.whenComplete((candidates, t) ->
         {
-            for (StunCandidateHarvest completedHarvest : completedHarvests)
+            if (candidates != null && logger.isLoggable(Level.FINEST))
             {
-                LocalCandidate[] completedHarvestCandidates
-                    = completedHarvest.getCandidates();
-
-                if ((completedHarvestCandidates != null)
-                        && (completedHarvestCandidates.length != 0))
-                {
-                    candidates.addAll(
-                            Arrays.asList(completedHarvestCandidates));
-                }
+                logger.finest(
+                        "Completed " + component.toShortString() + " harvest: "
+                            + toString() + ". Found " + candidates.size()
+                            + " candidates: " + listCandidates(candidates));
             }
-
-            completedHarvests.clear();
-        }
-
-        logger.finest(
-                "Completed " + component.toShortString() + " harvest: "
-                    + toString() + ". Found " + candidates.size()
-                    + " candidates: " + listCandidates(candidates));
-
-        return candidates;
+        });
     }
 
     private String listCandidates(Collection<? extends Candidate<?>> candidates)
@@ -303,8 +324,12 @@ public class StunCandidateHarvester
      * waiting for resolution.
      *
      * @param hostCand the <tt>HostCandidate</tt> that we'd like to resolve.
+     * @param componentHarvest the harvest of the component of
+     * <tt>hostCand</tt>.
      */
-    private void startResolvingCandidate(HostCandidate hostCand)
+    private void startResolvingCandidate(
+            HostCandidate hostCand,
+            ComponentHarvest componentHarvest)
     {
         //first of all, make sure that the STUN server and the Candidate
         //address are of the same type and that they can communicate.
@@ -329,89 +354,73 @@ public class StunCandidateHarvester
             return;
         }
 
-        synchronized (startedHarvests)
+        // Register the harvest first because it may complete at any time
+        // after it has been started.
+        componentHarvest.started();
+        startedHarvests.put(harvest, componentHarvest);
+
+        if (usesMappingCache())
         {
-            startedHarvests.add(harvest);
+            StunMappingCache cache = StunMappingCache.getInstance();
+            TransportAddress localAddress = cand.getTransportAddress();
+            TransportAddress mappedAddress
+                = cache.get(localAddress, stunServer);
 
-            boolean started = false;
+            if (mappedAddress != null)
+            {
+                // No need to wait for the STUN server.
+                harvest.completeWithMappedAddress(mappedAddress);
+                cache.refreshIfNeeded(stunStack, localAddress, stunServer);
+                return;
+            }
+        }
 
-            try
+        boolean started = false;
+
+        try
+        {
+            started = harvest.startResolvingCandidate();
+        }
+        catch (Exception ex)
+        {
+            started = false;
+            if (logger.isLoggable(Level.INFO))
             {
-                started = harvest.startResolvingCandidate();
+                logger.log(
+                        Level.INFO,
+                        "Failed to start resolving host candidate "
+                            + hostCand,
+                        ex);
             }
-            catch (Exception ex)
+        }
+        finally
+        {
+            if (!started)
             {
-                started = false;
-                if (logger.isLoggable(Level.INFO))
+                try
                 {
-                    logger.log(
-                            Level.INFO,
-                            "Failed to start resolving host candidate "
-                                + hostCand,
-                            ex);
+                    logger.warning(
+                            "harvest did not start, removed: " + harvest);
+                    completedResolvingCandidate(harvest);
                 }
-            }
-            finally
-            {
-                if (!started)
+                finally
                 {
+                    /*
+                     * For the sake of completeness, explicitly close the
+                     * harvest.
+                     */
                     try
                     {
-                        startedHarvests.remove(harvest);
-                        logger.warning(
-                                "harvest did not start, removed: " + harvest);
+                        harvest.close();
                     }
-                    finally
+                    catch (Exception ex)
                     {
-                        /*
-                         * For the sake of completeness, explicitly close the
-                         * harvest.
-                         */
-                        try
-                        {
-                            harvest.close();
-                        }
-                        catch (Exception ex)
-                        {
-                        }
                     }
                 }
             }
         }
     }
 
-    /**
-     * Blocks the current thread until all resolutions in this harvester
-     * have terminated one way or another.
-     */
-    private void waitForResolutionEnd()
-    {
-        synchronized(startedHarvests)
-        {
-            boolean interrupted = false;
-
-            // Handle spurious wakeups.
-            while (!startedHarvests.isEmpty())
-            {
-                try
-                {
-                    startedHarvests.wait();
-                }
-                catch (InterruptedException iex)
-                {
-                    logger.info(
-                            "interrupted waiting for harvests to complete,"
-                                + " no. startedHarvests = "
-                                + startedHarvests.size());
-                    interrupted = true;
-                }
-            }
-            // Restore the interrupted status.
-            if (interrupted)
-                Thread.currentThread().interrupt();
-        }
-    }
-
     /**
      * Returns a <tt>String</tt> representation of this harvester containing its
      * type and server address.
@@ -481,4 +490,111 @@ public class StunCandidateHarvester
 
         return cand;
     }
+
+    /**
+     * The harvest of the candidates of one component, which completes when
+     * the <tt>StunCandidateHarvest</tt>s of all its host candidates have.
+     */
+    private static class ComponentHarvest
+    {
+        /**
+         * The future completed with the candidates gathered for the component.
+         */
+        final CompletableFuture<Collection<LocalCandidate>> future
+            = new CompletableFuture<>();
+
+        /**
+         * The callback notified about the candidates as soon as they are
+         * gathered, or <tt>null</tt>.
+         */
+        private final TrickleCallback trickleCallback;
+
+        /**
+         * The candidates gathered so far.
+         */
+        private final Collection<LocalCandidate> candidates
+            = new LinkedHashSet<>();
+
+        /**
+         * The number of <tt>StunCandidateHarvest</tt>s which have been started
+         * and have not completed yet.
+         */
+        private int pending = 0;
+
+        /**
+         * Whether the <tt>StunCandidateHarvest</tt>s of all the host
+         * candidates of the component have been started.
+         */
+        private boolean startedAll = false;
+
+        /**
+         * Initializes a new <tt>ComponentHarvest</tt>.
+         *
+         * @param trickleCallback the callback to notify about the candidates
+         * as soon as they are gathered, or <tt>null</tt>.
+         */
+        ComponentHarvest(TrickleCallback trickleCallback)
+        {
+            this.trickleCallback = trickleCallback;
+        }
+
+        /**
+         * Notes that a <tt>StunCandidateHarvest</tt> is about to be started.
+         */
+        synchronized void started()
+        {
+            pending++;
+        }
+
+        /**
+         * Notes that a <tt>StunCandidateHarvest</tt> has completed and reports
+         * the candidates that it has gathered.
+         *
+         * @param harvest the <tt>StunCandidateHarvest</tt>.
+         */
+        void completed(StunCandidateHarvest harvest)
+        {
+            LocalCandidate[] harvestCandidates = harvest.getCandidates();
+
+            if (harvestCandidates.length != 0 && trickleCallback != null)
+                trickleCallback.onIceCandidates(Arrays.asList(harvestCandidates));
+
+            synchronized (this)
+            {
+                candidates.addAll(Arrays.asList(harvestCandidates));
+                pending--;
+            }
+            completeIfDone();
+        }
+
+        /**
+         * Notes that the <tt>StunCandidateHarvest</tt>s of all the host
+         * candidates of the component have been started.
+         */
+        void startedAll()
+        {
+            synchronized (this)
+            {
+                startedAll = true;
+            }
+            completeIfDone();
+        }
+
+        /**
+         * Completes {@link #future} if all the <tt>StunCandidateHarvest</tt>s
+         * of the component have completed.
+         */
+        private void completeIfDone()
+        {
+            Collection<LocalCandidate> result;
+
+            synchronized (this)
+            {
+                if (!startedAll || pending != 0)
+                    return;
+                result = new ArrayList<>(candidates);
+            }
+            future.complete(result);
+        }
+    }
 }
@@ -0,0 +1,351 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice.harvest;
+
+import java.net.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import org.ice4j.*;
+import org.ice4j.message.*;
+import org.ice4j.stack.*;
+
+import static org.ice4j.ice.harvest.HarvestConfig.config;
+
+/**
+ * A process-wide cache of the server reflexive addresses learned by
+ * {@link StunCandidateHarvester}s, keyed by local address and STUN server.
+ * A cached mapping answers the harvests of later host candidates on the same
+ * local address without a round trip to the STUN server: directly if the host
+ * candidate has the port that the mapping was learned for, or by keeping the
+ * port of the host candidate if the NAT was seen to preserve ports (see
+ * <tt>ice4j.harvest.stun-mapping-cache.predict-ports</tt>). Otherwise, e.g.
+ * behind a NAT with port-dependent mappings, the STUN server is queried.
+ * <p>
+ * A mapping expires after <tt>ice4j.harvest.stun-mapping-cache.ttl</tt>, and
+ * is refreshed in the background with a Binding request once it is half that
+ * old and still in use.
+ */
+final class StunMappingCache
+{
+    /**
+     * Our class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(StunMappingCache.class.getName());
+
+    /**
+     * The process-wide cache.
+     */
+    private static final StunMappingCache instance
+        = new StunMappingCache(
+                config.stunMappingCacheTtl(),
+                config.stunMappingCachePredictPorts());
+
+    /**
+     * How long, in milliseconds, a mapping is used after it was learned, or
+     * <tt>0</tt> if the cache is disabled.
+     */
+    private final long ttl;
+
+    /**
+     * Whether a mapping may be used for another local port when the NAT was
+     * seen to preserve ports.
+     */
+    private final boolean predictPorts;
+
+    /**
+     * The cached mappings.
+     */
+    private final Map<Key, Mapping> mappings = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the process-wide cache.
+     *
+     * @return the process-wide cache.
+     */
+    static StunMappingCache getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Initializes a new <tt>StunMappingCache</tt>.
+     *
+     * @param ttl how long a mapping is used after it was learned, or zero to
+     * disable the cache.
+     * @param predictPorts whether a mapping may be used for another local port
+     * when the NAT was seen to preserve ports.
+     */
+    StunMappingCache(Duration ttl, boolean predictPorts)
+    {
+        this.ttl = Math.max(0, ttl.toMillis());
+        this.predictPorts = predictPorts;
+    }
+
+    /**
+     * Determines whether this cache is enabled.
+     *
+     * @return <tt>true</tt> if this cache is enabled.
+     */
+    boolean isEnabled()
+    {
+        return ttl > 0;
+    }
+
+    /**
+     * Records the server reflexive address learned for a specific local
+     * address from a specific STUN server.
+     *
+     * @param localAddress the local address which the Binding request was
+     * sent from.
+     * @param stunServer the STUN server.
+     * @param mappedAddress the server reflexive address.
+     */
+    void put(
+            TransportAddress localAddress,
+            TransportAddress stunServer,
+            TransportAddress mappedAddress)
+    {
+        if (isEnabled())
+        {
+            mappings.put(
+                    new Key(localAddress, stunServer),
+                    new Mapping(
+                            localAddress.getPort(),
+                            mappedAddress,
+                            System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Returns the server reflexive address of a specific local address as
+     * seen by a specific STUN server, if it can be told from a mapping which
+     * has not expired.
+     *
+     * @param localAddress the local address.
+     * @param stunServer the STUN server.
+     * @return the server reflexive address of <tt>localAddress</tt> or
+     * <tt>null</tt> if the STUN server is to be queried.
+     */
+    TransportAddress get(
+            TransportAddress localAddress,
+            TransportAddress stunServer)
+    {
+        if (!isEnabled())
+            return null;
+
+        Key key = new Key(localAddress, stunServer);
+        Mapping mapping = mappings.get(key);
+
+        if (mapping == null)
+            return null;
+        if (System.currentTimeMillis() - mapping.learned > ttl)
+        {
+            mappings.remove(key, mapping);
+            return null;
+        }
+
+        TransportAddress mappedAddress = mapping.mappedAddress;
+
+        if (mapping.localPort == localAddress.getPort())
+            return mappedAddress;
+        if (predictPorts && mapping.localPort == mappedAddress.getPort())
+        {
+            return
+                new TransportAddress(
+                        mappedAddress.getAddress(),
+                        localAddress.getPort(),
+                        mappedAddress.getTransport());
+        }
+        return null;
+    }
+
+    /**
+     * Refreshes the mapping of a specific local address in the background if
+     * it is half expired and is not already being refreshed.
+     *
+     * @param stunStack the <tt>StunStack</tt> to send the Binding request
+     * with.
+     * @param localAddress the local address, which is to be registered with
+     * <tt>stunStack</tt>.
+     * @param stunServer the STUN server.
+     */
+    void refreshIfNeeded(
+            StunStack stunStack,
+            TransportAddress localAddress,
+            TransportAddress stunServer)
+    {
+        Mapping mapping = mappings.get(new Key(localAddress, stunServer));
+
+        if (mapping == null
+                || System.currentTimeMillis() - mapping.learned < ttl / 2
+                || !mapping.refreshing.compareAndSet(false, true))
+        {
+            return;
+        }
+
+        try
+        {
+            stunStack.sendRequest(
+                    MessageFactory.createBindingRequest(),
+                    stunServer,
+                    localAddress,
+                    new AbstractResponseCollector()
+                    {
+                        @Override
+                        protected void processFailure(
+                                BaseStunMessageEvent event)
+                        {
+                            // The mapping expires in time and the STUN server
+                            // is queried again by the next harvest.
+                            mapping.refreshing.set(false);
+                        }
+
+                        @Override
+                        public void processResponse(StunResponseEvent event)
+                        {
+                            Response response = event.getResponse();
+                            TransportAddress mappedAddress
+                                = response.isSuccessResponse()
+                                    ? StunCandidateHarvest.extractMappedAddress(
+                                            response)
+                                    : null;
+
+                            if (mappedAddress == null)
+                                mapping.refreshing.set(false);
+                            else
+                                put(localAddress, stunServer, mappedAddress);
+                        }
+                    });
+        }
+        catch (Exception e)
+        {
+            mapping.refreshing.set(false);
+            logger.log(
+                    Level.FINE,
+                    "Failed to refresh the mapping of " + localAddress
+                        + " with " + stunServer,
+                    e);
+        }
+    }
+
+    /**
+     * Removes all the mappings.
+     */
+    void clear()
+    {
+        mappings.clear();
+    }
+
+    /**
+     * The key of a mapping: a local IP address and a STUN server.
+     */
+    private static class Key
+    {
+        /**
+         * The local IP address.
+         */
+        private final InetAddress localAddress;
+
+        /**
+         * The STUN server.
+         */
+        private final TransportAddress stunServer;
+
+        /**
+         * Initializes a new <tt>Key</tt>.
+         *
+         * @param localAddress the local address, whose port is ignored.
+         * @param stunServer the STUN server.
+         */
+        Key(TransportAddress localAddress, TransportAddress stunServer)
+        {
+            this.localAddress = localAddress.getAddress();
+            this.stunServer = stunServer;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+                return false;
+
+            Key key = (Key) obj;
+
+            return
+                localAddress.equals(key.localAddress)
+                    && stunServer.equals(key.stunServer);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode()
+        {
+            return 31 * localAddress.hashCode() + stunServer.hashCode();
+        }
+    }
+
+    /**
+     * A server reflexive address learned for a local port.
+     */
+    private static class Mapping
+    {
+        /**
+         * The local port which the Binding request was sent from.
+         */
+        final int localPort;
+
+        /**
+         * The server reflexive address.
+         */
+        final TransportAddress mappedAddress;
+
+        /**
+         * When the mapping was learned, in milliseconds since the epoch.
+         */
+        final long learned;
+
+        /**
+         * Whether a Binding request refreshing the mapping is pending.
+         */
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        /**
+         * Initializes a new <tt>Mapping</tt>.
+         *
+         * @param localPort the local port.
+         * @param mappedAddress the server reflexive address.
+         * @param learned when the mapping was learned.
+         */
+        Mapping(int localPort, TransportAddress mappedAddress, long learned)
+        {
+            this.localPort = localPort;
+            this.mappedAddress = mappedAddress;
+            this.learned = learned;
+        }
+    }
+}
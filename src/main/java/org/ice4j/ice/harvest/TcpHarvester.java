@@ -189,6 +189,31 @@ public class TcpHarvester
         addMappedAddresses();
     }
 
+    /**
+     * Initializes a new <tt>TcpHarvester</tt>, which is to listen on the
+     * specified list of <tt>TransportAddress</tt>es, optionally sharing them
+     * with other listeners (e.g. a web server on port 443).
+     *
+     * @param transportAddresses the transport addresses to listen on.
+     * @param ssltcp <tt>true</tt> to use ssltcp; otherwise, <tt>false</tt>
+     * @param muxed <tt>true</tt> to share the listening endpoints through
+     * {@link MuxServerSocketChannel}s; otherwise, <tt>false</tt>
+     * @throws IOException when {@link HarvestConfig#getAllowedAddresses()} or
+     * {@link HarvestConfig#getBlockedAddresses()} contains invalid values, or
+     * if an I/O error occurs.
+     * @see AbstractTcpListener#AbstractTcpListener(List, boolean)
+     */
+    public TcpHarvester(
+            List<TransportAddress> transportAddresses,
+            boolean ssltcp,
+            boolean muxed)
+        throws IOException
+    {
+        super(transportAddresses, muxed);
+        this.ssltcp = ssltcp;
+        addMappedAddresses();
+    }
+
     /**
      * Adds the mapped addresses known from {@link MappingCandidateHarvesters}.
      */
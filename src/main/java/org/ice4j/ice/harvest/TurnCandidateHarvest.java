@@ -24,6 +24,7 @@ import org.ice4j.*;
 import org.ice4j.attribute.*;
 import org.ice4j.ice.*;
 import org.ice4j.message.*;
+import org.ice4j.metrics.*;
 import org.ice4j.socket.*;
 import org.ice4j.stack.*;
 
@@ -471,6 +472,11 @@ public class TurnCandidateHarvest
             Request request,
             TransactionID transactionID)
     {
+        if ((request != null)
+                && (request.getMessageType() == Message.REFRESH_REQUEST))
+        {
+            getAgentMetrics().counter("turn.refresh.failure").increment();
+        }
 
         /*
          * TurnCandidateHarvest uses the applicationData of TransactionID to
@@ -525,6 +531,7 @@ public class TurnCandidateHarvest
                     : lifetimeAttribute.getLifetime();
             break;
         case Message.REFRESH_RESPONSE:
+            getAgentMetrics().counter("turn.refresh.success").increment();
             lifetimeAttribute
                 = (LifetimeAttribute) response.getAttribute(Attribute.LIFETIME);
             if (lifetimeAttribute != null)
@@ -551,6 +558,20 @@ public class TurnCandidateHarvest
         }
     }
 
+    /**
+     * Returns the metrics registry of the <tt>Agent</tt> of
+     * {@link #hostCandidate}.
+     *
+     * @return the metrics registry of the <tt>Agent</tt> of
+     * {@link #hostCandidate}.
+     */
+    private Metrics getAgentMetrics()
+    {
+        return
+            hostCandidate.getParentComponent().getParentStream()
+                .getParentAgent().getMetrics();
+    }
+
     /**
      * Sends a specific <tt>Request</tt> on behalf of a specific
      * <tt>RelayedCandidateDatagramSocket</tt> to the TURN server associated
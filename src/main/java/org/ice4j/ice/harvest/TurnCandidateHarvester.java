@@ -108,6 +108,18 @@ public class TurnCandidateHarvester
         return new TurnCandidateHarvest(this, hostCandidate);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A TURN harvest allocates a relayed candidate, so it cannot be answered
+     * from cached server reflexive addresses.
+     */
+    @Override
+    protected boolean usesMappingCache()
+    {
+        return false;
+    }
+
     /**
      * Creates a <tt>LongTermCredential</tt> to be used by a specific
      * <tt>StunCandidateHarvest</tt> for the purposes of the long-term
@@ -0,0 +1,586 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice.harvest;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+import org.ice4j.socket.*;
+import org.jitsi.utils.concurrent.*;
+
+import static org.ice4j.ice.harvest.HarvestConfig.config;
+
+/**
+ * Allocates the UDP ports of host candidates within a port range. The ports
+ * which are bound by ice4j, and those which could not be bound because some
+ * other socket holds them, are tracked in a bitmap for each local address, so
+ * that a harvest goes straight to a port which is likely to be free instead of
+ * probing the range linearly from its start. A port is released when the
+ * socket bound to it is closed, e.g. when its <tt>Component</tt> is freed.
+ * <p>
+ * A pool of sockets bound in advance may also be kept for each local address
+ * (see <tt>ice4j.harvest.udp.warm-socket-pool-size</tt>). The pool is
+ * replenished in the background, in the port range of the last allocation on
+ * the address, whenever a socket is taken from it or released.
+ */
+final class UdpPortAllocator
+{
+    /**
+     * Our class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(UdpPortAllocator.class.getName());
+
+    /**
+     * The number of UDP ports.
+     */
+    private static final int PORT_COUNT = 0x10000;
+
+    /**
+     * The process-wide allocator.
+     */
+    private static final UdpPortAllocator instance
+        = new UdpPortAllocator(config.udpWarmSocketPoolSize());
+
+    /**
+     * The executor which replenishes the pools of sockets bound in advance.
+     */
+    private static final ScheduledExecutorService executor
+        = ExecutorFactory.createSingleThreadScheduledExecutor(
+            "ice4j.UdpPortAllocator-", 60, TimeUnit.SECONDS);
+
+    /**
+     * The number of sockets bound in advance to keep for each local address.
+     */
+    private final int warmPoolSize;
+
+    /**
+     * The ports of each local address.
+     */
+    private final Map<InetAddress, AddressPorts> addresses
+        = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the process-wide allocator.
+     *
+     * @return the process-wide allocator.
+     */
+    static UdpPortAllocator getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Initializes a new <tt>UdpPortAllocator</tt>.
+     *
+     * @param warmPoolSize the number of sockets bound in advance to keep for
+     * each local address, or <tt>0</tt> to not bind any in advance.
+     */
+    UdpPortAllocator(int warmPoolSize)
+    {
+        this.warmPoolSize = Math.max(0, warmPoolSize);
+    }
+
+    /**
+     * Returns a socket bound to <tt>laddr</tt> and to a port between
+     * <tt>minPort</tt> and <tt>maxPort</tt>, trying <tt>preferredPort</tt>
+     * first.
+     *
+     * @param laddr the local address to bind to.
+     * @param preferredPort the port to try first.
+     * @param minPort the lowest port which may be bound.
+     * @param maxPort the highest port which may be bound.
+     * @param bindRetries the number of ports to try to bind before giving up.
+     * @return a socket bound to <tt>laddr</tt> and to a port between
+     * <tt>minPort</tt> and <tt>maxPort</tt>.
+     * @throws BindException if no port could be bound.
+     */
+    MultiplexingDatagramSocket allocate(
+            InetAddress laddr,
+            int preferredPort,
+            int minPort,
+            int maxPort,
+            int bindRetries)
+        throws BindException
+    {
+        AddressPorts ports
+            = addresses.computeIfAbsent(laddr, AddressPorts::new);
+        MultiplexingDatagramSocket socket
+            = ports.takeWarmSocket(preferredPort, minPort, maxPort);
+
+        if (socket == null)
+        {
+            socket = ports.bind(preferredPort, minPort, maxPort, bindRetries);
+            if (socket == null)
+            {
+                throw new BindException("Could not bind to any port between "
+                        + minPort + " and " + maxPort);
+            }
+        }
+        return socket;
+    }
+
+    /**
+     * Returns the number of sockets bound in advance which are currently
+     * available for a specific local address.
+     *
+     * @param laddr the local address.
+     * @return the number of sockets bound in advance which are currently
+     * available for <tt>laddr</tt>.
+     */
+    int getWarmSocketCount(InetAddress laddr)
+    {
+        AddressPorts ports = addresses.get(laddr);
+
+        return ports == null ? 0 : ports.getWarmSocketCount();
+    }
+
+    /**
+     * Closes the sockets bound in advance, which are otherwise kept for the
+     * lifetime of the process.
+     */
+    void closeWarmSockets()
+    {
+        for (AddressPorts ports : addresses.values())
+            ports.closeWarmSockets();
+    }
+
+    /**
+     * The ports of a local address.
+     */
+    private class AddressPorts
+    {
+        /**
+         * The local address.
+         */
+        private final InetAddress address;
+
+        /**
+         * The ports which are not free: the ports bound by ice4j, the ports
+         * reserved while they are being bound and those in {@link #foreign}.
+         */
+        private final BitSet used = new BitSet(PORT_COUNT);
+
+        /**
+         * The ports which could not be bound, presumably because other
+         * sockets hold them. They are tried again when a range runs out of
+         * free ports.
+         */
+        private final BitSet foreign = new BitSet(PORT_COUNT);
+
+        /**
+         * The sockets bound in advance, in the order that they were bound.
+         */
+        private final Deque<PortSocket> warmSockets = new ArrayDeque<>();
+
+        /**
+         * The lowest port of the range of the last allocation, in which the
+         * pool is replenished.
+         */
+        private int minPort;
+
+        /**
+         * The highest port of the range of the last allocation, in which the
+         * pool is replenished.
+         */
+        private int maxPort;
+
+        /**
+         * The port from which the next socket of the pool is to be looked for,
+         * so that the ports of the range are used in turn rather than a port
+         * being bound again right after it was released.
+         */
+        private int nextWarmPort;
+
+        /**
+         * Whether a task replenishing the pool is scheduled.
+         */
+        private boolean refillScheduled = false;
+
+        /**
+         * Initializes a new <tt>AddressPorts</tt>.
+         *
+         * @param address the local address.
+         */
+        AddressPorts(InetAddress address)
+        {
+            this.address = address;
+        }
+
+        /**
+         * Binds a new socket to a port between <tt>minPort</tt> and
+         * <tt>maxPort</tt>, trying <tt>preferredPort</tt> first.
+         *
+         * @param preferredPort the port to try first.
+         * @param minPort the lowest port which may be bound.
+         * @param maxPort the highest port which may be bound.
+         * @param bindRetries the number of ports to try before giving up.
+         * @return the bound socket or <tt>null</tt> if no port could be bound.
+         */
+        MultiplexingDatagramSocket bind(
+                int preferredPort,
+                int minPort,
+                int maxPort,
+                int bindRetries)
+        {
+            int port = preferredPort;
+
+            for (int i = 0; i < bindRetries; i++)
+            {
+                port = reserve(port, minPort, maxPort);
+                if (port < 0)
+                    break;
+
+                PortSocket socket = bind(port);
+
+                if (socket != null)
+                    return socket;
+
+                port = port >= maxPort ? minPort : port + 1;
+            }
+            return null;
+        }
+
+        /**
+         * Binds a new socket to a port which has been reserved.
+         *
+         * @param port the reserved port.
+         * @return the bound socket or <tt>null</tt> if <tt>port</tt> could not
+         * be bound, in which case it is marked foreign.
+         */
+        private PortSocket bind(int port)
+        {
+            try
+            {
+                PortSocket socket = new PortSocket(this, port);
+
+                if (logger.isLoggable(Level.FINEST))
+                {
+                    logger.finest(
+                            "just bound to: " + socket.getLocalSocketAddress());
+                }
+                return socket;
+            }
+            catch (SocketException se)
+            {
+                logger.log(
+                        Level.INFO,
+                        "Retrying a bind because of a failure to bind to"
+                            + " address " + address
+                            + " and port " + port
+                            + " (" + se.getMessage() + ")");
+                logger.log(Level.FINEST, "", se);
+                synchronized (this)
+                {
+                    foreign.set(port);
+                }
+                return null;
+            }
+        }
+
+        /**
+         * Reserves the first free port between <tt>minPort</tt> and
+         * <tt>maxPort</tt>, starting at <tt>from</tt> and wrapping around.
+         * If there is none, the ports which could not be bound before are
+         * considered free again.
+         *
+         * @param from the port to start looking from.
+         * @param minPort the lowest port of the range.
+         * @param maxPort the highest port of the range.
+         * @return the reserved port or <tt>-1</tt> if all the ports of the
+         * range are used by ice4j.
+         */
+        private synchronized int reserve(int from, int minPort, int maxPort)
+        {
+            int port = findFree(from, minPort, maxPort);
+
+            if (port < 0 && !foreign.isEmpty())
+            {
+                used.andNot(foreign);
+                foreign.clear();
+                port = findFree(from, minPort, maxPort);
+            }
+            if (port >= 0)
+                used.set(port);
+            return port;
+        }
+
+        /**
+         * Finds the first port between <tt>minPort</tt> and <tt>maxPort</tt>
+         * which is not used, starting at <tt>from</tt> and wrapping around.
+         *
+         * @param from the port to start looking from.
+         * @param minPort the lowest port of the range.
+         * @param maxPort the highest port of the range.
+         * @return the port or <tt>-1</tt> if all the ports of the range are
+         * used.
+         */
+        private int findFree(int from, int minPort, int maxPort)
+        {
+            if (from < minPort || from > maxPort)
+                from = minPort;
+
+            int port = used.nextClearBit(from);
+
+            if (port <= maxPort)
+                return port;
+            port = used.nextClearBit(minPort);
+            return port < from ? port : -1;
+        }
+
+        /**
+         * Releases a port when the socket bound to it is closed.
+         *
+         * @param port the port.
+         */
+        void release(int port)
+        {
+            synchronized (this)
+            {
+                used.clear(port);
+            }
+            scheduleRefill();
+        }
+
+        /**
+         * Takes a socket bound in advance to a port between <tt>minPort</tt>
+         * and <tt>maxPort</tt>, preferably to <tt>preferredPort</tt>, and
+         * makes the range the one in which the pool is replenished.
+         *
+         * @param preferredPort the preferred port.
+         * @param minPort the lowest port of the range.
+         * @param maxPort the highest port of the range.
+         * @return the socket or <tt>null</tt> if there is no socket bound in
+         * advance to a port of the range.
+         */
+        MultiplexingDatagramSocket takeWarmSocket(
+                int preferredPort,
+                int minPort,
+                int maxPort)
+        {
+            if (warmPoolSize == 0)
+                return null;
+
+            PortSocket socket = null;
+            List<PortSocket> outOfRange = null;
+
+            synchronized (this)
+            {
+                if (this.minPort != minPort || this.maxPort != maxPort)
+                {
+                    this.minPort = minPort;
+                    this.maxPort = maxPort;
+                    // Leave the preferred port to the allocation which is
+                    // about to bind it.
+                    nextWarmPort
+                        = preferredPort >= maxPort ? minPort : preferredPort + 1;
+                }
+                for (Iterator<PortSocket> i = warmSockets.iterator();
+                        i.hasNext();)
+                {
+                    PortSocket warmSocket = i.next();
+
+                    if (warmSocket.port < minPort || warmSocket.port > maxPort)
+                    {
+                        // Bound for an earlier range.
+                        i.remove();
+                        if (outOfRange == null)
+                            outOfRange = new ArrayList<>();
+                        outOfRange.add(warmSocket);
+                    }
+                    else if (socket == null || warmSocket.port == preferredPort)
+                    {
+                        socket = warmSocket;
+                    }
+                }
+                if (socket != null)
+                    warmSockets.remove(socket);
+            }
+            if (outOfRange != null)
+            {
+                for (PortSocket warmSocket : outOfRange)
+                    warmSocket.close();
+            }
+            scheduleRefill();
+            return socket;
+        }
+
+        /**
+         * Returns the number of sockets bound in advance which are currently
+         * available.
+         *
+         * @return the number of sockets bound in advance which are currently
+         * available.
+         */
+        synchronized int getWarmSocketCount()
+        {
+            return warmSockets.size();
+        }
+
+        /**
+         * Closes the sockets bound in advance.
+         */
+        void closeWarmSockets()
+        {
+            List<PortSocket> sockets;
+
+            synchronized (this)
+            {
+                sockets = new ArrayList<>(warmSockets);
+                warmSockets.clear();
+                // Stop the pool from being replenished until the next
+                // allocation.
+                minPort = maxPort = 0;
+            }
+            for (PortSocket socket : sockets)
+                socket.close();
+        }
+
+        /**
+         * Schedules the replenishment of the pool, unless the pool is full or
+         * the range in which to replenish it is not known yet.
+         */
+        private void scheduleRefill()
+        {
+            synchronized (this)
+            {
+                if (refillScheduled
+                        || maxPort == 0
+                        || warmSockets.size() >= warmPoolSize)
+                {
+                    return;
+                }
+                refillScheduled = true;
+            }
+            executor.execute(this::refill);
+        }
+
+        /**
+         * Binds sockets in advance until the pool is full or the range runs
+         * out of free ports.
+         */
+        private void refill()
+        {
+            int attempts = 0;
+
+            while (true)
+            {
+                int port;
+
+                synchronized (this)
+                {
+                    if (maxPort == 0
+                            || warmSockets.size() >= warmPoolSize
+                            || attempts++ > maxPort - minPort)
+                    {
+                        refillScheduled = false;
+                        return;
+                    }
+                    port = reserve(nextWarmPort, minPort, maxPort);
+                    if (port < 0)
+                    {
+                        refillScheduled = false;
+                        return;
+                    }
+                    nextWarmPort = port >= maxPort ? minPort : port + 1;
+                }
+
+                PortSocket socket = bind(port);
+
+                if (socket != null)
+                {
+                    boolean keep;
+
+                    synchronized (this)
+                    {
+                        keep = port >= minPort && port <= maxPort;
+                        if (keep)
+                            warmSockets.add(socket);
+                    }
+                    if (!keep)
+                        socket.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A socket bound to a port allocated by a <tt>UdpPortAllocator</tt>,
+     * which releases the port when it is closed.
+     */
+    private static class PortSocket
+        extends MultiplexingDatagramSocket
+    {
+        /**
+         * The ports of the local address of this socket.
+         */
+        private final AddressPorts ports;
+
+        /**
+         * The port of this socket.
+         */
+        private final int port;
+
+        /**
+         * Whether the port of this socket has been released.
+         */
+        private boolean released = false;
+
+        /**
+         * Initializes a new <tt>PortSocket</tt> bound to a specific port.
+         *
+         * @param ports the ports of the local address to bind to.
+         * @param port the port to bind to.
+         * @throws SocketException if the socket could not be bound.
+         */
+        PortSocket(AddressPorts ports, int port)
+            throws SocketException
+        {
+            super(port, ports.address);
+            this.ports = ports;
+            this.port = port;
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p>
+         * Releases the port of this socket.
+         */
+        @Override
+        public void close()
+        {
+            super.close();
+
+            // We could be called by the super-class constructor (if it fails
+            // to bind), in which case this.ports is not initialized yet and
+            // the port is not ours to release.
+            if (ports == null)
+                return;
+
+            synchronized (this)
+            {
+                if (released)
+                    return;
+                released = true;
+            }
+            ports.release(port);
+        }
+    }
+}
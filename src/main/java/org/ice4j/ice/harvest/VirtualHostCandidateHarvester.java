@@ -0,0 +1,120 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice.harvest;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.*;
+
+import org.ice4j.*;
+import org.ice4j.ice.*;
+import org.ice4j.socket.*;
+import org.ice4j.socket.virtual.*;
+
+/**
+ * A host {@link CandidateHarvester} which gathers a UDP host candidate on a
+ * {@link VirtualHost} instead of the network interfaces of the machine, in
+ * order to run agents over a {@link VirtualNetwork}. It is to be used with
+ * dynamic ports disabled (see {@link Agent#setUseDynamicPorts(boolean)}):
+ * <pre>
+ * agent.setUseDynamicPorts(false);
+ * agent.addCandidateHarvester(new VirtualHostCandidateHarvester(host));
+ * </pre>
+ */
+public class VirtualHostCandidateHarvester
+    extends AbstractCandidateHarvester
+{
+    /**
+     * Our class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(VirtualHostCandidateHarvester.class.getName());
+
+    /**
+     * The host on which candidates are gathered.
+     */
+    private final VirtualHost host;
+
+    /**
+     * Initializes a new <tt>VirtualHostCandidateHarvester</tt>.
+     *
+     * @param host the host on which the new instance is to gather candidates.
+     */
+    public VirtualHostCandidateHarvester(VirtualHost host)
+    {
+        this.host = Objects.requireNonNull(host, "host");
+    }
+
+    /**
+     * Gathers a host candidate bound to an ephemeral port of {@link #host}.
+     *
+     * @param component the {@link Component} to gather a candidate for.
+     * @return the gathered candidate.
+     */
+    @Override
+    public Collection<LocalCandidate> harvest(Component component)
+    {
+        IceSocketWrapper socket;
+        HostCandidate candidate;
+
+        try
+        {
+            socket
+                = new IceUdpSocketWrapper(
+                        new MultiplexingDatagramSocket(
+                                host.createDatagramSocket(0)));
+
+            candidate = new HostCandidate(socket, component, Transport.UDP);
+        }
+        catch (IOException ioe)
+        {
+            logger.warning(
+                    "Failed to create a socket on " + host + ": " + ioe);
+            return Collections.emptyList();
+        }
+
+        component.addLocalCandidate(candidate);
+        candidate.getStunStack().addSocket(candidate.getStunSocket(null));
+
+        ComponentSocket componentSocket = component.getComponentSocket();
+
+        if (componentSocket != null)
+            componentSocket.add(socket);
+        return Collections.singletonList(candidate);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return <tt>true</tt>
+     */
+    @Override
+    public boolean isHostHarvester()
+    {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "(" + host + ")";
+    }
+}
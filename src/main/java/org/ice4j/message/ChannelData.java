@@ -112,6 +112,19 @@ public class ChannelData
         return (char)data.length;
     }
 
+    /**
+     * Returns the length of a ChannelData message carrying
+     * <tt>dataLength</tt> bytes of application data.
+     *
+     * @param dataLength the length of the application data.
+     * @param pad whether the message is padded to a multiple of four bytes.
+     * @return the length of the message, header and padding included.
+     */
+    public static int getEncodedLength(int dataLength, boolean pad)
+    {
+        return HEADER_LENGTH + (pad ? padTo4(dataLength) : dataLength);
+    }
+
     /**
      * @return num padded to 4
      */
@@ -157,27 +170,137 @@ public class ChannelData
         if (pad)
             dataLength = padTo4(dataLength);
         byte binMsg[] = new byte[HEADER_LENGTH + dataLength];
-        int offset = 0;
 
+        encodeTo(binMsg, 0, pad);
+
+        return binMsg;
+    }
+
+    /**
+     * Writes the binary representation of this message into <tt>buf</tt>
+     * starting at <tt>offset</tt>.
+     *
+     * @param buf the array to write this message into.
+     * @param offset the index in <tt>buf</tt> at which the message is to
+     * start.
+     * @param pad determine if we pad this message
+     * @return the length of the message, i.e. the number of bytes written.
+     * @throws StunException if the channel number is invalid
+     * @throws IndexOutOfBoundsException if the message doesn't fit in
+     * <tt>buf</tt>.
+     */
+    public int encodeTo(byte[] buf, int offset, boolean pad)
+        throws StunException
+    {
+        return encodeTo(
+                channelNumber,
+                data, 0, getDataLength(),
+                buf, offset,
+                pad);
+    }
+
+    /**
+     * Frames application data as a ChannelData message in <tt>buf</tt>
+     * without creating a <tt>ChannelData</tt> instance. The data may already
+     * be in place in <tt>buf</tt>, right after the room for the header, in
+     * which case it is not moved.
+     *
+     * @param channelNumber the channel number.
+     * @param data the array which contains the application data, or
+     * <tt>null</tt> if there is none.
+     * @param dataOffset the index of the application data in <tt>data</tt>.
+     * @param dataLength the length of the application data.
+     * @param buf the array to write the message into.
+     * @param offset the index in <tt>buf</tt> at which the message is to
+     * start.
+     * @param pad determine if we pad the message
+     * @return the length of the message, i.e. the number of bytes written.
+     * @throws StunException if the channel number is invalid
+     * @throws IndexOutOfBoundsException if the message doesn't fit in
+     * <tt>buf</tt>.
+     */
+    public static int encodeTo(
+            char channelNumber,
+            byte[] data, int dataOffset, int dataLength,
+            byte[] buf, int offset,
+            boolean pad)
+        throws StunException
+    {
         if (!validateChannelNumber(channelNumber))
         {
             throw new StunException(StunException.ILLEGAL_ARGUMENT, "Channel number invalid");
         }
+        if (dataLength > 0xFFFF)
+        {
+            throw new StunException(StunException.ILLEGAL_ARGUMENT, "Data too long");
+        }
+
+        int length = getEncodedLength(dataLength, pad);
+
+        if (offset < 0 || length > buf.length - offset)
+        {
+            throw new IndexOutOfBoundsException(
+                    "Cannot encode a " + length + " bytes long ChannelData at "
+                        + offset + " in " + buf.length + " bytes");
+        }
+
+        if (dataLength > 0)
+        {
+            System.arraycopy(
+                    data, dataOffset, buf, offset + HEADER_LENGTH, dataLength);
+        }
 
         /* channel number */
-        binMsg[offset++] = (byte)(channelNumber >> 8);
-        binMsg[offset++] = (byte)(channelNumber & 0xff);
+        buf[offset] = (byte)(channelNumber >> 8);
+        buf[offset + 1] = (byte)(channelNumber & 0xff);
 
         /* length */
-        binMsg[offset++] = (byte)((data != null) ? data.length >> 8 : 0);
-        binMsg[offset++] = (byte)((data != null) ? data.length & 0xff : 0);
+        buf[offset + 2] = (byte)(dataLength >> 8);
+        buf[offset + 3] = (byte)(dataLength & 0xff);
+
+        /* padding */
+        for (int i = offset + HEADER_LENGTH + dataLength; i < offset + length; i++)
+            buf[i] = 0;
 
-        if (data != null)
+        return length;
+    }
+
+    /**
+     * Reads the channel number of a ChannelData message in place.
+     *
+     * @param buf the array which contains the message.
+     * @param offset the index of the message in <tt>buf</tt>.
+     * @return the channel number of the message.
+     */
+    public static char getChannelNumber(byte[] buf, int offset)
+    {
+        return (char)(((buf[offset] & 0xFF) << 8) | (buf[offset + 1] & 0xFF));
+    }
+
+    /**
+     * Checks a ChannelData message in place and returns the length of its
+     * application data, which starts <tt>HEADER_LENGTH</tt> bytes after the
+     * message.
+     *
+     * @param buf the array which contains the message.
+     * @param offset the index of the message in <tt>buf</tt>.
+     * @param length the number of bytes of the message in <tt>buf</tt>,
+     * including any padding.
+     * @return the length of the application data of the message, or -1 if
+     * the message is too short or its channel number is invalid.
+     */
+    public static int getDataLength(byte[] buf, int offset, int length)
+    {
+        if (length < HEADER_LENGTH
+                || !validateChannelNumber(getChannelNumber(buf, offset)))
         {
-            System.arraycopy(data, 0, binMsg, offset, data.length);
+            return -1;
         }
 
-        return binMsg;
+        int dataLength
+            = ((buf[offset + 2] & 0xFF) << 8) | (buf[offset + 3] & 0xFF);
+
+        return (dataLength > length - HEADER_LENGTH) ? -1 : dataLength;
     }
 
     /**
@@ -205,7 +328,6 @@ public class ChannelData
      */
     public static ChannelData decode(byte binMessage[], char offset) throws StunException
     {
-        char msgLen = 0;
         char channelNumber = 0;
         ChannelData channelData = null;
         byte data[] = null;
@@ -215,21 +337,21 @@ public class ChannelData
             throw new StunException(StunException.ILLEGAL_ARGUMENT, "Size too short");
         }
 
-        channelNumber = (char)((binMessage[offset++]<<8) | (binMessage[offset++]&0xFF));
+        channelNumber = getChannelNumber(binMessage, offset);
 
         if (!validateChannelNumber(channelNumber))
         {
             throw new StunException(StunException.ILLEGAL_ARGUMENT, "Channel number invalid");
         }
 
-        msgLen = (char)((binMessage[offset++]<<8) | (binMessage[offset++]&0xFF));
-        if (msgLen > (binMessage.length - offset))
+        int msgLen = getDataLength(binMessage, offset, binMessage.length - offset);
+        if (msgLen < 0)
         {
             throw new StunException(StunException.ILLEGAL_ARGUMENT, "Size mismatch");
         }
 
         data = new byte[msgLen];
-        System.arraycopy(binMessage, offset, data, 0, msgLen);
+        System.arraycopy(binMessage, offset + HEADER_LENGTH, data, 0, msgLen);
 
         channelData = new ChannelData();
         channelData.setData(data);
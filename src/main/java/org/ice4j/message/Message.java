@@ -19,11 +19,13 @@ package org.ice4j.message;
 
 import java.util.*;
 import java.util.logging.*;
+import java.util.zip.*;
 
 import org.ice4j.*;
 import org.ice4j.attribute.*;
 import org.ice4j.ice.*;
 import org.ice4j.stack.*;
+import org.ice4j.util.*;
 
 /**
  * This class represents a STUN message. Messages are TLV (type-length-value)
@@ -350,6 +352,13 @@ public abstract class Message
     protected final LinkedHashMap<Character, Attribute> attributes
         = new LinkedHashMap<>();
 
+    /**
+     * The presence bits (see {@link AttributeDecoder#getPresenceMask(char)})
+     * of the attributes contained by this message. Modified while holding the
+     * lock of {@link #attributes}.
+     */
+    private volatile long attributePresence = 0;
+
     /**
      * Attribute presentity is a thing of RFC 3489 and no longer exists in
      * 5389. we are not using it any longer and if at some point we decide we
@@ -525,10 +534,26 @@ public abstract class Message
      * @return the length of the data in this message.
      */
     public char getDataLength()
+    {
+        synchronized(attributes)
+        {
+            return getDataLength(attributes.values());
+        }
+    }
+
+    /**
+     * Returns the length of the body of a message with the attributes
+     * <tt>attrs</tt>.
+     *
+     * @param attrs the attributes of the message.
+     *
+     * @return the length of the body of a message with the attributes
+     * <tt>attrs</tt>.
+     */
+    private static char getDataLength(Collection<Attribute> attrs)
     {
         char length = 0;
 
-        List<Attribute> attrs = getAttributes();
         for (Attribute att : attrs)
         {
             int attLen = att.getDataLength() + Attribute.HEADER_LENGTH;
@@ -551,12 +576,13 @@ public abstract class Message
     {
         char length = 0;
 
-        List<Attribute> attrs = getAttributes();
-
-        for (Attribute att : attrs)
+        synchronized(attributes)
         {
-            int attLen = att.getDataLength() + Attribute.HEADER_LENGTH;
-            length += attLen;
+            for (Attribute att : attributes.values())
+            {
+                int attLen = att.getDataLength() + Attribute.HEADER_LENGTH;
+                length += attLen;
+            }
         }
         return length;
     }
@@ -582,9 +608,13 @@ public abstract class Message
                                     + getName());
         }
 
+        char attributeType = attribute.getAttributeType();
+
         synchronized(attributes)
         {
-            attributes.put(attribute.getAttributeType(), attribute);
+            attributes.put(attributeType, attribute);
+            attributePresence
+                |= AttributeDecoder.getPresenceMask(attributeType);
         }
     }
 
@@ -599,7 +629,44 @@ public abstract class Message
      */
     public boolean containsAttribute(char attributeType)
     {
-        return attributes.containsKey(attributeType);
+        long mask = AttributeDecoder.getPresenceMask(attributeType);
+
+        if (mask != 0 && (attributePresence & mask) == 0)
+            return false;
+
+        // An attribute which is present is decoded, so that an attribute
+        // which turns out to be invalid is reported as absent here just like
+        // getAttribute(char) returns null for it.
+        return getAttribute(attributeType) != null;
+    }
+
+    /**
+     * Returns the presence bits (see
+     * {@link AttributeDecoder#getPresenceMask(char)}) of the attributes
+     * contained by this message. Unlike {@link #getAttribute(char)}, this
+     * does not decode any attribute of a received message, so it may include
+     * attributes which turn out to be invalid when they are decoded.
+     *
+     * @return the presence bits of the attributes contained by this message.
+     */
+    public long getAttributePresence()
+    {
+        return attributePresence;
+    }
+
+    /**
+     * Returns the types of the attributes contained by this message, in the
+     * order in which they were added. Unlike {@link #getAttributes()}, this
+     * does not decode any attribute of a received message.
+     *
+     * @return the types of the attributes contained by this message.
+     */
+    public List<Character> getAttributeTypes()
+    {
+        synchronized(attributes)
+        {
+            return new ArrayList<>(attributes.keySet());
+        }
     }
 
     /**
@@ -614,7 +681,7 @@ public abstract class Message
     {
         synchronized(attributes)
         {
-            return attributes.get(attributeType);
+            return resolveAttribute(attributes.get(attributeType));
         }
     }
 
@@ -627,10 +694,80 @@ public abstract class Message
     {
         synchronized(attributes)
         {
+            resolveAttributes();
             return new LinkedList<>(attributes.values());
         }
     }
 
+    /**
+     * Decodes <tt>attribute</tt> if it is a {@link LazyAttribute} and
+     * replaces it with the decoded attribute. If it cannot be decoded, it is
+     * removed from this message as if it had never been received. Must be
+     * called while holding the lock of {@link #attributes}.
+     *
+     * @param attribute the attribute of this message to decode.
+     *
+     * @return the decoded attribute or <tt>null</tt> if <tt>attribute</tt>
+     * is <tt>null</tt> or cannot be decoded.
+     */
+    private Attribute resolveAttribute(Attribute attribute)
+    {
+        if (!(attribute instanceof LazyAttribute))
+            return attribute;
+
+        char attributeType = attribute.getAttributeType();
+        Attribute decoded = decodeLazyAttribute((LazyAttribute) attribute);
+
+        if (decoded == null)
+        {
+            attributes.remove(attributeType);
+            attributePresence
+                &= ~AttributeDecoder.getPresenceMask(attributeType);
+        }
+        else
+        {
+            // Replacing the value of an existing key keeps the order.
+            attributes.put(attributeType, decoded);
+        }
+        return decoded;
+    }
+
+    /**
+     * Decodes <tt>attribute</tt>.
+     *
+     * @param attribute the attribute to decode.
+     *
+     * @return the decoded attribute or <tt>null</tt> if <tt>attribute</tt>
+     * cannot be decoded.
+     */
+    private Attribute decodeLazyAttribute(LazyAttribute attribute)
+    {
+        try
+        {
+            return attribute.decode();
+        }
+        catch (StunException | RuntimeException ex)
+        {
+            logger.log(
+                    Level.FINE,
+                    "Failed to decode attribute "
+                        + (int) attribute.getAttributeType()
+                        + " of a " + getName(),
+                    ex);
+            return null;
+        }
+    }
+
+    /**
+     * Decodes all the {@link LazyAttribute}s of this message. Must be called
+     * while holding the lock of {@link #attributes}.
+     */
+    private void resolveAttributes()
+    {
+        for (Attribute attribute : new ArrayList<>(attributes.values()))
+            resolveAttribute(attribute);
+    }
+
     /**
      * Removes the specified attribute.
      *
@@ -642,7 +779,13 @@ public abstract class Message
     {
         synchronized(attributes)
         {
-            return attributes.remove(attributeType);
+            Attribute attribute = attributes.remove(attributeType);
+
+            attributePresence
+                &= ~AttributeDecoder.getPresenceMask(attributeType);
+            if (attribute instanceof LazyAttribute)
+                attribute = decodeLazyAttribute((LazyAttribute) attribute);
+            return attribute;
         }
     }
 
@@ -888,7 +1031,7 @@ public abstract class Message
             return false;
 
         //compare attributes
-        for (Attribute localAtt : attributes.values())
+        for (Attribute localAtt : getAttributes())
         {
             if (!localAtt.equals(msg.getAttribute(localAtt.getAttributeType())))
                 return false;
@@ -910,21 +1053,176 @@ public abstract class Message
     public byte[] encode(StunStack stunStack)
         throws IllegalStateException
     {
-        prepareForEncoding();
+        List<Attribute> attrs = prepareForEncoding();
+        byte binMsg[] = new byte[HEADER_LENGTH + getDataLength(attrs)];
 
-        //make sure we have everything necessary to encode a proper message
-        validateAttributePresentity();
+        encodeTo(stunStack, attrs, binMsg, 0);
+
+        return binMsg;
+    }
+
+    /**
+     * Returns the length of the binary representation of this message, i.e.
+     * the number of bytes that {@link #encode(StunStack)} returns, including
+     * the attributes added upon encoding.
+     *
+     * @return the length of the binary representation of this message.
+     *
+     * @throws IllegalStateException if the message does not have all
+     * required attributes.
+     */
+    public int getEncodedLength()
+        throws IllegalStateException
+    {
+        return HEADER_LENGTH + getDataLength(prepareForEncoding());
+    }
+
+    /**
+     * Writes the binary representation of this message into a
+     * <tt>Buffer</tt> of the {@link BufferPool} which is requested with the
+     * length of the message. The attributes are prepared for encoding only
+     * once, both to size the buffer and to write the message. If the pool
+     * returns a buffer which is too small, it is given back and the message is
+     * written into a new <tt>Buffer</tt> instead.
+     *
+     * @param stunStack the <tt>StunStack</tt> in the context of which the
+     * request to encode this <tt>Message</tt> is being made
+     *
+     * @return the <tt>Buffer</tt> whose offset and length delimit the message.
+     * The caller is to hand it back to the {@link BufferPool} once done with
+     * it.
+     *
+     * @throws IllegalStateException if the message does not have all
+     * required attributes.
+     */
+    public Buffer encodeToPooledBuffer(StunStack stunStack)
+        throws IllegalStateException
+    {
+        List<Attribute> attrs = prepareForEncoding();
+        int length = HEADER_LENGTH + getDataLength(attrs);
+        Buffer buffer = BufferPool.getBuffer.invoke(length);
+        int offset = buffer.getOffset();
+
+        if (offset < 0 || length > buffer.getBuffer().length - offset)
+        {
+            BufferPool.returnBuffer.invoke(buffer);
+            buffer = new Buffer(new byte[length], 0, length);
+        }
+
+        encodeTo(stunStack, attrs, buffer.getBuffer(), buffer.getOffset());
+        buffer.setLength(length);
+        return buffer;
+    }
+
+    /**
+     * Writes the binary representation of this message into <tt>buf</tt>
+     * starting at <tt>offset</tt>. Every attribute is written directly into
+     * <tt>buf</tt> and MESSAGE-INTEGRITY and FINGERPRINT are computed over the
+     * bytes which precede them in <tt>buf</tt>, so no intermediate arrays are
+     * created.
+     *
+     * @param stunStack the <tt>StunStack</tt> in the context of which the
+     * request to encode this <tt>Message</tt> is being made
+     * @param buf the array to write this message into.
+     * @param offset the index in <tt>buf</tt> at which the message is to
+     * start.
+     *
+     * @return the length of the message, i.e. the number of bytes written.
+     *
+     * @throws IllegalStateException if the message does not have all
+     * required attributes.
+     * @throws IndexOutOfBoundsException if the message doesn't fit in
+     * <tt>buf</tt>.
+     */
+    public int encodeTo(StunStack stunStack, byte[] buf, int offset)
+        throws IllegalStateException,
+               IndexOutOfBoundsException
+    {
+        List<Attribute> attrs = prepareForEncoding();
+        int length = HEADER_LENGTH + getDataLength(attrs);
+
+        if (offset < 0 || length > buf.length - offset)
+        {
+            throw new IndexOutOfBoundsException(
+                    "Cannot encode a " + length + " bytes long " + getName()
+                        + " at " + offset + " in " + buf.length + " bytes");
+        }
+
+        return encodeTo(stunStack, attrs, buf, offset);
+    }
+
+    /**
+     * Writes the binary representation of this message into <tt>buf</tt>,
+     * starting at its position, and advances the position past the message.
+     *
+     * @param stunStack the <tt>StunStack</tt> in the context of which the
+     * request to encode this <tt>Message</tt> is being made
+     * @param buf the <tt>ByteBuffer</tt> to write this message into.
+     *
+     * @return the length of the message, i.e. the number of bytes written.
+     *
+     * @throws IllegalStateException if the message does not have all
+     * required attributes.
+     * @throws java.nio.BufferOverflowException if the message doesn't fit in
+     * the remaining bytes of <tt>buf</tt>.
+     */
+    public int encodeTo(StunStack stunStack, java.nio.ByteBuffer buf)
+        throws IllegalStateException
+    {
+        List<Attribute> attrs = prepareForEncoding();
+        int length = HEADER_LENGTH + getDataLength(attrs);
 
-        final char dataLength;
+        if (length > buf.remaining())
+            throw new java.nio.BufferOverflowException();
 
-        dataLength = getDataLength();
+        if (buf.hasArray())
+        {
+            encodeTo(
+                    stunStack,
+                    attrs,
+                    buf.array(),
+                    buf.arrayOffset() + buf.position());
+            buf.position(buf.position() + length);
+        }
+        else
+        {
+            // Content dependent attributes are computed over the bytes
+            // written so far, so we need an array.
+            byte[] binMsg = new byte[length];
 
-        byte binMsg[] = new byte[HEADER_LENGTH + dataLength];
-        int offset    = 0;
+            encodeTo(stunStack, attrs, binMsg, 0);
+            buf.put(binMsg);
+        }
+        return length;
+    }
+
+    /**
+     * Writes the binary representation of this message with the attributes
+     * <tt>attrs</tt> into <tt>buf</tt>, which is known to have enough room
+     * for it, starting at <tt>offset</tt>.
+     *
+     * @param stunStack the <tt>StunStack</tt> in the context of which the
+     * request to encode this <tt>Message</tt> is being made
+     * @param attrs the attributes of this message as returned by
+     * {@link #prepareForEncoding()}.
+     * @param buf the array to write this message into.
+     * @param offset the index in <tt>buf</tt> at which the message is to
+     * start.
+     *
+     * @return the length of the message, i.e. the number of bytes written.
+     */
+    private int encodeTo(
+            StunStack stunStack,
+            List<Attribute> attrs,
+            byte[] buf,
+            int offset)
+    {
+        final int messageOffset = offset;
+        final char dataLength = getDataLength(attrs);
 
         // STUN Message Type
-        binMsg[offset++] = (byte)(getMessageType() >> 8);
-        binMsg[offset++] = (byte)(getMessageType() & 0xFF);
+        buf[offset++] = (byte)(getMessageType() >> 8);
+        buf[offset++] = (byte)(getMessageType() & 0xFF);
 
         // Message Length
         final int messageLengthOffset = offset;
@@ -935,33 +1233,23 @@ public abstract class Message
 
         if (tranID.length == 12)
         {
-            System.arraycopy(MAGIC_COOKIE, 0, binMsg, offset, 4);
+            System.arraycopy(MAGIC_COOKIE, 0, buf, offset, 4);
             offset += 4;
-            System.arraycopy(tranID, 0, binMsg, offset, TRANSACTION_ID_LENGTH);
+            System.arraycopy(tranID, 0, buf, offset, TRANSACTION_ID_LENGTH);
             offset += TRANSACTION_ID_LENGTH;
         }
         else
         {
             /* RFC3489 behavior */
-            System.arraycopy(tranID, 0, binMsg, offset,
+            System.arraycopy(tranID, 0, buf, offset,
                 RFC3489_TRANSACTION_ID_LENGTH);
             offset += RFC3489_TRANSACTION_ID_LENGTH;
         }
 
-        Vector<Map.Entry<Character, Attribute>> v = new Vector<>();
-        Iterator<Map.Entry<Character, Attribute>> iter = null;
         char dataLengthForContentDependentAttribute = 0;
 
-        synchronized (attributes)
-        {
-            v.addAll(attributes.entrySet());
-        }
-
-        iter = v.iterator();
-
-        while (iter.hasNext())
+        for (Attribute attribute : attrs)
         {
-            Attribute attribute = iter.next().getValue();
             int attributeLength
                 = attribute.getDataLength() + Attribute.HEADER_LENGTH;
 
@@ -970,7 +1258,7 @@ public abstract class Message
             dataLengthForContentDependentAttribute += attributeLength;
 
             //special handling for message integrity and fingerprint values
-            byte[] binAtt;
+            int written;
 
             if (attribute instanceof ContentDependentAttribute)
             {
@@ -979,40 +1267,52 @@ public abstract class Message
                  * up to and including the very Attribute but without any other
                  * Attribute instances after it.
                  */
-                binMsg[messageLengthOffset]
+                buf[messageLengthOffset]
                     = (byte)(dataLengthForContentDependentAttribute >> 8);
-                binMsg[messageLengthOffset + 1]
+                buf[messageLengthOffset + 1]
                     = (byte)(dataLengthForContentDependentAttribute & 0xFF);
-                binAtt
+                written
                     = ((ContentDependentAttribute)attribute)
-                            .encode(stunStack, binMsg, 0, offset);
+                            .encodeTo(stunStack, buf, messageOffset, offset);
             }
             else
             {
-                binAtt = attribute.encode();
+                written = attribute.encodeTo(buf, offset);
             }
 
-            System.arraycopy(binAtt, 0, binMsg, offset, binAtt.length);
+            // The array may be reused, so clear the padding which hasn't been
+            // written by the attribute.
+            if (written < attributeLength)
+                Arrays.fill(buf, offset + written, offset + attributeLength,
+                        (byte) 0);
+
             /*
-             * Offset by attributeLength and not by binAtt.length because
-             * attributeLength takes the attribute padding into account and
-             * binAtt.length does not.
+             * Offset by attributeLength and not by the number of bytes written
+             * because attributeLength takes the attribute padding into account
+             * and the attribute may or may not have written it.
              */
             offset += attributeLength;
         }
 
         // Message Length
-        binMsg[messageLengthOffset]     = (byte)(dataLength >> 8);
-        binMsg[messageLengthOffset + 1] = (byte)(dataLength & 0xFF);
+        buf[messageLengthOffset]     = (byte)(dataLength >> 8);
+        buf[messageLengthOffset + 1] = (byte)(dataLength & 0xFF);
 
-        return binMsg;
+        return offset - messageOffset;
     }
 
     /**
      * Adds attributes that have been requested vis configuration properties.
-     * Asserts attribute order where necessary.
+     * Asserts attribute order where necessary. Makes sure that this message
+     * has all required attributes.
+     *
+     * @return the attributes of this message to be encoded, in order.
+     *
+     * @throws IllegalStateException if the message does not have all
+     * required attributes.
      */
-    private void prepareForEncoding()
+    private List<Attribute> prepareForEncoding()
+        throws IllegalStateException
     {
         //remove MESSAGE-INTEGRITY and FINGERPRINT attributes so that we can
         //make sure they are added at the end.
@@ -1048,6 +1348,11 @@ public abstract class Message
         {
             putAttribute(fingerprint);
         }
+
+        //make sure we have everything necessary to encode a proper message
+        validateAttributePresentity();
+
+        return getAttributes();
     }
 
     /**
@@ -1144,18 +1449,34 @@ public abstract class Message
 
         boolean sawMessageIntegrity = false;
 
+        // The values of the attributes are only decoded when they are
+        // accessed, so they must not be affected by later changes of
+        // binMessage. Copying the message keeps the offsets of the attributes
+        // unchanged.
+        byte[] attributeBytes
+            = Arrays.copyOf(
+                    binMessage,
+                    Math.min(arrayLen, offset + length));
+
+        // The CRC32 checksum of the message is computed while the attributes
+        // are being scanned, so that a FINGERPRINT can be validated without
+        // another pass over the message.
+        CRC32 checksum = new CRC32();
+
+        checksum.update(attributeBytes, originalOffset, offset - originalOffset);
+
         while (offset - Message.HEADER_LENGTH < length)
         {
-            Attribute att = AttributeDecoder.decode(
-                binMessage, offset, (char)(length - offset));
+            int attributeOffset = offset;
+            Attribute att
+                = AttributeDecoder.decodeLazily(attributeBytes, offset);
 
             /* "With the exception of the FINGERPRINT
                 attribute, which appears after MESSAGE-INTEGRITY, agents MUST ignore
                 all other attributes that follow MESSAGE-INTEGRITY." */
             if (!sawMessageIntegrity || att.getAttributeType() == Attribute.FINGERPRINT)
             {
-                performAttributeSpecificActions(att, binMessage,
-                        originalOffset, offset);
+                performAttributeSpecificActions(att, checksum);
 
                 message.putAttribute(att);
             }
@@ -1169,6 +1490,11 @@ public abstract class Message
                 offset += (4 - (att.getDataLength() % 4));
             }
 
+            checksum.update(
+                    attributeBytes,
+                    attributeOffset,
+                    Math.min(offset, attributeBytes.length) - attributeOffset);
+
             if (att.getAttributeType() == Attribute.MESSAGE_INTEGRITY)
             {
                 sawMessageIntegrity = true;
@@ -1183,25 +1509,22 @@ public abstract class Message
      * fingerprint checksum.
      *
      * @param attribute the <tt>Attribute</tt> we'd like to process.
-     * @param binMessage the byte array that the message arrived with.
-     * @param offset the index where data starts in <tt>binMessage</tt>.
-     * @param msgLen the number of message bytes in <tt>binMessage</tt>.
+     * @param checksum the CRC32 checksum of the bytes of the message which
+     * precede <tt>attribute</tt>.
      *
      * @throws StunException if there's something in the <tt>attribute</tt> that
      * caused us to discard the whole message (e.g. an invalid checksum or
      * username)
      */
     private static void performAttributeSpecificActions(Attribute attribute,
-                                                        byte[]    binMessage,
-                                                        int       offset,
-                                                        int       msgLen)
+                                                        CRC32     checksum)
         throws StunException
     {
         //check finger print CRC
         if (attribute instanceof FingerprintAttribute)
         {
             if (!validateFingerprint((FingerprintAttribute)attribute,
-                            binMessage, offset, msgLen))
+                            checksum.getValue()))
             {
                 //RFC 5389 says that we should ignore bad CRCs rather than
                 //reply with an error response.
@@ -1211,42 +1534,40 @@ public abstract class Message
     }
 
     /**
-     * Recalculates the FINGERPRINT CRC32 checksum of the <tt>message</tt>
-     * array so that we could compare it with the value brought by the
+     * Compares the CRC32 checksum of a message with the value brought by its
      * {@link FingerprintAttribute}.
      *
      * @param fingerprint the attribute that we need to validate.
-     * @param message the message whose CRC32 checksum we'd need to recalculate.
-     * @param offset the index in <tt>message</tt> where data starts.
-     * @param length the number of bytes in <tt>message</tt> that the CRC32
-     * would need to be calculated over.
+     * @param crc the CRC32 checksum of the bytes of the message which precede
+     * <tt>fingerprint</tt>.
      *
      * @return <tt>true</tt> if <tt>FINGERPRINT</tt> contains a valid CRC32
      * value and <tt>false</tt> otherwise.
      */
     private static boolean validateFingerprint(FingerprintAttribute fingerprint,
-                                               byte[]               message,
-                                               int                  offset,
-                                               int                  length)
+                                               long                 crc)
     {
-
         byte[] incomingCrcBytes = fingerprint.getChecksum();
+        long incomingCrc = 0;
 
-        //now check whether the CRC really is what it's supposed to be.
-        //re calculate the check sum
-        byte[] realCrcBytes = FingerprintAttribute.calculateXorCRC32(
-                        message, offset, length);
+        for (int i = 0; i < 4; i++)
+        {
+            incomingCrc
+                = (incomingCrc << 8)
+                    | ((incomingCrcBytes[i] ^ FingerprintAttribute.XOR_MASK[i])
+                            & 0xFF);
+        }
 
         //CRC validation.
-        if ( ! Arrays.equals(incomingCrcBytes, realCrcBytes))
+        if (incomingCrc != crc)
         {
             if (logger.isLoggable(Level.FINE))
             {
                 logger.fine(
                         "An incoming message arrived with a wrong FINGERPRINT "
                         +"attribute value. "
-                        +"CRC Was:"  + Arrays.toString(incomingCrcBytes)
-                        + ". Should have been:" + Arrays.toString(realCrcBytes)
+                        +"CRC Was:"  + Long.toHexString(incomingCrc)
+                        + ". Should have been:" + Long.toHexString(crc)
                         +". Will ignore.");
             }
 
@@ -0,0 +1,83 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.metrics;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A monotonic counter of a {@link Metrics} registry. Backed by a
+ * <tt>LongAdder</tt>, so that it can be updated from many threads without
+ * contention. A counter of a registry which has a parent also updates the
+ * counter with the same name in the parent, so that e.g. the counters of all
+ * the agents add up in {@link Metrics#GLOBAL}.
+ */
+public final class Counter
+{
+    /**
+     * The value of this counter.
+     */
+    private final LongAdder value = new LongAdder();
+
+    /**
+     * The counter which is updated along with this one or <tt>null</tt>.
+     */
+    private final Counter parent;
+
+    /**
+     * Initializes a new <tt>Counter</tt>.
+     *
+     * @param parent the counter which is to be updated along with the new one
+     * or <tt>null</tt>.
+     */
+    Counter(Counter parent)
+    {
+        this.parent = parent;
+    }
+
+    /**
+     * Adds one to this counter.
+     */
+    public void increment()
+    {
+        value.increment();
+        if (parent != null)
+            parent.increment();
+    }
+
+    /**
+     * Adds a specific amount to this counter.
+     *
+     * @param delta the amount to add.
+     */
+    public void add(long delta)
+    {
+        value.add(delta);
+        if (parent != null)
+            parent.add(delta);
+    }
+
+    /**
+     * Returns the current value of this counter.
+     *
+     * @return the current value of this counter.
+     */
+    public long get()
+    {
+        return value.sum();
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.metrics;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A histogram of non-negative values (e.g. latencies in microseconds) of a
+ * {@link Metrics} registry. Like an HDR histogram, it uses log-linear buckets:
+ * every power of two is split into {@link #SUB_BUCKET_COUNT} buckets, so that
+ * values are recorded with a relative precision of about 3% over the whole
+ * range, in a fixed amount of memory and without locking.
+ * <p>
+ * A histogram of a registry which has a parent also records its values into
+ * the histogram with the same name in the parent.
+ */
+public final class Histogram
+{
+    /**
+     * The number of bits of the values which are kept in each power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * The number of buckets into which each power of two is split.
+     */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The largest value which can be recorded. Larger values are recorded as
+     * this one.
+     */
+    public static final long MAX_VALUE = (1L << 40) - 1;
+
+    /**
+     * The number of buckets of a histogram.
+     */
+    private static final int BUCKET_COUNT = getBucketIndex(MAX_VALUE) + 1;
+
+    /**
+     * The number of values in each bucket.
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * The number of recorded values.
+     */
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * The sum of the recorded values.
+     */
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * The smallest recorded value.
+     */
+    private final LongAccumulator min
+        = new LongAccumulator(Math::min, Long.MAX_VALUE);
+
+    /**
+     * The largest recorded value.
+     */
+    private final LongAccumulator max
+        = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+    /**
+     * The histogram into which values are recorded along with this one or
+     * <tt>null</tt>.
+     */
+    private final Histogram parent;
+
+    /**
+     * Initializes a new <tt>Histogram</tt>.
+     *
+     * @param parent the histogram into which values are to be recorded along
+     * with the new one or <tt>null</tt>.
+     */
+    Histogram(Histogram parent)
+    {
+        this.parent = parent;
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value the value to record. Negative values are recorded as
+     * <tt>0</tt> and values larger than {@link #MAX_VALUE} as
+     * <tt>MAX_VALUE</tt>.
+     */
+    public void record(long value)
+    {
+        value = Math.max(0, Math.min(value, MAX_VALUE));
+
+        buckets.incrementAndGet(getBucketIndex(value));
+        count.increment();
+        sum.add(value);
+        min.accumulate(value);
+        max.accumulate(value);
+        if (parent != null)
+            parent.record(value);
+    }
+
+    /**
+     * Returns a snapshot of the current state of this histogram.
+     *
+     * @return a snapshot of the current state of this histogram.
+     */
+    public Snapshot getSnapshot()
+    {
+        long[] counts = new long[BUCKET_COUNT];
+
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = buckets.get(i);
+
+        return
+            new Snapshot(
+                    counts,
+                    count.sum(),
+                    sum.sum(),
+                    min.get(),
+                    max.get());
+    }
+
+    /**
+     * Returns the index of the bucket of a value.
+     *
+     * @param value the value, between <tt>0</tt> and {@link #MAX_VALUE}.
+     * @return the index of the bucket of <tt>value</tt>.
+     */
+    private static int getBucketIndex(long value)
+    {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+
+        return SUB_BUCKET_COUNT * (shift + 1) + subBucket;
+    }
+
+    /**
+     * Returns the largest value which falls into a specific bucket.
+     *
+     * @param index the index of the bucket.
+     * @return the largest value which falls into bucket <tt>index</tt>.
+     */
+    private static long getBucketUpperBound(int index)
+    {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_COUNT;
+
+        return ((SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * An immutable snapshot of a {@link Histogram}.
+     */
+    public static final class Snapshot
+    {
+        /**
+         * The number of values in each bucket.
+         */
+        private final long[] counts;
+
+        /**
+         * The number of values.
+         */
+        private final long count;
+
+        /**
+         * The sum of the values.
+         */
+        private final long sum;
+
+        /**
+         * The smallest value.
+         */
+        private final long min;
+
+        /**
+         * The largest value.
+         */
+        private final long max;
+
+        /**
+         * Initializes a new <tt>Snapshot</tt>.
+         */
+        private Snapshot(long[] counts, long count, long sum, long min, long max)
+        {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * Returns the number of values.
+         *
+         * @return the number of values.
+         */
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * Returns the sum of the values.
+         *
+         * @return the sum of the values.
+         */
+        public long getSum()
+        {
+            return sum;
+        }
+
+        /**
+         * Returns the smallest value or <tt>0</tt> if there are no values.
+         *
+         * @return the smallest value or <tt>0</tt> if there are no values.
+         */
+        public long getMin()
+        {
+            return (count == 0) ? 0 : min;
+        }
+
+        /**
+         * Returns the largest value or <tt>0</tt> if there are no values.
+         *
+         * @return the largest value or <tt>0</tt> if there are no values.
+         */
+        public long getMax()
+        {
+            return (count == 0) ? 0 : max;
+        }
+
+        /**
+         * Returns the mean of the values or <tt>0</tt> if there are no values.
+         *
+         * @return the mean of the values or <tt>0</tt> if there are no values.
+         */
+        public double getMean()
+        {
+            return (count == 0) ? 0D : ((double) sum) / count;
+        }
+
+        /**
+         * Returns the (approximate) value below which a specific percentage of
+         * the values fall.
+         *
+         * @param percentile the percentage, between <tt>0</tt> and
+         * <tt>100</tt>.
+         * @return the value below which <tt>percentile</tt> percent of the
+         * values fall, or <tt>0</tt> if there are no values.
+         */
+        public long getValueAtPercentile(double percentile)
+        {
+            long total = 0;
+
+            for (long c : counts)
+                total += c;
+            if (total == 0)
+                return 0;
+
+            long rank
+                = Math.max(
+                        1,
+                        (long) Math.ceil(
+                                Math.min(100D, percentile) / 100D * total));
+            long seen = 0;
+
+            for (int i = 0; i < counts.length; i++)
+            {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(getBucketUpperBound(i), getMax());
+            }
+            return getMax();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.metrics;
+
+import org.jitsi.utils.*;
+
+/**
+ * The count, last, minimum, maximum and mean of a series of latencies (e.g.
+ * in microseconds). Unlike a {@link Histogram}, it takes a few words of
+ * memory, so it can be kept for objects which are too numerous to have a
+ * histogram each, such as the candidate pairs of an agent.
+ */
+public final class LatencySummary
+{
+    /**
+     * The number of recorded values.
+     */
+    private long count;
+
+    /**
+     * The sum of the recorded values.
+     */
+    private long sum;
+
+    /**
+     * The last recorded value.
+     */
+    private long last;
+
+    /**
+     * The smallest recorded value.
+     */
+    private long min;
+
+    /**
+     * The largest recorded value.
+     */
+    private long max;
+
+    /**
+     * Records a value.
+     *
+     * @param value the value to record. Negative values are recorded as
+     * <tt>0</tt>.
+     */
+    public synchronized void record(long value)
+    {
+        value = Math.max(0, value);
+
+        if (count == 0 || value < min)
+            min = value;
+        if (count == 0 || value > max)
+            max = value;
+        last = value;
+        sum += value;
+        count++;
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return the number of recorded values.
+     */
+    public synchronized long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Returns the last recorded value.
+     *
+     * @return the last recorded value or <tt>0</tt> if no value has been
+     * recorded.
+     */
+    public synchronized long getLast()
+    {
+        return last;
+    }
+
+    /**
+     * Returns the smallest recorded value.
+     *
+     * @return the smallest recorded value or <tt>0</tt> if no value has been
+     * recorded.
+     */
+    public synchronized long getMin()
+    {
+        return min;
+    }
+
+    /**
+     * Returns the largest recorded value.
+     *
+     * @return the largest recorded value or <tt>0</tt> if no value has been
+     * recorded.
+     */
+    public synchronized long getMax()
+    {
+        return max;
+    }
+
+    /**
+     * Returns the mean of the recorded values.
+     *
+     * @return the mean of the recorded values or <tt>0</tt> if no value has
+     * been recorded.
+     */
+    public synchronized double getMean()
+    {
+        return (count == 0) ? 0 : ((double) sum) / count;
+    }
+
+    /**
+     * Renders this summary as a JSON object with the fields <tt>count</tt>,
+     * <tt>last</tt>, <tt>min</tt>, <tt>max</tt> and <tt>mean</tt>.
+     *
+     * @return this summary as a JSON object.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized OrderedJsonObject toJsonObject()
+    {
+        OrderedJsonObject json = new OrderedJsonObject();
+
+        json.put("count", count);
+        json.put("last", last);
+        json.put("min", min);
+        json.put("max", max);
+        json.put("mean", MetricsSnapshot.roundMean(getMean()));
+        return json;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.metrics;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A registry of named {@link Counter}s and {@link Histogram}s. The process-wide
+ * registry is {@link #GLOBAL}; every {@link org.ice4j.stack.StunStack} and
+ * every {@link org.ice4j.ice.Agent} has its own registry whose metrics add up
+ * in it.
+ * <p>
+ * Metrics are updated without locking and are read through
+ * {@link #getSnapshot()}. The code which updates a metric is expected to look
+ * it up once and to keep a reference to it. The metrics maintained by ice4j
+ * are:
+ * <ul>
+ * <li><tt>socket.{udp,tcp}.{packets,bytes}_{sent,received}</tt> (global only):
+ * the traffic of the ICE sockets;</li>
+ * <li><tt>stun.{sent,received}.&lt;method&gt;.&lt;class&gt;</tt>: the STUN
+ * messages by type, e.g. <tt>stun.received.binding.request</tt>;</li>
+ * <li><tt>stun.decode_failures</tt> and <tt>stun.integrity_failures</tt>: the
+ * received messages which could not be decoded (including those with an
+ * invalid FINGERPRINT) and the requests rejected because of their USERNAME or
+ * MESSAGE-INTEGRITY;</li>
+ * <li><tt>stun.client.retransmissions</tt>, <tt>stun.client.timeouts</tt> and
+ * <tt>stun.server.retransmissions</tt>: the retransmitted requests, the
+ * transactions which timed out and the retransmitted responses;</li>
+ * <li><tt>stun.client.rtt_us</tt>: the round-trip times of the transactions
+ * whose request was not retransmitted;</li>
+ * <li><tt>ice.checks.{sent,succeeded,failed}</tt> and
+ * <tt>ice.check.rtt_us</tt>: the connectivity checks and their round-trip
+ * times. The round-trip times are also kept for each pair, in a
+ * {@link LatencySummary} (see
+ * {@link org.ice4j.ice.CandidatePair#getRoundTripTimes()}), rather than in a
+ * registry, so that the registries don't grow with the number of pairs;</li>
+ * <li><tt>harvest.udp.queue_{enqueued,drops}</tt> and
+ * <tt>harvest.udp.queue_residence_us</tt> (global only): the packets queued
+ * and dropped by the demultiplexing queues of single-port harvesters and the
+ * time they spent there;</li>
+ * <li><tt>harvest.udp.unknown_source.{admitted,not_binding_request,
+ * no_username,unknown_ufrag,rate_limited,malformed}</tt> (global only): the
+ * datagrams from unknown addresses admitted by single-port harvesters, and
+ * those dropped at each stage of admission;</li>
+ * <li><tt>turn.refresh.{success,failure}</tt>: the outcomes of TURN Refresh
+ * requests.</li>
+ * </ul>
+ */
+public class Metrics
+{
+    /**
+     * The process-wide registry.
+     */
+    public static final Metrics GLOBAL = new Metrics(null);
+
+    /**
+     * The registry whose metrics are updated along with the metrics of this
+     * registry or <tt>null</tt>.
+     */
+    private final Metrics parent;
+
+    /**
+     * The counters of this registry mapped against their names.
+     */
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    /**
+     * The histograms of this registry mapped against their names.
+     */
+    private final Map<String, Histogram> histograms
+        = new ConcurrentHashMap<>();
+
+    /**
+     * Initializes a new <tt>Metrics</tt> registry.
+     *
+     * @param parent the registry whose metrics are to be updated along with
+     * the metrics of the new registry (typically {@link #GLOBAL}) or
+     * <tt>null</tt>.
+     */
+    public Metrics(Metrics parent)
+    {
+        this.parent = parent;
+    }
+
+    /**
+     * Returns the counter of this registry with a specific name, creating it
+     * if necessary.
+     *
+     * @param name the name of the counter.
+     * @return the counter of this registry named <tt>name</tt>.
+     */
+    public Counter counter(String name)
+    {
+        Counter counter = counters.get(name);
+
+        if (counter == null)
+        {
+            Counter parentCounter
+                = (parent == null) ? null : parent.counter(name);
+
+            counter
+                = counters.computeIfAbsent(
+                        name,
+                        key -> new Counter(parentCounter));
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the histogram of this registry with a specific name, creating it
+     * if necessary.
+     *
+     * @param name the name of the histogram.
+     * @return the histogram of this registry named <tt>name</tt>.
+     */
+    public Histogram histogram(String name)
+    {
+        Histogram histogram = histograms.get(name);
+
+        if (histogram == null)
+        {
+            Histogram parentHistogram
+                = (parent == null) ? null : parent.histogram(name);
+
+            histogram
+                = histograms.computeIfAbsent(
+                        name,
+                        key -> new Histogram(parentHistogram));
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns a snapshot of the current values of the metrics of this
+     * registry.
+     *
+     * @return a snapshot of the current values of the metrics of this
+     * registry.
+     */
+    public MetricsSnapshot getSnapshot()
+    {
+        Map<String, Long> counterValues = new TreeMap<>();
+        Map<String, Histogram.Snapshot> histogramSnapshots = new TreeMap<>();
+
+        counters.forEach((name, counter) -> counterValues.put(name, counter.get()));
+        histograms.forEach(
+            (name, histogram) ->
+                histogramSnapshots.put(name, histogram.getSnapshot()));
+
+        return new MetricsSnapshot(counterValues, histogramSnapshots);
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.metrics;
+
+import java.util.*;
+
+import org.jitsi.utils.*;
+
+/**
+ * An immutable snapshot of the metrics of a {@link Metrics} registry.
+ */
+public class MetricsSnapshot
+{
+    /**
+     * The percentiles of the histograms which are rendered by
+     * {@link #toJson()}.
+     */
+    private static final double[] PERCENTILES = { 50D, 90D, 99D, 99.9D };
+
+    /**
+     * The names of {@link #PERCENTILES} in JSON.
+     */
+    private static final String[] PERCENTILE_NAMES
+        = { "p50", "p90", "p99", "p999" };
+
+    /**
+     * The values of the counters mapped against their names.
+     */
+    private final Map<String, Long> counters;
+
+    /**
+     * The snapshots of the histograms mapped against their names.
+     */
+    private final Map<String, Histogram.Snapshot> histograms;
+
+    /**
+     * Initializes a new <tt>MetricsSnapshot</tt>.
+     *
+     * @param counters the values of the counters mapped against their names.
+     * @param histograms the snapshots of the histograms mapped against their
+     * names.
+     */
+    MetricsSnapshot(
+            Map<String, Long> counters,
+            Map<String, Histogram.Snapshot> histograms)
+    {
+        this.counters = Collections.unmodifiableMap(counters);
+        this.histograms = Collections.unmodifiableMap(histograms);
+    }
+
+    /**
+     * Returns the values of the counters mapped against their names.
+     *
+     * @return the values of the counters mapped against their names.
+     */
+    public Map<String, Long> getCounters()
+    {
+        return counters;
+    }
+
+    /**
+     * Returns the value of a counter.
+     *
+     * @param name the name of the counter.
+     * @return the value of the counter named <tt>name</tt> or <tt>0</tt> if
+     * there is no such counter.
+     */
+    public long getCounter(String name)
+    {
+        Long value = counters.get(name);
+
+        return (value == null) ? 0 : value;
+    }
+
+    /**
+     * Returns the snapshots of the histograms mapped against their names.
+     *
+     * @return the snapshots of the histograms mapped against their names.
+     */
+    public Map<String, Histogram.Snapshot> getHistograms()
+    {
+        return histograms;
+    }
+
+    /**
+     * Returns the snapshot of a histogram.
+     *
+     * @param name the name of the histogram.
+     * @return the snapshot of the histogram named <tt>name</tt> or
+     * <tt>null</tt> if there is no such histogram.
+     */
+    public Histogram.Snapshot getHistogram(String name)
+    {
+        return histograms.get(name);
+    }
+
+    /**
+     * Renders this snapshot in JSON, in the form
+     * <tt>{"counters":{"name":value,...},"histograms":{"name":{"count":...,
+     * "min":...,"max":...,"mean":...,"p50":...,...},...}}</tt>.
+     *
+     * @return this snapshot rendered in JSON.
+     */
+    public String toJson()
+    {
+        return toJsonObject().toJSONString();
+    }
+
+    /**
+     * Renders this snapshot as a JSON object. See {@link #toJson()} for its
+     * form.
+     *
+     * @return this snapshot as a JSON object.
+     */
+    @SuppressWarnings("unchecked")
+    public OrderedJsonObject toJsonObject()
+    {
+        OrderedJsonObject countersJson = new OrderedJsonObject();
+
+        counters.forEach(countersJson::put);
+
+        OrderedJsonObject histogramsJson = new OrderedJsonObject();
+
+        histograms.forEach(
+            (name, histogram) -> histogramsJson.put(name, toJson(histogram)));
+
+        OrderedJsonObject json = new OrderedJsonObject();
+
+        json.put("counters", countersJson);
+        json.put("histograms", histogramsJson);
+        return json;
+    }
+
+    /**
+     * Renders the snapshot of a histogram as a JSON object.
+     *
+     * @param histogram the snapshot of the histogram to render.
+     * @return <tt>histogram</tt> as a JSON object.
+     */
+    @SuppressWarnings("unchecked")
+    private static OrderedJsonObject toJson(Histogram.Snapshot histogram)
+    {
+        OrderedJsonObject json = new OrderedJsonObject();
+
+        json.put("count", histogram.getCount());
+        json.put("min", histogram.getMin());
+        json.put("max", histogram.getMax());
+        json.put("mean", roundMean(histogram.getMean()));
+        for (int i = 0; i < PERCENTILES.length; i++)
+        {
+            json.put(
+                PERCENTILE_NAMES[i],
+                histogram.getValueAtPercentile(PERCENTILES[i]));
+        }
+        return json;
+    }
+
+    /**
+     * Rounds a mean to one decimal for rendering in JSON.
+     *
+     * @param mean the mean to round.
+     * @return <tt>mean</tt> rounded to one decimal.
+     */
+    static double roundMean(double mean)
+    {
+        return Math.round(mean * 10D) / 10D;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return toJson();
+    }
+}
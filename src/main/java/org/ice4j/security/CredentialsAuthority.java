@@ -69,4 +69,19 @@ public interface CredentialsAuthority
      * <tt>CredentialsAuthority</tt> and <tt>false</tt> otherwise.
      */
     public boolean checkLocalUserName(String username);
+
+    /**
+     * Returns the local user frag which all the local user names known to this
+     * authority start with, or <tt>null</tt> if this authority is not bound to
+     * a single ufrag. The value must not change while the authority is
+     * registered with a {@link CredentialsManager}, which uses it to look the
+     * authority up without querying all the other ones.
+     *
+     * @return the local ufrag of this <tt>CredentialsAuthority</tt> or
+     * <tt>null</tt> if it is not bound to a single ufrag.
+     */
+    public default String getLocalUfrag()
+    {
+        return null;
+    }
 }
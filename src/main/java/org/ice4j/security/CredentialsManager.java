@@ -18,6 +18,7 @@
 package org.ice4j.security;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * The <tt>CredentialsManager</tt> allows an application to handle verification
@@ -27,6 +28,12 @@ import java.util.*;
  * possible users (such as STUN/TURN servers) or others that would only work
  * with a few, like for example an ICE implementation.
  *
+ * Authorities which declare the local ufrag they stand for (see
+ * {@link CredentialsAuthority#getLocalUfrag()}) are indexed by it, so that
+ * finding the authority of a local user name doesn't depend on the number of
+ * registered authorities (e.g. of ICE agents sharing a <tt>StunStack</tt>).
+ * The other authorities are queried one after the other.
+ *
  * TODO: just throwing a user name at the manager and expecting it to find
  * an authority that knows about it may lead to ambiguities so we may need
  * to add other parameters in here that would allow us to better select an
@@ -38,10 +45,17 @@ import java.util.*;
 public class CredentialsManager
 {
     /**
-     * The list of <tt>CredentialsAuthority</tt>s registered with this manager
-     * as being able to provide credentials.
+     * An empty array of <tt>CredentialsAuthority</tt>s.
+     */
+    private static final CredentialsAuthority[] NO_AUTHORITIES
+        = new CredentialsAuthority[0];
+
+    /**
+     * The set of <tt>CredentialsAuthority</tt>s registered with this manager
+     * as being able to provide credentials, in the order of their
+     * registration.
      */
-    private final List<CredentialsAuthority> authorities = new LinkedList<>();
+    private final Set<CredentialsAuthority> authorities = new LinkedHashSet<>();
 
     /**
      * The list of <tt>CredentialsAuthority</tt>s registered with this manager
@@ -52,6 +66,22 @@ public class CredentialsManager
      */
     private CredentialsAuthority[] unmodifiableAuthorities;
 
+    /**
+     * The registered <tt>CredentialsAuthority</tt>s which declare a local
+     * ufrag, mapped against it. The arrays are never modified, they are
+     * replaced whenever an authority is added or removed.
+     */
+    private final Map<String, CredentialsAuthority[]> authoritiesByUfrag
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The registered <tt>CredentialsAuthority</tt>s which don't declare a local
+     * ufrag. The array is never modified, it is replaced whenever an authority
+     * is added or removed.
+     */
+    private volatile CredentialsAuthority[] unindexedAuthorities
+        = NO_AUTHORITIES;
+
     /**
      * Verifies whether <tt>username</tt> is currently known to any of the
      * {@link CredentialsAuthority}s registered with this manager and
@@ -65,7 +95,12 @@ public class CredentialsManager
      */
     public boolean checkLocalUserName(String username)
     {
-        for (CredentialsAuthority auth : getAuthorities())
+        for (CredentialsAuthority auth : getIndexedAuthorities(username, false))
+        {
+            if (auth.checkLocalUserName(username))
+                return true;
+        }
+        for (CredentialsAuthority auth : unindexedAuthorities)
         {
             if (auth.checkLocalUserName(username))
                 return true;
@@ -98,6 +133,47 @@ public class CredentialsManager
         }
     }
 
+    /**
+     * Gets the indexed <tt>CredentialsAuthority</tt>s which may know about a
+     * specific user name, i.e. the ones whose local ufrag is the first part
+     * of a local user name or the second part of a remote user name.
+     * <b>Warning</b>: the returned value is an internal state of this instance
+     * and is to be considered unmodifiable.
+     *
+     * @param username the user name or user frag.
+     * @param remote <tt>true</tt> if <tt>username</tt> is a remote user name
+     * (i.e. <tt>remote-ufrag:local-ufrag</tt>) and <tt>false</tt> if it is a
+     * local one (i.e. <tt>local-ufrag:remote-ufrag</tt>).
+     *
+     * @return the indexed <tt>CredentialsAuthority</tt>s which may know about
+     * <tt>username</tt>.
+     */
+    private CredentialsAuthority[] getIndexedAuthorities(
+            String username,
+            boolean remote)
+    {
+        if (username == null)
+            return NO_AUTHORITIES;
+
+        int colon = username.indexOf(':');
+        String ufrag;
+
+        if (remote)
+        {
+            if (colon < 0)
+                return NO_AUTHORITIES;
+            ufrag = username.substring(colon + 1);
+        }
+        else
+        {
+            ufrag = (colon < 0) ? username : username.substring(0, colon);
+        }
+
+        CredentialsAuthority[] auths = authoritiesByUfrag.get(ufrag);
+
+        return (auths == null) ? NO_AUTHORITIES : auths;
+    }
+
     /**
      * Queries all currently registered {@link CredentialsAuthority}s for a
      * password corresponding to the specified local <tt>username</tt> or user
@@ -113,7 +189,14 @@ public class CredentialsManager
      */
     public byte[] getLocalKey(String username)
     {
-        for (CredentialsAuthority auth : getAuthorities())
+        for (CredentialsAuthority auth : getIndexedAuthorities(username, false))
+        {
+            byte[] passwd = auth.getLocalKey(username);
+
+            if (passwd != null)
+                return passwd;
+        }
+        for (CredentialsAuthority auth : unindexedAuthorities)
         {
             byte[] passwd = auth.getLocalKey(username);
 
@@ -139,7 +222,27 @@ public class CredentialsManager
      */
     public byte[] getRemoteKey(String username, String media)
     {
-        for (CredentialsAuthority auth : getAuthorities())
+        // A full remote user name ends with the local ufrag, which narrows
+        // the search down to the authorities indexed by it. A remote ufrag
+        // alone has to be looked up in all the authorities.
+        boolean indexed = (username != null) && (username.indexOf(':') >= 0);
+
+        if (indexed)
+        {
+            for (CredentialsAuthority auth
+                    : getIndexedAuthorities(username, true))
+            {
+                byte[] passwd = auth.getRemoteKey(username, media);
+
+                if (passwd != null)
+                {
+                    /** @todo: we should probably add SASLprep here.*/
+                    return passwd;
+                }
+            }
+        }
+        for (CredentialsAuthority auth
+                : indexed ? unindexedAuthorities : getAuthorities())
         {
             byte[] passwd = auth.getRemoteKey(username, media);
 
@@ -162,8 +265,24 @@ public class CredentialsManager
     {
         synchronized (authorities)
         {
-            if (!authorities.contains(authority) && authorities.add(authority))
+            if (authorities.add(authority))
+            {
                 unmodifiableAuthorities = null;
+
+                String ufrag = authority.getLocalUfrag();
+
+                if (ufrag == null)
+                {
+                    unindexedAuthorities = add(unindexedAuthorities, authority);
+                }
+                else
+                {
+                    authoritiesByUfrag.merge(
+                            ufrag,
+                            new CredentialsAuthority[] { authority },
+                            (auths, newAuths) -> add(auths, authority));
+                }
+            }
         }
     }
 
@@ -179,7 +298,70 @@ public class CredentialsManager
         synchronized (authorities)
         {
             if (authorities.remove(authority))
+            {
                 unmodifiableAuthorities = null;
+
+                String ufrag = authority.getLocalUfrag();
+
+                if (ufrag == null)
+                {
+                    unindexedAuthorities
+                        = remove(unindexedAuthorities, authority);
+                }
+                else
+                {
+                    authoritiesByUfrag.computeIfPresent(
+                            ufrag,
+                            (key, auths) -> {
+                                CredentialsAuthority[] newAuths
+                                    = remove(auths, authority);
+
+                                return
+                                    (newAuths.length == 0) ? null : newAuths;
+                            });
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of an array of <tt>CredentialsAuthority</tt>s with a
+     * specific authority appended to it.
+     *
+     * @param auths the array to copy.
+     * @param authority the authority to append.
+     * @return a copy of <tt>auths</tt> with <tt>authority</tt> appended to it.
+     */
+    private static CredentialsAuthority[] add(
+            CredentialsAuthority[] auths,
+            CredentialsAuthority authority)
+    {
+        CredentialsAuthority[] newAuths
+            = Arrays.copyOf(auths, auths.length + 1);
+
+        newAuths[auths.length] = authority;
+        return newAuths;
+    }
+
+    /**
+     * Returns a copy of an array of <tt>CredentialsAuthority</tt>s without a
+     * specific authority.
+     *
+     * @param auths the array to copy.
+     * @param authority the authority to leave out.
+     * @return a copy of <tt>auths</tt> without <tt>authority</tt>.
+     */
+    private static CredentialsAuthority[] remove(
+            CredentialsAuthority[] auths,
+            CredentialsAuthority authority)
+    {
+        List<CredentialsAuthority> newAuths = new ArrayList<>(auths.length);
+
+        for (CredentialsAuthority auth : auths)
+        {
+            if (!auth.equals(authority))
+                newAuths.add(auth);
         }
+        return newAuths.toArray(NO_AUTHORITIES);
     }
 }
@@ -40,6 +40,13 @@ public class LongTermCredentialSession
      */
     private final LongTermCredential longTermCredential;
 
+    /**
+     * The key derived from {@link #longTermCredential} and {@link #realm}
+     * (i.e. <tt>MD5(username ":" realm ":" password)</tt>), computed on first
+     * use because neither of them changes.
+     */
+    private volatile byte[] localKey;
+
     /**
      * The value of the NONCE attribute currently associated with the use of
      * {@link #longTermCredential} represented by this instance.
@@ -126,6 +133,22 @@ public class LongTermCredentialSession
         if (!checkLocalUserName(username))
             return null;
 
+        byte[] localKey = this.localKey;
+
+        if (localKey == null)
+            this.localKey = localKey = createLocalKey(username);
+        return localKey.clone();
+    }
+
+    /**
+     * Derives the key of the long-term credential mechanism from the
+     * username, the realm and the password.
+     *
+     * @param username the username of {@link #longTermCredential}.
+     * @return <tt>MD5(username ":" realm ":" SASLprep(password))</tt>
+     */
+    private byte[] createLocalKey(String username)
+    {
         // MD5(username ":" realm ":" SASLprep(password))
         StringBuilder localKeyBuilder = new StringBuilder();
 
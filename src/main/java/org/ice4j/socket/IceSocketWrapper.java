@@ -19,6 +19,10 @@ package org.ice4j.socket;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+
+import org.ice4j.util.Buffer;
+import org.ice4j.util.BufferPool;
 
 /**
  * Abstract socket wrapper that define a socket that could be UDP, TCP...
@@ -52,6 +56,113 @@ public abstract class IceSocketWrapper
     public abstract void receive(DatagramPacket p)
         throws IOException;
 
+    /**
+     * Sends the remaining bytes of a <tt>ByteBuffer</tt> from this socket, in
+     * the manner of {@link java.nio.channels.DatagramChannel#send(ByteBuffer,
+     * SocketAddress)}. The position of <tt>src</tt> is advanced by the number
+     * of bytes sent.
+     * <p>
+     * Implementations which are backed by a channel send <tt>src</tt> through
+     * it, so that direct buffers are not copied. This default implementation
+     * goes through {@link #send(DatagramPacket)}: a heap buffer is sent in
+     * place and any other buffer is copied into a pooled array first.
+     *
+     * @param src the buffer which contains the bytes to send.
+     * @param target the address to send to, or <tt>null</tt> if this socket
+     * is connected (e.g. it is a TCP one).
+     * @return the number of bytes sent.
+     * @throws IOException if something goes wrong
+     */
+    public int send(ByteBuffer src, SocketAddress target)
+        throws IOException
+    {
+        int position = src.position();
+        int length = src.remaining();
+        Buffer buffer = null;
+        DatagramPacket p;
+
+        if (src.hasArray())
+        {
+            p
+                = new DatagramPacket(
+                        src.array(), src.arrayOffset() + position, length);
+        }
+        else
+        {
+            buffer = BufferPool.getBuffer.invoke(length);
+            src.get(buffer.getBuffer(), 0, length);
+            src.position(position);
+            p = new DatagramPacket(buffer.getBuffer(), 0, length);
+        }
+        if (target != null)
+            p.setSocketAddress(target);
+
+        try
+        {
+            send(p);
+        }
+        finally
+        {
+            if (buffer != null)
+                BufferPool.returnBuffer.invoke(buffer);
+        }
+        src.position(position + length);
+        return length;
+    }
+
+    /**
+     * Receives a packet from this socket into a <tt>ByteBuffer</tt>, in the
+     * manner of {@link java.nio.channels.DatagramChannel#receive(ByteBuffer)}.
+     * The packet is written at the position of <tt>dst</tt>, which is
+     * advanced by its length. If the packet is longer than the remaining space
+     * in <tt>dst</tt>, it is truncated.
+     * <p>
+     * Implementations which are backed by a channel receive into <tt>dst</tt>
+     * directly, so that direct buffers are not copied. This default
+     * implementation goes through {@link #receive(DatagramPacket)}: a heap
+     * buffer which is entirely free is received into in place and any other
+     * buffer is filled from a pooled array.
+     *
+     * @param dst the buffer to receive the packet into.
+     * @return the address of the source of the packet.
+     * @throws IOException if something goes wrong
+     */
+    public SocketAddress receive(ByteBuffer dst)
+        throws IOException
+    {
+        int position = dst.position();
+        int length = dst.remaining();
+        // DatagramPacket receivers may fill the whole array past the offset,
+        // so only receive in place if dst covers all of its array.
+        boolean inPlace
+            = dst.hasArray()
+                && dst.arrayOffset() == 0
+                && position == 0
+                && dst.limit() == dst.array().length;
+        Buffer buffer = inPlace ? null : BufferPool.getBuffer.invoke(length);
+        byte[] buf = inPlace ? dst.array() : buffer.getBuffer();
+        DatagramPacket p = new DatagramPacket(buf, 0, length);
+
+        try
+        {
+            receive(p);
+
+            byte[] data = p.getData();
+            int dataLength = Math.min(p.getLength(), length);
+
+            if (data == buf && inPlace && p.getOffset() == 0)
+                dst.position(position + dataLength);
+            else
+                dst.put(data, p.getOffset(), dataLength);
+        }
+        finally
+        {
+            if (buffer != null)
+                BufferPool.returnBuffer.invoke(buffer);
+        }
+        return p.getSocketAddress();
+    }
+
     /**
      * Closes this socket.
      */
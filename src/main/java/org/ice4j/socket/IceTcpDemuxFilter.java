@@ -0,0 +1,86 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.socket;
+
+import java.net.*;
+
+import org.ice4j.ice.harvest.*;
+import org.ice4j.message.*;
+
+/**
+ * Implements a {@link DatagramPacketFilter} which allows demultiplexing ICE-TCP
+ * out of {@link MuxServerSocketChannel}. Accepts an RFC4571-framed STUN Binding
+ * Request and the pseudo-SSL handshake of Google TURN SSLTCP, i.e. the first
+ * bytes which {@link AbstractTcpListener} expects from a connection.
+ */
+public class IceTcpDemuxFilter
+    implements DatagramPacketFilter
+{
+    /**
+     * The number of bytes needed to recognize an RFC4571-framed STUN Binding
+     * Request: the framing length, the message type, the message length and
+     * the magic cookie.
+     */
+    private static final int STUN_MIN_LENGTH = 2 + 2 + 2 + 4;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean accept(DatagramPacket p)
+    {
+        int len = p.getLength();
+        byte[] buf = p.getData();
+        int off = p.getOffset();
+
+        if (len < STUN_MIN_LENGTH)
+            return false;
+
+        // The framed STUN message type, followed (after the message length)
+        // by the magic cookie.
+        int type = ((0xFF & buf[off + 2]) << 8) | (0xFF & buf[off + 3]);
+
+        if (type == Message.BINDING_REQUEST)
+        {
+            boolean cookie = true;
+
+            for (int i = 0; i < Message.MAGIC_COOKIE.length; i++)
+            {
+                if (Message.MAGIC_COOKIE[i] != buf[off + 6 + i])
+                {
+                    cookie = false;
+                    break;
+                }
+            }
+            if (cookie)
+                return true;
+        }
+
+        byte[] googleTurnSslTcp
+            = GoogleTurnSSLCandidateHarvester.SSL_CLIENT_HANDSHAKE;
+
+        if (len < googleTurnSslTcp.length)
+            return false;
+        for (int i = 0; i < googleTurnSslTcp.length; i++)
+        {
+            if (googleTurnSslTcp[i] != buf[off + i])
+                return false;
+        }
+        return true;
+    }
+}
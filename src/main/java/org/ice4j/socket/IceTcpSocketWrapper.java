@@ -19,6 +19,10 @@ package org.ice4j.socket;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import org.ice4j.metrics.*;
 
 /**
  * TCP implementation of the <tt>IceSocketWrapper</tt>.
@@ -28,6 +32,30 @@ import java.net.*;
 public class IceTcpSocketWrapper
     extends IceSocketWrapper
 {
+    /**
+     * The number of packets sent through TCP ICE sockets.
+     */
+    private static final Counter packetsSent
+        = Metrics.GLOBAL.counter("socket.tcp.packets_sent");
+
+    /**
+     * The number of bytes sent through TCP ICE sockets.
+     */
+    private static final Counter bytesSent
+        = Metrics.GLOBAL.counter("socket.tcp.bytes_sent");
+
+    /**
+     * The number of packets received through TCP ICE sockets.
+     */
+    private static final Counter packetsReceived
+        = Metrics.GLOBAL.counter("socket.tcp.packets_received");
+
+    /**
+     * The number of bytes received through TCP ICE sockets.
+     */
+    private static final Counter bytesReceived
+        = Metrics.GLOBAL.counter("socket.tcp.bytes_received");
+
     /**
      * InputStream for this socket.
      */
@@ -49,6 +77,41 @@ public class IceTcpSocketWrapper
      */
     private final DelegatingSocket socketAsDelegatingSocket;
 
+    /**
+     * The <tt>SocketChannel</tt> of {@link #socket} if the latter is the
+     * socket of a channel (rather than a <tt>DelegatingSocket</tt>);
+     * otherwise, <tt>null</tt>.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The lock which keeps the frames written by concurrent senders from
+     * being interleaved, whether they write to {@link #outputStream} or to
+     * {@link #channel}.
+     */
+    private final Object sendLock = new Object();
+
+    /**
+     * The lock which keeps concurrent receivers from reading parts of the
+     * same frame, whether they read from {@link #inputStream} or from
+     * {@link #channel}.
+     */
+    private final Object receiveLock = new Object();
+
+    /**
+     * The buffers written to {@link #channel} in one go by
+     * {@link #send(ByteBuffer, SocketAddress)}: the RFC 4571 length field and
+     * the packet. Guarded by {@link #sendLock}.
+     */
+    private final ByteBuffer[] sendBuffers
+        = { ByteBuffer.allocate(2), null };
+
+    /**
+     * The buffer into which {@link #receive(ByteBuffer)} reads the RFC 4571
+     * length field from {@link #channel}. Guarded by {@link #receiveLock}.
+     */
+    private final ByteBuffer receiveFrameLength = ByteBuffer.allocate(2);
+
     /**
      * Constructor.
      *
@@ -66,12 +129,14 @@ public class IceTcpSocketWrapper
             inputStream = null;
             outputStream = null;
             socketAsDelegatingSocket = (DelegatingSocket) delegate;
+            channel = null;
         }
         else
         {
             inputStream = delegate.getInputStream();
             outputStream = delegate.getOutputStream();
             socketAsDelegatingSocket = null;
+            channel = delegate.getChannel();
         }
     }
 
@@ -147,11 +212,16 @@ public class IceTcpSocketWrapper
         }
         else
         {
-            DelegatingSocket.receiveFromInputStream(
-                    p,
-                    inputStream,
-                    getLocalAddress(), getLocalPort());
+            synchronized (receiveLock)
+            {
+                DelegatingSocket.receiveFromInputStream(
+                        p,
+                        inputStream,
+                        getLocalAddress(), getLocalPort());
+            }
         }
+        packetsReceived.increment();
+        bytesReceived.add(p.getLength());
     }
 
     /**
@@ -174,7 +244,140 @@ public class IceTcpSocketWrapper
             data[0] = (byte)((len >> 8) & 0xff);
             data[1] = (byte)(len & 0xff);
             System.arraycopy(p.getData(), off, data, 2, len);
-            outputStream.write(data, 0, len + 2);
+            synchronized (sendLock)
+            {
+                outputStream.write(data, 0, len + 2);
+            }
+        }
+        packetsSent.increment();
+        bytesSent.add(p.getLength());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Writes the RFC 4571 frame to the <tt>SocketChannel</tt> of the wrapped
+     * socket, if it has one, without copying <tt>src</tt>. <tt>target</tt> is
+     * ignored because the socket is connected.
+     */
+    @Override
+    public int send(ByteBuffer src, SocketAddress target)
+        throws IOException
+    {
+        SocketChannel channel = getBlockingChannel();
+
+        if (channel == null)
+            return super.send(src, target);
+
+        int length = src.remaining();
+
+        if (length > 0xFFFF)
+        {
+            throw new IllegalArgumentException(
+                    "Packet too long for RFC 4571 framing: " + length);
+        }
+
+        synchronized (sendLock)
+        {
+            ByteBuffer frameLength = sendBuffers[0];
+
+            frameLength.clear();
+            frameLength.putShort((short) length).flip();
+            sendBuffers[1] = src;
+            try
+            {
+                while (src.hasRemaining() || frameLength.hasRemaining())
+                    channel.write(sendBuffers);
+            }
+            finally
+            {
+                sendBuffers[1] = null;
+            }
+        }
+        packetsSent.increment();
+        bytesSent.add(length);
+        return length;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Reads the RFC 4571 frame from the <tt>SocketChannel</tt> of the wrapped
+     * socket, if it has one, directly into <tt>dst</tt>. The part of a frame
+     * which does not fit in <tt>dst</tt> is discarded.
+     */
+    @Override
+    public SocketAddress receive(ByteBuffer dst)
+        throws IOException
+    {
+        SocketChannel channel = getBlockingChannel();
+
+        if (channel == null)
+            return super.receive(dst);
+
+        int length;
+
+        synchronized (receiveLock)
+        {
+            receiveFrameLength.clear();
+            readFully(channel, receiveFrameLength);
+
+            int frameLength = receiveFrameLength.getShort(0) & 0xFFFF;
+            int limit = dst.limit();
+
+            length = Math.min(frameLength, dst.remaining());
+            dst.limit(dst.position() + length);
+            try
+            {
+                readFully(channel, dst);
+            }
+            finally
+            {
+                dst.limit(limit);
+            }
+
+            if (frameLength > length)
+            {
+                ByteBuffer discard = ByteBuffer.allocate(frameLength - length);
+
+                readFully(channel, discard);
+            }
+        }
+        packetsReceived.increment();
+        bytesReceived.add(length);
+        return socket.getRemoteSocketAddress();
+    }
+
+    /**
+     * Returns {@link #channel} if it is in blocking mode, which the
+     * <tt>IceSocketWrapper</tt> contract assumes.
+     *
+     * @return {@link #channel} if it is in blocking mode; otherwise,
+     * <tt>null</tt>.
+     */
+    private SocketChannel getBlockingChannel()
+    {
+        return (channel != null && channel.isBlocking()) ? channel : null;
+    }
+
+    /**
+     * Reads from a <tt>SocketChannel</tt> until a <tt>ByteBuffer</tt> is full.
+     *
+     * @param channel the <tt>SocketChannel</tt> to read from.
+     * @param dst the <tt>ByteBuffer</tt> to fill.
+     * @throws IOException if the end of the stream is reached or reading
+     * fails.
+     */
+    private static void readFully(SocketChannel channel, ByteBuffer dst)
+        throws IOException
+    {
+        while (dst.hasRemaining())
+        {
+            if (channel.read(dst) == -1)
+            {
+                throw new SocketException(
+                        "Failed to receive data from socket.");
+            }
         }
     }
 }
@@ -19,6 +19,10 @@ package org.ice4j.socket;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import org.ice4j.metrics.*;
 
 /**
  * UDP implementation of the <tt>IceSocketWrapper</tt>.
@@ -28,11 +32,42 @@ import java.net.*;
 public class IceUdpSocketWrapper
     extends IceSocketWrapper
 {
+    /**
+     * The number of packets sent through UDP ICE sockets.
+     */
+    private static final Counter packetsSent
+        = Metrics.GLOBAL.counter("socket.udp.packets_sent");
+
+    /**
+     * The number of bytes sent through UDP ICE sockets.
+     */
+    private static final Counter bytesSent
+        = Metrics.GLOBAL.counter("socket.udp.bytes_sent");
+
+    /**
+     * The number of packets received through UDP ICE sockets.
+     */
+    private static final Counter packetsReceived
+        = Metrics.GLOBAL.counter("socket.udp.packets_received");
+
+    /**
+     * The number of bytes received through UDP ICE sockets.
+     */
+    private static final Counter bytesReceived
+        = Metrics.GLOBAL.counter("socket.udp.bytes_received");
+
     /**
      * Delegate UDP <tt>DatagramSocket</tt>.
      */
     private final DatagramSocket socket;
 
+    /**
+     * The <tt>DatagramChannel</tt> of {@link #socket} if the latter is the
+     * socket of a channel (rather than a <tt>DelegatingDatagramSocket</tt>,
+     * which may filter what it receives); otherwise, <tt>null</tt>.
+     */
+    private final DatagramChannel channel;
+
     /**
      * Constructor.
      *
@@ -41,6 +76,10 @@ public class IceUdpSocketWrapper
     public IceUdpSocketWrapper(DatagramSocket delegate)
     {
         this.socket = delegate;
+        this.channel
+            = (delegate instanceof DelegatingDatagramSocket)
+                ? null
+                : delegate.getChannel();
     }
 
     /**
@@ -51,6 +90,8 @@ public class IceUdpSocketWrapper
         throws IOException
     {
         socket.send(p);
+        packetsSent.increment();
+        bytesSent.add(p.getLength());
     }
 
     /**
@@ -60,6 +101,69 @@ public class IceUdpSocketWrapper
     public void receive(DatagramPacket p) throws IOException
     {
         socket.receive(p);
+        packetsReceived.increment();
+        bytesReceived.add(p.getLength());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Sends through the <tt>DatagramChannel</tt> of the wrapped socket, if it
+     * has one, without copying <tt>src</tt>.
+     */
+    @Override
+    public int send(ByteBuffer src, SocketAddress target)
+        throws IOException
+    {
+        DatagramChannel channel = getBlockingChannel();
+
+        if (channel == null)
+            return super.send(src, target);
+
+        // A connected socket may be sent to without a target, which
+        // DatagramChannel#send does not accept.
+        int length
+            = (target == null) ? channel.write(src) : channel.send(src, target);
+
+        packetsSent.increment();
+        bytesSent.add(length);
+        return length;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Receives through the <tt>DatagramChannel</tt> of the wrapped socket, if
+     * it has one and no receive timeout is set, without copying.
+     */
+    @Override
+    public SocketAddress receive(ByteBuffer dst)
+        throws IOException
+    {
+        DatagramChannel channel = getBlockingChannel();
+
+        // DatagramChannel#receive ignores SO_TIMEOUT.
+        if (channel == null || socket.getSoTimeout() != 0)
+            return super.receive(dst);
+
+        int position = dst.position();
+        SocketAddress source = channel.receive(dst);
+
+        packetsReceived.increment();
+        bytesReceived.add(dst.position() - position);
+        return source;
+    }
+
+    /**
+     * Returns {@link #channel} if it is in blocking mode, which the
+     * <tt>IceSocketWrapper</tt> contract assumes.
+     *
+     * @return {@link #channel} if it is in blocking mode; otherwise,
+     * <tt>null</tt>.
+     */
+    private DatagramChannel getBlockingChannel()
+    {
+        return (channel != null && channel.isBlocking()) ? channel : null;
     }
 
     /**
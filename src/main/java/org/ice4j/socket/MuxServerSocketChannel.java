@@ -0,0 +1,671 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.socket;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+import org.ice4j.ice.harvest.*;
+
+/**
+ * Shares a listening TCP endpoint among multiple {@link Acceptor}s, e.g. a web
+ * server and an ICE-TCP listener on port 443. The first bytes of each accepted
+ * connection are read (without blocking) until they are accepted by the
+ * {@link DatagramPacketFilter} of one of the <tt>Acceptor</tt>s, and the
+ * connection is then handed over to that <tt>Acceptor</tt> together with the
+ * bytes read so far.
+ * <p>
+ * All instances share a single <tt>Selector</tt> and thread, which accept and
+ * peek at the connections of all listening endpoints. No thread is dedicated
+ * to a listening endpoint or to a connection. Instances are obtained with
+ * {@link MuxServerSocketChannelFactory#openAndBindMuxServerSocketChannel(Map,
+ * SocketAddress, int, DatagramPacketFilter, Acceptor)} and are closed when
+ * their last <tt>Acceptor</tt> is removed.
+ */
+public class MuxServerSocketChannel
+{
+    /**
+     * Our class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(MuxServerSocketChannel.class.getName());
+
+    /**
+     * The maximum number of bytes read from an accepted connection in order to
+     * find its <tt>Acceptor</tt>. It is the length of the pseudo-SSL handshake
+     * of Google's ICE-TCP, which is the longest prefix needed by
+     * {@link HttpDemuxFilter} and {@link IceTcpDemuxFilter}.
+     */
+    public static final int PEEK_LENGTH
+        = GoogleTurnSSLCandidateHarvester.SSL_CLIENT_HANDSHAKE.length;
+
+    /**
+     * The maximum number of milliseconds the shared thread waits in
+     * <tt>Selector#select</tt>, so that it notices the connections which have
+     * not provided enough bytes within
+     * {@link MuxServerSocketChannelFactory#SOCKET_CHANNEL_READ_TIMEOUT}.
+     */
+    private static final long SELECT_TIMEOUT = 1000;
+
+    /**
+     * The open instances by their local (listening) address. Also synchronizes
+     * the access to {@link #selector} and {@link #selectorThread}.
+     */
+    private static final Map<SocketAddress, MuxServerSocketChannel> channels
+        = new HashMap<>();
+
+    /**
+     * The <tt>Selector</tt> shared by all instances, or <tt>null</tt> if
+     * {@link #selectorThread} is not running.
+     */
+    private static Selector selector;
+
+    /**
+     * The thread which accepts and peeks at the connections of all instances,
+     * or <tt>null</tt> if there are no open instances.
+     */
+    private static Thread selectorThread;
+
+    /**
+     * The tasks to be executed by {@link #selectorThread}, e.g. the
+     * registration of new instances with {@link #selector}.
+     */
+    private static final Queue<Runnable> selectorTasks
+        = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Opens and binds a new <tt>MuxServerSocketChannel</tt> or, if one is
+     * already listening on <tt>endpoint</tt>, shares it and adds an
+     * <tt>Acceptor</tt> to it.
+     *
+     * @param properties the properties of the <tt>ServerSocketChannel</tt> to
+     * be opened (see
+     * {@link MuxServerSocketChannelFactory#openAndBindServerSocketChannel(Map,
+     * SocketAddress, int)}). Not used if <tt>endpoint</tt> is already shared.
+     * @param endpoint the IP and port to listen on.
+     * @param backlog the requested maximum number of pending incoming
+     * connections. Not used if <tt>endpoint</tt> is already shared.
+     * @param filter the filter which selects the connections to be handed over
+     * to <tt>acceptor</tt>, or <tt>null</tt> to hand over the connections which
+     * are not selected by any other filter.
+     * @param acceptor the <tt>Acceptor</tt> to add.
+     * @return the <tt>MuxServerSocketChannel</tt> listening on
+     * <tt>endpoint</tt>.
+     * @throws IOException if an I/O error occurs
+     */
+    static MuxServerSocketChannel openAndBind(
+            Map<String, Object> properties,
+            SocketAddress endpoint,
+            int backlog,
+            DatagramPacketFilter filter,
+            Acceptor acceptor)
+        throws IOException
+    {
+        Objects.requireNonNull(acceptor, "acceptor");
+
+        synchronized (channels)
+        {
+            MuxServerSocketChannel mux = channels.get(endpoint);
+
+            if (mux == null)
+            {
+                ServerSocketChannel channel
+                    = MuxServerSocketChannelFactory
+                        .openAndBindServerSocketChannel(
+                                properties,
+                                endpoint,
+                                backlog);
+
+                try
+                {
+                    channel.configureBlocking(false);
+                    mux = new MuxServerSocketChannel(channel);
+                    startSelectorThread();
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    closeNoExceptions(channel);
+                    throw e;
+                }
+
+                MuxServerSocketChannel newMux = mux;
+
+                channels.put(mux.localAddress, mux);
+                selectorTasks.add(newMux::register);
+                selector.wakeup();
+            }
+            mux.acceptors.add(new AcceptorEntry(filter, acceptor));
+            return mux;
+        }
+    }
+
+    /**
+     * Starts {@link #selectorThread} unless it is running. Must be called
+     * while holding the lock of {@link #channels}.
+     *
+     * @throws IOException if the <tt>Selector</tt> cannot be opened
+     */
+    private static void startSelectorThread()
+        throws IOException
+    {
+        if (selectorThread != null)
+            return;
+
+        Selector newSelector = Selector.open();
+        Thread thread
+            = new Thread(
+                    () -> runSelector(newSelector),
+                    "ice4j.MuxServerSocketChannel");
+
+        thread.setDaemon(true);
+        selector = newSelector;
+        selectorThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Runs the loop of {@link #selectorThread}: accepts the connections of all
+     * instances and reads from them until their <tt>Acceptor</tt>s are found.
+     *
+     * @param selector the <tt>Selector</tt> to run the loop with.
+     */
+    private static void runSelector(Selector selector)
+    {
+        // The connections whose keys have been cancelled and which are to be
+        // handed over to their Acceptors once the next select has deregistered
+        // them from the selector.
+        Queue<PendingConnection> handOffs = new ArrayDeque<>();
+
+        try
+        {
+            while (true)
+            {
+                Runnable task;
+
+                while ((task = selectorTasks.poll()) != null)
+                    task.run();
+
+                synchronized (channels)
+                {
+                    if (channels.isEmpty()
+                            && selectorTasks.isEmpty()
+                            && handOffs.isEmpty())
+                    {
+                        MuxServerSocketChannel.selector = null;
+                        selectorThread = null;
+                        break;
+                    }
+                }
+
+                if (handOffs.isEmpty())
+                    selector.select(SELECT_TIMEOUT);
+                else
+                    selector.selectNow();
+
+                PendingConnection handOff;
+
+                while ((handOff = handOffs.poll()) != null)
+                    handOff.handOver();
+
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+
+                for (SelectionKey key : selectedKeys)
+                {
+                    if (!key.isValid())
+                        continue;
+
+                    Object attachment = key.attachment();
+
+                    if (attachment instanceof MuxServerSocketChannel)
+                        ((MuxServerSocketChannel) attachment).accept(selector);
+                    else
+                        ((PendingConnection) attachment).read(key, handOffs);
+                }
+                selectedKeys.clear();
+
+                long now = System.currentTimeMillis();
+
+                for (SelectionKey key : selector.keys())
+                {
+                    Object attachment = key.attachment();
+
+                    if (key.isValid()
+                            && attachment instanceof PendingConnection
+                            && ((PendingConnection) attachment).deadline < now)
+                    {
+                        ((PendingConnection) attachment)
+                            .dispatch(key, true, handOffs);
+                    }
+                }
+            }
+        }
+        catch (IOException ioe)
+        {
+            logger.log(
+                    Level.WARNING,
+                    "Failed to select from the shared TCP listening endpoints.",
+                    ioe);
+        }
+        finally
+        {
+            synchronized (channels)
+            {
+                if (MuxServerSocketChannel.selector == selector)
+                {
+                    MuxServerSocketChannel.selector = null;
+                    selectorThread = null;
+                }
+            }
+            for (SelectionKey key : selector.keys())
+            {
+                if (key.attachment() instanceof PendingConnection)
+                    closeNoExceptions(key.channel());
+            }
+            for (PendingConnection handOff : handOffs)
+                closeNoExceptions(handOff.channel);
+            try
+            {
+                selector.close();
+            }
+            catch (IOException ioe)
+            {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Closes a {@code Channel} and swallows any {@link IOException}.
+     *
+     * @param channel the {@code Channel} to close
+     */
+    private static void closeNoExceptions(Channel channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ioe)
+        {
+            // The whole idea of the method is to close a specific Channel
+            // without caring about any possible IOException.
+        }
+    }
+
+    /**
+     * The <tt>Acceptor</tt>s of this instance in the order in which they were
+     * added.
+     */
+    private final List<AcceptorEntry> acceptors = new CopyOnWriteArrayList<>();
+
+    /**
+     * The <tt>ServerSocketChannel</tt> which actually listens.
+     */
+    private final ServerSocketChannel channel;
+
+    /**
+     * The local address of {@link #channel}.
+     */
+    private final SocketAddress localAddress;
+
+    /**
+     * Initializes a new <tt>MuxServerSocketChannel</tt>.
+     *
+     * @param channel the bound, non-blocking <tt>ServerSocketChannel</tt> to
+     * accept connections from.
+     * @throws IOException if an I/O error occurs
+     */
+    private MuxServerSocketChannel(ServerSocketChannel channel)
+        throws IOException
+    {
+        this.channel = channel;
+        this.localAddress = channel.getLocalAddress();
+    }
+
+    /**
+     * Returns the local address this instance listens on.
+     *
+     * @return the local address this instance listens on.
+     */
+    public SocketAddress getLocalAddress()
+    {
+        return localAddress;
+    }
+
+    /**
+     * Determines whether this instance is still listening.
+     *
+     * @return <tt>true</tt> if this instance is still listening and
+     * <tt>false</tt> if its last <tt>Acceptor</tt> has been removed.
+     */
+    public boolean isOpen()
+    {
+        return channel.isOpen();
+    }
+
+    /**
+     * Removes an <tt>Acceptor</tt> from this instance. Closes this instance if
+     * it was the last one.
+     *
+     * @param acceptor the <tt>Acceptor</tt> to remove.
+     */
+    public void removeAcceptor(Acceptor acceptor)
+    {
+        synchronized (channels)
+        {
+            acceptors.removeIf(entry -> entry.acceptor == acceptor);
+            if (acceptors.isEmpty() && channels.get(localAddress) == this)
+            {
+                channels.remove(localAddress);
+                closeNoExceptions(channel);
+                // The channel is only released by the next select.
+                if (selector != null)
+                    selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Registers {@link #channel} with the shared <tt>Selector</tt>. Executed
+     * by {@link #selectorThread}.
+     */
+    private void register()
+    {
+        Selector selector;
+
+        synchronized (channels)
+        {
+            selector = MuxServerSocketChannel.selector;
+        }
+        try
+        {
+            channel.register(selector, SelectionKey.OP_ACCEPT, this);
+        }
+        catch (ClosedChannelException ignore)
+        {
+            // The last acceptor was removed in the meantime.
+        }
+    }
+
+    /**
+     * Accepts the pending connections of {@link #channel} and registers them
+     * with <tt>selector</tt> in order to peek at them.
+     *
+     * @param selector the shared <tt>Selector</tt>.
+     */
+    private void accept(Selector selector)
+    {
+        while (true)
+        {
+            SocketChannel socketChannel;
+
+            try
+            {
+                socketChannel = channel.accept();
+            }
+            catch (IOException ioe)
+            {
+                logger.info("Failed to accept a connection: " + ioe);
+                return;
+            }
+            if (socketChannel == null)
+                return;
+
+            try
+            {
+                socketChannel.configureBlocking(false);
+                socketChannel.register(
+                        selector,
+                        SelectionKey.OP_READ,
+                        new PendingConnection(this, socketChannel));
+            }
+            catch (IOException ioe)
+            {
+                logger.info("Failed to register a connection: " + ioe);
+                closeNoExceptions(socketChannel);
+            }
+        }
+    }
+
+    /**
+     * Handles a connection accepted by a <tt>MuxServerSocketChannel</tt>.
+     */
+    public interface Acceptor
+    {
+        /**
+         * Takes over a connection accepted by a <tt>MuxServerSocketChannel</tt>.
+         * Called by the thread shared by all <tt>MuxServerSocketChannel</tt>s,
+         * so implementations must not block.
+         *
+         * @param channel the accepted connection, in non-blocking mode. It is
+         * no longer registered with the shared <tt>Selector</tt>, so its
+         * blocking mode may be changed.
+         * @param preRead the bytes already read from <tt>channel</tt>, which
+         * are to be handled as if they were read from it first.
+         * @throws IOException if an I/O error occurs, in which case
+         * <tt>channel</tt> is closed.
+         */
+        void accept(SocketChannel channel, ByteBuffer preRead)
+            throws IOException;
+    }
+
+    /**
+     * An <tt>Acceptor</tt> and the filter which selects its connections.
+     */
+    private static class AcceptorEntry
+    {
+        /**
+         * The <tt>Acceptor</tt>.
+         */
+        final Acceptor acceptor;
+
+        /**
+         * The filter which selects the connections of {@link #acceptor}, or
+         * <tt>null</tt> if it takes the connections not selected by any other
+         * filter.
+         */
+        final DatagramPacketFilter filter;
+
+        /**
+         * Initializes a new <tt>AcceptorEntry</tt>.
+         *
+         * @param filter the filter which selects the connections of
+         * <tt>acceptor</tt>, or <tt>null</tt>.
+         * @param acceptor the <tt>Acceptor</tt>.
+         */
+        AcceptorEntry(DatagramPacketFilter filter, Acceptor acceptor)
+        {
+            this.filter = filter;
+            this.acceptor = acceptor;
+        }
+    }
+
+    /**
+     * A connection which has been accepted and whose <tt>Acceptor</tt> has not
+     * been found yet.
+     */
+    private static class PendingConnection
+    {
+        /**
+         * The bytes read from {@link #channel} so far.
+         */
+        final ByteBuffer buffer = ByteBuffer.allocate(PEEK_LENGTH);
+
+        /**
+         * The accepted connection.
+         */
+        final SocketChannel channel;
+
+        /**
+         * The time (in milliseconds) by which the <tt>Acceptor</tt> of
+         * {@link #channel} is to be found.
+         */
+        final long deadline
+            = System.currentTimeMillis()
+                + MuxServerSocketChannelFactory.SOCKET_CHANNEL_READ_TIMEOUT;
+
+        /**
+         * The <tt>MuxServerSocketChannel</tt> which accepted
+         * {@link #channel}.
+         */
+        final MuxServerSocketChannel mux;
+
+        /**
+         * The <tt>Acceptor</tt> to hand {@link #channel} over to once its
+         * key has been deregistered from the shared <tt>Selector</tt>.
+         */
+        private Acceptor acceptor;
+
+        /**
+         * Initializes a new <tt>PendingConnection</tt>.
+         *
+         * @param mux the <tt>MuxServerSocketChannel</tt> which accepted
+         * <tt>channel</tt>.
+         * @param channel the accepted connection.
+         */
+        PendingConnection(MuxServerSocketChannel mux, SocketChannel channel)
+        {
+            this.mux = mux;
+            this.channel = channel;
+        }
+
+        /**
+         * Reads from {@link #channel} and hands it over to its
+         * <tt>Acceptor</tt> if the bytes read so far select one.
+         *
+         * @param key the <tt>SelectionKey</tt> of {@link #channel}.
+         * @param handOffs the queue of the connections to be handed over
+         * after the next select.
+         */
+        void read(SelectionKey key, Queue<PendingConnection> handOffs)
+        {
+            int read;
+
+            try
+            {
+                read = channel.read(buffer);
+            }
+            catch (IOException ioe)
+            {
+                key.cancel();
+                closeNoExceptions(channel);
+                return;
+            }
+            dispatch(key, read == -1 || !buffer.hasRemaining(), handOffs);
+        }
+
+        /**
+         * Selects the first <tt>Acceptor</tt> whose filter accepts the bytes
+         * read so far from {@link #channel} and queues {@link #channel} to be
+         * handed over to it. The key of {@link #channel} is cancelled, but it
+         * remains registered with the shared <tt>Selector</tt> until its next
+         * select, which is why the <tt>Acceptor</tt> is only called then.
+         *
+         * @param key the <tt>SelectionKey</tt> of {@link #channel}.
+         * @param last <tt>true</tt> if no more bytes are to be read, in which
+         * case {@link #channel} is handed over to the default
+         * <tt>Acceptor</tt> or closed if no <tt>Acceptor</tt> is selected.
+         * @param handOffs the queue of the connections to be handed over
+         * after the next select.
+         */
+        void dispatch(
+                SelectionKey key,
+                boolean last,
+                Queue<PendingConnection> handOffs)
+        {
+            int length = buffer.position();
+            Acceptor acceptor = null;
+
+            if (length > 0)
+            {
+                DatagramPacket p
+                    = new DatagramPacket(buffer.array(), 0, length);
+                Socket socket = channel.socket();
+
+                p.setAddress(socket.getInetAddress());
+                p.setPort(socket.getPort());
+                for (AcceptorEntry entry : mux.acceptors)
+                {
+                    if (entry.filter != null && entry.filter.accept(p))
+                    {
+                        acceptor = entry.acceptor;
+                        break;
+                    }
+                }
+                if (acceptor == null && last)
+                {
+                    for (AcceptorEntry entry : mux.acceptors)
+                    {
+                        if (entry.filter == null)
+                        {
+                            acceptor = entry.acceptor;
+                            break;
+                        }
+                    }
+                }
+            }
+
+            if (acceptor == null)
+            {
+                if (last)
+                {
+                    logger.fine(
+                            "Closing a connection to " + mux.localAddress
+                                + " not selected by any acceptor.");
+                    key.cancel();
+                    closeNoExceptions(channel);
+                }
+                return;
+            }
+
+            key.cancel();
+            this.acceptor = acceptor;
+            handOffs.add(this);
+        }
+
+        /**
+         * Hands {@link #channel} over to the <tt>Acceptor</tt> selected by
+         * {@link #dispatch(SelectionKey, boolean, Queue)}. Called after the key
+         * of {@link #channel} has been deregistered from the shared
+         * <tt>Selector</tt>.
+         */
+        void handOver()
+        {
+            buffer.flip();
+            try
+            {
+                acceptor.accept(channel, buffer.asReadOnlyBuffer());
+            }
+            catch (Throwable t)
+            {
+                logger.log(
+                        Level.INFO,
+                        "Failed to hand over a connection to " + acceptor,
+                        t);
+                closeNoExceptions(channel);
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+            }
+        }
+    }
+}
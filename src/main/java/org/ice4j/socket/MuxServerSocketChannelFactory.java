@@ -101,4 +101,48 @@ public class MuxServerSocketChannelFactory
 
         return channel;
     }
+
+    /**
+     * Opens and binds a new {@link MuxServerSocketChannel} or, if one is
+     * already listening on the specified {@code endpoint}, shares it. The
+     * connections whose first bytes are accepted by the specified
+     * {@code filter} are handed over to the specified {@code acceptor}.
+     *
+     * @param properties a {@code Map} of the values to be assigned to
+     * properties of the underlying {@link ServerSocketChannel} which is to
+     * actually listen on the specified {@code endpoint}. If the endpoint is
+     * already shared, the {@code properties} and their respective values are
+     * not used.
+     * @param endpoint the IP and port to listen on
+     * @param backlog the requested maximum number of pending incoming
+     * connections to be queued. If the endpoint is already shared, the value
+     * is not used.
+     * @param filter the {@code DatagramPacketFilter} which selects the
+     * connections to be handed over to {@code acceptor} (e.g.
+     * {@link HttpDemuxFilter} or {@link IceTcpDemuxFilter}), or {@code null}
+     * to hand over the connections not selected by any other filter
+     * @param acceptor the {@code Acceptor} to hand the selected connections
+     * over to. It is to be removed with
+     * {@link MuxServerSocketChannel#removeAcceptor(MuxServerSocketChannel.Acceptor)}
+     * when it no longer accepts connections.
+     * @return the {@code MuxServerSocketChannel} listening on the specified
+     * {@code endpoint}
+     * @throws IOException if an I/O error occurs
+     */
+    public static MuxServerSocketChannel openAndBindMuxServerSocketChannel(
+            Map<String, Object> properties,
+            SocketAddress endpoint,
+            int backlog,
+            DatagramPacketFilter filter,
+            MuxServerSocketChannel.Acceptor acceptor)
+        throws IOException
+    {
+        return
+            MuxServerSocketChannel.openAndBind(
+                    properties,
+                    endpoint,
+                    backlog,
+                    filter,
+                    acceptor);
+    }
 }
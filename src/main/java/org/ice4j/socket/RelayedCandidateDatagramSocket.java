@@ -69,6 +69,18 @@ public class RelayedCandidateDatagramSocket
      */
     private static final int CHANNELDATA_LENGTH_LENGTH = 2;
 
+    /**
+     * The size in bytes of the buffers into which ChannelData messages are
+     * received from {@link #channelDataSocket}.
+     */
+    private static final int CHANNELDATA_RECEIVE_BUFFER_SIZE = 1500;
+
+    /**
+     * The maximum number of <tt>DatagramPacket</tt>s kept in
+     * {@link #freeChannelDataPackets} for reuse.
+     */
+    private static final int MAX_FREE_CHANNELDATA_PACKETS = 64;
+
     /**
      * The maximum channel number which is valid for TURN ChannelBind
      * <tt>Request</tt>.
@@ -114,6 +126,33 @@ public class RelayedCandidateDatagramSocket
      */
     private final List<Channel> channels = new LinkedList<>();
 
+    /**
+     * The <tt>Channel</tt>s which have been allocated a channel number,
+     * indexed by their channel number minus {@link #MIN_CHANNEL_NUMBER}.
+     * Replaced (rather than modified) whenever a channel number is allocated
+     * so that {@link #receiveChannelDataThread} can look channels up without
+     * locking.
+     */
+    private volatile Channel[] channelsByNumber = new Channel[0];
+
+    /**
+     * The <tt>DatagramPacket</tt>s into which ChannelData messages have been
+     * received and which have been delivered by
+     * {@link #receive(DatagramPacket)} and may be reused by
+     * {@link #receiveChannelDataThread}. Guarded by {@link #packetsToReceive}.
+     */
+    private final Deque<DatagramPacket> freeChannelDataPackets
+        = new ArrayDeque<>();
+
+    /**
+     * The <tt>DatagramPacket</tt>s queued in {@link #packetsToReceive} which
+     * have been allocated by {@link #receiveChannelDataThread} and may thus be
+     * reused by it once they have been delivered. Compared by identity because
+     * other packets may look the same. Guarded by {@link #packetsToReceive}.
+     */
+    private final Set<DatagramPacket> channelDataPackets
+        = Collections.newSetFromMap(new IdentityHashMap<>());
+
     /**
      * The indicator which determines whether this instance has started
      * executing or has executed its {@link #close()} method.
@@ -143,7 +182,7 @@ public class RelayedCandidateDatagramSocket
      * {@link #receive(DatagramPacket)} method. They have been received from the
      * TURN server in the form of Data indications.
      */
-    private final List<DatagramPacket> packetsToReceive = new LinkedList<>();
+    private final Deque<DatagramPacket> packetsToReceive = new ArrayDeque<>();
 
     /**
      * The <tt>DatagramSocket</tt>s which have been sent through this
@@ -731,9 +770,16 @@ public class RelayedCandidateDatagramSocket
                 }
                 else
                 {
-                    DatagramPacket packetToReceive = packetsToReceive.remove(0);
+                    DatagramPacket packetToReceive
+                        = packetsToReceive.removeFirst();
 
                     MultiplexingXXXSocketSupport.copy(packetToReceive, p);
+                    if (channelDataPackets.remove(packetToReceive)
+                            && freeChannelDataPackets.size()
+                                < MAX_FREE_CHANNELDATA_PACKETS)
+                    {
+                        freeChannelDataPackets.addLast(packetToReceive);
+                    }
                     packetsToReceive.notifyAll();
                     break;
                 }
@@ -758,25 +804,20 @@ public class RelayedCandidateDatagramSocket
 
         while (!closed)
         {
-            // read one datagram a time
-            int receiveBufferSize = 1500;
-
+            /*
+             * Read one datagram at a time straight into the packet which will
+             * be queued in packetsToReceive. The application data is delivered
+             * in place, past the ChannelData header, so it isn't copied.
+             */
             if (p == null)
             {
                 p
                     = new DatagramPacket(
-                            new byte[receiveBufferSize],
-                            receiveBufferSize);
+                            new byte[CHANNELDATA_RECEIVE_BUFFER_SIZE],
+                            CHANNELDATA_RECEIVE_BUFFER_SIZE);
             }
             else
-            {
-                byte[] pData = p.getData();
-
-                if ((pData == null) || (pData.length < receiveBufferSize))
-                    p.setData(new byte[receiveBufferSize]);
-                else
-                    p.setLength(receiveBufferSize);
-            }
+                p.setData(p.getData());
 
             try
             {
@@ -818,68 +859,58 @@ public class RelayedCandidateDatagramSocket
             if (closed)
                 break;
 
-            int channelDataLength = p.getLength();
-
-            if (channelDataLength
-                    < (CHANNELDATA_CHANNELNUMBER_LENGTH
-                            + CHANNELDATA_LENGTH_LENGTH))
-                continue;
-
             byte[] channelData = p.getData();
             int channelDataOffset = p.getOffset();
-            char channelNumber
-                = (char)
-                    ((channelData[channelDataOffset++] << 8)
-                            | (channelData[channelDataOffset++] & 0xFF));
-
-            channelDataLength -= CHANNELDATA_CHANNELNUMBER_LENGTH;
-
-            char length
-                = (char)
-                    ((channelData[channelDataOffset++] << 8)
-                            | (channelData[channelDataOffset++] & 0xFF));
+            int length
+                = ChannelData.getDataLength(
+                        channelData, channelDataOffset, p.getLength());
 
-            channelDataLength -= CHANNELDATA_LENGTH_LENGTH;
-            if (length > channelDataLength)
+            if (length < 0)
                 continue;
 
-            TransportAddress peerAddress = null;
+            Channel channel
+                = getChannel(
+                        ChannelData.getChannelNumber(
+                                channelData, channelDataOffset));
 
-            synchronized (packetsToSend)
-            {
-                int channelCount = channels.size();
-
-                for (int channelIndex = 0;
-                        channelIndex < channelCount;
-                        channelIndex++)
-                {
-                    Channel channel = channels.get(channelIndex);
-
-                    if (channel.channelNumberEquals(channelNumber))
-                    {
-                        peerAddress = channel.peerAddress;
-                        break;
-                    }
-                }
-            }
-            if (peerAddress == null)
+            if (channel == null)
                 continue;
 
-            byte[] data = new byte[length];
-
-            System.arraycopy(channelData, channelDataOffset, data, 0, length);
-
-            DatagramPacket packetToReceive
-                = new DatagramPacket(data, 0, length, peerAddress);
+            p.setData(
+                    channelData,
+                    channelDataOffset + ChannelData.HEADER_LENGTH,
+                    length);
+            p.setSocketAddress(channel.peerAddress);
 
             synchronized (packetsToReceive)
             {
-                packetsToReceive.add(packetToReceive);
+                packetsToReceive.add(p);
+                channelDataPackets.add(p);
                 packetsToReceive.notifyAll();
+                p = freeChannelDataPackets.pollFirst();
             }
         }
     }
 
+    /**
+     * Gets the <tt>Channel</tt> which has been allocated a specific channel
+     * number without locking.
+     *
+     * @param channelNumber the channel number of the <tt>Channel</tt> to get
+     * @return the <tt>Channel</tt> which has been allocated
+     * <tt>channelNumber</tt> or <tt>null</tt> if there is no such
+     * <tt>Channel</tt>
+     */
+    private Channel getChannel(char channelNumber)
+    {
+        Channel[] channelsByNumber = this.channelsByNumber;
+        int index = channelNumber - MIN_CHANNEL_NUMBER;
+
+        return (index >= 0 && index < channelsByNumber.length)
+            ? channelsByNumber[index]
+            : null;
+    }
+
     /**
      * Runs in {@link #sendThread} to send {@link #packetsToSend} to the
      * associated TURN server.
@@ -1275,6 +1306,19 @@ public class RelayedCandidateDatagramSocket
                 {
                     channelNumber = getNextChannelNumber();
                     channelNumberIsConfirmed = false;
+                    if (channelNumber != CHANNEL_NUMBER_NOT_SPECIFIED)
+                    {
+                        int index = channelNumber - MIN_CHANNEL_NUMBER;
+                        Channel[] newChannelsByNumber
+                            = Arrays.copyOf(
+                                    channelsByNumber,
+                                    Math.max(
+                                            channelsByNumber.length,
+                                            index + 1));
+
+                        newChannelsByNumber[index] = this;
+                        channelsByNumber = newChannelsByNumber;
+                    }
                 }
                 if (channelNumber != CHANNEL_NUMBER_NOT_SPECIFIED)
                 {
@@ -1417,25 +1461,12 @@ public class RelayedCandidateDatagramSocket
             byte[] pData = p.getData();
             int pOffset = p.getOffset();
             int pLength = p.getLength();
-            byte[] data;
-
-            if ((pOffset == 0) && (pLength == pData.length))
-                data = pData;
-            else
-            {
-                data = new byte[pLength];
-                System.arraycopy(pData, pOffset, data, 0, pLength);
-            }
 
             if (channelDataIsPreferred
                     && (channelNumber != CHANNEL_NUMBER_NOT_SPECIFIED)
                     && channelNumberIsConfirmed)
             {
-                char length = (char) data.length;
-                int channelDataLength
-                    = CHANNELDATA_CHANNELNUMBER_LENGTH
-                        + CHANNELDATA_LENGTH_LENGTH
-                        + length;
+                int channelDataLength = ChannelData.HEADER_LENGTH + pLength;
 
                 if ((channelData == null)
                         || (channelData.length < channelDataLength))
@@ -1445,20 +1476,12 @@ public class RelayedCandidateDatagramSocket
                         channelDataPacket.setData(channelData);
                 }
 
-                // Channel Number
-                channelData[0] = (byte) (channelNumber >> 8);
-                channelData[1] = (byte) (channelNumber & 0xFF);
-                // Length
-                channelData[2] = (byte) (length >> 8);
-                channelData[3] = (byte) (length & 0xFF);
-                // Application Data
-                System.arraycopy(
-                        data,
-                        0,
-                        channelData,
-                        CHANNELDATA_CHANNELNUMBER_LENGTH
-                            + CHANNELDATA_LENGTH_LENGTH,
-                        length);
+                // Frame the application data straight from p.
+                ChannelData.encodeTo(
+                        channelNumber,
+                        pData, pOffset, pLength,
+                        channelData, 0,
+                        false);
 
                 try
                 {
@@ -1486,6 +1509,16 @@ public class RelayedCandidateDatagramSocket
             }
             else
             {
+                byte[] data;
+
+                if ((pOffset == 0) && (pLength == pData.length))
+                    data = pData;
+                else
+                {
+                    data = new byte[pLength];
+                    System.arraycopy(pData, pOffset, data, 0, pLength);
+                }
+
                 byte[] transactionID
                     = TransactionID.createNewTransactionID().getBytes();
                 Indication sendIndication
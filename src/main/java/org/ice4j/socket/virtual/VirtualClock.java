@@ -0,0 +1,211 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.socket.virtual;
+
+import java.time.*;
+import java.util.*;
+
+/**
+ * A clock which only advances when told to, for deterministic tests over a
+ * {@link VirtualNetwork}. The datagrams sent over a network which uses a
+ * <tt>VirtualClock</tt> are delivered by {@link #advance(Duration)} once their
+ * latency has elapsed, rather than by a background thread.
+ * <p>
+ * The clock only drives the network. The timers of the ICE and STUN stacks
+ * (e.g. retransmissions and keep-alives) still use the system clock.
+ */
+public class VirtualClock
+{
+    /**
+     * The instant at which this clock started.
+     */
+    private final Instant origin;
+
+    /**
+     * The time elapsed since {@link #origin}, in nanoseconds.
+     */
+    private long nanos = 0;
+
+    /**
+     * The number of tasks ever scheduled, used to run the tasks due at the
+     * same time in the order in which they were scheduled.
+     */
+    private long sequence = 0;
+
+    /**
+     * The scheduled tasks ordered by the time at which they are due.
+     */
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+
+    /**
+     * Initializes a new <tt>VirtualClock</tt> which starts at the current
+     * system time.
+     */
+    public VirtualClock()
+    {
+        this(Instant.now());
+    }
+
+    /**
+     * Initializes a new <tt>VirtualClock</tt> which starts at a specific
+     * instant.
+     *
+     * @param origin the instant at which the new clock starts.
+     */
+    public VirtualClock(Instant origin)
+    {
+        this.origin = Objects.requireNonNull(origin, "origin");
+    }
+
+    /**
+     * Returns the current instant of this clock.
+     *
+     * @return the current instant of this clock.
+     */
+    public synchronized Instant instant()
+    {
+        return origin.plusNanos(nanos);
+    }
+
+    /**
+     * Returns the current time of this clock in milliseconds since the epoch.
+     *
+     * @return the current time of this clock in milliseconds since the epoch.
+     */
+    public long millis()
+    {
+        return instant().toEpochMilli();
+    }
+
+    /**
+     * Returns the time elapsed since this clock started, in nanoseconds.
+     *
+     * @return the time elapsed since this clock started, in nanoseconds.
+     */
+    public synchronized long nanoTime()
+    {
+        return nanos;
+    }
+
+    /**
+     * Returns the number of tasks which are not due yet.
+     *
+     * @return the number of tasks which are not due yet.
+     */
+    public synchronized int getPendingTaskCount()
+    {
+        return tasks.size();
+    }
+
+    /**
+     * Schedules a task to be run by {@link #advance(Duration)} once a specific
+     * delay has elapsed.
+     *
+     * @param delayNanos the delay in nanoseconds.
+     * @param task the task to run.
+     */
+    synchronized void schedule(long delayNanos, Runnable task)
+    {
+        tasks.add(new Task(nanos + Math.max(0, delayNanos), sequence++, task));
+    }
+
+    /**
+     * Advances this clock and runs the tasks which become due, in order. The
+     * clock reads the time at which each task is due while the task runs.
+     *
+     * @param duration the time by which to advance this clock.
+     */
+    public void advance(Duration duration)
+    {
+        if (duration.isNegative())
+            throw new IllegalArgumentException("duration " + duration);
+
+        long target;
+
+        synchronized (this)
+        {
+            target = nanos + duration.toNanos();
+        }
+
+        while (true)
+        {
+            Task task;
+
+            synchronized (this)
+            {
+                task = tasks.peek();
+                if (task == null || task.due > target)
+                {
+                    nanos = Math.max(nanos, target);
+                    return;
+                }
+                tasks.poll();
+                nanos = Math.max(nanos, task.due);
+            }
+            task.runnable.run();
+        }
+    }
+
+    /**
+     * A task scheduled with a <tt>VirtualClock</tt>.
+     */
+    private static class Task
+        implements Comparable<Task>
+    {
+        /**
+         * The time at which the task is due, in nanoseconds since the clock
+         * started.
+         */
+        final long due;
+
+        /**
+         * The task to run.
+         */
+        final Runnable runnable;
+
+        /**
+         * The order in which the task was scheduled.
+         */
+        final long sequence;
+
+        /**
+         * Initializes a new <tt>Task</tt>.
+         *
+         * @param due the time at which the task is due.
+         * @param sequence the order in which the task was scheduled.
+         * @param runnable the task to run.
+         */
+        Task(long due, long sequence, Runnable runnable)
+        {
+            this.due = due;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int compareTo(Task other)
+        {
+            int c = Long.compare(due, other.due);
+
+            return (c != 0) ? c : Long.compare(sequence, other.sequence);
+        }
+    }
+}
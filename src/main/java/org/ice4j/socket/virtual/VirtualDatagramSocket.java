@@ -0,0 +1,66 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.socket.virtual;
+
+import java.net.*;
+
+/**
+ * A <tt>DatagramSocket</tt> of a {@link VirtualHost}, which exchanges datagrams
+ * over a {@link VirtualNetwork} instead of the network of the operating
+ * system. Multicast is not supported.
+ * <p>
+ * Unlike a socket of the operating system, a <tt>VirtualDatagramSocket</tt>
+ * sets both the length and the capacity of a <tt>DatagramPacket</tt> to the
+ * length of the received datagram, so the length of a reused
+ * <tt>DatagramPacket</tt> is to be reset before each receive.
+ */
+public class VirtualDatagramSocket
+    extends DatagramSocket
+{
+    /**
+     * The host of this socket.
+     */
+    private final VirtualHost host;
+
+    /**
+     * Initializes a new <tt>VirtualDatagramSocket</tt>.
+     *
+     * @param host the host of the new socket.
+     * @param bindaddr the address to bind the new socket to, or <tt>null</tt>
+     * for an unbound socket.
+     * @throws SocketException if the new socket cannot be bound.
+     */
+    VirtualDatagramSocket(VirtualHost host, SocketAddress bindaddr)
+        throws SocketException
+    {
+        super(new VirtualDatagramSocketImpl(host));
+        this.host = host;
+        if (bindaddr != null)
+            bind(bindaddr);
+    }
+
+    /**
+     * Returns the host of this socket.
+     *
+     * @return the host of this socket.
+     */
+    public VirtualHost getHost()
+    {
+        return host;
+    }
+}
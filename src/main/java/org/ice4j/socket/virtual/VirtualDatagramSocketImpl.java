@@ -0,0 +1,451 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.socket.virtual;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Implements {@link VirtualDatagramSocket} on top of a queue of the datagrams
+ * delivered by a {@link VirtualNetwork}.
+ */
+class VirtualDatagramSocketImpl
+    extends DatagramSocketImpl
+{
+    /**
+     * The marker queued to wake up the threads blocked in a receive when the
+     * socket is closed.
+     */
+    private static final Datagram CLOSED = new Datagram(null, null);
+
+    /**
+     * The maximum number of datagrams queued for reception. Further datagrams
+     * are dropped.
+     */
+    static final int RECEIVE_QUEUE_CAPACITY = 1024;
+
+    /**
+     * The wildcard address reported while the socket is not bound.
+     */
+    private static final InetAddress ANY_LOCAL_ADDRESS
+        = new InetSocketAddress(0).getAddress();
+
+    /**
+     * Whether this socket has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * The remote address this socket is connected to, or <tt>null</tt>.
+     */
+    private volatile InetSocketAddress connectedEndpoint;
+
+    /**
+     * The host of this socket.
+     */
+    private final VirtualHost host;
+
+    /**
+     * The local address this socket is bound to, or <tt>null</tt>.
+     */
+    private volatile InetSocketAddress localEndpoint;
+
+    /**
+     * The values of the socket options other than <tt>SO_TIMEOUT</tt>.
+     */
+    private final Map<Integer, Object> options = new ConcurrentHashMap<>();
+
+    /**
+     * The datagrams delivered to this socket and not received yet.
+     */
+    private final BlockingDeque<Datagram> queue
+        = new LinkedBlockingDeque<>(RECEIVE_QUEUE_CAPACITY);
+
+    /**
+     * The value of <tt>SO_TIMEOUT</tt>.
+     */
+    private volatile int timeout = 0;
+
+    /**
+     * The value of the time-to-live option.
+     */
+    private volatile int ttl = 64;
+
+    /**
+     * Initializes a new <tt>VirtualDatagramSocketImpl</tt>.
+     *
+     * @param host the host of the new socket.
+     */
+    VirtualDatagramSocketImpl(VirtualHost host)
+    {
+        this.host = host;
+    }
+
+    /**
+     * Returns the host of this socket.
+     *
+     * @return the host of this socket.
+     */
+    VirtualHost getHost()
+    {
+        return host;
+    }
+
+    /**
+     * Returns the local address this socket is bound to.
+     *
+     * @return the local address this socket is bound to, or <tt>null</tt>.
+     */
+    InetSocketAddress getLocalEndpoint()
+    {
+        return localEndpoint;
+    }
+
+    /**
+     * Queues a datagram delivered by the network.
+     *
+     * @param source the address the datagram was sent from.
+     * @param data the payload of the datagram.
+     * @return <tt>true</tt> if the datagram was queued and <tt>false</tt> if
+     * it was dropped.
+     */
+    boolean deliver(InetSocketAddress source, byte[] data)
+    {
+        return !closed && queue.offerLast(new Datagram(source, data));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void create()
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected synchronized void bind(int lport, InetAddress laddr)
+        throws SocketException
+    {
+        if (closed)
+            throw new SocketException("Socket is closed");
+
+        localEndpoint = host.bind(this, laddr, lport);
+        localPort = localEndpoint.getPort();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void send(DatagramPacket p)
+        throws IOException
+    {
+        if (closed)
+            throw new SocketException("Socket is closed");
+
+        host.getNetwork().send(this, p);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void connect(InetAddress address, int port)
+    {
+        connectedEndpoint = new InetSocketAddress(address, port);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void disconnect()
+    {
+        connectedEndpoint = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected int peek(InetAddress i)
+        throws IOException
+    {
+        return peekData(new DatagramPacket(new byte[0], 0));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected int peekData(DatagramPacket p)
+        throws IOException
+    {
+        Datagram datagram = take();
+
+        queue.offerFirst(datagram);
+        datagram.copyTo(p);
+        return datagram.source.getPort();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void receive(DatagramPacket p)
+        throws IOException
+    {
+        take().copyTo(p);
+    }
+
+    /**
+     * Takes the next datagram from the queue, waiting for at most
+     * <tt>SO_TIMEOUT</tt>. Drops the datagrams which are not from the remote
+     * address this socket is connected to.
+     *
+     * @return the next datagram.
+     * @throws IOException if the socket is closed, the timeout expires or the
+     * thread is interrupted.
+     */
+    private Datagram take()
+        throws IOException
+    {
+        while (true)
+        {
+            Datagram datagram;
+
+            try
+            {
+                int timeout = this.timeout;
+
+                datagram
+                    = (timeout <= 0)
+                        ? queue.takeFirst()
+                        : queue.pollFirst(timeout, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+
+            if (datagram == null)
+                throw new SocketTimeoutException("Receive timed out");
+            if (datagram == CLOSED)
+            {
+                // Wake up the other threads blocked in a receive.
+                queue.offerFirst(CLOSED);
+                throw new SocketException("Socket closed");
+            }
+
+            InetSocketAddress connectedEndpoint = this.connectedEndpoint;
+
+            if (connectedEndpoint == null
+                    || connectedEndpoint.equals(datagram.source))
+            {
+                return datagram;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setTimeToLive(int ttl)
+    {
+        this.ttl = ttl;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected int getTimeToLive()
+    {
+        return ttl;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Deprecated
+    protected void setTTL(byte ttl)
+    {
+        this.ttl = 0xFF & ttl;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Deprecated
+    protected byte getTTL()
+    {
+        return (byte) ttl;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void join(InetAddress inetaddr)
+        throws IOException
+    {
+        throw new SocketException("Multicast is not supported");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void leave(InetAddress inetaddr)
+        throws IOException
+    {
+        throw new SocketException("Multicast is not supported");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void joinGroup(SocketAddress mcastaddr, NetworkInterface netIf)
+        throws IOException
+    {
+        throw new SocketException("Multicast is not supported");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void leaveGroup(SocketAddress mcastaddr, NetworkInterface netIf)
+        throws IOException
+    {
+        throw new SocketException("Multicast is not supported");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected synchronized void close()
+    {
+        if (closed)
+            return;
+
+        closed = true;
+        if (localEndpoint != null)
+            host.unbind(this, localEndpoint);
+        queue.clear();
+        queue.offerFirst(CLOSED);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setOption(int optID, Object value)
+        throws SocketException
+    {
+        if (closed)
+            throw new SocketException("Socket is closed");
+
+        if (optID == SO_TIMEOUT)
+            timeout = (Integer) value;
+        else if (value != null)
+            options.put(optID, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object getOption(int optID)
+        throws SocketException
+    {
+        switch (optID)
+        {
+        case SO_BINDADDR:
+            InetSocketAddress localEndpoint = this.localEndpoint;
+
+            return
+                (localEndpoint == null)
+                    ? ANY_LOCAL_ADDRESS
+                    : localEndpoint.getAddress();
+        case SO_TIMEOUT:
+            return timeout;
+        case SO_RCVBUF:
+        case SO_SNDBUF:
+            return options.getOrDefault(optID, 65536);
+        case IP_TOS:
+            return options.getOrDefault(optID, 0);
+        default:
+            return options.getOrDefault(optID, Boolean.FALSE);
+        }
+    }
+
+    /**
+     * A datagram delivered to a <tt>VirtualDatagramSocketImpl</tt>.
+     */
+    private static class Datagram
+    {
+        /**
+         * The payload of the datagram.
+         */
+        final byte[] data;
+
+        /**
+         * The address the datagram was sent from.
+         */
+        final InetSocketAddress source;
+
+        /**
+         * Initializes a new <tt>Datagram</tt>.
+         *
+         * @param source the address the datagram was sent from.
+         * @param data the payload of the datagram.
+         */
+        Datagram(InetSocketAddress source, byte[] data)
+        {
+            this.source = source;
+            this.data = data;
+        }
+
+        /**
+         * Copies this datagram into a <tt>DatagramPacket</tt>, truncating it
+         * to the length of the packet.
+         *
+         * @param p the packet to copy this datagram into.
+         */
+        void copyTo(DatagramPacket p)
+        {
+            int length = Math.min(data.length, p.getLength());
+
+            System.arraycopy(data, 0, p.getData(), p.getOffset(), length);
+            p.setLength(length);
+            p.setSocketAddress(source);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.socket.virtual;
+
+import java.net.*;
+
+import org.ice4j.socket.*;
+
+/**
+ * A host of a {@link VirtualNetwork} with a single address, either public or
+ * behind a {@link VirtualNat}, on which {@link VirtualDatagramSocket}s are
+ * bound. Sockets bound to the wildcard address are bound to the address of
+ * the host.
+ */
+public class VirtualHost
+{
+    /**
+     * The first port allocated to sockets bound to port 0.
+     */
+    public static final int FIRST_EPHEMERAL_PORT = 49152;
+
+    /**
+     * The address of this host.
+     */
+    private final InetAddress address;
+
+    /**
+     * The network of this host.
+     */
+    private final VirtualNetwork network;
+
+    /**
+     * The next port to try to allocate to a socket bound to port 0.
+     */
+    private int nextEphemeralPort = FIRST_EPHEMERAL_PORT;
+
+    /**
+     * The realm of this host.
+     */
+    private final VirtualNetwork.Realm realm;
+
+    /**
+     * Initializes a new <tt>VirtualHost</tt>.
+     *
+     * @param network the network of the new host.
+     * @param realm the realm of the new host.
+     * @param address the address of the new host.
+     */
+    VirtualHost(
+            VirtualNetwork network,
+            VirtualNetwork.Realm realm,
+            InetAddress address)
+    {
+        this.network = network;
+        this.realm = realm;
+        this.address = address;
+    }
+
+    /**
+     * Returns the address of this host.
+     *
+     * @return the address of this host.
+     */
+    public InetAddress getAddress()
+    {
+        return address;
+    }
+
+    /**
+     * Returns the NAT in front of this host.
+     *
+     * @return the NAT in front of this host, or <tt>null</tt> if this host is
+     * not behind a NAT.
+     */
+    public VirtualNat getNat()
+    {
+        return realm.nat;
+    }
+
+    /**
+     * Returns the network of this host.
+     *
+     * @return the network of this host.
+     */
+    public VirtualNetwork getNetwork()
+    {
+        return network;
+    }
+
+    /**
+     * Returns the realm of this host.
+     *
+     * @return the realm of this host.
+     */
+    VirtualNetwork.Realm getRealm()
+    {
+        return realm;
+    }
+
+    /**
+     * Creates a socket bound to a specific port of this host.
+     *
+     * @param port the port to bind to, or 0 for any free port.
+     * @return the new socket.
+     * @throws SocketException if the port is already in use.
+     */
+    public VirtualDatagramSocket createDatagramSocket(int port)
+        throws SocketException
+    {
+        return new VirtualDatagramSocket(
+                this,
+                new InetSocketAddress(address, port));
+    }
+
+    /**
+     * Creates an unbound socket on this host.
+     *
+     * @return the new socket.
+     * @throws SocketException if the socket cannot be created.
+     */
+    public VirtualDatagramSocket createUnboundDatagramSocket()
+        throws SocketException
+    {
+        return new VirtualDatagramSocket(this, null);
+    }
+
+    /**
+     * Returns a <tt>DatagramSocketFactory</tt> which creates sockets on this
+     * host, e.g. for
+     * {@link DelegatingDatagramSocket#setDefaultDelegateFactory(
+     * DatagramSocketFactory)}.
+     *
+     * @return a <tt>DatagramSocketFactory</tt> which creates sockets on this
+     * host.
+     */
+    public DatagramSocketFactory getDatagramSocketFactory()
+    {
+        return this::createUnboundDatagramSocket;
+    }
+
+    /**
+     * Binds a socket to an address of this host.
+     *
+     * @param socket the socket to bind.
+     * @param laddr the address to bind to, which is either the address of this
+     * host or the wildcard address.
+     * @param port the port to bind to, or 0 for any free port.
+     * @return the address the socket is bound to.
+     * @throws BindException if <tt>laddr</tt> is not an address of this host
+     * or the port is already in use.
+     */
+    synchronized InetSocketAddress bind(
+            VirtualDatagramSocketImpl socket,
+            InetAddress laddr,
+            int port)
+        throws BindException
+    {
+        if (laddr != null
+                && !laddr.isAnyLocalAddress()
+                && !laddr.equals(address))
+        {
+            throw new BindException("Cannot assign requested address: " + laddr);
+        }
+
+        if (port == 0)
+        {
+            for (int i = FIRST_EPHEMERAL_PORT; i <= 0xFFFF; i++)
+            {
+                int ephemeralPort = nextEphemeralPort;
+
+                nextEphemeralPort
+                    = (ephemeralPort == 0xFFFF)
+                        ? FIRST_EPHEMERAL_PORT
+                        : ephemeralPort + 1;
+
+                InetSocketAddress endpoint
+                    = new InetSocketAddress(address, ephemeralPort);
+
+                if (realm.sockets.putIfAbsent(endpoint, socket) == null)
+                    return endpoint;
+            }
+            throw new BindException("No ephemeral port left on " + address);
+        }
+
+        InetSocketAddress endpoint = new InetSocketAddress(address, port);
+
+        if (realm.sockets.putIfAbsent(endpoint, socket) != null)
+            throw new BindException("Address already in use: " + endpoint);
+        return endpoint;
+    }
+
+    /**
+     * Releases the address a socket is bound to.
+     *
+     * @param socket the socket to unbind.
+     * @param endpoint the address the socket is bound to.
+     */
+    void unbind(VirtualDatagramSocketImpl socket, InetSocketAddress endpoint)
+    {
+        realm.sockets.remove(endpoint, socket);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        VirtualNat nat = getNat();
+
+        return
+            "VirtualHost(" + address.getHostAddress()
+                + ((nat == null) ? "" : " behind " + nat) + ")";
+    }
+}
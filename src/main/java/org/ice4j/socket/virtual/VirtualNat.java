@@ -0,0 +1,293 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.socket.virtual;
+
+import java.net.*;
+import java.util.*;
+
+/**
+ * A NAT of a {@link VirtualNetwork} with a single public address, in front of
+ * a private network of {@link VirtualHost}s. Mappings are allocated
+ * sequentially from {@link #FIRST_PORT} and never expire.
+ */
+public class VirtualNat
+{
+    /**
+     * The first public port allocated for a mapping.
+     */
+    public static final int FIRST_PORT = 20000;
+
+    /**
+     * The mappings by their public ports.
+     */
+    private final Map<Integer, Mapping> mappingsByPort = new HashMap<>();
+
+    /**
+     * The mappings by their internal address and, for a symmetric NAT, their
+     * remote address.
+     */
+    private final Map<Map.Entry<InetSocketAddress, InetSocketAddress>, Mapping>
+        mappings = new HashMap<>();
+
+    /**
+     * The network of this NAT.
+     */
+    private final VirtualNetwork network;
+
+    /**
+     * The next public port to try to allocate for a mapping.
+     */
+    private int nextPort = FIRST_PORT;
+
+    /**
+     * The public address of this NAT.
+     */
+    private final InetAddress publicAddress;
+
+    /**
+     * The realm of the hosts behind this NAT.
+     */
+    final VirtualNetwork.Realm realm = new VirtualNetwork.Realm(this);
+
+    /**
+     * The behaviour of this NAT.
+     */
+    private final Type type;
+
+    /**
+     * Initializes a new <tt>VirtualNat</tt>.
+     *
+     * @param network the network of the new NAT.
+     * @param publicAddress the public address of the new NAT.
+     * @param type the behaviour of the new NAT.
+     */
+    VirtualNat(VirtualNetwork network, InetAddress publicAddress, Type type)
+    {
+        this.network = network;
+        this.publicAddress = Objects.requireNonNull(publicAddress);
+        this.type = Objects.requireNonNull(type);
+    }
+
+    /**
+     * Adds a host to the private network behind this NAT.
+     *
+     * @param address the private address of the new host.
+     * @return the new host.
+     * @throws IllegalArgumentException if <tt>address</tt> is already used
+     * behind this NAT.
+     */
+    public VirtualHost createHost(InetAddress address)
+    {
+        return realm.addHost(new VirtualHost(network, realm, address));
+    }
+
+    /**
+     * Returns the public address of this NAT.
+     *
+     * @return the public address of this NAT.
+     */
+    public InetAddress getPublicAddress()
+    {
+        return publicAddress;
+    }
+
+    /**
+     * Returns the behaviour of this NAT.
+     *
+     * @return the behaviour of this NAT.
+     */
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * Returns the number of mappings allocated by this NAT.
+     *
+     * @return the number of mappings allocated by this NAT.
+     */
+    public synchronized int getMappingCount()
+    {
+        return mappings.size();
+    }
+
+    /**
+     * Translates the source address of a datagram leaving the private network,
+     * allocating a mapping if needed.
+     *
+     * @param internal the private source address.
+     * @param remote the destination address.
+     * @return the public source address.
+     */
+    synchronized InetSocketAddress outbound(
+            InetSocketAddress internal,
+            InetSocketAddress remote)
+    {
+        Map.Entry<InetSocketAddress, InetSocketAddress> key
+            = new AbstractMap.SimpleImmutableEntry<>(
+                    internal,
+                    (type == Type.SYMMETRIC) ? remote : null);
+        Mapping mapping = mappings.get(key);
+
+        if (mapping == null)
+        {
+            mapping = new Mapping(internal, allocatePort());
+            mappings.put(key, mapping);
+            mappingsByPort.put(mapping.external.getPort(), mapping);
+        }
+        mapping.permittedAddresses.add(remote.getAddress());
+        mapping.permittedEndpoints.add(remote);
+        return mapping.external;
+    }
+
+    /**
+     * Translates the destination address of a datagram entering the private
+     * network, if this NAT lets it through.
+     *
+     * @param remote the source address of the datagram.
+     * @param port the public destination port.
+     * @return the private destination address, or <tt>null</tt> if the
+     * datagram is dropped.
+     */
+    synchronized InetSocketAddress inbound(InetSocketAddress remote, int port)
+    {
+        Mapping mapping = mappingsByPort.get(port);
+
+        if (mapping == null)
+            return null;
+
+        boolean permitted;
+
+        switch (type)
+        {
+        case FULL_CONE:
+            permitted = true;
+            break;
+        case ADDRESS_RESTRICTED_CONE:
+            permitted
+                = mapping.permittedAddresses.contains(remote.getAddress());
+            break;
+        default:
+            permitted = mapping.permittedEndpoints.contains(remote);
+            break;
+        }
+        return permitted ? mapping.internal : null;
+    }
+
+    /**
+     * Allocates a public port for a new mapping.
+     *
+     * @return the allocated port.
+     * @throws IllegalStateException if all ports are allocated.
+     */
+    private int allocatePort()
+    {
+        for (int i = FIRST_PORT; i <= 0xFFFF; i++)
+        {
+            int port = nextPort;
+
+            nextPort = (port == 0xFFFF) ? FIRST_PORT : port + 1;
+            if (!mappingsByPort.containsKey(port))
+                return port;
+        }
+        throw new IllegalStateException(
+                "No port left on the NAT " + publicAddress);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return "VirtualNat(" + publicAddress.getHostAddress() + ", " + type + ")";
+    }
+
+    /**
+     * The behaviours of a <tt>VirtualNat</tt> (see RFC 3489).
+     */
+    public enum Type
+    {
+        /**
+         * All datagrams from the same internal address are mapped to the same
+         * public address, which accepts datagrams from any remote address.
+         */
+        FULL_CONE,
+
+        /**
+         * All datagrams from the same internal address are mapped to the same
+         * public address, which accepts datagrams from the remote IP addresses
+         * to which the internal address has sent.
+         */
+        ADDRESS_RESTRICTED_CONE,
+
+        /**
+         * All datagrams from the same internal address are mapped to the same
+         * public address, which accepts datagrams from the remote addresses
+         * (IP and port) to which the internal address has sent.
+         */
+        PORT_RESTRICTED_CONE,
+
+        /**
+         * The datagrams from the same internal address are mapped to a
+         * different public address for each remote address, which only
+         * accepts datagrams from that remote address.
+         */
+        SYMMETRIC
+    }
+
+    /**
+     * A mapping between an internal address and a public port.
+     */
+    private class Mapping
+    {
+        /**
+         * The public address of the mapping.
+         */
+        final InetSocketAddress external;
+
+        /**
+         * The internal address of the mapping.
+         */
+        final InetSocketAddress internal;
+
+        /**
+         * The remote IP addresses to which the internal address has sent
+         * through this mapping.
+         */
+        final Set<InetAddress> permittedAddresses = new HashSet<>();
+
+        /**
+         * The remote addresses to which the internal address has sent through
+         * this mapping.
+         */
+        final Set<InetSocketAddress> permittedEndpoints = new HashSet<>();
+
+        /**
+         * Initializes a new <tt>Mapping</tt>.
+         *
+         * @param internal the internal address of the mapping.
+         * @param port the public port of the mapping.
+         */
+        Mapping(InetSocketAddress internal, int port)
+        {
+            this.internal = internal;
+            this.external = new InetSocketAddress(publicAddress, port);
+        }
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.socket.virtual;
+
+import java.net.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.utils.concurrent.*;
+
+/**
+ * An in-memory network of {@link VirtualHost}s, some of which may be behind
+ * {@link VirtualNat}s, over which datagrams are exchanged by
+ * {@link VirtualDatagramSocket}s without touching the operating system. It
+ * allows running many ICE agents in a single process with a configurable
+ * latency, jitter and loss, e.g. to measure how connectivity establishment
+ * scales.
+ * <p>
+ * The datagrams are delivered by a background thread once their latency has
+ * elapsed or, if the network uses a {@link VirtualClock}, when the clock is
+ * advanced past their delivery time. Datagrams sent without latency over a
+ * network which uses the system clock are delivered immediately by the
+ * sending thread.
+ * <p>
+ * The network is flat: a datagram reaches its destination if a socket is bound
+ * to the destination address in the realm of the sender (i.e. the public
+ * network or the private network behind the sender's NAT), or if the
+ * destination is the public address of a NAT which lets it through. NATs
+ * cannot be nested.
+ */
+public class VirtualNetwork
+    implements AutoCloseable
+{
+    /**
+     * The clock which drives the delivery of datagrams, or <tt>null</tt> if
+     * datagrams are delivered in real time by {@link #scheduler}.
+     */
+    private final VirtualClock clock;
+
+    /**
+     * The number of datagrams which were dropped because they had no route,
+     * were filtered by a NAT or overflowed the receive queue of their
+     * destination.
+     */
+    private final LongAdder packetsDropped = new LongAdder();
+
+    /**
+     * The number of datagrams which were delivered to their destination.
+     */
+    private final LongAdder packetsDelivered = new LongAdder();
+
+    /**
+     * The number of datagrams which were lost according to
+     * {@link #lossRate}.
+     */
+    private final LongAdder packetsLost = new LongAdder();
+
+    /**
+     * The number of datagrams which were sent.
+     */
+    private final LongAdder packetsSent = new LongAdder();
+
+    /**
+     * The NATs of this network by their public addresses.
+     */
+    private final Map<InetAddress, VirtualNat> nats = new ConcurrentHashMap<>();
+
+    /**
+     * The realm of the hosts which are not behind a NAT.
+     */
+    final Realm publicRealm = new Realm(null);
+
+    /**
+     * The source of randomness for loss and jitter.
+     */
+    private final Random random = new Random();
+
+    /**
+     * The executor which delivers the datagrams in real time, or <tt>null</tt>
+     * if {@link #clock} is used.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * The maximum additional random delay of each datagram, in nanoseconds.
+     */
+    private volatile long jitterNanos = 0;
+
+    /**
+     * The delay of each datagram, in nanoseconds.
+     */
+    private volatile long latencyNanos = 0;
+
+    /**
+     * The probability that a datagram is lost.
+     */
+    private volatile double lossRate = 0;
+
+    /**
+     * Initializes a new <tt>VirtualNetwork</tt> which delivers datagrams in
+     * real time.
+     */
+    public VirtualNetwork()
+    {
+        this(null);
+    }
+
+    /**
+     * Initializes a new <tt>VirtualNetwork</tt>.
+     *
+     * @param clock the clock which is to drive the delivery of datagrams, or
+     * <tt>null</tt> to deliver them in real time.
+     */
+    public VirtualNetwork(VirtualClock clock)
+    {
+        this.clock = clock;
+        this.scheduler
+            = (clock == null)
+                ? ExecutorFactory.createSingleThreadScheduledExecutor(
+                        "ice4j.VirtualNetwork-", 60, TimeUnit.SECONDS)
+                : null;
+    }
+
+    /**
+     * Returns the clock which drives the delivery of datagrams.
+     *
+     * @return the clock which drives the delivery of datagrams, or
+     * <tt>null</tt> if they are delivered in real time.
+     */
+    public VirtualClock getClock()
+    {
+        return clock;
+    }
+
+    /**
+     * Sets the delay of each datagram.
+     *
+     * @param latency the delay of each datagram.
+     */
+    public void setLatency(Duration latency)
+    {
+        latencyNanos = latency.toNanos();
+    }
+
+    /**
+     * Sets the maximum additional random delay of each datagram. Datagrams may
+     * be reordered if it is not zero.
+     *
+     * @param jitter the maximum additional random delay of each datagram.
+     */
+    public void setJitter(Duration jitter)
+    {
+        jitterNanos = jitter.toNanos();
+    }
+
+    /**
+     * Sets the probability that a datagram is lost.
+     *
+     * @param lossRate the probability, between 0 and 1, that a datagram is
+     * lost.
+     */
+    public void setLossRate(double lossRate)
+    {
+        if (lossRate < 0 || lossRate > 1)
+            throw new IllegalArgumentException("lossRate " + lossRate);
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * Seeds the source of randomness for loss and jitter, in order to make
+     * them reproducible.
+     *
+     * @param seed the seed.
+     */
+    public void setSeed(long seed)
+    {
+        random.setSeed(seed);
+    }
+
+    /**
+     * Adds a host which is not behind a NAT to this network.
+     *
+     * @param address the address of the new host.
+     * @return the new host.
+     * @throws IllegalArgumentException if <tt>address</tt> is already used in
+     * the public realm of this network.
+     */
+    public VirtualHost createHost(InetAddress address)
+    {
+        if (nats.containsKey(address))
+        {
+            throw new IllegalArgumentException(
+                    "Address already used by a NAT: " + address);
+        }
+        return publicRealm.addHost(new VirtualHost(this, publicRealm, address));
+    }
+
+    /**
+     * Adds a NAT to this network.
+     *
+     * @param publicAddress the public address of the new NAT.
+     * @param type the behaviour of the new NAT.
+     * @return the new NAT.
+     * @throws IllegalArgumentException if <tt>publicAddress</tt> is already
+     * used in the public realm of this network.
+     */
+    public VirtualNat createNat(InetAddress publicAddress, VirtualNat.Type type)
+    {
+        VirtualNat nat = new VirtualNat(this, publicAddress, type);
+
+        if (publicRealm.hosts.containsKey(publicAddress)
+                || nats.putIfAbsent(publicAddress, nat) != null)
+        {
+            throw new IllegalArgumentException(
+                    "Address already used: " + publicAddress);
+        }
+        return nat;
+    }
+
+    /**
+     * Returns the number of datagrams which were sent.
+     *
+     * @return the number of datagrams which were sent.
+     */
+    public long getPacketsSent()
+    {
+        return packetsSent.sum();
+    }
+
+    /**
+     * Returns the number of datagrams which were delivered to their
+     * destination.
+     *
+     * @return the number of datagrams which were delivered.
+     */
+    public long getPacketsDelivered()
+    {
+        return packetsDelivered.sum();
+    }
+
+    /**
+     * Returns the number of datagrams which were lost according to the loss
+     * rate.
+     *
+     * @return the number of datagrams which were lost.
+     */
+    public long getPacketsLost()
+    {
+        return packetsLost.sum();
+    }
+
+    /**
+     * Returns the number of datagrams which were dropped because they had no
+     * route, were filtered by a NAT or overflowed the receive queue of their
+     * destination.
+     *
+     * @return the number of datagrams which were dropped.
+     */
+    public long getPacketsDropped()
+    {
+        return packetsDropped.sum();
+    }
+
+    /**
+     * Stops delivering datagrams in real time. The datagrams which have not
+     * been delivered yet are dropped.
+     */
+    @Override
+    public void close()
+    {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+    }
+
+    /**
+     * Sends a datagram from a socket of this network.
+     *
+     * @param socket the socket which sends the datagram.
+     * @param p the datagram.
+     */
+    void send(VirtualDatagramSocketImpl socket, DatagramPacket p)
+    {
+        byte[] data
+            = Arrays.copyOfRange(
+                    p.getData(),
+                    p.getOffset(),
+                    p.getOffset() + p.getLength());
+        InetSocketAddress destination
+            = new InetSocketAddress(p.getAddress(), p.getPort());
+
+        packetsSent.increment();
+        route(
+                socket.getHost().getRealm(),
+                socket.getLocalEndpoint(),
+                destination,
+                data);
+    }
+
+    /**
+     * Routes a datagram to its destination through the NATs on its way.
+     *
+     * @param realm the realm in which the datagram is sent.
+     * @param source the address from which the datagram is sent.
+     * @param destination the address to which the datagram is sent.
+     * @param data the payload of the datagram.
+     */
+    private void route(
+            Realm realm,
+            InetSocketAddress source,
+            InetSocketAddress destination,
+            byte[] data)
+    {
+        // Leave the private network through its NAT.
+        if (realm.nat != null
+                && !realm.hosts.containsKey(destination.getAddress()))
+        {
+            source = realm.nat.outbound(source, destination);
+            realm = publicRealm;
+        }
+
+        VirtualDatagramSocketImpl target = realm.sockets.get(destination);
+
+        // Enter a private network through its NAT.
+        if (target == null && realm == publicRealm)
+        {
+            VirtualNat nat = nats.get(destination.getAddress());
+
+            if (nat != null)
+            {
+                InetSocketAddress internal
+                    = nat.inbound(source, destination.getPort());
+
+                if (internal != null)
+                    target = nat.realm.sockets.get(internal);
+            }
+        }
+
+        if (target == null)
+        {
+            packetsDropped.increment();
+            return;
+        }
+
+        double lossRate = this.lossRate;
+
+        if (lossRate > 0 && random.nextDouble() < lossRate)
+        {
+            packetsLost.increment();
+            return;
+        }
+
+        long delay = latencyNanos;
+        long jitter = jitterNanos;
+
+        if (jitter > 0)
+            delay += (long) (random.nextDouble() * jitter);
+
+        VirtualDatagramSocketImpl finalTarget = target;
+        InetSocketAddress finalSource = source;
+        Runnable delivery = () -> deliver(finalTarget, finalSource, data);
+
+        if (clock != null)
+        {
+            clock.schedule(delay, delivery);
+        }
+        else if (delay <= 0)
+        {
+            delivery.run();
+        }
+        else
+        {
+            try
+            {
+                scheduler.schedule(delivery, delay, TimeUnit.NANOSECONDS);
+            }
+            catch (RejectedExecutionException ree)
+            {
+                // The network has been closed.
+                packetsDropped.increment();
+            }
+        }
+    }
+
+    /**
+     * Delivers a datagram to a socket.
+     *
+     * @param target the socket to deliver the datagram to.
+     * @param source the address from which the datagram was sent, as seen by
+     * <tt>target</tt>.
+     * @param data the payload of the datagram.
+     */
+    private void deliver(
+            VirtualDatagramSocketImpl target,
+            InetSocketAddress source,
+            byte[] data)
+    {
+        if (target.deliver(source, data))
+            packetsDelivered.increment();
+        else
+            packetsDropped.increment();
+    }
+
+    /**
+     * The hosts and sockets which can reach each other directly: the public
+     * network or the private network behind a NAT.
+     */
+    static final class Realm
+    {
+        /**
+         * The hosts of the realm by their addresses.
+         */
+        final Map<InetAddress, VirtualHost> hosts = new ConcurrentHashMap<>();
+
+        /**
+         * The NAT in front of the realm, or <tt>null</tt> for the public
+         * realm.
+         */
+        final VirtualNat nat;
+
+        /**
+         * The bound sockets of the realm by their local addresses.
+         */
+        final Map<InetSocketAddress, VirtualDatagramSocketImpl> sockets
+            = new ConcurrentHashMap<>();
+
+        /**
+         * Initializes a new <tt>Realm</tt>.
+         *
+         * @param nat the NAT in front of the new realm, or <tt>null</tt> for
+         * the public realm.
+         */
+        Realm(VirtualNat nat)
+        {
+            this.nat = nat;
+        }
+
+        /**
+         * Adds a host to this realm.
+         *
+         * @param host the host to add.
+         * @return <tt>host</tt>.
+         * @throws IllegalArgumentException if the address of <tt>host</tt> is
+         * already used in this realm.
+         */
+        VirtualHost addHost(VirtualHost host)
+        {
+            if (hosts.putIfAbsent(host.getAddress(), host) != null)
+            {
+                throw new IllegalArgumentException(
+                        "Address already used: " + host.getAddress());
+            }
+            return host;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import java.io.*;
+
+import org.ice4j.*;
+import org.ice4j.message.*;
+
+/**
+ * Keeps track of the binding requests received by a {@link StunStack} in
+ * place of {@link StunServerTransaction}s. Binding requests are idempotent and
+ * are typically answered as soon as they are received, so all a server
+ * transaction really needs to remember about them is the encoded response and
+ * where it was sent, in order to answer retransmissions of the request.
+ * <p>
+ * The cache is a fixed-size, open-addressed table of parallel arrays indexed
+ * by the hash of the transaction ID, so that a request doesn't cost any
+ * object other than its encoded response. Entries are only valid for
+ * {@link StunServerTransaction#LIFETIME} milliseconds. Expired entries are
+ * never swept: they are simply overwritten by new ones. When all the slots
+ * that a transaction ID may occupy are in use, the one which was added first
+ * is evicted, i.e. the cache degrades to forgetting about the oldest
+ * transactions rather than growing.
+ */
+class BindingResponseCache
+{
+    /**
+     * The maximum number of slots that are probed for a transaction ID.
+     */
+    private static final int MAX_PROBES = 8;
+
+    /**
+     * The <tt>StunStack</tt> which uses this cache to encode and send its
+     * responses.
+     */
+    private final StunStack stunStack;
+
+    /**
+     * The mask which turns a hash code into the index of a slot.
+     */
+    private final int mask;
+
+    /**
+     * The transaction IDs of the entries, or <tt>null</tt> for the free slots.
+     */
+    private final TransactionID[] transactionIDs;
+
+    /**
+     * The times (in milliseconds) at which the entries expire.
+     */
+    private final long[] expirationTimes;
+
+    /**
+     * The encoded responses of the entries, or <tt>null</tt> for the entries
+     * which have not been answered yet.
+     */
+    private final byte[][] responses;
+
+    /**
+     * The local addresses through which the responses were sent.
+     */
+    private final TransportAddress[] sendThroughs;
+
+    /**
+     * The addresses to which the responses were sent.
+     */
+    private final TransportAddress[] sendTos;
+
+    /**
+     * Creates a new <tt>BindingResponseCache</tt>.
+     *
+     * @param stunStack the <tt>StunStack</tt> which is to use the new cache.
+     * @param capacity the requested number of entries of the new cache. It is
+     * rounded up to a power of two.
+     */
+    BindingResponseCache(StunStack stunStack, int capacity)
+    {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity: " + capacity);
+
+        int size = Integer.highestOneBit(Math.min(capacity, 1 << 30));
+
+        if (size < capacity)
+            size <<= 1;
+
+        this.stunStack = stunStack;
+        mask = size - 1;
+        transactionIDs = new TransactionID[size];
+        expirationTimes = new long[size];
+        responses = new byte[size][];
+        sendThroughs = new TransportAddress[size];
+        sendTos = new TransportAddress[size];
+    }
+
+    /**
+     * Returns the number of entries of this cache.
+     *
+     * @return the number of entries of this cache.
+     */
+    int getCapacity()
+    {
+        return transactionIDs.length;
+    }
+
+    /**
+     * Adds an entry for a new request with the specified transaction ID. The
+     * entry stays in the cache for {@link StunServerTransaction#LIFETIME}
+     * milliseconds unless it is evicted by newer entries.
+     *
+     * @param transactionID the ID of the request.
+     */
+    synchronized void add(TransactionID transactionID)
+    {
+        long now = System.currentTimeMillis();
+        int slot = indexOf(transactionID, now);
+
+        if (slot < 0)
+        {
+            // Take the first free or expired slot or, failing that, the one
+            // which expires first.
+            int start = transactionID.hashCode() & mask;
+
+            slot = start;
+            for (int i = 0; i < MAX_PROBES; i++)
+            {
+                int candidate = (start + i) & mask;
+
+                if (transactionIDs[candidate] == null
+                        || expirationTimes[candidate] - now <= 0)
+                {
+                    slot = candidate;
+                    break;
+                }
+                if (expirationTimes[candidate] - expirationTimes[slot] < 0)
+                    slot = candidate;
+            }
+        }
+
+        transactionIDs[slot] = transactionID;
+        expirationTimes[slot] = now + StunServerTransaction.LIFETIME;
+        responses[slot] = null;
+        sendThroughs[slot] = null;
+        sendTos[slot] = null;
+    }
+
+    /**
+     * Removes the entry of the request with the specified transaction ID, if
+     * any.
+     *
+     * @param transactionID the ID of the request.
+     */
+    synchronized void remove(TransactionID transactionID)
+    {
+        int slot = indexOf(transactionID, System.currentTimeMillis());
+
+        if (slot >= 0)
+            clear(slot);
+    }
+
+    /**
+     * Removes all the entries of this cache.
+     */
+    synchronized void clear()
+    {
+        for (int slot = 0; slot < transactionIDs.length; slot++)
+            clear(slot);
+    }
+
+    /**
+     * Retransmits the response to the request with the specified transaction
+     * ID, if the request is known to this cache and has been answered.
+     *
+     * @param transactionID the ID of the retransmitted request.
+     * @return <tt>true</tt> if the request is known to this cache (whether it
+     * has been answered or not) and <tt>false</tt> otherwise.
+     *
+     * @throws IOException if an error occurs while sending the response.
+     * @throws IllegalArgumentException if the socket through which the
+     * response was sent has been removed.
+     */
+    boolean retransmitResponse(TransactionID transactionID)
+        throws IOException,
+               IllegalArgumentException
+    {
+        byte[] response;
+        TransportAddress sendThrough;
+        TransportAddress sendTo;
+
+        synchronized (this)
+        {
+            int slot = indexOf(transactionID, System.currentTimeMillis());
+
+            if (slot < 0)
+                return false;
+
+            response = responses[slot];
+            sendThrough = sendThroughs[slot];
+            sendTo = sendTos[slot];
+        }
+
+        // Like StunServerTransaction, don't send anything until the
+        // application has answered the request.
+        if (response != null)
+        {
+            StunStackMetrics metrics = stunStack.getStackMetrics();
+
+            metrics.countSent((char) (((response[0] & 0xFF) << 8)
+                    | (response[1] & 0xFF)));
+            metrics.serverRetransmissions.increment();
+            stunStack.getNetAccessManager().sendMessage(
+                    response,
+                    sendThrough,
+                    sendTo);
+        }
+        return true;
+    }
+
+    /**
+     * Sends the response to the request with the specified transaction ID and
+     * remembers it in order to answer the retransmissions of the request.
+     * <p>
+     * A binding response to a request which is not known to this cache, e.g.
+     * because its entry has been evicted under load, is still sent but is not
+     * remembered: binding requests never get server transactions while the
+     * cache is in use, so there is nothing else to answer them through.
+     *
+     * @param transactionID the ID of the request.
+     * @param response the response to send.
+     * @param sendThrough the local address through which to send the response.
+     * @param sendTo the address to which to send the response.
+     * @return <tt>true</tt> if the response has been sent, or <tt>false</tt>
+     * if it is not a binding response and the request is not known to this
+     * cache.
+     *
+     * @throws StunException if the request has already been answered
+     * (<tt>TRANSACTION_ALREADY_ANSWERED</tt>) or if encoding the response
+     * fails.
+     * @throws IOException if an error occurs while sending the response.
+     * @throws IllegalArgumentException if <tt>sendThrough</tt> does not
+     * correspond to a socket of the stack.
+     */
+    boolean sendResponse(
+            TransactionID transactionID,
+            Response response,
+            TransportAddress sendThrough,
+            TransportAddress sendTo)
+        throws StunException,
+               IOException,
+               IllegalArgumentException
+    {
+        synchronized (this)
+        {
+            int slot = indexOf(transactionID, System.currentTimeMillis());
+
+            if (slot < 0)
+            {
+                if (!isBindingResponse(response))
+                    return false;
+            }
+            else if (responses[slot] != null)
+            {
+                throw alreadyAnswered(transactionID);
+            }
+        }
+
+        // Encode outside of the lock, MESSAGE-INTEGRITY needs the credentials
+        // of the application.
+        response.setTransactionID(transactionID.getBytes());
+
+        byte[] bytes = response.encode(stunStack);
+
+        synchronized (this)
+        {
+            int slot = indexOf(transactionID, System.currentTimeMillis());
+
+            // The entry may have been evicted (in the meantime or before), in
+            // which case the response is still sent but won't be
+            // retransmitted.
+            if (slot >= 0)
+            {
+                if (responses[slot] != null)
+                    throw alreadyAnswered(transactionID);
+
+                responses[slot] = bytes;
+                sendThroughs[slot] = sendThrough;
+                sendTos[slot] = sendTo;
+            }
+        }
+
+        stunStack.getStackMetrics().countSent(response.getMessageType());
+        stunStack.getNetAccessManager().sendMessage(bytes, sendThrough, sendTo);
+        return true;
+    }
+
+    /**
+     * Determines whether a response answers a binding request.
+     *
+     * @param response the response to check.
+     * @return <tt>true</tt> if <tt>response</tt> is a binding success or
+     * error response and <tt>false</tt> otherwise.
+     */
+    private static boolean isBindingResponse(Response response)
+    {
+        char messageType = response.getMessageType();
+
+        return messageType == Message.BINDING_SUCCESS_RESPONSE
+            || messageType == Message.BINDING_ERROR_RESPONSE;
+    }
+
+    /**
+     * Returns the slot of the unexpired entry with the specified transaction
+     * ID, or <tt>-1</tt> if there is no such entry.
+     *
+     * @param transactionID the transaction ID to look for.
+     * @param now the current time in milliseconds.
+     * @return the slot of the entry with the specified transaction ID, or
+     * <tt>-1</tt> if there is no such entry.
+     */
+    private int indexOf(TransactionID transactionID, long now)
+    {
+        int start = transactionID.hashCode() & mask;
+
+        for (int i = 0; i < MAX_PROBES; i++)
+        {
+            int slot = (start + i) & mask;
+
+            if (transactionID.equals(transactionIDs[slot]))
+                return (expirationTimes[slot] - now > 0) ? slot : -1;
+        }
+        return -1;
+    }
+
+    /**
+     * Frees a slot and the response that it holds.
+     *
+     * @param slot the slot to free.
+     */
+    private void clear(int slot)
+    {
+        transactionIDs[slot] = null;
+        responses[slot] = null;
+        sendThroughs[slot] = null;
+        sendTos[slot] = null;
+    }
+
+    /**
+     * Creates the exception thrown when an application answers a request
+     * twice.
+     *
+     * @param transactionID the ID of the request.
+     * @return a <tt>TRANSACTION_ALREADY_ANSWERED</tt> <tt>StunException</tt>.
+     */
+    private static StunException alreadyAnswered(TransactionID transactionID)
+    {
+        return new StunException(
+                StunException.TRANSACTION_ALREADY_ANSWERED,
+                "The transaction specified in the response (tid="
+                    + transactionID + ") has already seen a previous response.");
+    }
+}
@@ -322,9 +322,32 @@ class Connector
      */
     void sendMessage(byte[] message, TransportAddress address)
         throws IOException
+    {
+        sendMessage(message, 0, message.length, address);
+    }
+
+    /**
+     * Sends the <tt>length</tt> bytes of <tt>message</tt> starting at
+     * <tt>offset</tt> through this access point's socket. The socket does not
+     * keep a reference to <tt>message</tt>, which may be reused as soon as
+     * this method returns.
+     *
+     * @param message the array which contains the bytes to send.
+     * @param offset the index of the first byte to send.
+     * @param length the number of bytes to send.
+     * @param address message destination.
+     *
+     * @throws IOException if an exception occurs while sending the message.
+     */
+    void sendMessage(
+            byte[] message,
+            int offset,
+            int length,
+            TransportAddress address)
+        throws IOException
     {
         DatagramPacket datagramPacket
-            = new DatagramPacket(message, 0, message.length, address);
+            = new DatagramPacket(message, offset, length, address);
 
         IceSocketWrapper sock = this.sock;
         if (sock != null)
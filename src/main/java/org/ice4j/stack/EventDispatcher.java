@@ -18,8 +18,10 @@
 package org.ice4j.stack;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.ice4j.*;
+import org.ice4j.attribute.*;
 import org.ice4j.message.*;
 
 /**
@@ -27,28 +29,60 @@ import org.ice4j.message.*;
  * this class mainly (and probably solely) for its ability to handle listener
  * proxies (i.e. listeners interested in requests received on a particular
  * NetAccessPoint only).
+ * <p>
+ * The registered listeners are kept in an immutable {@link Snapshot} indexed
+ * by the class of the messages (request, indication, etc.) that they are
+ * interested in and by local address. Registrations replace the snapshot
+ * while {@link #fireMessageEvent(StunMessageEvent)} only reads it, without
+ * taking any lock or allocating.
+ * <p>
+ * Request listeners may also be registered for a local ufrag, in which case
+ * they only receive the requests whose <tt>USERNAME</tt> starts with that
+ * ufrag. This lets many ICE agents share one <tt>StunStack</tt> without each
+ * request being offered to every agent.
  *
  * @author Emil Ivov
  * @author Lubomir Marinov
  */
 public class EventDispatcher
 {
+    /**
+     * The number of classes of STUN messages (i.e. request, indication,
+     * success response and error response).
+     */
+    private static final int MESSAGE_CLASS_COUNT = 4;
 
     /**
-     * The STUN request and indication listeners registered with this
-     * <tt>EventDispatcher</tt>.
+     * The index of the class of STUN requests (see
+     * {@link #getMessageClassIndex(char)}).
+     */
+    private static final int REQUEST_CLASS_INDEX = 0;
+
+    /**
+     * The empty array of listeners.
      */
-    private final List<MessageTypeEventHandler<?>> messageListeners
-        = new Vector<>();
+    private static final MessageTypeEventHandler<?>[] NO_LISTENERS
+        = new MessageTypeEventHandler<?>[0];
 
     /**
-     * The <tt>Map</tt> of <tt>EventDispatcher</tt>s which keep the
-     * registrations of STUN request and indication listeners registered for
-     * STUN requests and indications from specific local
-     * <tt>TransportAddress</tt>es.
+     * The snapshot of the listeners without any listener.
      */
-    private final Map<TransportAddress, EventDispatcher> children
-        = new Hashtable<>();
+    private static final Snapshot EMPTY
+        = new Snapshot(ListenerTable.EMPTY, Collections.emptyMap());
+
+    /**
+     * The current snapshot of the registered listeners. Replaced while
+     * holding the lock of this <tt>EventDispatcher</tt>.
+     */
+    private volatile Snapshot snapshot = EMPTY;
+
+    /**
+     * The request listeners registered for specific local ufrags. Kept apart
+     * from {@link #snapshot} because there may be one per agent sharing the
+     * stack, which would make copying them on every registration costly.
+     */
+    private final Map<String, RequestListener> ufragRequestListeners
+        = new ConcurrentHashMap<>();
 
     /**
      * Initializes a new <tt>EventDispatcher</tt> instance.
@@ -57,6 +91,23 @@ public class EventDispatcher
     {
     }
 
+    /**
+     * Returns the index of the class of STUN messages of type
+     * <tt>messageType</tt>.
+     *
+     * @param messageType the type of a STUN message, or the class itself
+     * (e.g. {@link Message#STUN_REQUEST}).
+     *
+     * @return the index of the class of STUN messages of type
+     * <tt>messageType</tt>, between <tt>0</tt> and
+     * {@link #MESSAGE_CLASS_COUNT} excluded.
+     */
+    private static int getMessageClassIndex(char messageType)
+    {
+        // The class is encoded in bits 4 (C0) and 8 (C1) of the type.
+        return ((messageType >> 4) & 0x1) | ((messageType >> 7) & 0x2);
+    }
+
     /**
      * Registers a specific <tt>MessageEventHandler</tt> for notifications about
      * STUN indications received at a specific local <tt>TransportAddress</tt>.
@@ -107,11 +158,10 @@ public class EventDispatcher
     private synchronized void addMessageListener(
             MessageTypeEventHandler<?> messageListener)
     {
-        synchronized(messageListeners)
-        {
-            if (!messageListeners.contains(messageListener))
-                messageListeners.add(messageListener);
-        }
+        Snapshot snapshot = this.snapshot;
+
+        this.snapshot
+            = new Snapshot(snapshot.global.with(messageListener), snapshot.local);
     }
 
     /**
@@ -130,17 +180,12 @@ public class EventDispatcher
             TransportAddress localAddr,
             MessageTypeEventHandler<?> messageListener)
     {
-        synchronized(children)
-        {
-            EventDispatcher child = children.get(localAddr);
+        Snapshot snapshot = this.snapshot;
+        ListenerTable table
+            = snapshot.local.getOrDefault(localAddr, ListenerTable.EMPTY);
 
-            if (child == null)
-            {
-                child = new EventDispatcher();
-                children.put(localAddr, child);
-            }
-            child.addMessageListener(messageListener);
-        }
+        this.snapshot
+            = snapshot.withLocal(localAddr, table.with(messageListener));
     }
 
     /**
@@ -170,6 +215,32 @@ public class EventDispatcher
                 new RequestListenerMessageEventHandler(listener));
     }
 
+    /**
+     * Adds a <tt>RequestListener</tt> which is to be notified only about the
+     * requests whose <tt>USERNAME</tt> attribute starts with a specific local
+     * ufrag, no matter which local address they are received at. Only one
+     * listener may be registered for a ufrag at a time.
+     *
+     * @param localUfrag the local ufrag that we're interested in.
+     * @param listener the <tt>RequestListener</tt> to be added
+     * @throws IllegalStateException if another listener is already registered
+     * for <tt>localUfrag</tt>
+     */
+    public void addRequestListener(String localUfrag, RequestListener listener)
+    {
+        RequestListener existing
+            = ufragRequestListeners.putIfAbsent(
+                    Objects.requireNonNull(localUfrag, "localUfrag"),
+                    Objects.requireNonNull(listener, "listener"));
+
+        if (existing != null && existing != listener)
+        {
+            throw new IllegalStateException(
+                    "Another RequestListener is already registered for ufrag "
+                        + localUfrag);
+        }
+    }
+
     /**
      * Unregisters a specific <tt>MessageTypeEventHandler</tt> from
      * notifications about received STUN messages.
@@ -180,10 +251,12 @@ public class EventDispatcher
     private synchronized void removeMessageListener(
             MessageTypeEventHandler<?> messageListener)
     {
-        synchronized(messageListeners)
-        {
-            messageListeners.remove(messageListener);
-        }
+        Snapshot snapshot = this.snapshot;
+
+        this.snapshot
+            = new Snapshot(
+                    snapshot.global.without(messageListener),
+                    snapshot.local);
     }
 
     /**
@@ -202,14 +275,13 @@ public class EventDispatcher
             TransportAddress localAddr,
             MessageTypeEventHandler<?> messageListener)
     {
-        synchronized(children)
-        {
-            EventDispatcher child = children.get( localAddr );
+        Snapshot snapshot = this.snapshot;
+        ListenerTable table = snapshot.local.get(localAddr);
 
-            if (child == null)
-                return;
-            child.removeMessageListener(messageListener);
-        }
+        if (table == null)
+            return;
+        this.snapshot
+            = snapshot.withLocal(localAddr, table.without(messageListener));
     }
 
     /**
@@ -242,6 +314,44 @@ public class EventDispatcher
     }
 
 
+    /**
+     * Removes a <tt>RequestListener</tt> registered for a specific local
+     * ufrag. Does nothing if another listener has since been registered for
+     * that ufrag.
+     *
+     * @param localUfrag the local ufrag that was listened for.
+     * @param listener the <tt>RequestListener</tt> to be removed
+     */
+    public void removeRequestListener(String localUfrag,
+                                      RequestListener listener)
+    {
+        ufragRequestListeners.remove(localUfrag, listener);
+    }
+
+    /**
+     * Returns the local ufrag of a specific request i.e. the part of its
+     * <tt>USERNAME</tt> attribute which precedes the colon.
+     *
+     * @param request the request.
+     * @return the local ufrag of <tt>request</tt> or <tt>null</tt> if it has
+     * no <tt>USERNAME</tt> attribute.
+     */
+    private static String getLocalUfrag(Message request)
+    {
+        UsernameAttribute usernameAttr
+            = (UsernameAttribute) request.getAttribute(Attribute.USERNAME);
+
+        if (usernameAttr == null)
+            return null;
+
+        byte[] username = usernameAttr.getUsername();
+        int length = 0;
+
+        while (length < username.length && username[length] != ':')
+            length++;
+        return new String(username, 0, length);
+    }
+
     /**
      * Dispatch a StunMessageEvent to any registered listeners.
      *
@@ -249,31 +359,33 @@ public class EventDispatcher
      */
     public void fireMessageEvent(StunMessageEvent evt)
     {
-        TransportAddress localAddr = evt.getLocalAddress();
-        MessageTypeEventHandler<?>[] messageListenersCopy;
+        Snapshot snapshot = this.snapshot;
+        int messageClass
+            = getMessageClassIndex(evt.getMessage().getMessageType());
 
-        synchronized(messageListeners)
-        {
-            messageListenersCopy
-                = messageListeners.toArray(
-                        new MessageTypeEventHandler<?>[
-                                messageListeners.size()]);
-        }
+        snapshot.global.fire(messageClass, evt);
 
-        char messageType = (char) (evt.getMessage().getMessageType() & 0x0110);
-
-        for (MessageTypeEventHandler<?> messageListener : messageListenersCopy)
+        if (!snapshot.local.isEmpty())
         {
-            if (messageType == messageListener.messageType)
-                messageListener.handleMessageEvent(evt);
+            ListenerTable table = snapshot.local.get(evt.getLocalAddress());
+
+            if (table != null)
+                table.fire(messageClass, evt);
         }
 
-        synchronized(children)
+        if (messageClass == REQUEST_CLASS_INDEX
+                && !ufragRequestListeners.isEmpty())
         {
-            EventDispatcher child = children.get(localAddr);
+            String localUfrag = getLocalUfrag(evt.getMessage());
 
-            if (child != null)
-                child.fireMessageEvent(evt);
+            if (localUfrag != null)
+            {
+                RequestListener listener
+                    = ufragRequestListeners.get(localUfrag);
+
+                if (listener != null)
+                    listener.processRequest(evt);
+            }
         }
     }
 
@@ -287,36 +399,216 @@ public class EventDispatcher
      */
     public boolean hasRequestListeners(TransportAddress localAddr)
     {
-        synchronized(messageListeners)
+        Snapshot snapshot = this.snapshot;
+
+        if (!snapshot.global.isEmpty() || !ufragRequestListeners.isEmpty())
         {
-            if (!messageListeners.isEmpty())
-            {
-                // there is a generic listener
-                return true;
-            }
+            // there is a generic listener
+            return true;
         }
 
-        synchronized(children)
-        {
-            if (!children.isEmpty())
-            {
-                EventDispatcher child = children.get(localAddr);
+        ListenerTable table = snapshot.local.get(localAddr);
 
-                if (child != null)
-                    return !child.messageListeners.isEmpty();
-            }
+        return table != null && !table.isEmpty();
+    }
+
+    /**
+     * Removes (absolutely all listeners for this event dispatcher).
+     */
+    public synchronized void removeAllListeners()
+    {
+        snapshot = EMPTY;
+        ufragRequestListeners.clear();
+    }
+
+    /**
+     * An immutable snapshot of the listeners registered with an
+     * <tt>EventDispatcher</tt>.
+     */
+    private static class Snapshot
+    {
+        /**
+         * The listeners registered for messages received at any local
+         * address.
+         */
+        final ListenerTable global;
+
+        /**
+         * The listeners registered for messages received at specific local
+         * addresses. Never modified.
+         */
+        final Map<TransportAddress, ListenerTable> local;
+
+        /**
+         * Initializes a new <tt>Snapshot</tt>.
+         *
+         * @param global the listeners registered for messages received at any
+         * local address.
+         * @param local the listeners registered for messages received at
+         * specific local addresses, which is not to be modified afterwards.
+         */
+        Snapshot(
+                ListenerTable global,
+                Map<TransportAddress, ListenerTable> local)
+        {
+            this.global = global;
+            this.local = local;
         }
 
-        return false;
+        /**
+         * Returns a copy of this snapshot in which the listeners registered
+         * for messages received at <tt>localAddr</tt> are <tt>table</tt>.
+         *
+         * @param localAddr the local address.
+         * @param table the listeners registered for messages received at
+         * <tt>localAddr</tt>.
+         *
+         * @return a copy of this snapshot with <tt>table</tt> registered for
+         * <tt>localAddr</tt>.
+         */
+        Snapshot withLocal(TransportAddress localAddr, ListenerTable table)
+        {
+            Map<TransportAddress, ListenerTable> local = new HashMap<>(this.local);
+
+            if (table.isEmpty())
+                local.remove(localAddr);
+            else
+                local.put(localAddr, table);
+            return new Snapshot(global, local);
+        }
     }
 
     /**
-     * Removes (absolutely all listeners for this event dispatcher).
+     * An immutable table of listeners indexed by the class of the messages
+     * that they are interested in.
      */
-    public void removeAllListeners()
+    private static class ListenerTable
     {
-        messageListeners.clear();
-        children.clear();
+        /**
+         * The table without any listener.
+         */
+        static final ListenerTable EMPTY;
+
+        static
+        {
+            MessageTypeEventHandler<?>[][] listeners
+                = new MessageTypeEventHandler<?>[MESSAGE_CLASS_COUNT][];
+
+            Arrays.fill(listeners, NO_LISTENERS);
+            EMPTY = new ListenerTable(listeners);
+        }
+
+        /**
+         * The listeners by index of message class (see
+         * {@link #getMessageClassIndex(char)}), in registration order.
+         */
+        private final MessageTypeEventHandler<?>[][] listeners;
+
+        /**
+         * Initializes a new <tt>ListenerTable</tt>.
+         *
+         * @param listeners the listeners by index of message class, which are
+         * not to be modified afterwards.
+         */
+        private ListenerTable(MessageTypeEventHandler<?>[][] listeners)
+        {
+            this.listeners = listeners;
+        }
+
+        /**
+         * Returns a copy of this table which also contains
+         * <tt>listener</tt>.
+         *
+         * @param listener the listener to add.
+         *
+         * @return a copy of this table which also contains <tt>listener</tt>
+         * or this table if it already contains <tt>listener</tt>.
+         */
+        ListenerTable with(MessageTypeEventHandler<?> listener)
+        {
+            int messageClass = getMessageClassIndex(listener.messageType);
+            MessageTypeEventHandler<?>[] classListeners
+                = listeners[messageClass];
+
+            for (MessageTypeEventHandler<?> l : classListeners)
+            {
+                if (l.equals(listener))
+                    return this;
+            }
+
+            MessageTypeEventHandler<?>[][] newListeners = listeners.clone();
+
+            newListeners[messageClass]
+                = Arrays.copyOf(classListeners, classListeners.length + 1);
+            newListeners[messageClass][classListeners.length] = listener;
+            return new ListenerTable(newListeners);
+        }
+
+        /**
+         * Returns a copy of this table which does not contain
+         * <tt>listener</tt>.
+         *
+         * @param listener the listener to remove.
+         *
+         * @return a copy of this table which does not contain
+         * <tt>listener</tt> or this table if it doesn't contain
+         * <tt>listener</tt>.
+         */
+        ListenerTable without(MessageTypeEventHandler<?> listener)
+        {
+            int messageClass = getMessageClassIndex(listener.messageType);
+            MessageTypeEventHandler<?>[] classListeners
+                = listeners[messageClass];
+
+            for (int i = 0; i < classListeners.length; i++)
+            {
+                if (classListeners[i].equals(listener))
+                {
+                    MessageTypeEventHandler<?>[][] newListeners
+                        = listeners.clone();
+                    MessageTypeEventHandler<?>[] newClassListeners
+                        = new MessageTypeEventHandler<?>[
+                                classListeners.length - 1];
+
+                    System.arraycopy(classListeners, 0, newClassListeners, 0, i);
+                    System.arraycopy(
+                            classListeners, i + 1,
+                            newClassListeners, i,
+                            newClassListeners.length - i);
+                    newListeners[messageClass] = newClassListeners;
+                    return new ListenerTable(newListeners);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Determines whether this table contains no listener.
+         *
+         * @return <tt>true</tt> if this table contains no listener.
+         */
+        boolean isEmpty()
+        {
+            for (MessageTypeEventHandler<?>[] classListeners : listeners)
+            {
+                if (classListeners.length != 0)
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Notifies the listeners of this table which are interested in
+         * messages of the class of the message of <tt>evt</tt>.
+         *
+         * @param messageClass the index of the class of the message.
+         * @param evt the event to deliver.
+         */
+        void fire(int messageClass, StunMessageEvent evt)
+        {
+            for (MessageTypeEventHandler<?> listener : listeners[messageClass])
+                listener.handleMessageEvent(evt);
+        }
     }
 
     /**
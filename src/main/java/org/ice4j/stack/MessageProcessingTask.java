@@ -182,6 +182,7 @@ class MessageProcessingTask
             }
             catch (StunException ex)
             {
+                stunStack.getStackMetrics().decodeFailures.increment();
                 errorHandler.handleError(
                     "Failed to decode a stun message!",
                     ex);
@@ -20,6 +20,7 @@ package org.ice4j.stack;
 import org.ice4j.*;
 import org.ice4j.message.*;
 import org.ice4j.socket.*;
+import org.ice4j.util.*;
 import org.jitsi.utils.concurrent.*;
 
 import java.io.*;
@@ -578,7 +579,31 @@ public class NetAccessManager
         throws IllegalArgumentException,
                IOException
     {
-        sendMessage(stunMessage.encode(stunStack), srcAddr, remoteAddr);
+        Connector ap = getConnector(srcAddr, remoteAddr);
+        if (ap == null)
+        {
+            throw new SocketNotFoundException("No socket found for " + srcAddr + "->" + remoteAddr.toRedactedString());
+        }
+
+        stunStack.getStackMetrics().countSent(stunMessage.getMessageType());
+
+        // Encode the message directly into a pooled buffer of its size. The
+        // sockets don't keep the arrays they are given, so the buffer can be
+        // returned as soon as the message has been sent.
+        Buffer buffer = stunMessage.encodeToPooledBuffer(stunStack);
+
+        try
+        {
+            ap.sendMessage(
+                    buffer.getBuffer(),
+                    buffer.getOffset(),
+                    buffer.getLength(),
+                    remoteAddr);
+        }
+        finally
+        {
+            BufferPool.returnBuffer.invoke(buffer);
+        }
     }
     
     /**
@@ -601,9 +626,75 @@ public class NetAccessManager
         throws IllegalArgumentException,
                IOException, StunException
     {
+        sendChannelData(
+                channelData.getChannelNumber(),
+                channelData.getData(), 0, channelData.getDataLength(),
+                srcAddr,
+                remoteAddr);
+    }
+
+    /**
+     * Frames application data as a ChannelData message and sends it through
+     * the specified access point, without creating a <tt>ChannelData</tt>
+     * instance or allocating an array for the message. The message is encoded
+     * into a buffer of the {@link BufferPool} of exactly its encoded length,
+     * padding included over TCP and TLS.
+     *
+     * @param channelNumber the channel number of the message.
+     * @param data the array which contains the application data.
+     * @param offset the index of the application data in <tt>data</tt>.
+     * @param length the length of the application data.
+     * @param srcAddr the access point to use to send the message
+     * @param remoteAddr the destination of the message.
+     *
+     * @throws IllegalArgumentException if the apDescriptor references an
+     * access point that had not been installed,
+     * @throws IOException  if an error occurs while sending message bytes
+     * through the network socket.
+     * @throws StunException if the channel number is invalid
+     */
+    void sendChannelData(
+            char channelNumber,
+            byte[] data, int offset, int length,
+            TransportAddress srcAddr,
+            TransportAddress remoteAddr)
+        throws IllegalArgumentException,
+               IOException,
+               StunException
+    {
+        Connector ap = getConnector(srcAddr, remoteAddr);
+        if (ap == null)
+        {
+            throw new SocketNotFoundException("No socket found for " + srcAddr + "->" + remoteAddr.toRedactedString());
+        }
+
         boolean pad = srcAddr.getTransport() == Transport.TCP
             || srcAddr.getTransport() == Transport.TLS;
-        sendMessage(channelData.encode(pad), srcAddr, remoteAddr);
+        int messageLength = ChannelData.getEncodedLength(length, pad);
+        Buffer buffer = BufferPool.getBuffer.invoke(messageLength);
+
+        try
+        {
+            byte[] buf = buffer.getBuffer();
+            int bufOffset = buffer.getOffset();
+
+            if (bufOffset < 0 || messageLength > buf.length - bufOffset)
+            {
+                // The pool returned a buffer which is too small.
+                buf = new byte[messageLength];
+                bufOffset = 0;
+            }
+            ChannelData.encodeTo(
+                    channelNumber,
+                    data, offset, length,
+                    buf, bufOffset,
+                    pad);
+            ap.sendMessage(buf, bufOffset, messageLength, remoteAddr);
+        }
+        finally
+        {
+            BufferPool.returnBuffer.invoke(buffer);
+        }
     }
 
     /**
@@ -17,6 +17,8 @@
  */
 package org.ice4j.stack;
 
+import java.util.*;
+
 /**
  * The interface which interested implementers will use in order
  * to track and log packets send and received by this stack.
@@ -43,6 +45,42 @@ public interface PacketLogger
             byte[] packetContent,
             boolean sender);
 
+    /**
+     * Logs a incoming or outgoing packet whose content is a range of a
+     * <tt>byte</tt> array. The default implementation copies the range and
+     * calls {@link #logPacket(byte[], int, byte[], int, byte[], boolean)}.
+     * Implementations must not keep a reference to <tt>packetContent</tt>,
+     * which is reused once the method returns.
+     *
+     * @param sourceAddress the source address of the packet.
+     * @param sourcePort the source port.
+     * @param destinationAddress the destination address of the packet.
+     * @param destinationPort the destination port.
+     * @param packetContent the array which holds the content of the packet.
+     * @param offset the offset of the content of the packet in
+     * <tt>packetContent</tt>.
+     * @param length the length of the content of the packet.
+     * @param sender whether we are sending or not the packet.
+     */
+    public default void logPacket(
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            byte[] packetContent,
+            int offset,
+            int length,
+            boolean sender)
+    {
+        logPacket(
+                sourceAddress,
+                sourcePort,
+                destinationAddress,
+                destinationPort,
+                Arrays.copyOfRange(packetContent, offset, offset + length),
+                sender);
+    }
+
     /**
      * Checks whether the logger is enabled. 
      * @return <tt>true</tt> if the logger is enabled, <tt>false</tt>
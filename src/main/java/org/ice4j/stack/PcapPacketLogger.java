@@ -0,0 +1,1061 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.logging.*;
+
+/**
+ * A {@link PacketLogger} which writes the packets into pcap files that can be
+ * opened with Wireshark or tcpdump, without blocking the threads which send
+ * and receive them.
+ * <p>
+ * {@link #logPacket(byte[], int, byte[], int, byte[], int, int, boolean)}
+ * only copies the packet into a preallocated slot of a bounded, lock-free
+ * ring buffer. The packets are dropped (and counted) when the ring buffer is
+ * full. A background thread takes the packets out of the ring buffer, prefixes
+ * them with synthetic IPv4 or IPv6 and UDP headers and writes them into a
+ * memory-mapped file. When the file reaches its maximum size, it is renamed to
+ * <tt>&lt;file&gt;.1</tt> (the previous <tt>&lt;file&gt;.1</tt> becoming
+ * <tt>&lt;file&gt;.2</tt> and so on) and a new file is started, so that at
+ * most {@link #getMaxFiles()} files are kept.
+ * <p>
+ * The amount of captured traffic can be reduced by sampling (see
+ * {@link #setSamplingRate(double)}) and by restricting the capture to specific
+ * ICE sessions (see {@link #addUfrag(String)}). In the latter case, the STUN
+ * messages whose USERNAME contains one of the ufrags are captured, as well as
+ * all the packets exchanged between the same addresses afterwards.
+ */
+public class PcapPacketLogger
+    implements PacketLogger
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>PcapPacketLogger</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(PcapPacketLogger.class.getName());
+
+    /**
+     * The default number of packets that the ring buffer can hold.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * The default maximum number of bytes captured for each packet.
+     */
+    public static final int DEFAULT_SNAP_LENGTH = 1500;
+
+    /**
+     * The default maximum size of a pcap file.
+     */
+    public static final long DEFAULT_MAX_FILE_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * The default maximum number of pcap files kept.
+     */
+    public static final int DEFAULT_MAX_FILES = 4;
+
+    /**
+     * The size of the global header of a pcap file.
+     */
+    private static final int PCAP_HEADER_LENGTH = 24;
+
+    /**
+     * The size of the header of a packet record in a pcap file.
+     */
+    private static final int RECORD_HEADER_LENGTH = 16;
+
+    /**
+     * The size of the synthetic IPv4 header.
+     */
+    private static final int IPV4_HEADER_LENGTH = 20;
+
+    /**
+     * The size of the synthetic IPv6 header.
+     */
+    private static final int IPV6_HEADER_LENGTH = 40;
+
+    /**
+     * The size of the synthetic UDP header.
+     */
+    private static final int UDP_HEADER_LENGTH = 8;
+
+    /**
+     * The link type of the packets in the pcap files (<tt>LINKTYPE_RAW</tt>),
+     * i.e. raw IPv4 or IPv6 packets.
+     */
+    private static final int LINKTYPE_RAW = 101;
+
+    /**
+     * The STUN magic cookie.
+     */
+    private static final int STUN_MAGIC_COOKIE = 0x2112A442;
+
+    /**
+     * The type of the STUN USERNAME attribute.
+     */
+    private static final int STUN_USERNAME = 0x0006;
+
+    /**
+     * The maximum number of flows remembered for filtering by ufrag. The set
+     * of flows is cleared when it grows larger.
+     */
+    private static final int MAX_FLOWS = 4096;
+
+    /**
+     * The time the writer thread sleeps when the ring buffer is empty.
+     */
+    private static final long IDLE_PARK_NANOS
+        = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * The path of the current pcap file.
+     */
+    private final Path file;
+
+    /**
+     * The maximum size of a pcap file.
+     */
+    private final long maxFileSize;
+
+    /**
+     * The maximum number of pcap files kept.
+     */
+    private final int maxFiles;
+
+    /**
+     * The maximum number of bytes captured for each packet.
+     */
+    private final int snapLength;
+
+    /**
+     * The mask which turns a position in the ring buffer into the index of a
+     * slot.
+     */
+    private final int mask;
+
+    /**
+     * For each slot, the position in the ring buffer at which the slot may be
+     * written (if equal to the position) or read (if equal to the position
+     * plus one).
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * The position in the ring buffer at which the next packet is to be
+     * written.
+     */
+    private final AtomicLong writePosition = new AtomicLong();
+
+    /**
+     * The position in the ring buffer at which the next packet is to be read.
+     * Only accessed by the writer thread.
+     */
+    private long readPosition = 0;
+
+    /**
+     * The captured bytes of the packet of each slot.
+     */
+    private final byte[][] payloads;
+
+    /**
+     * The original length of the packet of each slot.
+     */
+    private final int[] lengths;
+
+    /**
+     * The time (in milliseconds since the epoch) at which the packet of each
+     * slot was logged.
+     */
+    private final long[] timestamps;
+
+    /**
+     * The source address of the packet of each slot.
+     */
+    private final byte[][] sourceAddresses;
+
+    /**
+     * The source port of the packet of each slot.
+     */
+    private final int[] sourcePorts;
+
+    /**
+     * The destination address of the packet of each slot.
+     */
+    private final byte[][] destinationAddresses;
+
+    /**
+     * The destination port of the packet of each slot.
+     */
+    private final int[] destinationPorts;
+
+    /**
+     * Whether the packet of each slot was sent (rather than received).
+     */
+    private final boolean[] sent;
+
+    /**
+     * The ufrags of the ICE sessions to capture. Empty if all the packets are
+     * to be captured.
+     */
+    private final Set<String> ufrags = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The flows (pairs of local and remote addresses) on which STUN messages
+     * of the ICE sessions to capture have been seen. Only accessed by the
+     * writer thread.
+     */
+    private final Set<Flow> flows = new HashSet<>();
+
+    /**
+     * The thread which writes the packets into the pcap files.
+     */
+    private final Thread writerThread;
+
+    /**
+     * The buffer into which the records of a packet are assembled. Only
+     * accessed by the writer thread.
+     */
+    private final ByteBuffer record;
+
+    /**
+     * The channel of the current pcap file or <tt>null</tt> if no file is
+     * open. Only accessed by the writer thread.
+     */
+    private FileChannel channel;
+
+    /**
+     * The memory mapping of the current pcap file. Only accessed by the writer
+     * thread.
+     */
+    private MappedByteBuffer mappedFile;
+
+    /**
+     * The probability with which a packet is captured.
+     */
+    private volatile double samplingRate = 1D;
+
+    /**
+     * Whether this logger accepts packets.
+     */
+    private volatile boolean enabled = true;
+
+    /**
+     * Whether {@link #stop()} has been called.
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * The number of packets written into the pcap files.
+     */
+    private final LongAdder packetsWritten = new LongAdder();
+
+    /**
+     * The number of packets dropped because the ring buffer was full.
+     */
+    private final LongAdder packetsDropped = new LongAdder();
+
+    /**
+     * The number of packets left out by sampling or filtering.
+     */
+    private final LongAdder packetsFiltered = new LongAdder();
+
+    /**
+     * Initializes a new <tt>PcapPacketLogger</tt> with the default capacity,
+     * snap length and rotation parameters.
+     *
+     * @param file the path of the pcap file to write.
+     * @throws IOException if the pcap file cannot be created.
+     */
+    public PcapPacketLogger(Path file)
+        throws IOException
+    {
+        this(
+            file,
+            DEFAULT_MAX_FILE_SIZE,
+            DEFAULT_MAX_FILES,
+            DEFAULT_CAPACITY,
+            DEFAULT_SNAP_LENGTH);
+    }
+
+    /**
+     * Initializes a new <tt>PcapPacketLogger</tt> and starts its writer
+     * thread.
+     *
+     * @param file the path of the pcap file to write.
+     * @param maxFileSize the maximum size of a pcap file.
+     * @param maxFiles the maximum number of pcap files to keep, including the
+     * current one.
+     * @param capacity the number of packets that the ring buffer can hold. It
+     * is rounded up to a power of two.
+     * @param snapLength the maximum number of bytes to capture of each packet.
+     * @throws IOException if the pcap file cannot be created.
+     */
+    public PcapPacketLogger(
+            Path file,
+            long maxFileSize,
+            int maxFiles,
+            int capacity,
+            int snapLength)
+        throws IOException
+    {
+        if (snapLength <= 0 || snapLength > 0xFFFF)
+            throw new IllegalArgumentException("snapLength: " + snapLength);
+        if (capacity <= 0 || capacity > (1 << 20))
+            throw new IllegalArgumentException("capacity: " + capacity);
+        if (maxFiles <= 0)
+            throw new IllegalArgumentException("maxFiles: " + maxFiles);
+
+        int maxRecordLength
+            = RECORD_HEADER_LENGTH
+                + IPV6_HEADER_LENGTH
+                + UDP_HEADER_LENGTH
+                + snapLength;
+
+        if (maxFileSize < PCAP_HEADER_LENGTH + maxRecordLength
+                || maxFileSize > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("maxFileSize: " + maxFileSize);
+        }
+
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        this.snapLength = snapLength;
+
+        int size = Integer.highestOneBit(capacity);
+
+        if (size < capacity)
+            size <<= 1;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        payloads = new byte[size][snapLength];
+        lengths = new int[size];
+        timestamps = new long[size];
+        sourceAddresses = new byte[size][];
+        sourcePorts = new int[size];
+        destinationAddresses = new byte[size][];
+        destinationPorts = new int[size];
+        sent = new boolean[size];
+        record = ByteBuffer.allocate(maxRecordLength);
+
+        openFile();
+
+        writerThread = new Thread(this::runWriter, "ice4j.PcapPacketLogger");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void logPacket(
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            byte[] packetContent,
+            boolean sender)
+    {
+        logPacket(
+                sourceAddress,
+                sourcePort,
+                destinationAddress,
+                destinationPort,
+                packetContent,
+                0,
+                packetContent.length,
+                sender);
+    }
+
+    /**
+     * Copies the packet into the ring buffer of this logger, unless it is
+     * left out by sampling or the ring buffer is full. Never blocks.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void logPacket(
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            byte[] packetContent,
+            int offset,
+            int length,
+            boolean sender)
+    {
+        if (!isEnabled())
+            return;
+
+        double samplingRate = this.samplingRate;
+
+        if (samplingRate < 1D
+                && ThreadLocalRandom.current().nextDouble() >= samplingRate)
+        {
+            packetsFiltered.increment();
+            return;
+        }
+
+        // Claim a slot (see Dmitry Vyukov's bounded MPMC queue).
+        long position = writePosition.get();
+        int slot;
+
+        while (true)
+        {
+            slot = (int) position & mask;
+
+            long difference = sequences.get(slot) - position;
+
+            if (difference == 0)
+            {
+                if (writePosition.compareAndSet(position, position + 1))
+                    break;
+                position = writePosition.get();
+            }
+            else if (difference < 0)
+            {
+                // The ring buffer is full.
+                packetsDropped.increment();
+                return;
+            }
+            else
+            {
+                position = writePosition.get();
+            }
+        }
+
+        System.arraycopy(
+                packetContent, offset,
+                payloads[slot], 0,
+                Math.min(length, snapLength));
+        lengths[slot] = length;
+        timestamps[slot] = System.currentTimeMillis();
+        sourceAddresses[slot] = sourceAddress;
+        sourcePorts[slot] = sourcePort;
+        destinationAddresses[slot] = destinationAddress;
+        destinationPorts[slot] = destinationPort;
+        sent[slot] = sender;
+
+        // Publish the slot to the writer thread.
+        sequences.lazySet(slot, position + 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEnabled()
+    {
+        return enabled && !stopped;
+    }
+
+    /**
+     * Sets whether this logger accepts packets.
+     *
+     * @param enabled <tt>true</tt> to accept packets and <tt>false</tt> to
+     * ignore them.
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns the probability with which a packet is captured.
+     *
+     * @return the probability with which a packet is captured.
+     */
+    public double getSamplingRate()
+    {
+        return samplingRate;
+    }
+
+    /**
+     * Sets the probability with which a packet is captured, e.g.
+     * <tt>0.1</tt> to capture one packet out of ten on average.
+     *
+     * @param samplingRate the probability with which a packet is to be
+     * captured, between <tt>0</tt> and <tt>1</tt>.
+     */
+    public void setSamplingRate(double samplingRate)
+    {
+        if (!(samplingRate >= 0D && samplingRate <= 1D))
+        {
+            throw new IllegalArgumentException(
+                    "samplingRate: " + samplingRate);
+        }
+        this.samplingRate = samplingRate;
+    }
+
+    /**
+     * Restricts the capture to the ICE sessions which use a specific ufrag
+     * (local or remote), in addition to the ones already added. All the
+     * packets are captured while no ufrag has been added.
+     *
+     * @param ufrag the ufrag of an ICE session to capture.
+     */
+    public void addUfrag(String ufrag)
+    {
+        ufrags.add(ufrag);
+    }
+
+    /**
+     * Stops capturing the ICE session which uses a specific ufrag.
+     *
+     * @param ufrag the ufrag of the ICE session to stop capturing.
+     */
+    public void removeUfrag(String ufrag)
+    {
+        ufrags.remove(ufrag);
+    }
+
+    /**
+     * Returns the maximum number of pcap files kept by this logger.
+     *
+     * @return the maximum number of pcap files kept by this logger.
+     */
+    public int getMaxFiles()
+    {
+        return maxFiles;
+    }
+
+    /**
+     * Returns the number of packets written into the pcap files.
+     *
+     * @return the number of packets written into the pcap files.
+     */
+    public long getPacketsWritten()
+    {
+        return packetsWritten.sum();
+    }
+
+    /**
+     * Returns the number of packets dropped because the ring buffer was full.
+     *
+     * @return the number of packets dropped because the ring buffer was full.
+     */
+    public long getPacketsDropped()
+    {
+        return packetsDropped.sum();
+    }
+
+    /**
+     * Returns the number of packets left out by sampling or by filtering by
+     * ufrag.
+     *
+     * @return the number of packets left out by sampling or filtering.
+     */
+    public long getPacketsFiltered()
+    {
+        return packetsFiltered.sum();
+    }
+
+    /**
+     * Stops this logger: the packets which are already in the ring buffer are
+     * written, the pcap file is closed and new packets are ignored. Blocks
+     * until the writer thread has finished.
+     */
+    public void stop()
+    {
+        stopped = true;
+        LockSupport.unpark(writerThread);
+
+        boolean interrupted = false;
+
+        while (writerThread.isAlive())
+        {
+            try
+            {
+                writerThread.join();
+            }
+            catch (InterruptedException ie)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Runs in {@link #writerThread} and writes the packets of the ring buffer
+     * into the pcap files until this logger is stopped.
+     */
+    private void runWriter()
+    {
+        try
+        {
+            while (true)
+            {
+                if (!writeNextPacket())
+                {
+                    if (stopped)
+                        break;
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+            }
+        }
+        catch (Throwable t)
+        {
+            logger.log(Level.WARNING, "Failed to write a pcap file", t);
+            stopped = true;
+        }
+        finally
+        {
+            closeFile();
+        }
+    }
+
+    /**
+     * Takes the next packet out of the ring buffer, if any, and writes it into
+     * the current pcap file.
+     *
+     * @return <tt>true</tt> if a packet was taken out of the ring buffer and
+     * <tt>false</tt> if the ring buffer was empty.
+     * @throws IOException if the pcap files cannot be rotated.
+     */
+    private boolean writeNextPacket()
+        throws IOException
+    {
+        int slot = (int) readPosition & mask;
+
+        if (sequences.get(slot) != readPosition + 1)
+            return false;
+
+        try
+        {
+            if (matchesUfrags(slot))
+            {
+                buildRecord(slot);
+                if (mappedFile.remaining() < record.remaining())
+                    rotate();
+                mappedFile.put(record);
+                packetsWritten.increment();
+            }
+            else
+            {
+                packetsFiltered.increment();
+            }
+        }
+        finally
+        {
+            // Release the slot to the producers.
+            sourceAddresses[slot] = null;
+            destinationAddresses[slot] = null;
+            sequences.lazySet(slot, readPosition + mask + 1);
+            readPosition++;
+        }
+        return true;
+    }
+
+    /**
+     * Determines whether the packet of a slot belongs to one of the ICE
+     * sessions to capture.
+     *
+     * @param slot the slot of the packet.
+     * @return <tt>true</tt> if the packet is to be captured.
+     */
+    private boolean matchesUfrags(int slot)
+    {
+        if (ufrags.isEmpty())
+        {
+            if (!flows.isEmpty())
+                flows.clear();
+            return true;
+        }
+
+        Flow flow
+            = sent[slot]
+                ? new Flow(
+                        sourceAddresses[slot], sourcePorts[slot],
+                        destinationAddresses[slot], destinationPorts[slot])
+                : new Flow(
+                        destinationAddresses[slot], destinationPorts[slot],
+                        sourceAddresses[slot], sourcePorts[slot]);
+        String username
+            = getStunUsername(
+                    payloads[slot],
+                    Math.min(lengths[slot], snapLength));
+
+        if (username != null)
+        {
+            for (String part : username.split(":"))
+            {
+                if (ufrags.contains(part))
+                {
+                    if (flows.size() >= MAX_FLOWS)
+                        flows.clear();
+                    flows.add(flow);
+                    return true;
+                }
+            }
+            return false;
+        }
+        return flows.contains(flow);
+    }
+
+    /**
+     * Assembles the pcap record of the packet of a slot into {@link #record}.
+     *
+     * @param slot the slot of the packet.
+     */
+    private void buildRecord(int slot)
+    {
+        byte[] source = sourceAddresses[slot];
+        byte[] destination = destinationAddresses[slot];
+        boolean ipv4 = (source.length == 4) && (destination.length == 4);
+        int ipHeaderLength = ipv4 ? IPV4_HEADER_LENGTH : IPV6_HEADER_LENGTH;
+        int length = lengths[slot];
+        int capturedLength = Math.min(length, snapLength);
+        long timestamp = timestamps[slot];
+
+        record.clear();
+
+        // Record header.
+        record.putInt((int) (timestamp / 1000));
+        record.putInt((int) (timestamp % 1000) * 1000);
+        record.putInt(ipHeaderLength + UDP_HEADER_LENGTH + capturedLength);
+        record.putInt(ipHeaderLength + UDP_HEADER_LENGTH + length);
+
+        int udpLength = Math.min(UDP_HEADER_LENGTH + length, 0xFFFF);
+
+        // IP header.
+        if (ipv4)
+        {
+            int start = record.position();
+
+            record.put((byte) 0x45);
+            record.put((byte) 0);
+            record.putShort(
+                    (short) Math.min(IPV4_HEADER_LENGTH + udpLength, 0xFFFF));
+            record.putShort((short) 0); // Identification
+            record.putShort((short) 0x4000); // Don't fragment
+            record.put((byte) 64); // TTL
+            record.put((byte) 17); // UDP
+            record.putShort((short) 0); // Header checksum
+            record.put(source);
+            record.put(destination);
+            record.putShort(
+                    start + 10,
+                    (short) getIpv4Checksum(record.array(), start));
+        }
+        else
+        {
+            record.putInt(0x60000000);
+            record.putShort((short) udpLength);
+            record.put((byte) 17); // UDP
+            record.put((byte) 64); // Hop limit
+            record.put(toIpv6(source));
+            record.put(toIpv6(destination));
+        }
+
+        // UDP header. The checksum is left out.
+        record.putShort((short) sourcePorts[slot]);
+        record.putShort((short) destinationPorts[slot]);
+        record.putShort((short) udpLength);
+        record.putShort((short) 0);
+
+        record.put(payloads[slot], 0, capturedLength);
+        record.flip();
+    }
+
+    /**
+     * Closes the current pcap file, shifts the names of the previous ones and
+     * opens a new one.
+     *
+     * @throws IOException if the pcap files cannot be renamed or created.
+     */
+    private void rotate()
+        throws IOException
+    {
+        closeFile();
+
+        if (maxFiles > 1)
+        {
+            Files.deleteIfExists(getRotatedFile(maxFiles - 1));
+            for (int i = maxFiles - 2; i >= 0; i--)
+            {
+                Path rotated = getRotatedFile(i);
+
+                if (Files.exists(rotated))
+                {
+                    Files.move(
+                            rotated,
+                            getRotatedFile(i + 1),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        openFile();
+    }
+
+    /**
+     * Returns the path of a pcap file given its rank in the rotation.
+     *
+     * @param index the rank of the pcap file, <tt>0</tt> being the current
+     * one.
+     * @return the path of the pcap file.
+     */
+    private Path getRotatedFile(int index)
+    {
+        return
+            (index == 0)
+                ? file
+                : file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    /**
+     * Creates the current pcap file, maps it into memory and writes its global
+     * header.
+     *
+     * @throws IOException if the pcap file cannot be created.
+     */
+    private void openFile()
+        throws IOException
+    {
+        channel
+            = FileChannel.open(
+                    file,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        try
+        {
+            mappedFile
+                = channel.map(FileChannel.MapMode.READ_WRITE, 0, maxFileSize);
+        }
+        catch (IOException ioe)
+        {
+            channel.close();
+            channel = null;
+            throw ioe;
+        }
+
+        mappedFile.putInt(0xA1B2C3D4); // Magic number
+        mappedFile.putShort((short) 2); // Major version
+        mappedFile.putShort((short) 4); // Minor version
+        mappedFile.putInt(0); // GMT to local correction
+        mappedFile.putInt(0); // Accuracy of timestamps
+        mappedFile.putInt(
+            IPV6_HEADER_LENGTH + UDP_HEADER_LENGTH + snapLength);
+        mappedFile.putInt(LINKTYPE_RAW);
+    }
+
+    /**
+     * Truncates the current pcap file to the size of the records written into
+     * it and closes it.
+     */
+    private void closeFile()
+    {
+        if (channel == null)
+            return;
+
+        try
+        {
+            mappedFile.force();
+            channel.truncate(mappedFile.position());
+        }
+        catch (IOException ioe)
+        {
+            logger.log(Level.WARNING, "Failed to truncate " + file, ioe);
+        }
+        finally
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException ioe)
+            {
+                logger.log(Level.FINE, "Failed to close " + file, ioe);
+            }
+            channel = null;
+            mappedFile = null;
+        }
+    }
+
+    /**
+     * Returns the USERNAME of a STUN message.
+     *
+     * @param buf the bytes of the message.
+     * @param length the number of bytes of the message.
+     * @return the USERNAME of the STUN message in <tt>buf</tt> or
+     * <tt>null</tt> if <tt>buf</tt> doesn't hold a STUN message with a
+     * USERNAME.
+     */
+    static String getStunUsername(byte[] buf, int length)
+    {
+        if (length < 20
+                || (buf[0] & 0xC0) != 0
+                || getInt(buf, 4) != STUN_MAGIC_COOKIE)
+        {
+            return null;
+        }
+
+        int end = Math.min(length, 20 + getShort(buf, 2));
+        int offset = 20;
+
+        while (offset + 4 <= end)
+        {
+            int type = getShort(buf, offset);
+            int attributeLength = getShort(buf, offset + 2);
+
+            offset += 4;
+            if (offset + attributeLength > end)
+                break;
+            if (type == STUN_USERNAME)
+            {
+                return
+                    new String(
+                            buf,
+                            offset,
+                            attributeLength,
+                            StandardCharsets.UTF_8);
+            }
+            offset += (attributeLength + 3) & ~3;
+        }
+        return null;
+    }
+
+    /**
+     * Computes the checksum of an IPv4 header.
+     *
+     * @param buf the array which holds the header.
+     * @param offset the offset of the header in <tt>buf</tt>.
+     * @return the checksum of the header.
+     */
+    private static int getIpv4Checksum(byte[] buf, int offset)
+    {
+        int sum = 0;
+
+        for (int i = 0; i < IPV4_HEADER_LENGTH; i += 2)
+            sum += getShort(buf, offset + i);
+        while ((sum >> 16) != 0)
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        return ~sum & 0xFFFF;
+    }
+
+    /**
+     * Converts an IPv4 address into an IPv4-mapped IPv6 address. IPv6
+     * addresses are returned as they are.
+     *
+     * @param address the address to convert.
+     * @return the IPv6 form of <tt>address</tt>.
+     */
+    private static byte[] toIpv6(byte[] address)
+    {
+        if (address.length == 16)
+            return address;
+
+        byte[] ipv6 = new byte[16];
+
+        ipv6[10] = (byte) 0xFF;
+        ipv6[11] = (byte) 0xFF;
+        System.arraycopy(address, 0, ipv6, 12, 4);
+        return ipv6;
+    }
+
+    /**
+     * Reads an unsigned big-endian 16-bit value.
+     *
+     * @param buf the array to read from.
+     * @param offset the offset of the value in <tt>buf</tt>.
+     * @return the value.
+     */
+    private static int getShort(byte[] buf, int offset)
+    {
+        return ((buf[offset] & 0xFF) << 8) | (buf[offset + 1] & 0xFF);
+    }
+
+    /**
+     * Reads a big-endian 32-bit value.
+     *
+     * @param buf the array to read from.
+     * @param offset the offset of the value in <tt>buf</tt>.
+     * @return the value.
+     */
+    private static int getInt(byte[] buf, int offset)
+    {
+        return (getShort(buf, offset) << 16) | getShort(buf, offset + 2);
+    }
+
+    /**
+     * A pair of local and remote addresses on which packets are exchanged.
+     */
+    private static class Flow
+    {
+        private final byte[] localAddress;
+
+        private final int localPort;
+
+        private final byte[] remoteAddress;
+
+        private final int remotePort;
+
+        Flow(
+                byte[] localAddress,
+                int localPort,
+                byte[] remoteAddress,
+                int remotePort)
+        {
+            this.localAddress = localAddress;
+            this.localPort = localPort;
+            this.remoteAddress = remoteAddress;
+            this.remotePort = remotePort;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Flow))
+                return false;
+
+            Flow flow = (Flow) obj;
+
+            return
+                localPort == flow.localPort
+                    && remotePort == flow.remotePort
+                    && Arrays.equals(localAddress, flow.localAddress)
+                    && Arrays.equals(remoteAddress, flow.remoteAddress);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return
+                31 * (31 * Arrays.hashCode(remoteAddress) + remotePort)
+                    + localPort;
+        }
+    }
+}
@@ -153,6 +153,18 @@ public class StunClientTransaction
      */
     private final Retransmitter retransmitter;
 
+    /**
+     * The time in nanoseconds (as returned by {@link System#nanoTime()}) at
+     * which the request was first sent.
+     */
+    private volatile long sendTime;
+
+    /**
+     * Whether the request has been retransmitted, in which case the
+     * round-trip time of this transaction cannot be told.
+     */
+    private volatile boolean retransmitted;
+
     /**
      * Creates a client transaction.
      *
@@ -242,6 +254,7 @@ public class StunClientTransaction
         logger.fine(
                 "sending STUN " + " tid " + transactionID + " from "
                     + localAddress + " to " + requestDestination);
+        sendTime = System.nanoTime();
         sendRequest0();
 
         this.retransmitter.schedule();
@@ -311,13 +324,22 @@ public class StunClientTransaction
             cancel();
         }
 
+        long roundTripTime = -1;
+
+        if (!retransmitted)
+        {
+            roundTripTime = (System.nanoTime() - sendTime) / 1000;
+            stackCallback.getStackMetrics().clientRtt.record(roundTripTime);
+        }
+
         responseCollector.processResponse(
             new StunResponseEvent(
                 stackCallback,
                 evt.getRawMessage(),
                 (Response) evt.getMessage(),
                 request,
-                transactionID));
+                transactionID,
+                roundTripTime));
     }
 
     /**
@@ -470,6 +492,9 @@ public class StunClientTransaction
                             + " waited " + curWaitInterval + " ms retrans "
                             + retransmissionCounter + " of "
                             + maxRetransmissions);
+                    retransmitted = true;
+                    stackCallback.getStackMetrics()
+                        .clientRetransmissions.increment();
                     sendRequest0();
                 }
                 catch (Exception ex)
@@ -484,6 +509,7 @@ public class StunClientTransaction
             }
             else
             {
+                stackCallback.getStackMetrics().clientTimeouts.increment();
                 stackCallback.removeClientTransaction(
                     StunClientTransaction.this);
 
@@ -176,7 +176,8 @@ public class StunServerTransaction
         }
 
         isRetransmitting = true;
-        retransmitResponse();
+        if (!isExpired())
+            transmitResponse();
     }
 
     /**
@@ -199,6 +200,24 @@ public class StunServerTransaction
         if (isExpired() || !isRetransmitting)
             return;
 
+        stackCallback.getStackMetrics().serverRetransmissions.increment();
+        transmitResponse();
+    }
+
+    /**
+     * Sends the response of this transaction.
+     *
+     * @throws IOException  if an error occurs while sending message bytes
+     * through the network socket.
+     * @throws IllegalArgumentException if the apDescriptor references an
+     * access point that had not been installed,
+     * @throws StunException if message encoding fails,
+     */
+    private void transmitResponse()
+        throws StunException,
+               IOException,
+               IllegalArgumentException
+    {
         stackCallback.getNetAccessManager().sendMessage(
                 response,
                 localSendingAddress,
@@ -20,6 +20,7 @@ package org.ice4j.stack;
 import org.ice4j.*;
 import org.ice4j.attribute.*;
 import org.ice4j.message.*;
+import org.ice4j.metrics.*;
 import org.ice4j.security.*;
 import org.ice4j.socket.*;
 import org.jitsi.utils.concurrent.*;
@@ -80,11 +81,22 @@ public class StunStack
         = new CredentialsManager();
 
     /**
-     * Stores active client transactions mapped against TransactionID-s.
+     * Stores active client transactions mapped against TransactionID-s. The
+     * map is concurrent so that the transactions of the many agents which may
+     * share this stack do not contend on a single lock.
      */
-    private final Hashtable<TransactionID, StunClientTransaction>
+    private final Map<TransactionID, StunClientTransaction>
         clientTransactions
-            = new Hashtable<>();
+            = new ConcurrentHashMap<>();
+
+    /**
+     * The active client transactions indexed by the local address that they
+     * send through, so that removing a socket only visits the transactions of
+     * that socket rather than those of every agent sharing this stack.
+     */
+    private final Map<TransportAddress, Set<StunClientTransaction>>
+        clientTransactionsByAddress
+            = new ConcurrentHashMap<>();
 
     /**
      * The <tt>ExpiredServerTransactionsCollector</tt> which expires
@@ -98,15 +110,38 @@ public class StunStack
      * Currently open server transactions. The vector contains transaction ids
      * for transactions corresponding to all non-answered received requests.
      */
-    private final Hashtable<TransactionID, StunServerTransaction>
+    private final Map<TransactionID, StunServerTransaction>
         serverTransactions
-            = new Hashtable<>();
+            = new ConcurrentHashMap<>();
+
+    /**
+     * The open server transactions indexed by the local address that they
+     * received their request on and, when it is different, by the local
+     * address that they send their response through.
+     */
+    private final Map<TransportAddress, Set<StunServerTransaction>>
+        serverTransactionsByAddress
+            = new ConcurrentHashMap<>();
+
+    /**
+     * The cache which stands in for the server transactions of incoming
+     * binding requests, or <tt>null</tt> if binding requests get regular
+     * server transactions (see
+     * {@link StackProperties#BINDING_RESPONSE_CACHE_SIZE}).
+     */
+    private final BindingResponseCache bindingResponseCache;
 
     /**
      * A dispatcher for incoming requests event;
      */
     private final EventDispatcher eventDispatcher = new EventDispatcher();
 
+    /**
+     * The metrics of this stack, which add up in {@link Metrics#GLOBAL}.
+     */
+    private final StunStackMetrics metrics
+        = new StunStackMetrics(new Metrics(Metrics.GLOBAL));
+
     /**
      * The packet logger instance.
      */
@@ -177,18 +212,7 @@ public class StunStack
      */
     protected StunClientTransaction getClientTransaction(byte[] transactionID)
     {
-        synchronized (clientTransactions)
-        {
-            Collection<StunClientTransaction> cTrans
-                = clientTransactions.values();
-
-            for (StunClientTransaction tran : cTrans)
-            {
-                if (tran.getTransactionID().equals(transactionID))
-                    return tran;
-            }
-        }
-        return null;
+        return clientTransactions.get(TransactionID.valueOf(transactionID));
     }
 
     /**
@@ -201,24 +225,15 @@ public class StunStack
      */
     protected StunServerTransaction getServerTransaction(byte[] transactionID)
     {
-        synchronized (serverTransactions)
-        {
-            long now = System.currentTimeMillis();
-
-            for (Iterator<StunServerTransaction> i
-                        = serverTransactions.values().iterator();
-                    i.hasNext();)
-            {
-                StunServerTransaction serverTransaction = i.next();
+        TransactionID key = TransactionID.valueOf(transactionID);
+        StunServerTransaction serverTransaction = serverTransactions.get(key);
 
-                if (serverTransaction.isExpired(now))
-                    i.remove();
-                else if (serverTransaction.getTransactionID().equals(
-                        transactionID))
-                    return serverTransaction;
-            }
+        if (serverTransaction != null && serverTransaction.isExpired())
+        {
+            removeServerTransaction(serverTransaction);
+            serverTransaction = null;
         }
-        return null;
+        return serverTransaction;
     }
 
     /**
@@ -232,12 +247,9 @@ public class StunStack
     protected StunServerTransaction getServerTransaction(
             TransactionID transactionID)
     {
-        StunServerTransaction serverTransaction;
+        StunServerTransaction serverTransaction
+            = serverTransactions.get(transactionID);
 
-        synchronized (serverTransactions)
-        {
-            serverTransaction = serverTransactions.get(transactionID);
-        }
         /*
          * If a StunServerTransaction is expired, do not return it. It will be
          * removed from serverTransactions soon.
@@ -281,83 +293,88 @@ public class StunStack
     private void cancelTransactionsForAddress(TransportAddress localAddr,
                                               TransportAddress remoteAddr)
     {
-        List<StunClientTransaction> clientTransactionsToCancel = null;
+        // Only the transactions indexed under localAddr are visited. The
+        // index sets are concurrent, so the transactions are cancelled
+        // without holding any lock.
+        Set<StunClientTransaction> clientTransactionsForAddress
+            = clientTransactionsByAddress.get(localAddr);
 
-        synchronized (clientTransactions)
+        if (clientTransactionsForAddress != null)
         {
-            Iterator<StunClientTransaction> clientTransactionsIter
-                = clientTransactions.values().iterator();
-
-            while (clientTransactionsIter.hasNext())
+            for (StunClientTransaction tran : clientTransactionsForAddress)
             {
-                StunClientTransaction tran = clientTransactionsIter.next();
-
-                if (tran.getLocalAddress().equals(localAddr)
-                        && (remoteAddr == null
-                                || remoteAddr.equals(tran.getRemoteAddress())))
+                if (remoteAddr == null
+                        || remoteAddr.equals(tran.getRemoteAddress()))
                 {
-                    clientTransactionsIter.remove();
-
-                    /*
-                     * Invoke StunClientTransaction.cancel() outside the
-                     * clientTransactions-synchronized block in order to avoid a
-                     * deadlock. Reported by Carl Hasselskog.
-                     */
-                    if (clientTransactionsToCancel == null)
-                    {
-                        clientTransactionsToCancel = new LinkedList<>();
-                    }
-                    clientTransactionsToCancel.add(tran);
+                    removeClientTransaction(tran);
+                    tran.cancel();
                 }
             }
         }
-        /*
-         * Invoke StunClientTransaction.cancel() outside the
-         * clientTransactions-synchronized block in order to avoid a deadlock.
-         * Reported by Carl Hasselskog.
-         */
-        if (clientTransactionsToCancel != null)
-        {
-            for (StunClientTransaction tran : clientTransactionsToCancel)
-                tran.cancel();
-        }
 
-        List<StunServerTransaction> serverTransactionsToExpire = null;
+        Set<StunServerTransaction> serverTransactionsForAddress
+            = serverTransactionsByAddress.get(localAddr);
 
-        synchronized (serverTransactions)
+        if (serverTransactionsForAddress != null)
         {
-            Iterator<StunServerTransaction> serverTransactionsIter
-                = serverTransactions.values().iterator();
-
-            while (serverTransactionsIter.hasNext())
+            for (StunServerTransaction tran : serverTransactionsForAddress)
             {
-                StunServerTransaction tran = serverTransactionsIter.next();
-                TransportAddress listenAddr = tran.getLocalListeningAddress();
-                TransportAddress sendingAddr = tran.getSendingAddress();
-
-                if (listenAddr.equals(localAddr)
-                        || (sendingAddr != null
-                                && sendingAddr.equals(localAddr)))
+                if (remoteAddr == null
+                      || remoteAddr.equals(tran.getRequestSourceAddress()))
                 {
-                    if (remoteAddr == null
-                          || remoteAddr.equals(tran.getRequestSourceAddress()))
-                    {
-                        serverTransactionsIter.remove();
-
-                        if (serverTransactionsToExpire == null)
-                        {
-                            serverTransactionsToExpire = new LinkedList<>();
-                        }
-                        serverTransactionsToExpire.add(tran);
-                    }
+                    removeServerTransaction(tran);
+                    tran.expire();
                 }
             }
         }
-        if (serverTransactionsToExpire != null)
-        {
-            for (StunServerTransaction tran : serverTransactionsToExpire)
-                tran.expire();
-        }
+    }
+
+    /**
+     * Adds a transaction to the set of the transactions indexed under a
+     * specific local address.
+     *
+     * @param index the index to add <tt>tran</tt> to
+     * @param address the local address to index <tt>tran</tt> under
+     * @param tran the transaction to add
+     */
+    private static <T> void addToIndex(
+            Map<TransportAddress, Set<T>> index,
+            TransportAddress address,
+            T tran)
+    {
+        // The set is created and populated atomically with respect to
+        // removeFromIndex, which drops it once it is empty.
+        index.compute(
+                address,
+                (a, transactions) ->
+                {
+                    if (transactions == null)
+                        transactions = ConcurrentHashMap.newKeySet();
+                    transactions.add(tran);
+                    return transactions;
+                });
+    }
+
+    /**
+     * Removes a transaction from the set of the transactions indexed under a
+     * specific local address, and drops the set once it is empty.
+     *
+     * @param index the index to remove <tt>tran</tt> from
+     * @param address the local address <tt>tran</tt> is indexed under
+     * @param tran the transaction to remove
+     */
+    private static <T> void removeFromIndex(
+            Map<TransportAddress, Set<T>> index,
+            TransportAddress address,
+            T tran)
+    {
+        index.computeIfPresent(
+                address,
+                (a, transactions) ->
+                {
+                    transactions.remove(tran);
+                    return transactions.isEmpty() ? null : transactions;
+                });
     }
 
     /**
@@ -399,6 +416,15 @@ public class StunStack
         netAccessManager =
             new NetAccessManager(this, peerUdpMessageEventHandler,
                 channelDataEventHandler);
+
+        int bindingResponseCacheSize
+            = StackProperties.getInt(
+                    StackProperties.BINDING_RESPONSE_CACHE_SIZE, 0);
+
+        bindingResponseCache
+            = (bindingResponseCacheSize > 0)
+                ? new BindingResponseCache(this, bindingResponseCacheSize)
+                : null;
     }
     /**
      * Initializes a new <tt>StunStack</tt> instance.
@@ -463,6 +489,64 @@ public class StunStack
                     ioex);
         }
     }
+
+    /**
+     * Frames application data as a ChannelData message and sends it to a
+     * specific destination <tt>TransportAddress</tt> through a socket
+     * registered with this <tt>StunStack</tt> using a specific
+     * <tt>TransportAddress</tt>. Unlike
+     * {@link #sendChannelData(ChannelData, TransportAddress, TransportAddress)}
+     * it neither requires a <tt>ChannelData</tt> instance nor copies the
+     * application data into a new array, and so suits relaying media.
+     *
+     * @param channelNumber the channel number of the message.
+     * @param data the array which contains the application data.
+     * @param offset the index of the application data in <tt>data</tt>.
+     * @param length the length of the application data.
+     * @param sendTo the <tt>TransportAddress</tt> of the destination to which
+     * the message is to be sent
+     * @param sendThrough the <tt>TransportAddress</tt> of the socket registered
+     * with this <tt>StunStack</tt> through which the message is to be sent
+     * @throws StunException if anything goes wrong while sending the message
+     * to the destination <tt>sendTo</tt> through the socket identified by
+     * <tt>sendThrough</tt>
+     */
+    public void sendChannelData(
+            char channelNumber,
+            byte[] data, int offset, int length,
+            TransportAddress sendTo,
+            TransportAddress sendThrough)
+        throws StunException
+    {
+        try
+        {
+            getNetAccessManager().sendChannelData(
+                    channelNumber,
+                    data, offset, length,
+                    sendThrough,
+                    sendTo);
+        }
+        catch (StunException stex)
+        {
+            throw stex;
+        }
+        catch (IllegalArgumentException iaex)
+        {
+            throw new StunException(
+                    StunException.ILLEGAL_ARGUMENT,
+                    "Failed to send ChannelData on channel "
+                        + (int) channelNumber,
+                    iaex);
+        }
+        catch (IOException ioex)
+        {
+            throw new StunException(
+                    StunException.NETWORK_ERROR,
+                    "Failed to send ChannelData on channel "
+                        + (int) channelNumber,
+                    ioex);
+        }
+    }
     
 
     /**
@@ -673,6 +757,12 @@ public class StunStack
         if (maxRetransmissions >= 0)
             clientTransaction.maxRetransmissions = maxRetransmissions;
 
+        // Indexed first so that a transaction which is found in
+        // clientTransactions is always found in the index too.
+        addToIndex(
+                clientTransactionsByAddress,
+                clientTransaction.getLocalAddress(),
+                clientTransaction);
         clientTransactions.put(
                 clientTransaction.getTransactionID(),
                 clientTransaction);
@@ -739,6 +829,14 @@ public class StunStack
     {
         TransactionID tid
             = TransactionID.createTransactionID(this, transactionID);
+
+        if (bindingResponseCache != null
+                && bindingResponseCache.sendResponse(
+                        tid, response, sendThrough, sendTo))
+        {
+            return;
+        }
+
         StunServerTransaction sTran = getServerTransaction(tid);
 
         if (sTran == null)
@@ -760,6 +858,20 @@ public class StunStack
         else
         {
             sTran.sendResponse(response, sendThrough, sendTo);
+
+            TransportAddress sendingAddr = sTran.getSendingAddress();
+
+            if (sendingAddr != null
+                    && !sendingAddr.equals(sTran.getLocalListeningAddress()))
+            {
+                addToIndex(serverTransactionsByAddress, sendingAddr, sTran);
+                // The transaction may have been removed meanwhile.
+                if (serverTransactions.get(sTran.getTransactionID()) != sTran)
+                {
+                    removeFromIndex(
+                            serverTransactionsByAddress, sendingAddr, sTran);
+                }
+            }
         }
     }
 
@@ -852,6 +964,35 @@ public class StunStack
             eventDispatcher.addRequestListener(localAddress, listener);
     }
 
+    /**
+     * Adds a <tt>RequestListener</tt> which is to be notified only about the
+     * requests whose <tt>USERNAME</tt> starts with a specific local ufrag.
+     * Allows many ICE agents to share this stack without every request being
+     * offered to all of them.
+     *
+     * @param localUfrag the local ufrag that the listener is interested in.
+     * @param listener the <tt>RequestListener</tt> to be added
+     * @throws IllegalStateException if another listener is already registered
+     * for <tt>localUfrag</tt>
+     */
+    public void addRequestListener(String localUfrag, RequestListener listener)
+    {
+        eventDispatcher.addRequestListener(localUfrag, listener);
+    }
+
+    /**
+     * Removes a <tt>RequestListener</tt> previously added with
+     * {@link #addRequestListener(String, RequestListener)}.
+     *
+     * @param localUfrag the local ufrag that the listener was interested in.
+     * @param listener the <tt>RequestListener</tt> to be removed
+     */
+    public void removeRequestListener(String localUfrag,
+                                      RequestListener listener)
+    {
+        eventDispatcher.removeRequestListener(localUfrag, listener);
+    }
+
     /**
      * Removes a client transaction from this providers client transactions
      * list. The method is used by <tt>StunClientTransaction</tt>s themselves
@@ -861,10 +1002,9 @@ public class StunStack
      */
     void removeClientTransaction(StunClientTransaction tran)
     {
-        synchronized (clientTransactions)
-        {
-            clientTransactions.remove(tran.getTransactionID());
-        }
+        clientTransactions.remove(tran.getTransactionID(), tran);
+        removeFromIndex(
+                clientTransactionsByAddress, tran.getLocalAddress(), tran);
     }
 
     /**
@@ -875,10 +1015,16 @@ public class StunStack
      */
     void removeServerTransaction(StunServerTransaction tran)
     {
-        synchronized (serverTransactions)
-        {
-            serverTransactions.remove(tran.getTransactionID());
-        }
+        serverTransactions.remove(tran.getTransactionID(), tran);
+        removeFromIndex(
+                serverTransactionsByAddress,
+                tran.getLocalListeningAddress(),
+                tran);
+
+        TransportAddress sendingAddr = tran.getSendingAddress();
+
+        if (sendingAddr != null)
+            removeFromIndex(serverTransactionsByAddress, sendingAddr, tran);
     }
 
     /**
@@ -891,6 +1037,7 @@ public class StunStack
     {
         Message msg = ev.getMessage();
 
+        metrics.countReceived(msg.getMessageType());
         if (logger.isLoggable(Level.FINEST))
         {
             logger.finest(
@@ -904,25 +1051,46 @@ public class StunStack
             logger.finest("parsing request");
 
             TransactionID serverTid = ev.getTransactionID();
-            StunServerTransaction sTran  = getServerTransaction(serverTid);
 
-            if ( sTran != null)
+            // Binding requests are answered through the response cache, if
+            // enabled, rather than through server transactions.
+            boolean useBindingResponseCache
+                = bindingResponseCache != null
+                    && msg.getMessageType() == Message.BINDING_REQUEST;
+            StunServerTransaction sTran = null;
+            boolean retransmission;
+
+            if (useBindingResponseCache)
+            {
+                retransmission = retransmitCachedResponse(serverTid);
+            }
+            else
+            {
+                sTran = getServerTransaction(serverTid);
+                retransmission = (sTran != null);
+            }
+
+            if (retransmission)
             {
                 //requests from this transaction have already been seen
                 //retransmit the response if there was any
                 logger.finest("found an existing transaction");
 
-                try
+                if (sTran != null)
                 {
-                    sTran.retransmitResponse();
-                    logger.finest("Response retransmitted");
-                }
-                catch (Exception ex)
-                {
-                    //we couldn't really do anything here .. apart from logging
-                    logger.log(Level.WARNING,
-                               "Failed to retransmit a stun response",
-                               ex);
+                    try
+                    {
+                        sTran.retransmitResponse();
+                        logger.finest("Response retransmitted");
+                    }
+                    catch (Exception ex)
+                    {
+                        //we couldn't really do anything here .. apart from
+                        //logging
+                        logger.log(Level.WARNING,
+                                   "Failed to retransmit a stun response",
+                                   ex);
+                    }
                 }
 
                 if (!Boolean.getBoolean(
@@ -931,6 +1099,11 @@ public class StunStack
                     return;
                 }
             }
+            else if (useBindingResponseCache)
+            {
+                logger.finest("existing transaction not found");
+                bindingResponseCache.add(serverTid);
+            }
             else
             {
                 logger.finest("existing transaction not found");
@@ -951,11 +1124,12 @@ public class StunStack
                     logger.info("STUN transaction thread start failed:" + t);
                     return;
                 }
-                synchronized (serverTransactions)
-                {
-                    serverTransactions.put(serverTid, sTran);
-                    expiredTransactionsCollector.schedule();
-                }
+                addToIndex(
+                        serverTransactionsByAddress,
+                        sTran.getLocalListeningAddress(),
+                        sTran);
+                serverTransactions.put(serverTid, sTran);
+                expiredTransactionsCollector.schedule();
             }
 
             //validate attributes that need validation.
@@ -967,7 +1141,10 @@ public class StunStack
             {
                 //validation failed. log get lost.
                 logger.log(Level.FINE, "Failed to validate msg, removing transaction: " + ev, exc);
-                removeServerTransaction(sTran);
+                if (useBindingResponseCache)
+                    bindingResponseCache.remove(serverTid);
+                else
+                    removeServerTransaction(sTran);
                 return;
             }
 
@@ -1037,6 +1214,10 @@ public class StunStack
 
             if (tran != null)
             {
+                removeFromIndex(
+                        clientTransactionsByAddress,
+                        tran.getLocalAddress(),
+                        tran);
                 tran.handleResponse(ev);
             }
             else
@@ -1055,6 +1236,30 @@ public class StunStack
         }
     }
 
+    /**
+     * Retransmits the cached response to a binding request, if the request has
+     * already been seen and answered.
+     *
+     * @param serverTid the transaction ID of the binding request.
+     * @return <tt>true</tt> if the request has already been seen and
+     * <tt>false</tt> otherwise.
+     */
+    private boolean retransmitCachedResponse(TransactionID serverTid)
+    {
+        try
+        {
+            return bindingResponseCache.retransmitResponse(serverTid);
+        }
+        catch (Exception ex)
+        {
+            //we couldn't really do anything here .. apart from logging
+            logger.log(Level.WARNING,
+                       "Failed to retransmit a stun response",
+                       ex);
+            return true;
+        }
+    }
+
     /**
      * Returns the {@link CredentialsManager} that this stack is using for
      * verification of {@link MessageIntegrityAttribute}s.
@@ -1067,6 +1272,28 @@ public class StunStack
         return credentialsManager;
     }
 
+    /**
+     * Returns the registry of the metrics of this stack (see {@link Metrics}
+     * for their names).
+     *
+     * @return the registry of the metrics of this stack.
+     */
+    public Metrics getMetrics()
+    {
+        return metrics.registry;
+    }
+
+    /**
+     * Returns the metrics of this stack as they are updated by the classes of
+     * this package.
+     *
+     * @return the metrics of this stack.
+     */
+    StunStackMetrics getStackMetrics()
+    {
+        return metrics;
+    }
+
     /**
      * Cancels all running transactions and prepares for garbage collection
      */
@@ -1075,35 +1302,32 @@ public class StunStack
         eventDispatcher.removeAllListeners();
 
         // clientTransactions
-        Collection<StunClientTransaction> clientTransactionsToCancel;
-
-        synchronized (clientTransactions)
+        for (Iterator<StunClientTransaction> i
+                    = clientTransactions.values().iterator();
+                i.hasNext();)
         {
-            clientTransactionsToCancel
-                = new ArrayList<>(clientTransactions.values());
-            clientTransactions.clear();
-        }
-        /*
-         * Invoke StunClientTransaction.cancel() outside the
-         * clientTransactions-synchronized block in order to avoid a deadlock.
-         * Reported by Carl Hasselskog.
-         */
-        for (StunClientTransaction tran : clientTransactionsToCancel)
+            StunClientTransaction tran = i.next();
+
+            i.remove();
             tran.cancel();
+        }
+        clientTransactionsByAddress.clear();
 
         // serverTransactions
-        Collection<StunServerTransaction> serverTransactionsToExpire;
-
         expiredTransactionsCollector.cancel();
 
-        synchronized (serverTransactions)
+        for (Iterator<StunServerTransaction> i
+                    = serverTransactions.values().iterator();
+                i.hasNext();)
         {
-            serverTransactionsToExpire
-                = new ArrayList<>(serverTransactions.values());
-            serverTransactions.clear();
-        }
-        for (StunServerTransaction tran : serverTransactionsToExpire)
+            StunServerTransaction tran = i.next();
+
+            i.remove();
             tran.expire();
+        }
+        serverTransactionsByAddress.clear();
+        if (bindingResponseCache != null)
+            bindingResponseCache.clear();
 
         netAccessManager.stop();
     }
@@ -1137,6 +1361,8 @@ public class StunStack
             username = LongTermCredential.toString(unameAttr.getUsername());
             if (!validateUsername(username))
             {
+                metrics.integrityFailures.increment();
+
                 Response error = createCorrespondingErrorResponse(
                                 request.getMessageType(),
                                 ErrorCodeAttribute.UNAUTHORIZED,
@@ -1180,6 +1406,8 @@ public class StunStack
                     true,
                     evt.getRawMessage()))
             {
+                metrics.integrityFailures.increment();
+
                 Response error = createCorrespondingErrorResponse(
                                 request.getMessageType(),
                                 ErrorCodeAttribute.UNAUTHORIZED,
@@ -1195,6 +1423,8 @@ public class StunStack
         }
         else if (Boolean.getBoolean(StackProperties.REQUIRE_MESSAGE_INTEGRITY))
         {
+            metrics.integrityFailures.increment();
+
             // no message integrity
             Response error = createCorrespondingErrorResponse(
                             request.getMessageType(),
@@ -1208,15 +1438,13 @@ public class StunStack
                 "Missing MESSAGE-INTEGRITY.");
         }
 
-        //look for unknown attributes.
-        List<Attribute> allAttributes = request.getAttributes();
+        //look for unknown attributes (without decoding the known ones).
         StringBuffer sBuff = new StringBuffer();
-        for (Attribute attr : allAttributes)
+        for (char attributeType : request.getAttributeTypes())
         {
-            if (attr instanceof OptionalAttribute
-                && attr.getAttributeType()
-                    < Attribute.UNKNOWN_OPTIONAL_ATTRIBUTE)
-                sBuff.append(attr.getAttributeType());
+            if (!AttributeDecoder.isRegistered(attributeType)
+                && attributeType < Attribute.UNKNOWN_OPTIONAL_ATTRIBUTE)
+                sBuff.append(attributeType);
         }
 
         if (sBuff.length() > 0)
@@ -1287,29 +1515,16 @@ public class StunStack
          * MessageIntegrityAttribute because the value of the
          * MessageIntegrityAttribute is calculated on a STUN "Message Length"
          * upto and including the MESSAGE-INTEGRITY and excluding any Attributes
-         * after it.
+         * after it. calculateIncomingHmacSha1 patches the "Message Length"
+         * while it reads the bytes of the RawMessage.
          */
-        byte[] binMsg = new byte[msgInt.getLocationInMessage()];
-
-        System.arraycopy(message.getBytes(), 0, binMsg, 0, binMsg.length);
-
-        char messageLength
-            = (char)
-                (binMsg.length
-                    + Attribute.HEADER_LENGTH
-                    + msgInt.getDataLength()
-                    - Message.HEADER_LENGTH);
-
-        binMsg[2] = (byte) (messageLength >> 8);
-        binMsg[3] = (byte) (messageLength & 0xFF);
-
         byte[] expectedMsgIntHmacSha1Content;
 
         try
         {
             expectedMsgIntHmacSha1Content
-                = MessageIntegrityAttribute.calculateHmacSha1(
-                        binMsg, 0, binMsg.length,
+                = MessageIntegrityAttribute.calculateIncomingHmacSha1(
+                        message.getBytes(), 0, msgInt.getLocationInMessage(),
                         key);
         }
         catch (IllegalArgumentException iaex)
@@ -1496,6 +1711,8 @@ public class StunStack
                     addr[toIndex].getAddress(),
                     port[toIndex],
                     p.getData(),
+                    p.getOffset(),
+                    p.getLength(),
                     isSent);
         }
     }
@@ -1525,42 +1742,30 @@ public class StunStack
             {
                 try
                 {
-                    synchronized (serverTransactions)
-                    {
-                        final int transactionsBeforeCollection
-                            = serverTransactions.size();
+                    final int transactionsBeforeCollection
+                        = serverTransactions.size();
 
-                        long now = System.currentTimeMillis();
+                    long now = System.currentTimeMillis();
 
-                        for (Iterator<StunServerTransaction> i
-                                    = serverTransactions.values().iterator();
-                                i.hasNext();)
-                        {
-                            StunServerTransaction serverTransaction = i.next();
-
-                            if (serverTransaction == null)
-                            {
-                                i.remove();
-                            }
-                            else if (serverTransaction.isExpired(now))
-                            {
-                                i.remove();
-                                serverTransaction.expire();
-                            }
-                        }
-
-                        logger.fine("Non-expired server transactions "
-                            + "count " + serverTransactions.size()
-                            + ", transactions before collection "
-                            + transactionsBeforeCollection);
+                    for (Iterator<StunServerTransaction> i
+                                = serverTransactions.values().iterator();
+                            i.hasNext();)
+                    {
+                        StunServerTransaction serverTransaction = i.next();
 
-                        if (serverTransactions.isEmpty())
+                        if (serverTransaction.isExpired(now))
                         {
-                            cancel();
-                            logger.finest("Cancel expired collector "
-                                + "due to no more server transactions");
+                            removeServerTransaction(serverTransaction);
+                            serverTransaction.expire();
                         }
                     }
+
+                    logger.fine("Non-expired server transactions "
+                        + "count " + serverTransactions.size()
+                        + ", transactions before collection "
+                        + transactionsBeforeCollection);
+
+                    cancelIfEmpty();
                 }
                 catch (Throwable t)
                 {
@@ -1572,7 +1777,11 @@ public class StunStack
 
         /**
          * Scheduled execution of {@link #collector} runnable.
-         * Access synchronized via {@link #serverTransactions}.
+         * Access synchronized via this instance. A transaction is added to
+         * {@link #serverTransactions} before {@link #schedule()} is called
+         * and the collector only cancels itself, in {@link #cancelIfEmpty()},
+         * with the same lock held, so a new transaction is never left without
+         * a scheduled collector.
          */
         private ScheduledFuture<?> scheduledCollectorFuture;
 
@@ -1580,20 +1789,31 @@ public class StunStack
          * Schedules repeated collector execution in background
          * task executor. If collector is already scheduled - do nothing
          */
-        void schedule()
+        synchronized void schedule()
         {
-            synchronized (serverTransactions)
+            if (scheduledCollectorFuture == null ||
+                scheduledCollectorFuture.isDone())
             {
-                if (scheduledCollectorFuture == null ||
-                    scheduledCollectorFuture.isDone())
-                {
-                    scheduledCollectorFuture
-                        = tasksScheduler.scheduleWithFixedDelay(
-                            collector,
-                            StunServerTransaction.LIFETIME,
-                            StunServerTransaction.LIFETIME,
-                            TimeUnit.MILLISECONDS);
-                }
+                scheduledCollectorFuture
+                    = tasksScheduler.scheduleWithFixedDelay(
+                        collector,
+                        StunServerTransaction.LIFETIME,
+                        StunServerTransaction.LIFETIME,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Cancels execution of scheduled expired transactions collector if
+         * there are no more server transactions.
+         */
+        private synchronized void cancelIfEmpty()
+        {
+            if (serverTransactions.isEmpty())
+            {
+                cancel();
+                logger.finest("Cancel expired collector "
+                    + "due to no more server transactions");
             }
         }
 
@@ -1601,15 +1821,12 @@ public class StunStack
          * Cancels execution of scheduled expired transactions collector if
          * it is running
          */
-        void cancel()
+        synchronized void cancel()
         {
-            synchronized (serverTransactions)
+            if (scheduledCollectorFuture != null)
             {
-                if (scheduledCollectorFuture != null)
-                {
-                    scheduledCollectorFuture.cancel(false);
-                    scheduledCollectorFuture = null;
-                }
+                scheduledCollectorFuture.cancel(false);
+                scheduledCollectorFuture = null;
             }
         }
     }
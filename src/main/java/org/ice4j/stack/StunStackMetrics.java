@@ -0,0 +1,187 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.metrics.*;
+
+/**
+ * The metrics of a {@link StunStack}, looked up once in its {@link Metrics}
+ * registry so that the code paths which update them do not have to.
+ */
+final class StunStackMetrics
+{
+    /**
+     * The names of the STUN methods, indexed by method number. The methods
+     * without a name are counted as <tt>other</tt>.
+     */
+    private static final String[] METHOD_NAMES
+        = {
+            null,
+            "binding",
+            null,
+            "allocate",
+            "refresh",
+            null,
+            "send",
+            "data",
+            "create_permission",
+            "channel_bind",
+            "connect",
+            "connection_bind",
+            "connection_attempt"
+        };
+
+    /**
+     * The names of the STUN message classes, indexed by class number.
+     */
+    private static final String[] CLASS_NAMES
+        = { "request", "indication", "success_response", "error_response" };
+
+    /**
+     * The number of counters per direction: one per known method and class,
+     * and one per class for the other methods.
+     */
+    private static final int COUNTERS_PER_DIRECTION
+        = (METHOD_NAMES.length + 1) * CLASS_NAMES.length;
+
+    /**
+     * The registry in which the metrics are maintained.
+     */
+    final Metrics registry;
+
+    /**
+     * The counters of the sent and received messages by type, created on
+     * first use. The counters of the received messages come after those of
+     * the sent messages.
+     */
+    private final AtomicReferenceArray<Counter> messageCounters
+        = new AtomicReferenceArray<>(2 * COUNTERS_PER_DIRECTION);
+
+    /**
+     * The number of received messages which could not be decoded.
+     */
+    final Counter decodeFailures;
+
+    /**
+     * The number of requests rejected because of their USERNAME or
+     * MESSAGE-INTEGRITY.
+     */
+    final Counter integrityFailures;
+
+    /**
+     * The number of retransmitted requests.
+     */
+    final Counter clientRetransmissions;
+
+    /**
+     * The number of client transactions which timed out.
+     */
+    final Counter clientTimeouts;
+
+    /**
+     * The number of retransmitted responses.
+     */
+    final Counter serverRetransmissions;
+
+    /**
+     * The round-trip times, in microseconds, of the client transactions whose
+     * request was not retransmitted.
+     */
+    final Histogram clientRtt;
+
+    /**
+     * Initializes a new <tt>StunStackMetrics</tt> instance.
+     *
+     * @param registry the registry in which the metrics are to be maintained.
+     */
+    StunStackMetrics(Metrics registry)
+    {
+        this.registry = registry;
+
+        decodeFailures = registry.counter("stun.decode_failures");
+        integrityFailures = registry.counter("stun.integrity_failures");
+        clientRetransmissions = registry.counter("stun.client.retransmissions");
+        clientTimeouts = registry.counter("stun.client.timeouts");
+        serverRetransmissions = registry.counter("stun.server.retransmissions");
+        clientRtt = registry.histogram("stun.client.rtt_us");
+    }
+
+    /**
+     * Counts a sent STUN message.
+     *
+     * @param messageType the type of the sent message.
+     */
+    void countSent(char messageType)
+    {
+        countMessage(false, messageType);
+    }
+
+    /**
+     * Counts a received STUN message.
+     *
+     * @param messageType the type of the received message.
+     */
+    void countReceived(char messageType)
+    {
+        countMessage(true, messageType);
+    }
+
+    /**
+     * Increments the counter of the sent or received messages of a specific
+     * type, creating it if necessary.
+     *
+     * @param received <tt>true</tt> to count a received message and
+     * <tt>false</tt> to count a sent one.
+     * @param messageType the type of the message.
+     */
+    private void countMessage(boolean received, char messageType)
+    {
+        int method
+            = ((messageType & 0x3E00) >> 2)
+                | ((messageType & 0x00E0) >> 1)
+                | (messageType & 0x000F);
+        int messageClass
+            = ((messageType >> 4) & 0x1) | ((messageType >> 7) & 0x2);
+
+        if (method >= METHOD_NAMES.length || METHOD_NAMES[method] == null)
+            method = METHOD_NAMES.length;
+
+        int index
+            = (received ? COUNTERS_PER_DIRECTION : 0)
+                + method * CLASS_NAMES.length
+                + messageClass;
+        Counter counter = messageCounters.get(index);
+
+        if (counter == null)
+        {
+            String methodName
+                = (method == METHOD_NAMES.length)
+                    ? "other"
+                    : METHOD_NAMES[method];
+
+            counter
+                = registry.counter(
+                        "stun." + (received ? "received." : "sent.")
+                            + methodName + "." + CLASS_NAMES[messageClass]);
+            messageCounters.set(index, counter);
+        }
+        counter.increment();
+    }
+}
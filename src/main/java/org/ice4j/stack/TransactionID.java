@@ -176,8 +176,23 @@ public class TransactionID
             return serTran.getTransactionID();
 
         //seems that the caller really wants a new ID
-        TransactionID tid = null;
-        tid = new TransactionID((transactionID.length == 16));
+        return valueOf(transactionID);
+    }
+
+    /**
+     * Returns a new <tt>TransactionID</tt> with the specified value, without
+     * looking for an existing one. It equals the <tt>TransactionID</tt> of
+     * any transaction with the same value, so it may be used as a key to look
+     * transactions up.
+     *
+     * @param transactionID the value of the ID.
+     *
+     * @return a new <tt>TransactionID</tt> with the value
+     * <tt>transactionID</tt>.
+     */
+    static TransactionID valueOf(byte[] transactionID)
+    {
+        TransactionID tid = new TransactionID((transactionID.length == 16));
 
         System.arraycopy(transactionID, 0, tid.transactionID, 0,
                 tid.transactionID.length);
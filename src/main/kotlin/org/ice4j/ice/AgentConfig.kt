@@ -59,6 +59,22 @@ class AgentConfig {
         "ice4j.ice.max-check-list-size".from(configSource)
     }
 
+    /**
+     * The maximum number of connectivity checks per second that all agents in the process are allowed to send, or 0
+     * to not limit the rate of checks globally (each check list is then paced independently).
+     */
+    val maxChecksPerSecond: Int by config {
+        "ice4j.ice.max-checks-per-second".from(configSource)
+    }
+
+    /**
+     * Whether agents which are not given a [org.ice4j.stack.StunStack] should all use a single, process-wide stack
+     * instead of creating one each.
+     */
+    val useSharedStunStack: Boolean by config {
+        "ice4j.ice.use-shared-stun-stack".from(configSource)
+    }
+
     /** The value of the SOFTWARE attribute that ice4j should include in all outgoing messages. */
     val software: String? by config {
         "org.ice4j.SOFTWARE".from(configSource)
@@ -47,6 +47,63 @@ class HarvestConfig {
 
     fun udpSocketPoolSize() = udpSocketPoolSize
 
+    /**
+     * The maximum number of packets queued for each remote address of the "single port" harvester.
+     */
+    val udpReceiveQueueSize: Int by config {
+        "ice4j.harvest.udp.receive-queue-size".from(configSource)
+    }
+
+    fun udpReceiveQueueSize() = udpReceiveQueueSize
+
+    /**
+     * The number of pre-bound sockets to keep ready for host candidates on each local address, when the harvested
+     * ports are restricted to a range. 0 disables the pool.
+     */
+    val udpWarmSocketPoolSize: Int by config {
+        "ice4j.harvest.udp.warm-socket-pool-size".from(configSource)
+    }
+
+    fun udpWarmSocketPoolSize() = udpWarmSocketPoolSize
+
+    /**
+     * The number of STUN Binding Requests per second from each source prefix that the "single port" harvester
+     * fully decodes, when they come from an unknown address and carry a known ufrag. 0 disables the limit.
+     */
+    val udpUnknownSourceRate: Int by config {
+        "ice4j.harvest.udp.unknown-source-rate-limit.rate".from(configSource)
+    }
+
+    fun udpUnknownSourceRate() = udpUnknownSourceRate
+
+    /**
+     * The number of STUN Binding Requests from each source prefix accepted in a burst above
+     * [udpUnknownSourceRate].
+     */
+    val udpUnknownSourceBurst: Int by config {
+        "ice4j.harvest.udp.unknown-source-rate-limit.burst".from(configSource)
+    }
+
+    fun udpUnknownSourceBurst() = udpUnknownSourceBurst
+
+    /**
+     * The number of leading bits of an IPv4 address which identify a source for [udpUnknownSourceRate].
+     */
+    val udpUnknownSourceIpv4PrefixLength: Int by config {
+        "ice4j.harvest.udp.unknown-source-rate-limit.ipv4-prefix-length".from(configSource)
+    }
+
+    fun udpUnknownSourceIpv4PrefixLength() = udpUnknownSourceIpv4PrefixLength
+
+    /**
+     * The number of leading bits of an IPv6 address which identify a source for [udpUnknownSourceRate].
+     */
+    val udpUnknownSourceIpv6PrefixLength: Int by config {
+        "ice4j.harvest.udp.unknown-source-rate-limit.ipv6-prefix-length".from(configSource)
+    }
+
+    fun udpUnknownSourceIpv6PrefixLength() = udpUnknownSourceIpv6PrefixLength
+
     val useIpv6: Boolean by config {
         "org.ice4j.ipv6.DISABLED".from(configSource)
             .transformedBy { !it }
@@ -67,6 +124,33 @@ class HarvestConfig {
     }
     fun timeout() = timeout
 
+    /**
+     * The interval at which the allowed network interfaces and addresses are enumerated in the background. Zero means
+     * that they are enumerated on every harvest.
+     */
+    val interfacesRefreshInterval: Duration by config {
+        "ice4j.harvest.interfaces-refresh-interval".from(configSource)
+    }
+    fun interfacesRefreshInterval() = interfacesRefreshInterval
+
+    /**
+     * How long a server reflexive address learned from a STUN server is used for the host candidates of later
+     * harvests on the same local address, instead of querying the server again. Zero disables the cache.
+     */
+    val stunMappingCacheTtl: Duration by config {
+        "ice4j.harvest.stun-mapping-cache.ttl".from(configSource)
+    }
+    fun stunMappingCacheTtl() = stunMappingCacheTtl
+
+    /**
+     * Whether a cached mapping may be used for a host candidate with a different port, when the NAT was seen to
+     * preserve ports. When disabled, a live query is made unless the mapping was learned for the same local port.
+     */
+    val stunMappingCachePredictPorts: Boolean by config {
+        "ice4j.harvest.stun-mapping-cache.predict-ports".from(configSource)
+    }
+    fun stunMappingCachePredictPorts() = stunMappingCachePredictPorts
+
     val stunMappingCandidateHarvesterAddresses: List<String> by config {
         "org.ice4j.ice.harvest.STUN_MAPPING_HARVESTER_ADDRESSES".from(configSource)
             .convertFrom<String> { it.split(",") }
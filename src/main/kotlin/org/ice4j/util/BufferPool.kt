@@ -19,7 +19,8 @@ import java.net.SocketAddress
 import java.time.Instant
 
 /**
- * An overridable memory pool interface. Used when the push API is enabled.
+ * An overridable memory pool interface. Used when the push API is enabled, and
+ * for the buffers that outgoing STUN messages are encoded into.
  */
 class BufferPool {
     companion object {
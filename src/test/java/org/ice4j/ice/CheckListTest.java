@@ -0,0 +1,245 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+
+import org.ice4j.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the merging and the removal of pairs in a {@link CheckList}.
+ */
+public class CheckListTest
+{
+    private Agent agent;
+
+    private Component component;
+
+    private CheckList checkList;
+
+    private LocalCandidate local;
+
+    @BeforeEach
+    public void setUp()
+    {
+        agent = new Agent();
+        agent.setControlling(true);
+
+        IceMediaStream stream = agent.createMediaStream("stream");
+
+        component
+            = stream.createComponent(KeepAliveStrategy.SELECTED_ONLY, false);
+        checkList = stream.getCheckList();
+        local
+            = new HostCandidate(
+                    new TransportAddress("10.0.0.1", 5000, Transport.UDP),
+                    component);
+        local.computePriority();
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        agent.free();
+    }
+
+    /**
+     * Tests that merging a pair which updates an existing <tt>Waiting</tt>
+     * pair keeps the <tt>Waiting</tt> pairs ordered by priority.
+     */
+    @Test
+    public void testMergeUpdatesPriorityOfWaitingPair()
+    {
+        CandidatePair low = createPair(5001, 100);
+        CandidatePair middle = createPair(5002, 200);
+        CandidatePair high = createPair(5003, 300);
+
+        for (CandidatePair pair : Arrays.asList(low, middle, high))
+        {
+            checkList.add(pair);
+            pair.setStateWaiting();
+        }
+
+        // A remote candidate with the address of the lowest priority pair but
+        // a higher priority (e.g. a peer-reflexive candidate being learned).
+        checkList.mergePairs(
+            Collections.singleton(createPair(5001, 1000)),
+            Integer.MAX_VALUE);
+
+        assertEquals(3, checkList.size());
+        assertSame(low, checkList.findPairMatching(
+            local, createRemoteCandidate(5001, 1000)));
+        assertEquals(1000, low.getRemoteCandidate().getPriority());
+
+        Iterator<CandidatePair> pairs = checkList.iterator();
+
+        assertSame(low, pairs.next());
+        assertSame(high, pairs.next());
+        assertSame(middle, pairs.next());
+
+        assertSame(low, checkList.getNextOrdinaryPairToCheck());
+        low.setStateFailed();
+        assertSame(high, checkList.getNextOrdinaryPairToCheck());
+        high.setStateFailed();
+        assertSame(middle, checkList.getNextOrdinaryPairToCheck());
+        middle.setStateFailed();
+        assertNull(checkList.getNextOrdinaryPairToCheck());
+    }
+
+    /**
+     * Tests that a full check list only replaces its lowest priority pair
+     * with a merged pair of higher priority.
+     */
+    @Test
+    public void testMergeIntoFullList()
+    {
+        CandidatePair low = createPair(5001, 100);
+        CandidatePair high = createPair(5002, 300);
+
+        checkList.add(low);
+        checkList.add(high);
+
+        checkList.mergePairs(
+            Collections.singleton(createPair(5003, 50)), 2);
+        assertEquals(2, checkList.size());
+        assertNull(checkList.findPair(
+            local.getTransportAddress(), remoteAddress(5003)));
+
+        CandidatePair middle = createPair(5004, 200);
+
+        checkList.mergePairs(Collections.singleton(middle), 2);
+        assertEquals(2, checkList.size());
+        assertNull(checkList.findPair(
+            local.getTransportAddress(), remoteAddress(5001)));
+        assertEquals(
+            Arrays.asList(high, middle), new ArrayList<>(checkList));
+    }
+
+    /**
+     * Tests that removed pairs leave the check list, its indexes, its state
+     * counters and its queue of <tt>Waiting</tt> pairs.
+     */
+    @Test
+    public void testRemovePairs()
+    {
+        List<CandidatePair> pairs = new ArrayList<>();
+
+        for (int i = 0; i < 5; i++)
+        {
+            CandidatePair pair = createPair(5001 + i, 100 * (i + 1));
+
+            pairs.add(pair);
+            checkList.add(pair);
+            pair.setStateWaiting();
+        }
+        assertEquals(5, checkList.getStateCount(CandidatePairState.WAITING));
+
+        CandidatePair highest = pairs.get(4);
+        CandidatePair removedOne = pairs.get(1);
+
+        assertTrue(checkList.remove(highest));
+        assertFalse(checkList.remove(highest));
+        assertTrue(
+            checkList.removeAll(Arrays.asList(removedOne, pairs.get(2))));
+
+        assertEquals(2, checkList.size());
+        assertEquals(2, checkList.getStateCount(CandidatePairState.WAITING));
+        assertNull(checkList.findPair(
+            local.getTransportAddress(), remoteAddress(5005)));
+        assertNull(checkList.findPair(
+            local.getTransportAddress(), remoteAddress(5002)));
+        assertEquals(
+            Arrays.asList(pairs.get(3), pairs.get(0)),
+            new ArrayList<>(checkList));
+
+        // The removed pairs are still Waiting, but they must be skipped.
+        assertSame(pairs.get(3), checkList.getNextOrdinaryPairToCheck());
+        pairs.get(3).setStateFailed();
+        assertSame(pairs.get(0), checkList.getNextOrdinaryPairToCheck());
+        pairs.get(0).setStateFailed();
+        assertNull(checkList.getNextOrdinaryPairToCheck());
+    }
+
+    /**
+     * Tests that the check list can be read as a <tt>List</tt> ordered by
+     * decreasing priority, but that pairs cannot be put at a given index.
+     */
+    @Test
+    public void testListContract()
+    {
+        CandidatePair low = createPair(5001, 100);
+        CandidatePair high = createPair(5002, 300);
+        CandidatePair middle = createPair(5003, 200);
+        List<CandidatePair> list = checkList;
+
+        list.add(low);
+        list.add(high);
+        list.add(middle);
+
+        assertSame(high, list.get(0));
+        assertSame(middle, list.get(1));
+        assertSame(low, list.get(2));
+        assertEquals(2, list.indexOf(low));
+        assertEquals(Arrays.asList(middle, low), list.subList(1, 3));
+        assertEquals(Arrays.asList(high, middle, low), list);
+        assertThrows(IndexOutOfBoundsException.class, () -> list.get(3));
+        assertThrows(
+            UnsupportedOperationException.class, () -> list.set(0, low));
+        assertThrows(
+            UnsupportedOperationException.class, () -> list.add(0, low));
+
+        // The sub lists are snapshots.
+        List<CandidatePair> subList = list.subList(0, 2);
+
+        assertSame(middle, list.remove(1));
+        assertEquals(Arrays.asList(high, low), list);
+        assertEquals(Arrays.asList(high, middle), subList);
+        assertNull(checkList.findPair(
+            local.getTransportAddress(), remoteAddress(5003)));
+    }
+
+    private CandidatePair createPair(int remotePort, long remotePriority)
+    {
+        return
+            new CandidatePair(
+                    local,
+                    createRemoteCandidate(remotePort, remotePriority));
+    }
+
+    private RemoteCandidate createRemoteCandidate(
+            int port,
+            long priority)
+    {
+        return
+            new RemoteCandidate(
+                    remoteAddress(port),
+                    component,
+                    CandidateType.HOST_CANDIDATE,
+                    "1",
+                    priority,
+                    null);
+    }
+
+    private static TransportAddress remoteAddress(int port)
+    {
+        return new TransportAddress("10.0.0.2", port, Transport.UDP);
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the lookups of the candidates of a {@link Component} while the
+ * candidates are being modified.
+ */
+public class ComponentTest
+{
+    /**
+     * The number of candidates added by the concurrent tests.
+     */
+    private static final int CANDIDATES = 200;
+
+    private Agent agent;
+
+    private Component component;
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void setUp()
+    {
+        agent = new Agent();
+
+        IceMediaStream stream = agent.createMediaStream("stream");
+
+        component
+            = stream.createComponent(KeepAliveStrategy.SELECTED_ONLY, false);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        executor.shutdownNow();
+        agent.free();
+    }
+
+    /**
+     * Tests that the lists of candidates returned by a component are not
+     * affected by the candidates added afterwards.
+     */
+    @Test
+    public void testCandidateListsAreSnapshots()
+    {
+        component.addLocalCandidate(createHostCandidate("10.0.0.1", 5000));
+        component.addRemoteCandidate(createRemoteCandidate(6000));
+
+        List<LocalCandidate> localCandidates = component.getLocalCandidates();
+        List<RemoteCandidate> remoteCandidates
+            = component.getRemoteCandidates();
+        Iterator<LocalCandidate> localIter = localCandidates.iterator();
+        Iterator<RemoteCandidate> remoteIter = remoteCandidates.iterator();
+
+        component.addLocalCandidate(createHostCandidate("10.0.0.1", 5001));
+        component.addRemoteCandidate(createRemoteCandidate(6001));
+
+        assertEquals(
+            localAddress("10.0.0.1", 5000),
+            localIter.next().getTransportAddress());
+        assertFalse(localIter.hasNext());
+        assertEquals(
+            remoteAddress(6000), remoteIter.next().getTransportAddress());
+        assertFalse(remoteIter.hasNext());
+
+        assertEquals(2, component.getLocalCandidateCount());
+        assertEquals(2, component.getRemoteCandidateCount());
+        assertNotNull(
+            component.findLocalCandidate(localAddress("10.0.0.1", 5001)));
+        assertNotNull(component.findRemoteCandidate(remoteAddress(6001)));
+    }
+
+    /**
+     * Tests that the candidates which share a transport address are found in
+     * priority order, and by base.
+     */
+    @Test
+    public void testFindLocalCandidateWithSameAddress()
+    {
+        HostCandidate host = createHostCandidate("10.0.0.1", 5000);
+        HostCandidate otherHost = createHostCandidate("10.0.0.3", 5000);
+        ServerReflexiveCandidate srflx
+            = new ServerReflexiveCandidate(
+                    localAddress("10.0.0.1", 5000),
+                    otherHost,
+                    null,
+                    CandidateExtendedType.STUN_SERVER_REFLEXIVE_CANDIDATE);
+
+        // The lower priority candidate is added first.
+        assertTrue(component.addLocalCandidate(otherHost));
+        assertTrue(component.addLocalCandidate(srflx));
+        assertTrue(component.addLocalCandidate(host));
+
+        TransportAddress address = localAddress("10.0.0.1", 5000);
+
+        assertSame(host, component.findLocalCandidate(address));
+        assertSame(host, component.findLocalCandidate(address, host));
+        assertSame(srflx, component.findLocalCandidate(address, otherHost));
+    }
+
+    /**
+     * Tests that remote candidates can be looked up while other remote
+     * candidates are being added, and that the lists of remote candidates
+     * can be iterated meanwhile.
+     */
+    @Test
+    public void testFindRemoteCandidateWhileAdding()
+        throws Exception
+    {
+        AtomicInteger added = new AtomicInteger();
+        Future<?> writer
+            = executor.submit(() ->
+            {
+                for (int i = 0; i < CANDIDATES; i++)
+                {
+                    if ((i % 2) == 0)
+                    {
+                        component.addRemoteCandidate(
+                            createRemoteCandidate(6000 + i));
+                    }
+                    else
+                    {
+                        component.addRemoteCandidates(
+                            Collections.singletonList(
+                                createRemoteCandidate(6000 + i)));
+                    }
+                    added.incrementAndGet();
+                }
+            });
+
+        do
+        {
+            int count = added.get();
+
+            for (int i = 0; i < count; i++)
+            {
+                TransportAddress address = remoteAddress(6000 + i);
+                RemoteCandidate candidate
+                    = component.findRemoteCandidate(address);
+
+                assertNotNull(candidate, address.toString());
+                assertEquals(address, candidate.getTransportAddress());
+            }
+
+            List<RemoteCandidate> candidates = component.getRemoteCandidates();
+            int size = candidates.size();
+            int iterated = 0;
+
+            for (RemoteCandidate candidate : candidates)
+            {
+                assertNotNull(candidate);
+                iterated++;
+            }
+            assertEquals(size, iterated);
+            assertTrue(size >= count);
+        }
+        while (!writer.isDone());
+
+        writer.get(5, TimeUnit.SECONDS);
+        assertEquals(CANDIDATES, component.getRemoteCandidateCount());
+    }
+
+    /**
+     * Tests that local candidates can be looked up while other local
+     * candidates are being added and the candidates are being reordered.
+     */
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testFindLocalCandidateWhileReordering()
+        throws Exception
+    {
+        AtomicInteger added = new AtomicInteger();
+        Future<?> writer
+            = executor.submit(() ->
+            {
+                for (int i = 0; i < CANDIDATES; i++)
+                {
+                    component.addLocalCandidate(
+                        createHostCandidate("10.0.0.1", 5000 + i));
+                    added.incrementAndGet();
+                    component.prioritizeCandidates();
+                }
+            });
+
+        do
+        {
+            int count = added.get();
+
+            for (int i = 0; i < count; i++)
+            {
+                TransportAddress address = localAddress("10.0.0.1", 5000 + i);
+                LocalCandidate candidate
+                    = component.findLocalCandidate(address);
+
+                assertNotNull(candidate, address.toString());
+                assertEquals(address, candidate.getTransportAddress());
+            }
+            assertTrue(component.getLocalCandidates().size() >= count);
+        }
+        while (!writer.isDone());
+
+        writer.get(5, TimeUnit.SECONDS);
+        assertEquals(CANDIDATES, component.getLocalCandidateCount());
+    }
+
+    private HostCandidate createHostCandidate(String address, int port)
+    {
+        return new HostCandidate(localAddress(address, port), component);
+    }
+
+    private RemoteCandidate createRemoteCandidate(int port)
+    {
+        return
+            new RemoteCandidate(
+                    remoteAddress(port),
+                    component,
+                    CandidateType.HOST_CANDIDATE,
+                    "1",
+                    port,
+                    null);
+    }
+
+    private static TransportAddress localAddress(String address, int port)
+    {
+        return new TransportAddress(address, port, Transport.UDP);
+    }
+
+    private static TransportAddress remoteAddress(int port)
+    {
+        return new TransportAddress("10.0.0.2", port, Transport.UDP);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ice4j.ice;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the budget and the fairness of {@link ConnectivityCheckPacer}.
+ */
+public class ConnectivityCheckPacerTest
+{
+    private static final long TICK_NANOS
+        = ConnectivityCheckPacer.TICK.toNanos();
+
+    private ScheduledExecutorService timer;
+
+    @BeforeEach
+    public void setUp()
+    {
+        // The tests drive the pacers by hand, so keep the timer from running
+        // them.
+        timer = new ScheduledThreadPoolExecutor(1)
+        {
+            @Override
+            public ScheduledFuture<?> scheduleAtFixedRate(
+                    Runnable command,
+                    long initialDelay,
+                    long period,
+                    TimeUnit unit)
+            {
+                return super.scheduleAtFixedRate(
+                        command, 1, 1, TimeUnit.DAYS);
+            }
+        };
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        timer.shutdownNow();
+    }
+
+    @Test
+    public void testGlobalBudgetIsSharedFairly()
+    {
+        ConnectivityCheckPacer pacer = new ConnectivityCheckPacer(100, timer);
+        CountingSource[] sources = new CountingSource[4];
+
+        for (int i = 0; i < sources.length; i++)
+        {
+            sources[i] = new CountingSource(Duration.ZERO, true);
+            pacer.register(sources[i]);
+        }
+
+        // Drive the pacer by hand for one second.
+        long now = System.nanoTime();
+
+        for (int i = 0; i < 200; i++)
+        {
+            now += TICK_NANOS;
+            pacer.tick(now);
+        }
+
+        int total = 0;
+
+        for (CountingSource source : sources)
+        {
+            total += source.checks;
+            assertTrue(
+                source.checks >= 24 && source.checks <= 26,
+                "Unfair share: " + source.checks);
+        }
+        assertTrue(total <= 101, "Budget exceeded: " + total);
+        assertEquals(total, pacer.getChecksSent());
+        assertTrue(pacer.getQueueDepth() > 0);
+
+        for (CountingSource source : sources)
+            pacer.unregister(source);
+        assertEquals(0, pacer.getCheckSourceCount());
+        assertEquals(0, pacer.getQueueDepth());
+    }
+
+    @Test
+    public void testCheckIntervalIsRespected()
+    {
+        ConnectivityCheckPacer pacer = new ConnectivityCheckPacer(1000, timer);
+        CountingSource source = new CountingSource(Duration.ofMillis(20), true);
+
+        pacer.register(source);
+
+        long now = System.nanoTime();
+
+        for (int i = 0; i < 200; i++)
+        {
+            now += TICK_NANOS;
+            pacer.tick(now);
+        }
+        pacer.unregister(source);
+
+        // One check every 20ms during one second.
+        assertTrue(
+            source.checks >= 49 && source.checks <= 51,
+            "Unexpected number of checks: " + source.checks);
+        assertEquals(0, pacer.getChecksDeferred());
+    }
+
+    @Test
+    public void testIdleSourcesDoNotConsumeBudget()
+    {
+        ConnectivityCheckPacer pacer = new ConnectivityCheckPacer(100, timer);
+        CountingSource idle = new CountingSource(Duration.ZERO, false);
+        CountingSource busy = new CountingSource(Duration.ZERO, true);
+
+        pacer.register(idle);
+        pacer.register(busy);
+
+        long now = System.nanoTime();
+
+        for (int i = 0; i < 200; i++)
+        {
+            now += TICK_NANOS;
+            pacer.tick(now);
+        }
+        pacer.unregister(idle);
+        pacer.unregister(busy);
+
+        assertEquals(0, idle.checks);
+        assertTrue(busy.checks >= 99, "Unexpected number of checks: " + busy.checks);
+    }
+
+    @Test
+    public void testChecksAreSentWithoutHoldingThePacer()
+        throws Exception
+    {
+        ConnectivityCheckPacer pacer = new ConnectivityCheckPacer(100, timer);
+        CountingSource other = new CountingSource(Duration.ZERO, false);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try
+        {
+            // Sending a check may (un)register sources from another thread
+            // (e.g. while the agent of the source updates its check lists),
+            // which must not block on the pacer.
+            CountingSource source
+                = new CountingSource(Duration.ZERO, true)
+                {
+                    @Override
+                    public boolean sendNextCheck()
+                    {
+                        try
+                        {
+                            executor.submit(() -> pacer.register(other))
+                                .get(5, TimeUnit.SECONDS);
+                        }
+                        catch (Exception e)
+                        {
+                            throw new IllegalStateException(e);
+                        }
+                        return super.sendNextCheck();
+                    }
+                };
+
+            pacer.register(source);
+            pacer.tick(System.nanoTime() + TICK_NANOS);
+
+            assertEquals(1, source.checks);
+            assertEquals(1, pacer.getChecksSent());
+            assertEquals(2, pacer.getCheckSourceCount());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class CountingSource
+        implements ConnectivityCheckPacer.CheckSource
+    {
+        private final Duration interval;
+
+        private final boolean hasChecks;
+
+        private int checks = 0;
+
+        CountingSource(Duration interval, boolean hasChecks)
+        {
+            this.interval = interval;
+            this.hasChecks = hasChecks;
+        }
+
+        @Override
+        public boolean sendNextCheck()
+        {
+            if (hasChecks)
+                checks++;
+            return hasChecks;
+        }
+
+        @Override
+        public Duration getCheckInterval()
+        {
+            return interval;
+        }
+    }
+}
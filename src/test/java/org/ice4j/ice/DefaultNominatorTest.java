@@ -0,0 +1,336 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.beans.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the pairs nominated by the policies of {@link DefaultNominator}.
+ */
+public class DefaultNominatorTest
+{
+    /**
+     * How long to wait for a nomination which is expected to happen. Well
+     * above the delay of the nomination of relayed pairs.
+     */
+    private static final long NOMINATION_TIMEOUT = 5000;
+
+    /**
+     * How long to wait for a nomination which is expected to not happen.
+     * Above the delay of the nomination of relayed pairs.
+     */
+    private static final long NO_NOMINATION_TIMEOUT = 1500;
+
+    private Agent agent;
+
+    private IceMediaStream stream;
+
+    private Component component;
+
+    private CheckList checkList;
+
+    private LocalCandidate local;
+
+    private RecordingNominator nominator;
+
+    @BeforeEach
+    public void setUp()
+    {
+        agent = new Agent();
+        agent.setControlling(true);
+
+        stream = agent.createMediaStream("stream");
+        component
+            = stream.createComponent(KeepAliveStrategy.SELECTED_ONLY, false);
+        checkList = stream.getCheckList();
+        local
+            = new HostCandidate(
+                    new TransportAddress("10.0.0.1", 5000, Transport.UDP),
+                    component);
+        local.computePriority();
+
+        nominator = new RecordingNominator(agent);
+        stream.addPairChangeListener(nominator);
+        checkList.addChecksListener(nominator);
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        nominator.stop();
+        agent.free();
+    }
+
+    /**
+     * Tests that the first valid pair is nominated right away.
+     */
+    @Test
+    public void testFirstValid()
+    {
+        nominator.setStrategy(NominationStrategy.NOMINATE_FIRST_VALID);
+
+        CandidatePair low = createPair(5001, 100, CandidateType.HOST_CANDIDATE);
+        CandidatePair high
+            = createPair(5002, 200, CandidateType.HOST_CANDIDATE);
+
+        validate(low);
+        validate(high);
+
+        assertSame(low, nominator.nominated.poll());
+        assertNull(nominator.nominated.poll());
+        assertTrue(low.isNominated());
+        assertFalse(high.isNominated());
+    }
+
+    /**
+     * Tests that the highest priority valid pair is nominated once all the
+     * checks have completed.
+     */
+    @Test
+    public void testHighestPriority()
+    {
+        nominator.setStrategy(NominationStrategy.NOMINATE_HIGHEST_PRIO);
+
+        CandidatePair low = createPair(5001, 100, CandidateType.HOST_CANDIDATE);
+        CandidatePair middle
+            = createPair(5002, 200, CandidateType.HOST_CANDIDATE);
+        CandidatePair high
+            = createPair(5003, 300, CandidateType.HOST_CANDIDATE);
+
+        checkList.add(low);
+        checkList.add(middle);
+        checkList.add(high);
+
+        low.setStateSucceeded();
+        validate(low);
+        middle.setStateSucceeded();
+        validate(middle);
+        assertNull(nominator.nominated.poll());
+
+        high.setStateFailed();
+        assertSame(middle, nominator.nominated.poll());
+        assertNull(nominator.nominated.poll());
+    }
+
+    /**
+     * Tests that a relayed pair is nominated after a delay.
+     */
+    @Test
+    public void testRelayedPairIsNominatedAfterDelay()
+        throws Exception
+    {
+        nominator.setStrategy(
+            NominationStrategy.NOMINATE_FIRST_HOST_OR_REFLEXIVE_VALID);
+
+        CandidatePair relayed
+            = createPair(5001, 100, CandidateType.RELAYED_CANDIDATE);
+
+        validate(relayed);
+        assertNull(nominator.nominated.poll());
+        assertSame(
+            relayed,
+            nominator.nominated.poll(
+                NOMINATION_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(relayed.isNominated());
+    }
+
+    /**
+     * Tests that the validation of a host pair cancels the scheduled
+     * nomination of a relayed pair.
+     */
+    @Test
+    public void testHostPairCancelsRelayedNomination()
+        throws Exception
+    {
+        nominator.setStrategy(
+            NominationStrategy.NOMINATE_FIRST_HOST_OR_REFLEXIVE_VALID);
+
+        CandidatePair relayed
+            = createPair(5001, 200, CandidateType.RELAYED_CANDIDATE);
+        CandidatePair host
+            = createPair(5002, 100, CandidateType.HOST_CANDIDATE);
+
+        validate(relayed);
+        validate(host);
+
+        assertSame(host, nominator.nominated.poll());
+        assertNull(
+            nominator.nominated.poll(
+                NO_NOMINATION_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertFalse(relayed.isNominated());
+    }
+
+    /**
+     * Tests that stopping the policy cancels the scheduled nomination of a
+     * relayed pair.
+     */
+    @Test
+    public void testStopCancelsRelayedNomination()
+        throws Exception
+    {
+        nominator.setStrategy(
+            NominationStrategy.NOMINATE_FIRST_HOST_OR_REFLEXIVE_VALID);
+
+        CandidatePair relayed
+            = createPair(5001, 100, CandidateType.RELAYED_CANDIDATE);
+
+        validate(relayed);
+        nominator.setPolicy(null);
+
+        assertNull(
+            nominator.nominated.poll(
+                NO_NOMINATION_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertFalse(relayed.isNominated());
+    }
+
+    /**
+     * Tests that a relayed pair is nominated without waiting when all the
+     * other pairs of its check list have failed.
+     */
+    @Test
+    public void testRelayedPairIsNominatedWhenOthersFail()
+    {
+        nominator.setStrategy(
+            NominationStrategy.NOMINATE_FIRST_HOST_OR_REFLEXIVE_VALID);
+
+        CandidatePair relayed
+            = createPair(5001, 100, CandidateType.RELAYED_CANDIDATE);
+        CandidatePair host
+            = createPair(5002, 200, CandidateType.HOST_CANDIDATE);
+
+        checkList.add(relayed);
+        checkList.add(host);
+        relayed.setStateSucceeded();
+        validate(relayed);
+
+        // The host pair is still Frozen.
+        checkList.fireEndOfOrdinaryChecks();
+        assertNull(nominator.nominated.poll());
+
+        host.setStateFailed();
+        checkList.fireEndOfOrdinaryChecks();
+        assertSame(relayed, nominator.nominated.poll());
+        assertNull(nominator.nominated.poll());
+    }
+
+    /**
+     * Tests that replacing a policy stops it and that the replacing policy
+     * decides which pairs get nominated.
+     */
+    @Test
+    public void testSetPolicy()
+    {
+        AtomicInteger stops = new AtomicInteger();
+        NominationPolicy policy
+            = new NominationPolicy()
+            {
+                @Override
+                public void propertyChange(
+                        PropertyChangeEvent ev,
+                        DefaultNominator nominator)
+                {
+                    if (!IceMediaStream.PROPERTY_PAIR_VALIDATED.equals(
+                                ev.getPropertyName()))
+                    {
+                        return;
+                    }
+
+                    CandidatePair pair = (CandidatePair) ev.getSource();
+
+                    if (pair.getRemoteCandidate().getPriority() > 100)
+                        nominator.nominate(pair);
+                }
+
+                @Override
+                public void stop()
+                {
+                    stops.incrementAndGet();
+                }
+            };
+
+        nominator.setPolicy(policy);
+        assertSame(policy, nominator.getPolicy());
+
+        CandidatePair low = createPair(5001, 100, CandidateType.HOST_CANDIDATE);
+        CandidatePair high
+            = createPair(5002, 200, CandidateType.HOST_CANDIDATE);
+
+        validate(low);
+        validate(high);
+        assertSame(high, nominator.nominated.poll());
+        assertNull(nominator.nominated.poll());
+
+        nominator.setStrategy(NominationStrategy.NOMINATE_FIRST_VALID);
+        assertEquals(1, stops.get());
+        assertNotSame(policy, nominator.getPolicy());
+    }
+
+    private void validate(CandidatePair pair)
+    {
+        stream.addToValidList(pair);
+    }
+
+    private CandidatePair createPair(
+            int remotePort,
+            long remotePriority,
+            CandidateType remoteType)
+    {
+        return
+            new CandidatePair(
+                    local,
+                    new RemoteCandidate(
+                            new TransportAddress(
+                                    "10.0.0.2", remotePort, Transport.UDP),
+                            component,
+                            remoteType,
+                            "1",
+                            remotePriority,
+                            null));
+    }
+
+    /**
+     * A {@link DefaultNominator} which records the pairs it nominates.
+     */
+    private static class RecordingNominator
+        extends DefaultNominator
+    {
+        private final BlockingQueue<CandidatePair> nominated
+            = new LinkedBlockingQueue<>();
+
+        RecordingNominator(Agent agent)
+        {
+            super(agent);
+        }
+
+        @Override
+        public void nominate(CandidatePair pair)
+        {
+            // Recorded once nominated, so that a test woken up by the
+            // record, possibly on another thread, sees the nomination.
+            super.nominate(pair);
+            nominated.add(pair);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the pruning of the pairs of an {@link IceMediaStream} and the merging
+ * of trickled candidates into its check list while the check list is read.
+ */
+public class IceMediaStreamTest
+{
+    /**
+     * The number of remote candidates trickled by the concurrent test.
+     */
+    private static final int CANDIDATES = 200;
+
+    private Agent agent;
+
+    private IceMediaStream stream;
+
+    private Component component;
+
+    private HostCandidate local;
+
+    @BeforeEach
+    public void setUp()
+    {
+        agent = new Agent();
+        agent.setControlling(true);
+
+        stream = agent.createMediaStream("stream");
+        component
+            = stream.createComponent(KeepAliveStrategy.SELECTED_ONLY, false);
+        local
+            = new HostCandidate(
+                    new TransportAddress("10.0.0.1", 5000, Transport.UDP),
+                    component);
+        component.addLocalCandidate(local);
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        agent.free();
+    }
+
+    /**
+     * Tests that pruning replaces server reflexive local candidates with
+     * their bases, drops the resulting duplicates, keeps at most the maximum
+     * number of pairs and orders them by decreasing priority.
+     */
+    @Test
+    public void testPruneCheckList()
+    {
+        ServerReflexiveCandidate srflx
+            = new ServerReflexiveCandidate(
+                    new TransportAddress("192.0.2.1", 7000, Transport.UDP),
+                    local,
+                    null,
+                    CandidateExtendedType.STUN_SERVER_REFLEXIVE_CANDIDATE);
+
+        srflx.computePriority();
+
+        RemoteCandidate remote1 = createRemoteCandidate(6001, 100);
+        RemoteCandidate remote2 = createRemoteCandidate(6002, 200);
+        RemoteCandidate remote3 = createRemoteCandidate(6003, 300);
+        List<CandidatePair> pairs
+            = new ArrayList<>(
+                    Arrays.asList(
+                        new CandidatePair(srflx, remote3),
+                        new CandidatePair(local, remote1),
+                        new CandidatePair(srflx, remote1),
+                        new CandidatePair(local, remote3),
+                        new CandidatePair(local, remote2)));
+
+        stream.pruneCheckList(pairs);
+
+        assertEquals(3, pairs.size());
+        assertSame(remote3, pairs.get(0).getRemoteCandidate());
+        assertSame(remote2, pairs.get(1).getRemoteCandidate());
+        assertSame(remote1, pairs.get(2).getRemoteCandidate());
+        for (CandidatePair pair : pairs)
+            assertSame(local, pair.getLocalCandidate());
+
+        stream.setMaxCheckListSize(2);
+        stream.pruneCheckList(pairs);
+
+        assertEquals(2, pairs.size());
+        assertSame(remote3, pairs.get(0).getRemoteCandidate());
+        assertSame(remote2, pairs.get(1).getRemoteCandidate());
+    }
+
+    /**
+     * Tests that remote candidates trickled into a running check list can be
+     * looked up, and that the check list stays ordered, while the check list
+     * is being read concurrently.
+     */
+    @Test
+    public void testTrickleWhileReading()
+        throws Exception
+    {
+        CheckList checkList = stream.getCheckList();
+
+        stream.setMaxCheckListSize(CANDIDATES);
+        checkList.setState(CheckListState.RUNNING);
+
+        AtomicInteger trickled = new AtomicInteger();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try
+        {
+            // The priorities alternate so that the pairs are inserted all
+            // over the check list.
+            Future<?> writer
+                = executor.submit(() ->
+                {
+                    for (int i = 0; i < CANDIDATES; i++)
+                    {
+                        component.addUpdateRemoteCandidates(
+                            createRemoteCandidate(
+                                6000 + i,
+                                ((i % 2) == 0) ? 1000 + i : 1000 - i));
+                        component.updateRemoteCandidates();
+                        trickled.incrementAndGet();
+                    }
+                });
+
+            do
+            {
+                int count = trickled.get();
+
+                for (int i = 0; i < count; i++)
+                {
+                    TransportAddress address = remoteAddress(6000 + i);
+
+                    assertNotNull(
+                        checkList.findPair(
+                            local.getTransportAddress(), address),
+                        address.toString());
+                    assertNotNull(component.findRemoteCandidate(address));
+                }
+
+                // The check list is iterated without locking, while it is
+                // being modified.
+                List<CandidatePair> pairs = new ArrayList<>();
+
+                for (CandidatePair pair : checkList)
+                    pairs.add(pair);
+                assertTrue(pairs.size() >= count);
+                assertOrdered(pairs);
+            }
+            while (!writer.isDone());
+
+            writer.get(5, TimeUnit.SECONDS);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        assertEquals(CANDIDATES, checkList.size());
+        assertOrdered(new ArrayList<>(checkList));
+    }
+
+    /**
+     * Tests that an iteration over the check list is not affected by the
+     * pairs merged into the check list meanwhile.
+     */
+    @Test
+    public void testIterationIsSnapshot()
+    {
+        CheckList checkList = stream.getCheckList();
+
+        checkList.setState(CheckListState.RUNNING);
+        component.addUpdateRemoteCandidates(createRemoteCandidate(6001, 100));
+        component.updateRemoteCandidates();
+
+        Iterator<CandidatePair> pairs = checkList.iterator();
+
+        component.addUpdateRemoteCandidates(createRemoteCandidate(6002, 200));
+        component.updateRemoteCandidates();
+        assertEquals(2, checkList.size());
+
+        assertEquals(
+            remoteAddress(6001),
+            pairs.next().getRemoteCandidate().getTransportAddress());
+        assertFalse(pairs.hasNext());
+
+        pairs = checkList.iterator();
+        assertEquals(
+            remoteAddress(6002),
+            pairs.next().getRemoteCandidate().getTransportAddress());
+        assertEquals(
+            remoteAddress(6001),
+            pairs.next().getRemoteCandidate().getTransportAddress());
+        assertFalse(pairs.hasNext());
+    }
+
+    private static void assertOrdered(List<CandidatePair> pairs)
+    {
+        for (int i = 1; i < pairs.size(); i++)
+        {
+            assertTrue(
+                pairs.get(i - 1).getPriority() >= pairs.get(i).getPriority(),
+                "Pair " + i + " is out of order");
+        }
+    }
+
+    private RemoteCandidate createRemoteCandidate(int port, long priority)
+    {
+        return
+            new RemoteCandidate(
+                    remoteAddress(port),
+                    component,
+                    CandidateType.HOST_CANDIDATE,
+                    "1",
+                    priority,
+                    null);
+    }
+
+    private static TransportAddress remoteAddress(int port)
+    {
+        return new TransportAddress("10.0.0.2", port, Transport.UDP);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice.harvest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.*;
+import org.ice4j.ice.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the asynchronous harvests of {@link CandidateHarvesterSet}.
+ */
+public class CandidateHarvesterSetTest
+{
+    private Agent agent;
+
+    private Component component;
+
+    @BeforeEach
+    public void setUp()
+    {
+        agent = new Agent();
+
+        IceMediaStream stream = agent.createMediaStream("stream");
+
+        component = Component.build(1, stream, stream.getLogger());
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        agent.free();
+    }
+
+    @Test
+    public void testTrickleBeforeCompletion()
+    {
+        CompletableFuture<Collection<LocalCandidate>> result
+            = new CompletableFuture<>();
+        LocalCandidate candidate
+            = new HostCandidate(
+                    new TransportAddress("192.0.2.1", 10000, Transport.UDP),
+                    component);
+        AsyncCandidateHarvester harvester = new AsyncCandidateHarvester()
+        {
+            @Override
+            public CompletableFuture<Collection<LocalCandidate>> harvestAsync(
+                    Component component,
+                    TrickleCallback trickleCallback)
+            {
+                trickleCallback.onIceCandidates(List.of(candidate));
+                return result;
+            }
+
+            @Override
+            public Collection<LocalCandidate> harvest(Component component)
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public HarvestStatistics getHarvestStatistics()
+            {
+                return new HarvestStatistics();
+            }
+
+            @Override
+            public boolean isHostHarvester()
+            {
+                return false;
+            }
+        };
+        CandidateHarvesterSet harvesters = new CandidateHarvesterSet();
+        List<Collection<LocalCandidate>> trickled = new ArrayList<>();
+
+        harvesters.add(harvester);
+
+        CompletableFuture<Void> harvest
+            = harvesters.harvestAsync(List.of(component), trickled::add);
+
+        // The candidate is trickled while the harvest is still running.
+        assertFalse(harvest.isDone());
+        assertEquals(List.of(List.of(candidate)), trickled);
+
+        result.complete(List.of(candidate));
+        harvest.join();
+        assertTrue(harvest.isDone());
+    }
+
+    @Test
+    public void testFailingHarvesterIsDisabled()
+    {
+        CandidateHarvesterSet harvesters = new CandidateHarvesterSet();
+        AtomicInteger harvests = new AtomicInteger();
+
+        harvesters.add(new CandidateHarvester()
+        {
+            @Override
+            public Collection<LocalCandidate> harvest(Component component)
+            {
+                harvests.incrementAndGet();
+                throw new IllegalStateException("test");
+            }
+
+            @Override
+            public HarvestStatistics getHarvestStatistics()
+            {
+                return new HarvestStatistics();
+            }
+
+            @Override
+            public boolean isHostHarvester()
+            {
+                return false;
+            }
+        });
+
+        harvesters.harvestAsync(List.of(component), null).join();
+        assertEquals(1, harvests.get());
+
+        // The harvester has been disabled and is not used again.
+        harvesters.harvestAsync(List.of(component), null).join();
+        assertEquals(1, harvests.get());
+    }
+}
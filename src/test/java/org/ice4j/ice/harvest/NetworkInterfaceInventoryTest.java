@@ -0,0 +1,80 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice.harvest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.*;
+import java.time.*;
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests {@link NetworkInterfaceInventory}.
+ */
+public class NetworkInterfaceInventoryTest
+{
+    @Test
+    public void testAllowedAddresses()
+        throws Exception
+    {
+        NetworkInterfaceInventory inventory
+            = new NetworkInterfaceInventory(Duration.ofHours(1));
+        List<InetAddress> expected = new ArrayList<>();
+
+        for (NetworkInterface iface
+                : Collections.list(NetworkInterface.getNetworkInterfaces()))
+        {
+            if (!HostCandidateHarvester.isInterfaceAllowed(iface))
+                continue;
+            for (InetAddress address : Collections.list(iface.getInetAddresses()))
+            {
+                if (HostCandidateHarvester.isAddressAllowed(address))
+                    expected.add(address);
+            }
+        }
+
+        assertEquals(
+            new HashSet<>(expected),
+            new HashSet<>(inventory.getInetAddresses()));
+        assertEquals(
+            inventory.getInetAddresses().size(),
+            inventory.getAddresses().size());
+    }
+
+    @Test
+    public void testNoChange()
+    {
+        NetworkInterfaceInventory inventory
+            = new NetworkInterfaceInventory(Duration.ofHours(1));
+        List<List<InetAddress>> changes = new ArrayList<>();
+
+        inventory.addChangeListener((added, removed) -> changes.add(added));
+
+        List<InetAddress> addresses = inventory.getInetAddresses();
+
+        // Without a change of the interfaces, refreshing notifies nobody and
+        // reading the inventory does not enumerate the interfaces again.
+        assertFalse(inventory.refresh());
+        assertTrue(changes.isEmpty());
+        assertSame(
+            inventory.getInetAddresses(), inventory.getInetAddresses());
+        assertEquals(addresses, inventory.getInetAddresses());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice.harvest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.ice4j.util.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests {@link ReceiveQueue}.
+ */
+public class ReceiveQueueTest
+{
+    @Test
+    public void testDropsOldest()
+    {
+        ReceiveQueue queue = new ReceiveQueue(3);
+        Buffer[] buffers = new Buffer[6];
+
+        assertEquals(4, queue.capacity());
+        for (int i = 0; i < buffers.length; i++)
+        {
+            buffers[i] = new Buffer(new byte[1], 0, 1);
+            assertSame(i < 4 ? null : buffers[i - 4], queue.offer(buffers[i]));
+        }
+
+        assertEquals(4, queue.size());
+        assertEquals(6, queue.getEnqueued());
+        assertEquals(2, queue.getDropped());
+        assertEquals(4, queue.getHighWaterMark());
+
+        long[] residenceTime = new long[1];
+
+        for (int i = 2; i < buffers.length; i++)
+        {
+            assertSame(buffers[i], queue.poll(residenceTime));
+            assertTrue(residenceTime[0] >= 0);
+        }
+        assertNull(queue.poll(null));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentConsumers()
+        throws Exception
+    {
+        ReceiveQueue queue = new ReceiveQueue(16);
+        int count = 100_000;
+        Set<Buffer> received = ConcurrentHashMap.newKeySet();
+        Set<Buffer> dropped = new HashSet<>();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        CountDownLatch done = new CountDownLatch(1);
+        Callable<Void> consumer
+            = () ->
+            {
+                while (done.getCount() > 0 || !queue.isEmpty())
+                {
+                    Buffer buffer = queue.poll(null);
+
+                    if (buffer != null)
+                        assertTrue(received.add(buffer));
+                }
+                return null;
+            };
+        Future<Void> a = executor.submit(consumer);
+        Future<Void> b = executor.submit(consumer);
+
+        for (int i = 0; i < count; i++)
+        {
+            Buffer buffer = queue.offer(new Buffer(new byte[1], 0, 1));
+
+            if (buffer != null)
+                assertTrue(dropped.add(buffer));
+        }
+        done.countDown();
+        a.get(10, TimeUnit.SECONDS);
+        b.get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        // Every buffer is either received or dropped, exactly once.
+        assertEquals(count, received.size() + dropped.size());
+        assertEquals(dropped.size(), queue.getDropped());
+        for (Buffer buffer : dropped)
+            assertFalse(received.contains(buffer));
+    }
+}
@@ -20,6 +20,9 @@ package org.ice4j.ice.harvest;
 import static org.junit.jupiter.api.Assertions.*;
 
 import org.ice4j.*;
+import org.ice4j.attribute.*;
+import org.ice4j.message.*;
+import org.ice4j.stack.*;
 
 import java.net.*;
 import org.junit.jupiter.api.*;
@@ -93,4 +96,36 @@ public class SinglePortUdpHarvesterTest
         // Tear down
         harvester.close();
     }
+
+    /**
+     * Verifies that the checks which run on datagrams from unknown sources
+     * before they are decoded find the ufrag of a Binding Request, and reject
+     * other datagrams.
+     */
+    @Test
+    public void testPreAdmissionChecks() throws Exception
+    {
+        Request request = MessageFactory.createBindingRequest(1234);
+        request.setTransactionID(TransactionID.createNewTransactionID().getBytes());
+        request.putAttribute(AttributeFactory.createUsernameAttribute("local:remote"));
+        byte[] withUsername = request.encode(null);
+
+        int username = AbstractUdpListener.findUsername(withUsername, 0, withUsername.length);
+        assertTrue(AbstractUdpListener.isBindingRequest(withUsername, 0, withUsername.length));
+        assertEquals("local:remote", new String(withUsername, username, 12));
+        assertEquals(12, withUsername[username - 1]);
+
+        // A request without USERNAME passes the header check only.
+        request.removeAttribute(Attribute.USERNAME);
+        byte[] withoutUsername = request.encode(null);
+        assertTrue(AbstractUdpListener.isBindingRequest(withoutUsername, 0, withoutUsername.length));
+        assertEquals(-1, AbstractUdpListener.findUsername(withoutUsername, 0, withoutUsername.length));
+
+        // Truncated or garbage datagrams and responses fail the header check.
+        assertFalse(AbstractUdpListener.isBindingRequest(withUsername, 0, withUsername.length - 4));
+        assertFalse(AbstractUdpListener.isBindingRequest(new byte[100], 0, 100));
+        withUsername[1] = 0x01;
+        withUsername[0] = 0x01;
+        assertFalse(AbstractUdpListener.isBindingRequest(withUsername, 0, withUsername.length));
+    }
 }
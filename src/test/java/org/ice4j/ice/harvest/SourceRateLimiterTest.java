@@ -0,0 +1,106 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice.harvest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.*;
+import java.util.concurrent.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests {@link SourceRateLimiter}.
+ */
+public class SourceRateLimiterTest
+{
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testBurstAndRefill()
+        throws Exception
+    {
+        SourceRateLimiter limiter = new SourceRateLimiter(10, 5, 32, 64);
+        InetAddress source = InetAddress.getByName("192.0.2.1");
+
+        for (int i = 0; i < 5; i++)
+            assertTrue(limiter.tryAcquire(source, 0));
+        assertFalse(limiter.tryAcquire(source, 0));
+
+        // 10 per second: one token every 100ms.
+        assertFalse(limiter.tryAcquire(source, SECOND / 20));
+        assertTrue(limiter.tryAcquire(source, SECOND / 10));
+        assertFalse(limiter.tryAcquire(source, SECOND / 10));
+
+        // Refilling stops at the burst.
+        for (int i = 0; i < 5; i++)
+            assertTrue(limiter.tryAcquire(source, 10 * SECOND));
+        assertFalse(limiter.tryAcquire(source, 10 * SECOND));
+    }
+
+    @Test
+    public void testCollidingPrefixes()
+        throws Exception
+    {
+        // A single slot, so that all the prefixes collide.
+        SourceRateLimiter limiter
+            = new SourceRateLimiter(10, 5, 32, 64, 1, 0);
+        InetAddress source = InetAddress.getByName("192.0.2.1");
+        InetAddress spoofed = InetAddress.getByName("198.51.100.1");
+
+        for (int i = 0; i < 5; i++)
+            assertTrue(limiter.tryAcquire(source, 0));
+        assertFalse(limiter.tryAcquire(source, 0));
+
+        // Taking the slot over does not reset its bucket.
+        assertFalse(limiter.tryAcquire(spoofed, 0));
+        assertFalse(limiter.tryAcquire(source, 0));
+        assertFalse(limiter.tryAcquire(spoofed, 0));
+
+        // The colliding sources share the refill of the bucket.
+        assertTrue(limiter.tryAcquire(spoofed, SECOND / 10));
+        assertFalse(limiter.tryAcquire(source, SECOND / 10));
+        assertTrue(limiter.tryAcquire(source, SECOND / 5));
+        assertFalse(limiter.tryAcquire(spoofed, SECOND / 5));
+    }
+
+    @Test
+    public void testPrefixes()
+        throws Exception
+    {
+        SourceRateLimiter limiter = new SourceRateLimiter(1, 1, 24, 64);
+
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("192.0.2.1"), 0));
+        assertFalse(limiter.tryAcquire(InetAddress.getByName("192.0.2.200"), 0));
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("192.0.3.1"), 0));
+
+        assertTrue(
+            limiter.tryAcquire(InetAddress.getByName("2001:db8::1"), 0));
+        assertFalse(
+            limiter.tryAcquire(InetAddress.getByName("2001:db8::ffff:1"), 0));
+        assertTrue(
+            limiter.tryAcquire(InetAddress.getByName("2001:db8:0:1::1"), 0));
+
+        assertEquals(
+            SourceRateLimiter.getPrefix(new byte[] { 10, 1, 2, 3 }, 16),
+            SourceRateLimiter.getPrefix(new byte[] { 10, 1, 9, 9 }, 16));
+        assertNotEquals(
+            SourceRateLimiter.getPrefix(new byte[] { 10, 1, 2, 3 }, 17),
+            SourceRateLimiter.getPrefix(new byte[] { 10, 1, (byte) 0x82, 3 }, 17));
+    }
+}
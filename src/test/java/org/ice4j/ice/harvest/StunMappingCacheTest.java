@@ -0,0 +1,109 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice.harvest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.*;
+
+import org.ice4j.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the lookups of {@link StunMappingCache}.
+ */
+public class StunMappingCacheTest
+{
+    private static final TransportAddress SERVER
+        = new TransportAddress("192.0.2.1", 3478, Transport.UDP);
+
+    private static final TransportAddress OTHER_SERVER
+        = new TransportAddress("192.0.2.2", 3478, Transport.UDP);
+
+    @Test
+    public void testPortPreservingNat()
+    {
+        StunMappingCache cache
+            = new StunMappingCache(Duration.ofMinutes(1), true);
+
+        cache.put(local(10000), SERVER, mapped(10000));
+
+        assertEquals(mapped(10000), cache.get(local(10000), SERVER));
+        assertEquals(mapped(10002), cache.get(local(10002), SERVER));
+        assertNull(cache.get(local(10000), OTHER_SERVER));
+        assertNull(
+            cache.get(
+                new TransportAddress("10.0.0.2", 10000, Transport.UDP),
+                SERVER));
+
+        StunMappingCache exactCache
+            = new StunMappingCache(Duration.ofMinutes(1), false);
+
+        exactCache.put(local(10000), SERVER, mapped(10000));
+
+        assertEquals(mapped(10000), exactCache.get(local(10000), SERVER));
+        assertNull(exactCache.get(local(10002), SERVER));
+    }
+
+    @Test
+    public void testPortChangingNat()
+    {
+        StunMappingCache cache
+            = new StunMappingCache(Duration.ofMinutes(1), true);
+
+        cache.put(local(10000), SERVER, mapped(61000));
+
+        assertEquals(mapped(61000), cache.get(local(10000), SERVER));
+        // The mapping of another port cannot be predicted.
+        assertNull(cache.get(local(10002), SERVER));
+    }
+
+    @Test
+    public void testExpiry()
+        throws Exception
+    {
+        StunMappingCache cache
+            = new StunMappingCache(Duration.ofMillis(50), true);
+
+        cache.put(local(10000), SERVER, mapped(10000));
+        Thread.sleep(100);
+
+        assertNull(cache.get(local(10000), SERVER));
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        StunMappingCache cache = new StunMappingCache(Duration.ZERO, true);
+
+        cache.put(local(10000), SERVER, mapped(10000));
+
+        assertFalse(cache.isEnabled());
+        assertNull(cache.get(local(10000), SERVER));
+    }
+
+    private static TransportAddress local(int port)
+    {
+        return new TransportAddress("10.0.0.1", port, Transport.UDP);
+    }
+
+    private static TransportAddress mapped(int port)
+    {
+        return new TransportAddress("198.51.100.1", port, Transport.UDP);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice.harvest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.*;
+import java.util.*;
+
+import org.ice4j.socket.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests {@link UdpPortAllocator}.
+ */
+public class UdpPortAllocatorTest
+{
+    private static final InetAddress LOCALHOST
+        = InetAddress.getLoopbackAddress();
+
+    private final List<DatagramSocket> sockets = new ArrayList<>();
+
+    private int minPort;
+
+    @BeforeEach
+    public void setUp()
+    {
+        minPort = 30000 + new Random().nextInt(20000);
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        for (DatagramSocket socket : sockets)
+            socket.close();
+    }
+
+    @Test
+    public void testAllocate()
+        throws Exception
+    {
+        UdpPortAllocator allocator = new UdpPortAllocator(0);
+        int maxPort = minPort + 2;
+        Set<Integer> ports = new HashSet<>();
+
+        for (int i = 0; i < 3; i++)
+            ports.add(allocate(allocator, minPort, maxPort).getLocalPort());
+
+        assertEquals(3, ports.size());
+        for (int port : ports)
+            assertTrue(port >= minPort && port <= maxPort);
+        assertThrows(
+            BindException.class,
+            () -> allocator.allocate(LOCALHOST, minPort, minPort, maxPort, 10));
+
+        // A closed socket releases its port.
+        DatagramSocket socket = sockets.remove(1);
+        int port = socket.getLocalPort();
+
+        socket.close();
+        assertEquals(port, allocate(allocator, minPort, maxPort).getLocalPort());
+    }
+
+    @Test
+    public void testForeignPort()
+        throws Exception
+    {
+        UdpPortAllocator allocator = new UdpPortAllocator(0);
+        DatagramSocket foreign = new DatagramSocket(minPort, LOCALHOST);
+
+        sockets.add(foreign);
+
+        int port = allocate(allocator, minPort, minPort + 10).getLocalPort();
+
+        assertNotEquals(minPort, port);
+    }
+
+    @Test
+    public void testWarmSockets()
+        throws Exception
+    {
+        UdpPortAllocator allocator = new UdpPortAllocator(2);
+        int maxPort = minPort + 10;
+
+        try
+        {
+            int port = allocate(allocator, minPort, maxPort).getLocalPort();
+
+            waitForWarmSockets(allocator, 2);
+
+            MultiplexingDatagramSocket socket
+                = allocate(allocator, minPort, maxPort);
+
+            assertNotEquals(port, socket.getLocalPort());
+            assertTrue(socket.getLocalPort() <= maxPort);
+            waitForWarmSockets(allocator, 2);
+        }
+        finally
+        {
+            allocator.closeWarmSockets();
+        }
+        assertEquals(0, allocator.getWarmSocketCount(LOCALHOST));
+    }
+
+    private MultiplexingDatagramSocket allocate(
+            UdpPortAllocator allocator,
+            int minPort,
+            int maxPort)
+        throws BindException
+    {
+        MultiplexingDatagramSocket socket
+            = allocator.allocate(LOCALHOST, minPort, minPort, maxPort, 10);
+
+        sockets.add(socket);
+        return socket;
+    }
+
+    private static void waitForWarmSockets(
+            UdpPortAllocator allocator,
+            int count)
+        throws InterruptedException
+    {
+        for (int i = 0;
+                i < 100 && allocator.getWarmSocketCount(LOCALHOST) < count;
+                i++)
+        {
+            Thread.sleep(50);
+        }
+        assertEquals(count, allocator.getWarmSocketCount(LOCALHOST));
+    }
+}
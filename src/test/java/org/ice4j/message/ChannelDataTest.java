@@ -0,0 +1,96 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.message;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+
+import org.ice4j.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the in-place encoding and decoding of {@link ChannelData}.
+ */
+public class ChannelDataTest
+{
+    @Test
+    public void testEncodeTo()
+        throws StunException
+    {
+        byte[] data = { 9, 1, 2, 3, 4, 5, 9 };
+        byte[] buf = new byte[16];
+
+        Arrays.fill(buf, (byte) -1);
+
+        int length
+            = ChannelData.encodeTo((char) 0x4001, data, 1, 5, buf, 2, true);
+
+        assertEquals(12, length);
+        assertEquals(0x4001, ChannelData.getChannelNumber(buf, 2));
+        assertEquals(5, ChannelData.getDataLength(buf, 2, length));
+        assertArrayEquals(
+            new byte[] { 0x40, 1, 0, 5, 1, 2, 3, 4, 5, 0, 0, 0 },
+            Arrays.copyOfRange(buf, 2, 2 + length));
+        assertEquals(-1, buf[14]);
+
+        ChannelData channelData = new ChannelData();
+
+        channelData.setChannelNumber((char) 0x4001);
+        channelData.setData(new byte[] { 1, 2, 3, 4, 5 });
+        assertArrayEquals(
+            Arrays.copyOfRange(buf, 2, 2 + length),
+            channelData.encode(true));
+    }
+
+    @Test
+    public void testEncodeToInvalid()
+    {
+        byte[] data = new byte[8];
+
+        assertThrows(
+            StunException.class,
+            () -> ChannelData.encodeTo(
+                (char) 0x3FFF, data, 0, 8, new byte[16], 0, false));
+        assertThrows(
+            IndexOutOfBoundsException.class,
+            () -> ChannelData.encodeTo(
+                (char) 0x4000, data, 0, 8, new byte[11], 0, false));
+    }
+
+    @Test
+    public void testGetDataLength()
+        throws StunException
+    {
+        byte[] buf = { 0x40, 0, 0, 4, 1, 2, 3 };
+
+        // Truncated, too short and invalid channel number.
+        assertEquals(-1, ChannelData.getDataLength(buf, 0, buf.length));
+        assertEquals(-1, ChannelData.getDataLength(buf, 0, 3));
+        buf[0] = 0x30;
+        buf[3] = 3;
+        assertEquals(-1, ChannelData.getDataLength(buf, 0, buf.length));
+        buf[0] = (byte) 0x7F;
+        assertEquals(3, ChannelData.getDataLength(buf, 0, buf.length));
+
+        ChannelData channelData = ChannelData.decode(buf, (char) 0);
+
+        assertEquals(0x7F00, channelData.getChannelNumber());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, channelData.getData());
+    }
+}
@@ -19,6 +19,8 @@ package org.ice4j.message;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.util.*;
+
 import org.ice4j.*;
 import org.ice4j.attribute.*;
 import org.ice4j.stack.*;
@@ -279,4 +281,186 @@ public class MessageTest
         assertEquals(expectedReturn, actualReturn,
             "Attribute count did not change after removing an attribute");
     }
+
+    /**
+     * Tests that the attributes of a decoded message are only decoded when
+     * they are accessed and that their presence is known before.
+     *
+     * @throws Exception if we fail
+     */
+    @Test
+    public void testLazyDecode()
+        throws Exception
+    {
+        byte[] binMessage = msgFixture.bindingResponse.clone();
+        Message message = Message.decode(binMessage, 0, binMessage.length);
+
+        // Changes of the array must not affect the decoded message.
+        Arrays.fill(binMessage, Message.HEADER_LENGTH, binMessage.length,
+            (byte) 0);
+
+        long presence = message.getAttributePresence();
+
+        assertNotEquals(0, presence
+            & AttributeDecoder.getPresenceMask(Attribute.MAPPED_ADDRESS));
+        assertEquals(0, presence
+            & AttributeDecoder.getPresenceMask(Attribute.XOR_MAPPED_ADDRESS));
+        assertTrue(message.containsAttribute(Attribute.SOURCE_ADDRESS));
+        assertFalse(message.containsAttribute(Attribute.USERNAME));
+        assertEquals(3, message.getAttributeTypes().size());
+
+        assertEquals(mappedAddress,
+            message.getAttribute(Attribute.MAPPED_ADDRESS));
+        for (Attribute attribute : message.getAttributes())
+            assertFalse(attribute instanceof LazyAttribute);
+        assertEquals(bindingResponse, message);
+
+        message.removeAttribute(Attribute.CHANGED_ADDRESS);
+        assertFalse(message.containsAttribute(Attribute.CHANGED_ADDRESS));
+    }
+
+    /**
+     * Tests that encoding a message into a reused array at an offset produces
+     * the same bytes as encoding it into a new array.
+     *
+     * @throws Exception if we fail
+     */
+    @Test
+    public void testEncodeTo()
+        throws Exception
+    {
+        bindingRequest.putAttribute(
+            AttributeFactory.createUsernameAttribute("abc:de"));
+        bindingRequest.putAttribute(
+            AttributeFactory.createFingerprintAttribute());
+
+        byte[] expected = bindingRequest.encode(stunStack);
+        byte[] buf = new byte[expected.length + 10];
+
+        Arrays.fill(buf, (byte) 0xFF);
+
+        int length = bindingRequest.encodeTo(stunStack, buf, 3);
+
+        assertEquals(expected.length, length);
+        assertArrayEquals(expected,
+            Arrays.copyOfRange(buf, 3, 3 + length));
+
+        java.nio.ByteBuffer byteBuffer = java.nio.ByteBuffer.allocate(length);
+
+        bindingRequest.encodeTo(stunStack, byteBuffer);
+        assertArrayEquals(expected, byteBuffer.array());
+
+        assertThrows(IndexOutOfBoundsException.class,
+            () -> bindingRequest.encodeTo(stunStack, new byte[length - 1], 0));
+    }
+
+    /**
+     * Tests that a FINGERPRINT is validated while a message is decoded.
+     *
+     * @throws Exception if we fail
+     */
+    @Test
+    public void testDecodeValidatesFingerprint()
+        throws Exception
+    {
+        bindingRequest.putAttribute(
+            AttributeFactory.createFingerprintAttribute());
+
+        byte[] binMessage = bindingRequest.encode(stunStack);
+
+        assertNotNull(Message.decode(binMessage, 0, binMessage.length)
+            .getAttribute(Attribute.FINGERPRINT));
+
+        // Corrupt the CHANGE-REQUEST attribute.
+        binMessage[Message.HEADER_LENGTH + Attribute.HEADER_LENGTH + 3] ^= 1;
+
+        assertThrows(StunException.class,
+            () -> Message.decode(binMessage, 0, binMessage.length));
+    }
+
+    /**
+     * Tests that a message with an attribute which is too short for its type
+     * is rejected when it is decoded, even though the value of the attribute
+     * is only decoded when it is accessed.
+     *
+     * @throws Exception if we fail
+     */
+    @Test
+    public void testDecodeRejectsShortAttribute()
+        throws Exception
+    {
+        // A Binding Request with a 4-byte ICE-CONTROLLING.
+        byte[] binMessage
+            = createMessage(
+                    Message.BINDING_REQUEST,
+                    Attribute.ICE_CONTROLLING,
+                    new byte[] { 1, 2, 3, 4 });
+
+        assertThrows(StunException.class,
+            () -> Message.decode(binMessage, 0, binMessage.length));
+    }
+
+    /**
+     * Tests that an attribute which fails to decode is reported as absent by
+     * {@link Message#containsAttribute(char)} just like
+     * {@link Message#getAttribute(char)} does not return it.
+     *
+     * @throws Exception if we fail
+     */
+    @Test
+    public void testInvalidAttributeIsAbsent()
+        throws Exception
+    {
+        // A MAPPED-ADDRESS with an IPv6 family but only room for an IPv4
+        // address.
+        byte[] binMessage
+            = createMessage(
+                    Message.BINDING_SUCCESS_RESPONSE,
+                    Attribute.MAPPED_ADDRESS,
+                    new byte[] { 0, 2, 0x13, (byte) 0x88, 10, 0, 0, 1 });
+        Message message = Message.decode(binMessage, 0, binMessage.length);
+
+        assertFalse(message.containsAttribute(Attribute.MAPPED_ADDRESS));
+        assertNull(message.getAttribute(Attribute.MAPPED_ADDRESS));
+        assertEquals(0, message.getAttributeCount());
+    }
+
+    /**
+     * Creates the binary representation of a message with a single
+     * attribute.
+     *
+     * @param messageType the type of the message.
+     * @param attributeType the type of the attribute.
+     * @param value the value of the attribute. Its length must be a multiple
+     * of four.
+     *
+     * @return the binary representation of the message.
+     */
+    private static byte[] createMessage(
+            char messageType,
+            char attributeType,
+            byte[] value)
+    {
+        int length = Attribute.HEADER_LENGTH + value.length;
+        byte[] binMessage = new byte[Message.HEADER_LENGTH + length];
+        int offset = 0;
+
+        binMessage[offset++] = (byte) (messageType >> 8);
+        binMessage[offset++] = (byte) messageType;
+        binMessage[offset++] = (byte) (length >> 8);
+        binMessage[offset++] = (byte) length;
+        System.arraycopy(Message.MAGIC_COOKIE, 0, binMessage, offset, 4);
+        offset += 4;
+        System.arraycopy(
+            MsgFixture.TRANSACTION_ID, 0,
+            binMessage, offset,
+            Message.TRANSACTION_ID_LENGTH);
+        offset += Message.TRANSACTION_ID_LENGTH;
+        binMessage[offset++] = (byte) (attributeType >> 8);
+        binMessage[offset++] = (byte) attributeType;
+        binMessage[offset++] = (byte) (value.length >> 8);
+        binMessage[offset++] = (byte) value.length;
+        System.arraycopy(value, 0, binMessage, offset, value.length);
+        return binMessage;
+    }
 }
@@ -0,0 +1,131 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.metrics;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests {@link Metrics} and the {@link Counter}s and {@link Histogram}s it
+ * maintains, and {@link LatencySummary}.
+ */
+public class MetricsTest
+{
+    @Test
+    public void testCounters()
+    {
+        Metrics parent = new Metrics(null);
+        Metrics a = new Metrics(parent);
+        Metrics b = new Metrics(parent);
+
+        assertSame(a.counter("x"), a.counter("x"));
+
+        a.counter("x").increment();
+        a.counter("x").add(2);
+        b.counter("x").increment();
+        b.counter("y").increment();
+
+        assertEquals(3, a.getSnapshot().getCounter("x"));
+        assertEquals(0, a.getSnapshot().getCounter("y"));
+        assertEquals(1, b.getSnapshot().getCounter("x"));
+        assertEquals(4, parent.getSnapshot().getCounter("x"));
+        assertEquals(1, parent.getSnapshot().getCounter("y"));
+    }
+
+    @Test
+    public void testHistogram()
+    {
+        Metrics parent = new Metrics(null);
+        Histogram histogram = new Metrics(parent).histogram("h");
+
+        for (long i = 1; i <= 1000; i++)
+            histogram.record(i);
+
+        Histogram.Snapshot snapshot = histogram.getSnapshot();
+
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500500, snapshot.getSum());
+        assertEquals(1, snapshot.getMin());
+        assertEquals(1000, snapshot.getMax());
+        assertEquals(500.5, snapshot.getMean(), 0.001);
+        assertPercentile(500, snapshot.getValueAtPercentile(50));
+        assertPercentile(990, snapshot.getValueAtPercentile(99));
+        assertEquals(1000, snapshot.getValueAtPercentile(100));
+        assertEquals(
+            1000, parent.getSnapshot().getHistogram("h").getCount());
+
+        // Small values are recorded exactly.
+        Histogram small = new Metrics(null).histogram("small");
+
+        small.record(3);
+        small.record(7);
+        assertEquals(3, small.getSnapshot().getValueAtPercentile(50));
+        assertEquals(7, small.getSnapshot().getValueAtPercentile(99));
+    }
+
+    @Test
+    public void testJson()
+    {
+        Metrics metrics = new Metrics(null);
+
+        metrics.counter("b").add(5);
+        metrics.counter("a").increment();
+        metrics.histogram("h").record(10);
+
+        assertEquals(
+            "{\"counters\":{\"a\":1,\"b\":5},\"histograms\":{\"h\":{"
+                + "\"count\":1,\"min\":10,\"max\":10,\"mean\":10.0,"
+                + "\"p50\":10,\"p90\":10,\"p99\":10,\"p999\":10}}}",
+            metrics.getSnapshot().toJson());
+    }
+
+    @Test
+    public void testLatencySummary()
+    {
+        LatencySummary summary = new LatencySummary();
+
+        assertEquals(0, summary.getCount());
+        assertEquals(0, summary.getMean(), 0);
+
+        summary.record(30);
+        summary.record(10);
+        summary.record(-5);
+        summary.record(21);
+
+        assertEquals(4, summary.getCount());
+        assertEquals(21, summary.getLast());
+        assertEquals(0, summary.getMin());
+        assertEquals(30, summary.getMax());
+        assertEquals(15.25, summary.getMean(), 0.001);
+        assertEquals(
+            "{\"count\":4,\"last\":21,\"min\":0,\"max\":30,\"mean\":15.3}",
+            summary.toJsonObject().toJSONString());
+    }
+
+    /**
+     * Asserts that a value read from a {@link Histogram} is within the
+     * precision of the histogram of the expected value.
+     */
+    private static void assertPercentile(long expected, long actual)
+    {
+        assertTrue(
+            actual >= expected && actual <= expected + expected / 32,
+            "expected about " + expected + " but was " + actual);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.security;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the lookup of {@link CredentialsAuthority}s by
+ * {@link CredentialsManager}.
+ */
+public class CredentialsManagerTest
+{
+    @Test
+    public void testIndexedAuthorities()
+    {
+        CredentialsManager manager = new CredentialsManager();
+        UfragAuthority a = new UfragAuthority("aaaa", "bbbb");
+        UfragAuthority b = new UfragAuthority("cccc", "dddd");
+
+        manager.registerAuthority(a);
+        manager.registerAuthority(b);
+
+        assertTrue(manager.checkLocalUserName("aaaa:bbbb"));
+        assertTrue(manager.checkLocalUserName("cccc"));
+        assertFalse(manager.checkLocalUserName("eeee:bbbb"));
+        assertArrayEquals(
+            "aaaa-pwd".getBytes(), manager.getLocalKey("aaaa:bbbb"));
+        assertArrayEquals(
+            "dddd-pwd".getBytes(), manager.getRemoteKey("dddd:cccc", null));
+        // A remote ufrag alone is looked up in all the authorities.
+        assertArrayEquals(
+            "bbbb-pwd".getBytes(), manager.getRemoteKey("bbbb", null));
+
+        manager.unregisterAuthority(a);
+
+        assertFalse(manager.checkLocalUserName("aaaa:bbbb"));
+        assertNull(manager.getLocalKey("aaaa:bbbb"));
+        assertNull(manager.getRemoteKey("bbbb", null));
+        assertTrue(manager.checkLocalUserName("cccc:dddd"));
+    }
+
+    @Test
+    public void testLongTermCredentials()
+    {
+        CredentialsManager manager = new CredentialsManager();
+        LongTermCredentialSession session
+            = new LongTermCredentialSession(
+                    new LongTermCredential("user", "pass"),
+                    "realm".getBytes());
+
+        manager.registerAuthority(session);
+
+        byte[] key = manager.getLocalKey("user");
+
+        // MD5("user:realm:pass")
+        assertArrayEquals(
+            new byte[] {
+                (byte) 0x84, (byte) 0x93, (byte) 0xfb, (byte) 0xc5,
+                (byte) 0x3b, (byte) 0xa5, (byte) 0x82, (byte) 0xfb,
+                (byte) 0x4c, (byte) 0x04, (byte) 0x4c, (byte) 0x45,
+                (byte) 0x6b, (byte) 0xdc, (byte) 0x40, (byte) 0xeb
+            },
+            key);
+        key[0] = 0;
+        assertArrayEquals(manager.getLocalKey("user"), session.getLocalKey("user"));
+        assertEquals((byte) 0x84, manager.getLocalKey("user")[0]);
+        assertNull(manager.getLocalKey("other"));
+    }
+
+    /**
+     * An ICE-like authority which knows about one local and one remote ufrag.
+     */
+    private static class UfragAuthority
+        implements CredentialsAuthority
+    {
+        private final String localUfrag;
+
+        private final String remoteUfrag;
+
+        UfragAuthority(String localUfrag, String remoteUfrag)
+        {
+            this.localUfrag = localUfrag;
+            this.remoteUfrag = remoteUfrag;
+        }
+
+        @Override
+        public byte[] getLocalKey(String username)
+        {
+            return
+                checkLocalUserName(username)
+                    ? (localUfrag + "-pwd").getBytes()
+                    : null;
+        }
+
+        @Override
+        public byte[] getRemoteKey(String username, String media)
+        {
+            return
+                username.equals(remoteUfrag)
+                        || username.equals(remoteUfrag + ":" + localUfrag)
+                    ? (remoteUfrag + "-pwd").getBytes()
+                    : null;
+        }
+
+        @Override
+        public boolean checkLocalUserName(String username)
+        {
+            return username.split(":")[0].equals(localUfrag);
+        }
+
+        @Override
+        public String getLocalUfrag()
+        {
+            return localUfrag;
+        }
+    }
+}
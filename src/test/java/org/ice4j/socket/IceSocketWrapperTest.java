@@ -0,0 +1,287 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the <tt>ByteBuffer</tt> API of {@link IceSocketWrapper}.
+ */
+public class IceSocketWrapperTest
+{
+    private static final byte[] PAYLOAD
+        = "ice4j".getBytes(StandardCharsets.US_ASCII);
+
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    @Test
+    public void testUdpChannel()
+        throws Exception
+    {
+        try (DatagramChannel a = DatagramChannel.open();
+             DatagramChannel b = DatagramChannel.open())
+        {
+            a.bind(new InetSocketAddress(LOOPBACK, 0));
+            b.bind(new InetSocketAddress(LOOPBACK, 0));
+
+            IceSocketWrapper wrapperA = new IceUdpSocketWrapper(a.socket());
+            IceSocketWrapper wrapperB = new IceUdpSocketWrapper(b.socket());
+
+            assertRoundTrip(
+                wrapperA, wrapperB, b.getLocalAddress(), a.getLocalAddress());
+        }
+    }
+
+    @Test
+    public void testUdpConnectedChannel()
+        throws Exception
+    {
+        // A connected socket may be sent to without a target.
+        try (DatagramChannel a = DatagramChannel.open();
+             DatagramChannel b = DatagramChannel.open())
+        {
+            a.bind(new InetSocketAddress(LOOPBACK, 0));
+            b.bind(new InetSocketAddress(LOOPBACK, 0));
+            a.connect(b.getLocalAddress());
+
+            IceSocketWrapper wrapperA = new IceUdpSocketWrapper(a.socket());
+            IceSocketWrapper wrapperB = new IceUdpSocketWrapper(b.socket());
+
+            assertRoundTrip(wrapperA, wrapperB, null, a.getLocalAddress());
+        }
+    }
+
+    @Test
+    public void testUdpDelegating()
+        throws Exception
+    {
+        // The channel of a delegating socket is not read directly, as that
+        // would bypass the delegating socket.
+        try (DatagramChannel channel = DatagramChannel.open();
+             DatagramSocket b = new DatagramSocket(0, LOOPBACK))
+        {
+            channel.bind(new InetSocketAddress(LOOPBACK, 0));
+
+            DatagramSocket a = new MultiplexingDatagramSocket(channel.socket());
+
+            IceSocketWrapper wrapperA = new IceUdpSocketWrapper(a);
+            IceSocketWrapper wrapperB = new IceUdpSocketWrapper(b);
+
+            assertRoundTrip(
+                wrapperA,
+                wrapperB,
+                b.getLocalSocketAddress(),
+                a.getLocalSocketAddress());
+            assertRoundTrip(
+                wrapperB,
+                wrapperA,
+                a.getLocalSocketAddress(),
+                b.getLocalSocketAddress());
+        }
+    }
+
+    @Test
+    public void testTcpChannel()
+        throws Exception
+    {
+        try (ServerSocketChannel server = ServerSocketChannel.open())
+        {
+            server.bind(new InetSocketAddress(LOOPBACK, 0));
+            try (SocketChannel a = SocketChannel.open(server.getLocalAddress());
+                 SocketChannel b = server.accept())
+            {
+                IceSocketWrapper wrapperA = new IceTcpSocketWrapper(a.socket());
+                IceSocketWrapper wrapperB = new IceTcpSocketWrapper(b.socket());
+
+                assertRoundTrip(
+                    wrapperA, wrapperB, null, a.getLocalAddress());
+
+                // A frame too long for the buffer is truncated and the next
+                // one is still received whole.
+                wrapperA.send(ByteBuffer.wrap(PAYLOAD), null);
+                wrapperA.send(ByteBuffer.wrap(PAYLOAD), null);
+
+                ByteBuffer small = ByteBuffer.allocateDirect(2);
+
+                wrapperB.receive(small);
+                assertEquals(2, small.position());
+                assertRoundTrip(wrapperA, wrapperB, null, null, false);
+            }
+        }
+    }
+
+    @Test
+    public void testTcpChannelConcurrentPacketAndBufferApis()
+        throws Exception
+    {
+        final int frames = 500;
+
+        try (ServerSocketChannel server = ServerSocketChannel.open())
+        {
+            server.bind(new InetSocketAddress(LOOPBACK, 0));
+            try (SocketChannel a = SocketChannel.open(server.getLocalAddress());
+                 SocketChannel b = server.accept())
+            {
+                IceSocketWrapper wrapperA = new IceTcpSocketWrapper(a.socket());
+                IceSocketWrapper wrapperB = new IceTcpSocketWrapper(b.socket());
+                byte[] packetFrame = new byte[1000];
+                byte[] bufferFrame = new byte[700];
+
+                Arrays.fill(packetFrame, (byte) 1);
+                Arrays.fill(bufferFrame, (byte) 2);
+
+                // Each receiver claims a frame before reading it, so that
+                // neither blocks once all the frames have been received.
+                AtomicInteger claimed = new AtomicInteger();
+                ExecutorService executor = Executors.newFixedThreadPool(4);
+
+                try
+                {
+                    // The frames sent and received through the packet API and
+                    // through the ByteBuffer API must not be interleaved.
+                    List<Future<?>> futures = new ArrayList<>();
+
+                    futures.add(executor.submit(() ->
+                    {
+                        for (int i = 0; i < frames; i++)
+                        {
+                            wrapperA.send(
+                                new DatagramPacket(
+                                    packetFrame, packetFrame.length));
+                        }
+                        return null;
+                    }));
+                    futures.add(executor.submit(() ->
+                    {
+                        for (int i = 0; i < frames; i++)
+                            wrapperA.send(ByteBuffer.wrap(bufferFrame), null);
+                        return null;
+                    }));
+                    futures.add(executor.submit(() ->
+                    {
+                        DatagramPacket p
+                            = new DatagramPacket(new byte[1500], 1500);
+
+                        while (claimed.incrementAndGet() <= 2 * frames)
+                        {
+                            p.setLength(1500);
+                            wrapperB.receive(p);
+                            assertFrame(
+                                packetFrame,
+                                bufferFrame,
+                                Arrays.copyOfRange(
+                                    p.getData(),
+                                    p.getOffset(),
+                                    p.getOffset() + p.getLength()));
+                        }
+                        return null;
+                    }));
+                    futures.add(executor.submit(() ->
+                    {
+                        ByteBuffer dst = ByteBuffer.allocate(1500);
+
+                        while (claimed.incrementAndGet() <= 2 * frames)
+                        {
+                            dst.clear();
+                            wrapperB.receive(dst);
+                            assertFrame(
+                                packetFrame,
+                                bufferFrame,
+                                Arrays.copyOf(dst.array(), dst.position()));
+                        }
+                        return null;
+                    }));
+
+                    for (Future<?> future : futures)
+                        future.get(10, TimeUnit.SECONDS);
+                }
+                finally
+                {
+                    executor.shutdownNow();
+                }
+            }
+        }
+    }
+
+    private static void assertFrame(
+            byte[] expected1,
+            byte[] expected2,
+            byte[] actual)
+    {
+        assertTrue(
+            Arrays.equals(expected1, actual)
+                || Arrays.equals(expected2, actual),
+            "Corrupt frame of " + actual.length + " bytes");
+    }
+
+    private static void assertRoundTrip(
+            IceSocketWrapper from,
+            IceSocketWrapper to,
+            SocketAddress target,
+            SocketAddress source)
+        throws Exception
+    {
+        assertRoundTrip(from, to, target, source, true);
+    }
+
+    private static void assertRoundTrip(
+            IceSocketWrapper from,
+            IceSocketWrapper to,
+            SocketAddress target,
+            SocketAddress source,
+            boolean send)
+        throws Exception
+    {
+        if (send)
+        {
+            // A direct buffer with some bytes before the payload.
+            ByteBuffer src = ByteBuffer.allocateDirect(16);
+
+            src.position(3);
+            src.put(PAYLOAD).flip().position(3);
+            assertEquals(PAYLOAD.length, from.send(src, target));
+            assertFalse(src.hasRemaining());
+        }
+
+        ByteBuffer dst = ByteBuffer.allocateDirect(32);
+
+        dst.position(1);
+
+        SocketAddress actualSource = to.receive(dst);
+
+        assertEquals(1 + PAYLOAD.length, dst.position());
+        if (source != null)
+            assertEquals(source, actualSource);
+
+        byte[] received = new byte[PAYLOAD.length];
+
+        dst.flip().position(1);
+        dst.get(received);
+        assertArrayEquals(PAYLOAD, received);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+
+import org.ice4j.message.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the sharing of a listening endpoint by {@link MuxServerSocketChannel}.
+ */
+public class MuxServerSocketChannelTest
+{
+    @Test
+    public void testDemux()
+        throws Exception
+    {
+        BlockingQueue<ByteBuffer> http = new LinkedBlockingQueue<>();
+        BlockingQueue<ByteBuffer> ice = new LinkedBlockingQueue<>();
+        MuxServerSocketChannel.Acceptor httpAcceptor
+            = (channel, preRead) -> http.add(preRead);
+        MuxServerSocketChannel.Acceptor iceAcceptor
+            = (channel, preRead) -> ice.add(preRead);
+        MuxServerSocketChannel mux
+            = MuxServerSocketChannelFactory.openAndBindMuxServerSocketChannel(
+                    null,
+                    new InetSocketAddress("127.0.0.1", 0),
+                    0,
+                    new HttpDemuxFilter(),
+                    httpAcceptor);
+        SocketAddress endpoint = mux.getLocalAddress();
+
+        assertSame(
+            mux,
+            MuxServerSocketChannelFactory.openAndBindMuxServerSocketChannel(
+                    null,
+                    endpoint,
+                    0,
+                    new IceTcpDemuxFilter(),
+                    iceAcceptor));
+
+        byte[] stun = new byte[2 + 20];
+
+        // RFC4571 framing length, Binding Request, empty body, magic cookie.
+        stun[1] = 20;
+        stun[3] = (byte) Message.BINDING_REQUEST;
+        System.arraycopy(Message.MAGIC_COOKIE, 0, stun, 6, 4);
+
+        try (Socket httpClient = new Socket();
+             Socket iceClient = new Socket())
+        {
+            httpClient.connect(endpoint);
+            iceClient.connect(endpoint);
+            iceClient.getOutputStream().write(stun);
+            httpClient.getOutputStream().write(
+                "GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+
+            ByteBuffer httpPreRead = http.poll(5, TimeUnit.SECONDS);
+            ByteBuffer icePreRead = ice.poll(5, TimeUnit.SECONDS);
+
+            assertNotNull(httpPreRead);
+            assertEquals('G', httpPreRead.get(0));
+            assertNotNull(icePreRead);
+            assertEquals(Message.BINDING_REQUEST, icePreRead.getShort(2));
+            assertTrue(http.isEmpty());
+            assertTrue(ice.isEmpty());
+        }
+
+        mux.removeAcceptor(httpAcceptor);
+        assertTrue(mux.isOpen());
+        mux.removeAcceptor(iceAcceptor);
+        assertFalse(mux.isOpen());
+    }
+
+    @Test
+    public void testAcceptorMayChangeBlockingMode()
+        throws Exception
+    {
+        BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+        MuxServerSocketChannel.Acceptor acceptor
+            = (channel, preRead) ->
+            {
+                // An acceptor which hands the connection over to blocking
+                // I/O, e.g. an HTTP server.
+                try
+                {
+                    channel.configureBlocking(true);
+                    results.add(preRead);
+                }
+                catch (Throwable t)
+                {
+                    results.add(t);
+                }
+            };
+        MuxServerSocketChannel mux
+            = MuxServerSocketChannelFactory.openAndBindMuxServerSocketChannel(
+                    null,
+                    new InetSocketAddress("127.0.0.1", 0),
+                    0,
+                    new HttpDemuxFilter(),
+                    acceptor);
+
+        try (Socket client = new Socket())
+        {
+            client.connect(mux.getLocalAddress());
+            client.getOutputStream().write(
+                "GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+
+            Object result = results.poll(5, TimeUnit.SECONDS);
+
+            assertTrue(
+                result instanceof ByteBuffer,
+                "Unexpected hand-over result: " + result);
+        }
+        finally
+        {
+            mux.removeAcceptor(acceptor);
+        }
+    }
+
+    @Test
+    public void testUnselectedConnectionIsClosed()
+        throws Exception
+    {
+        // The acceptor is called by the shared thread, so failing from it
+        // would not fail the test: record its calls instead.
+        BlockingQueue<SocketChannel> accepted = new LinkedBlockingQueue<>();
+        MuxServerSocketChannel.Acceptor acceptor
+            = (channel, preRead) -> accepted.add(channel);
+        MuxServerSocketChannel mux
+            = MuxServerSocketChannelFactory.openAndBindMuxServerSocketChannel(
+                    null,
+                    new InetSocketAddress("127.0.0.1", 0),
+                    0,
+                    new HttpDemuxFilter(),
+                    acceptor);
+
+        try (Socket client = new Socket())
+        {
+            client.connect(mux.getLocalAddress());
+            client.setSoTimeout(5000);
+            client.getOutputStream().write(
+                new byte[MuxServerSocketChannel.PEEK_LENGTH]);
+
+            // The connection is closed once PEEK_LENGTH bytes did not select
+            // any acceptor.
+            assertEquals(-1, client.getInputStream().read());
+            assertTrue(accepted.isEmpty(), "Unexpected connection");
+        }
+        finally
+        {
+            mux.removeAcceptor(acceptor);
+        }
+    }
+}
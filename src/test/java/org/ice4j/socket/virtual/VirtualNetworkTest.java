@@ -0,0 +1,282 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.socket.virtual;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.*;
+import java.time.*;
+
+import org.ice4j.ice.*;
+import org.ice4j.ice.harvest.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the delivery of datagrams over a {@link VirtualNetwork}.
+ */
+public class VirtualNetworkTest
+{
+    private VirtualNetwork network;
+
+    @AfterEach
+    public void tearDown()
+    {
+        if (network != null)
+            network.close();
+    }
+
+    @Test
+    public void testLatency()
+        throws Exception
+    {
+        VirtualClock clock = new VirtualClock();
+
+        network = new VirtualNetwork(clock);
+        network.setLatency(Duration.ofMillis(50));
+
+        DatagramSocket a = network.createHost(address("198.51.100.1"))
+            .createDatagramSocket(1000);
+        DatagramSocket b = network.createHost(address("198.51.100.2"))
+            .createDatagramSocket(2000);
+
+        send(a, b.getLocalSocketAddress(), "hello");
+        b.setSoTimeout(10);
+        assertNull(receive(b));
+
+        clock.advance(Duration.ofMillis(49));
+        assertNull(receive(b));
+
+        clock.advance(Duration.ofMillis(1));
+
+        DatagramPacket p = receive(b);
+
+        assertNotNull(p);
+        assertEquals(a.getLocalSocketAddress(), p.getSocketAddress());
+        assertEquals("hello", new String(p.getData(), 0, p.getLength()));
+        assertEquals(1, network.getPacketsDelivered());
+    }
+
+    @Test
+    public void testLoss()
+        throws Exception
+    {
+        network = new VirtualNetwork(new VirtualClock());
+        network.setLossRate(1);
+
+        DatagramSocket a = network.createHost(address("198.51.100.1"))
+            .createDatagramSocket(0);
+        DatagramSocket b = network.createHost(address("198.51.100.2"))
+            .createDatagramSocket(0);
+
+        send(a, b.getLocalSocketAddress(), "lost");
+        network.getClock().advance(Duration.ofSeconds(1));
+        assertEquals(1, network.getPacketsLost());
+        assertEquals(0, network.getPacketsDelivered());
+    }
+
+    @Test
+    public void testFullConeNat()
+        throws Exception
+    {
+        network = new VirtualNetwork();
+
+        VirtualNat nat
+            = network.createNat(address("203.0.113.1"), VirtualNat.Type.FULL_CONE);
+        DatagramSocket client = nat.createHost(address("10.0.0.1"))
+            .createDatagramSocket(5000);
+        DatagramSocket server = network.createHost(address("198.51.100.1"))
+            .createDatagramSocket(3478);
+        DatagramSocket other = network.createHost(address("198.51.100.2"))
+            .createDatagramSocket(3478);
+
+        server.setSoTimeout(1000);
+        client.setSoTimeout(1000);
+
+        send(client, server.getLocalSocketAddress(), "request");
+
+        SocketAddress mapped = receive(server).getSocketAddress();
+
+        assertEquals(
+            new InetSocketAddress("203.0.113.1", VirtualNat.FIRST_PORT),
+            mapped);
+
+        // Any remote address may use the mapping of a full cone NAT.
+        send(other, mapped, "unsolicited");
+
+        DatagramPacket p = receive(client);
+
+        assertNotNull(p);
+        assertEquals(other.getLocalSocketAddress(), p.getSocketAddress());
+    }
+
+    @Test
+    public void testSymmetricNat()
+        throws Exception
+    {
+        network = new VirtualNetwork();
+
+        VirtualNat nat
+            = network.createNat(address("203.0.113.1"), VirtualNat.Type.SYMMETRIC);
+        DatagramSocket client = nat.createHost(address("10.0.0.1"))
+            .createDatagramSocket(5000);
+        DatagramSocket server1 = network.createHost(address("198.51.100.1"))
+            .createDatagramSocket(3478);
+        DatagramSocket server2 = network.createHost(address("198.51.100.2"))
+            .createDatagramSocket(3478);
+
+        server1.setSoTimeout(1000);
+        server2.setSoTimeout(1000);
+        client.setSoTimeout(100);
+
+        send(client, server1.getLocalSocketAddress(), "request");
+        send(client, server2.getLocalSocketAddress(), "request");
+
+        SocketAddress mapped1 = receive(server1).getSocketAddress();
+        SocketAddress mapped2 = receive(server2).getSocketAddress();
+
+        assertNotEquals(mapped1, mapped2);
+        assertEquals(2, nat.getMappingCount());
+
+        // The mapping towards server1 only accepts datagrams from server1.
+        send(server2, mapped1, "unsolicited");
+        assertNull(receive(client));
+        assertEquals(1, network.getPacketsDropped());
+
+        send(server1, mapped1, "response");
+        assertEquals(server1.getLocalSocketAddress(), receive(client).getSocketAddress());
+    }
+
+    @Test
+    public void testIceThroughNat()
+        throws Exception
+    {
+        network = new VirtualNetwork();
+        network.setLatency(Duration.ofMillis(5));
+
+        VirtualNat nat
+            = network.createNat(
+                    address("203.0.113.1"),
+                    VirtualNat.Type.PORT_RESTRICTED_CONE);
+        Agent controlling
+            = createAgent(network.createHost(address("198.51.100.1")));
+        Agent controlled = createAgent(nat.createHost(address("10.0.0.1")));
+
+        try
+        {
+            controlling.setControlling(true);
+            controlled.setControlling(false);
+            exchangeCandidates(controlling, controlled);
+            exchangeCandidates(controlled, controlling);
+
+            controlled.startConnectivityEstablishment();
+            controlling.startConnectivityEstablishment();
+
+            long deadline = System.currentTimeMillis() + 10000;
+
+            while (controlling.getState() != IceProcessingState.TERMINATED
+                    && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(20);
+            }
+
+            assertEquals(IceProcessingState.TERMINATED, controlling.getState());
+
+            // The controlled agent is reached through its NAT mapping.
+            CandidatePair pair
+                = controlling.getStream("stream").getComponent(1)
+                    .getSelectedPair();
+
+            assertEquals(
+                address("203.0.113.1"),
+                pair.getRemoteCandidate().getTransportAddress().getAddress());
+        }
+        finally
+        {
+            controlling.free();
+            controlled.free();
+        }
+    }
+
+    private static Agent createAgent(VirtualHost host)
+        throws Exception
+    {
+        Agent agent = new Agent();
+
+        agent.setUseDynamicPorts(false);
+        agent.addCandidateHarvester(new VirtualHostCandidateHarvester(host));
+        agent.createComponent(
+            agent.createMediaStream("stream"),
+            KeepAliveStrategy.SELECTED_ONLY,
+            false);
+        return agent;
+    }
+
+    private static void exchangeCandidates(Agent local, Agent remote)
+    {
+        IceMediaStream localStream = local.getStream("stream");
+        Component localComponent = localStream.getComponent(1);
+        Component remoteComponent = remote.getStream("stream").getComponent(1);
+
+        localStream.setRemoteUfrag(remote.getLocalUfrag());
+        localStream.setRemotePassword(remote.getLocalPassword());
+        for (LocalCandidate candidate : remoteComponent.getLocalCandidates())
+        {
+            localComponent.addRemoteCandidate(
+                new RemoteCandidate(
+                    candidate.getTransportAddress(),
+                    localComponent,
+                    candidate.getType(),
+                    candidate.getFoundation(),
+                    candidate.getPriority(),
+                    null));
+        }
+    }
+
+    private static InetAddress address(String address)
+        throws UnknownHostException
+    {
+        return InetAddress.getByName(address);
+    }
+
+    private static void send(
+            DatagramSocket socket,
+            SocketAddress destination,
+            String payload)
+        throws Exception
+    {
+        byte[] data = payload.getBytes();
+
+        socket.send(new DatagramPacket(data, data.length, destination));
+    }
+
+    private static DatagramPacket receive(DatagramSocket socket)
+        throws Exception
+    {
+        DatagramPacket p = new DatagramPacket(new byte[1500], 1500);
+
+        try
+        {
+            socket.receive(p);
+            return p;
+        }
+        catch (SocketTimeoutException ste)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+
+import org.ice4j.*;
+import org.ice4j.attribute.*;
+import org.ice4j.message.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the dispatching of requests by {@link EventDispatcher}.
+ */
+public class EventDispatcherTest
+{
+    private static final TransportAddress LOCAL
+        = new TransportAddress("127.0.0.1", 1000, Transport.UDP);
+
+    private static final TransportAddress REMOTE
+        = new TransportAddress("127.0.0.1", 2000, Transport.UDP);
+
+    private StunStack stunStack;
+
+    @BeforeEach
+    public void setUp()
+    {
+        stunStack = new StunStack();
+    }
+
+    @AfterEach
+    public void tearDown()
+    {
+        stunStack.shutDown();
+    }
+
+    @Test
+    public void testUfragRequestListeners()
+    {
+        EventDispatcher dispatcher = new EventDispatcher();
+        List<StunMessageEvent> aRequests = new ArrayList<>();
+        List<StunMessageEvent> bRequests = new ArrayList<>();
+        RequestListener a = aRequests::add;
+        RequestListener b = bRequests::add;
+
+        dispatcher.addRequestListener("aaaa", a);
+        dispatcher.addRequestListener("bbbb", b);
+
+        // A ufrag cannot be taken over by another listener.
+        dispatcher.addRequestListener("aaaa", a);
+        assertThrows(
+            IllegalStateException.class,
+            () -> dispatcher.addRequestListener("aaaa", b));
+
+        dispatcher.fireMessageEvent(createRequest("aaaa:cccc"));
+        dispatcher.fireMessageEvent(createRequest("bbbb:cccc"));
+        dispatcher.fireMessageEvent(createRequest("dddd:cccc"));
+        dispatcher.fireMessageEvent(createRequest(null));
+
+        assertEquals(1, aRequests.size());
+        assertEquals(1, bRequests.size());
+
+        // Another listener's registration is left alone.
+        dispatcher.removeRequestListener("bbbb", a);
+        dispatcher.removeRequestListener("aaaa", a);
+        dispatcher.fireMessageEvent(createRequest("aaaa:cccc"));
+        dispatcher.fireMessageEvent(createRequest("bbbb:cccc"));
+
+        assertEquals(1, aRequests.size());
+        assertEquals(2, bRequests.size());
+        assertTrue(dispatcher.hasRequestListeners(LOCAL));
+
+        dispatcher.removeAllListeners();
+
+        assertFalse(dispatcher.hasRequestListeners(LOCAL));
+    }
+
+    private StunMessageEvent createRequest(String username)
+    {
+        Request request = MessageFactory.createBindingRequest();
+
+        if (username != null)
+        {
+            request.putAttribute(
+                AttributeFactory.createUsernameAttribute(username));
+        }
+
+        RawMessage rawMessage = RawMessage.build(new byte[0], 0, REMOTE, LOCAL);
+
+        return new StunMessageEvent(stunStack, rawMessage, request);
+    }
+}
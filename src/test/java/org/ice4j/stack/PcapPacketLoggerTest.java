@@ -0,0 +1,159 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.stack;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.ice4j.attribute.*;
+import org.ice4j.message.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Tests the files written by {@link PcapPacketLogger}.
+ */
+public class PcapPacketLoggerTest
+{
+    private static final byte[] LOCAL = { 10, 0, 0, 1 };
+
+    private static final byte[] REMOTE = { 10, 0, 0, 2 };
+
+    private static final byte[] OTHER = { 10, 0, 0, 3 };
+
+    private Path dir;
+
+    @BeforeEach
+    public void setUp()
+        throws Exception
+    {
+        dir = Files.createTempDirectory("pcap");
+    }
+
+    @AfterEach
+    public void tearDown()
+        throws Exception
+    {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir))
+        {
+            for (Path file : files)
+                Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testRecords()
+        throws Exception
+    {
+        Path file = dir.resolve("test.pcap");
+        PcapPacketLogger packetLogger
+            = new PcapPacketLogger(file, 1 << 16, 2, 16, 100);
+        byte[] payload = new byte[300];
+
+        Arrays.fill(payload, (byte) 7);
+        packetLogger.logPacket(LOCAL, 1000, REMOTE, 2000, payload, 10, 50, true);
+        packetLogger.logPacket(REMOTE, 2000, LOCAL, 1000, payload, 0, 300, false);
+        packetLogger.stop();
+
+        assertFalse(packetLogger.isEnabled());
+        assertEquals(2, packetLogger.getPacketsWritten());
+
+        ByteBuffer pcap = ByteBuffer.wrap(Files.readAllBytes(file));
+
+        assertEquals(0xA1B2C3D4, pcap.getInt(0));
+        assertEquals(101, pcap.getInt(20));
+
+        // First record: 20 + 8 + 50 bytes captured.
+        assertEquals(78, pcap.getInt(24 + 8));
+        assertEquals(78, pcap.getInt(24 + 12));
+        assertEquals(0x45, pcap.get(40) & 0xFF);
+        assertEquals(1000, pcap.getShort(40 + 20) & 0xFFFF);
+        assertEquals(2000, pcap.getShort(40 + 22) & 0xFFFF);
+
+        // Second record: truncated to the snap length.
+        int second = 40 + 78;
+
+        assertEquals(128, pcap.getInt(second + 8));
+        assertEquals(328, pcap.getInt(second + 12));
+        assertEquals(second + 16 + 128, pcap.limit());
+    }
+
+    @Test
+    public void testRotation()
+        throws Exception
+    {
+        Path file = dir.resolve("test.pcap");
+        PcapPacketLogger packetLogger
+            = new PcapPacketLogger(file, 1000, 3, 1024, 100);
+        byte[] payload = new byte[100];
+
+        for (int i = 0; i < 100; i++)
+        {
+            packetLogger.logPacket(
+                    LOCAL, 1000, REMOTE, 2000, payload, 0, 100, true);
+        }
+        packetLogger.stop();
+
+        assertEquals(100, packetLogger.getPacketsWritten());
+        assertTrue(Files.exists(file));
+        assertTrue(Files.exists(dir.resolve("test.pcap.1")));
+        assertTrue(Files.exists(dir.resolve("test.pcap.2")));
+        assertFalse(Files.exists(dir.resolve("test.pcap.3")));
+        assertTrue(Files.size(file) <= 1000);
+    }
+
+    @Test
+    public void testUfragFilter()
+        throws Exception
+    {
+        Path file = dir.resolve("test.pcap");
+        PcapPacketLogger packetLogger
+            = new PcapPacketLogger(file, 1 << 16, 1, 16, 1500);
+
+        packetLogger.addUfrag("abcd");
+
+        Request request = MessageFactory.createBindingRequest();
+
+        request.setTransactionID(
+            TransactionID.createNewTransactionID().getBytes());
+        request.putAttribute(
+            AttributeFactory.createUsernameAttribute("efgh:abcd"));
+
+        StunStack stunStack = new StunStack();
+        byte[] stun = request.encode(stunStack);
+
+        stunStack.shutDown();
+        byte[] media = new byte[] { (byte) 0x80, 0, 0, 1 };
+
+        assertEquals(
+            "efgh:abcd", PcapPacketLogger.getStunUsername(stun, stun.length));
+
+        // Media before the STUN request and from another address is left out.
+        packetLogger.logPacket(REMOTE, 2000, LOCAL, 1000, media, false);
+        packetLogger.logPacket(REMOTE, 2000, LOCAL, 1000, stun, false);
+        packetLogger.logPacket(LOCAL, 1000, REMOTE, 2000, media, true);
+        packetLogger.logPacket(OTHER, 2000, LOCAL, 1000, media, false);
+        packetLogger.stop();
+
+        assertEquals(2, packetLogger.getPacketsWritten());
+        assertEquals(2, packetLogger.getPacketsFiltered());
+    }
+}
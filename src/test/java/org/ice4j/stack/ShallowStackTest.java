@@ -18,14 +18,20 @@
  package org.ice4j.stack;
 
 import java.net.*;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.logging.*;
 
+import kotlin.Unit;
+import kotlin.jvm.functions.Function1;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 import org.ice4j.*;
 import org.ice4j.message.*;
 import org.ice4j.socket.*;
+import org.ice4j.util.*;
 import org.jitsi.config.*;
 import org.junit.jupiter.api.*;
 
@@ -174,6 +180,76 @@ public class ShallowStackTest
             "The retransmitted request did not match the original.");
     }
 
+    /**
+     * Sends a binding request with a {@link BufferPool} which hands out
+     * buffers with some room before the message, and verifies that the pool
+     * is asked for the exact length of the message and that the message is
+     * sent from the offset of the buffer.
+     *
+     * @throws java.lang.Exception if we fail
+     */
+    @Test
+    public void testSendRequestThroughBufferPool()
+        throws Exception
+    {
+        final int headroom = 8;
+        List<Integer> requestedSizes = new CopyOnWriteArrayList<>();
+        AtomicInteger returnedBuffers = new AtomicInteger();
+        Function1<Integer, Buffer> getBuffer = BufferPool.getBuffer;
+        Function1<Buffer, Unit> returnBuffer = BufferPool.returnBuffer;
+
+        BufferPool.getBuffer
+            = size ->
+            {
+                byte[] buf = new byte[headroom + size];
+
+                // Garbage before the message must not be sent.
+                Arrays.fill(buf, (byte) 0xFF);
+                requestedSizes.add(size);
+                return new Buffer(buf, headroom, size);
+            };
+        BufferPool.returnBuffer
+            = buffer ->
+            {
+                returnedBuffers.incrementAndGet();
+                return Unit.INSTANCE;
+            };
+        try
+        {
+            Request bindingRequest = MessageFactory.createBindingRequest();
+
+            dgramCollector.startListening(dummyServerSocket);
+
+            stunStack.sendRequest(bindingRequest,
+                                  dummyServerAddress,
+                                  localAddress,
+                                  new SimpleResponseCollector());
+
+            dgramCollector.waitForPacket(1000);
+
+            DatagramPacket receivedPacket = dgramCollector.collectPacket();
+
+            assertEquals(
+                bindingRequest.getEncodedLength(), receivedPacket.getLength());
+            assertEquals(
+                bindingRequest.getEncodedLength(),
+                (int) requestedSizes.get(0));
+            assertTrue(returnedBuffers.get() >= 1);
+
+            Request receivedRequest = (Request)Request.decode(
+                receivedPacket.getData(),
+                0,
+                receivedPacket.getLength());
+            assertEquals(bindingRequest, receivedRequest,
+                "The received request did not match the one that was sent.");
+        }
+        finally
+        {
+            BufferPool.getBuffer = getBuffer;
+            BufferPool.returnBuffer = returnBuffer;
+        }
+    }
+
     /**
      * Sends a byte array containing a bindingRequest, through a datagram socket
      * and verifies that the stack receives it alright.
@@ -374,6 +450,181 @@ public class ShallowStackTest
         System.clearProperty(StackProperties.FIRST_CTRAN_RETRANS_AFTER);
     }
 
+    /**
+     * Verifies that the responses to binding requests answered through the
+     * response cache are retransmitted when the requests are.
+     *
+     * @throws Exception if we fail
+     */
+    @Test
+    public void testCachedBindingResponse()
+        throws Exception
+    {
+        recreateStackWithBindingResponseCache(16);
+
+        SimpleRequestCollector requestCollector = new SimpleRequestCollector();
+        stunStack.addRequestListener(requestCollector);
+
+        dummyServerSocket.send(new DatagramPacket(
+                                            msgFixture.bindingRequest,
+                                            msgFixture.bindingRequest.length,
+                                            localAddress));
+        requestCollector.waitForRequest();
+
+        Request collectedRequest = requestCollector.collectedRequest;
+
+        assertNotNull(collectedRequest, "The request was not received");
+
+        Response bindingResponse = MessageFactory.create3489BindingResponse(
+            new TransportAddress( MsgFixture.ADDRESS_ATTRIBUTE_ADDRESS,
+                 MsgFixture.ADDRESS_ATTRIBUTE_PORT, Transport.UDP ),
+            new TransportAddress( MsgFixture.ADDRESS_ATTRIBUTE_ADDRESS_2,
+                 MsgFixture.ADDRESS_ATTRIBUTE_PORT_2, Transport.UDP),
+            new TransportAddress( MsgFixture.ADDRESS_ATTRIBUTE_ADDRESS_3,
+                 MsgFixture.ADDRESS_ATTRIBUTE_PORT_3, Transport.UDP));
+
+        dgramCollector.startListening(dummyServerSocket);
+        stunStack.sendResponse(collectedRequest.getTransactionID(),
+                               bindingResponse,
+                               localAddress,
+                               dummyServerAddress);
+        dgramCollector.waitForPacket(1000);
+
+        DatagramPacket receivedPacket = dgramCollector.collectPacket();
+        byte[] response
+            = Arrays.copyOf(receivedPacket.getData(), receivedPacket.getLength());
+
+        assertEquals(bindingResponse, Response.decode(response, 0, response.length),
+            "The received response did not match the one that was sent.");
+
+        // A second answer to the same request is refused.
+        StunException exception
+            = assertThrows(
+                StunException.class,
+                () -> stunStack.sendResponse(
+                        collectedRequest.getTransactionID(),
+                        bindingResponse,
+                        localAddress,
+                        dummyServerAddress));
+        assertEquals(
+            StunException.TRANSACTION_ALREADY_ANSWERED, exception.getID());
+
+        // The retransmitted request is answered with the same response.
+        dgramCollector.startListening(dummyServerSocket);
+        dummyServerSocket.send(new DatagramPacket(
+                                            msgFixture.bindingRequest,
+                                            msgFixture.bindingRequest.length,
+                                            localAddress));
+        dgramCollector.waitForPacket(1000);
+        receivedPacket = dgramCollector.collectPacket();
+
+        assertArrayEquals(
+            response,
+            Arrays.copyOf(receivedPacket.getData(), receivedPacket.getLength()),
+            "The retransmitted response did not match the original.");
+    }
+
+    /**
+     * Verifies that a binding request whose entry has been evicted from the
+     * response cache is still answered.
+     *
+     * @throws Exception if we fail
+     */
+    @Test
+    public void testEvictedBindingResponseIsSent()
+        throws Exception
+    {
+        // All the requests share the only entry of the cache.
+        recreateStackWithBindingResponseCache(1);
+
+        SimpleRequestCollector requestCollector = new SimpleRequestCollector();
+        stunStack.addRequestListener(requestCollector);
+
+        dummyServerSocket.send(new DatagramPacket(
+                                            msgFixture.bindingRequest,
+                                            msgFixture.bindingRequest.length,
+                                            localAddress));
+        requestCollector.waitForRequest();
+
+        Request evictedRequest = requestCollector.collectedRequest;
+
+        assertNotNull(evictedRequest, "The request was not received");
+
+        // A request with another transaction ID evicts the first one.
+        byte[] otherRequest = msgFixture.bindingRequest.clone();
+
+        otherRequest[Message.HEADER_LENGTH - 1] ^= 1;
+        // The collector unregisters itself once it has received a request.
+        requestCollector.collectedRequest = null;
+        stunStack.addRequestListener(requestCollector);
+        dummyServerSocket.send(new DatagramPacket(
+                                            otherRequest,
+                                            otherRequest.length,
+                                            localAddress));
+        requestCollector.waitForRequest();
+        assertNotNull(
+            requestCollector.collectedRequest,
+            "The second request was not received");
+
+        Response bindingResponse = MessageFactory.create3489BindingResponse(
+            new TransportAddress( MsgFixture.ADDRESS_ATTRIBUTE_ADDRESS,
+                 MsgFixture.ADDRESS_ATTRIBUTE_PORT, Transport.UDP ),
+            new TransportAddress( MsgFixture.ADDRESS_ATTRIBUTE_ADDRESS_2,
+                 MsgFixture.ADDRESS_ATTRIBUTE_PORT_2, Transport.UDP),
+            new TransportAddress( MsgFixture.ADDRESS_ATTRIBUTE_ADDRESS_3,
+                 MsgFixture.ADDRESS_ATTRIBUTE_PORT_3, Transport.UDP));
+
+        dgramCollector.startListening(dummyServerSocket);
+        stunStack.sendResponse(evictedRequest.getTransactionID(),
+                               bindingResponse,
+                               localAddress,
+                               dummyServerAddress);
+        dgramCollector.waitForPacket(1000);
+
+        DatagramPacket receivedPacket = dgramCollector.collectPacket();
+
+        assertNotNull(receivedPacket, "The response was not sent");
+
+        byte[] response
+            = Arrays.copyOf(receivedPacket.getData(), receivedPacket.getLength());
+
+        assertEquals(bindingResponse, Response.decode(response, 0, response.length),
+            "The received response did not match the one that was sent.");
+    }
+
+    /**
+     * Replaces the stack of this test with one which answers binding requests
+     * through a response cache of the specified size.
+     *
+     * @param cacheSize the size of the response cache.
+     *
+     * @throws Exception if we fail
+     */
+    private void recreateStackWithBindingResponseCache(int cacheSize)
+        throws Exception
+    {
+        // The cache is configured when the stack is created.
+        stunStack.removeSocket(localAddress);
+        stunStack.shutDown();
+        localSock.close();
+        System.setProperty(
+            StackProperties.BINDING_RESPONSE_CACHE_SIZE,
+            Integer.toString(cacheSize));
+        try
+        {
+            stunStack = new StunStack();
+        }
+        finally
+        {
+            System.clearProperty(StackProperties.BINDING_RESPONSE_CACHE_SIZE);
+        }
+        localSock = new IceUdpSocketWrapper(
+            new SafeCloseDatagramSocket(new InetSocketAddress("127.0.0.1", 0)));
+        localAddress = new TransportAddress(
+            "127.0.0.1", localSock.getLocalPort(), Transport.UDP);
+        stunStack.addSocket(localSock);
+    }
+
     //--------------------------------------- listener implementations ---------
     /**
      * A simple utility that allows us to asynchronously collect messages.
@@ -0,0 +1,296 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test;
+
+import java.lang.management.*;
+import java.net.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+import org.ice4j.ice.*;
+import org.ice4j.ice.harvest.*;
+import org.ice4j.socket.virtual.*;
+
+/**
+ * Runs connectivity establishment between many pairs of agents over a
+ * {@link VirtualNetwork} and reports the time to connected, the CPU time and
+ * the allocated memory. In each pair the controlling agent is on a public host
+ * and the controlled agent is either on a public host or behind a NAT of its
+ * own.
+ * <p>
+ * Usage: <tt>IceLoad [pairs [latencyMs [lossRate [natType]]]]</tt>, where
+ * <tt>natType</tt> is one of {@link VirtualNat.Type} or <tt>NONE</tt>.
+ * Defaults: 100 pairs, 20 ms, no loss, PORT_RESTRICTED_CONE.
+ */
+public class IceLoad
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>IceLoad</tt> class for logging
+     * output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(IceLoad.class.getName());
+
+    /**
+     * The time to wait for all pairs to reach a final state.
+     */
+    private static final Duration TIMEOUT = Duration.ofSeconds(60);
+
+    /**
+     * Runs the test.
+     *
+     * @param args command line arguments
+     *
+     * @throws Throwable if bad stuff happens.
+     */
+    public static void main(String[] args)
+        throws Throwable
+    {
+        int pairs = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+        long latency = (args.length > 1) ? Long.parseLong(args[1]) : 20;
+        double lossRate = (args.length > 2) ? Double.parseDouble(args[2]) : 0;
+        String natType
+            = (args.length > 3) ? args[3] : "PORT_RESTRICTED_CONE";
+        VirtualNetwork network = new VirtualNetwork();
+
+        network.setLatency(Duration.ofMillis(latency));
+        network.setLossRate(lossRate);
+        network.setSeed(0);
+
+        List<Agent[]> agents = new ArrayList<>(pairs);
+
+        for (int i = 0; i < pairs; i++)
+        {
+            VirtualHost controllingHost
+                = network.createHost(address(198, 18, i));
+            VirtualHost controlledHost
+                = "NONE".equals(natType)
+                    ? network.createHost(address(198, 19, i))
+                    : network
+                        .createNat(
+                                address(198, 19, i),
+                                VirtualNat.Type.valueOf(natType))
+                        .createHost(InetAddress.getByName("10.0.0.1"));
+            Agent controlling = createAgent(controllingHost);
+            Agent controlled = createAgent(controlledHost);
+
+            controlling.setControlling(true);
+            controlled.setControlling(false);
+            transferRemoteCandidates(controlling, controlled);
+            transferRemoteCandidates(controlled, controlling);
+            agents.add(new Agent[] { controlling, controlled });
+        }
+
+        long[] timesToConnected = new long[pairs];
+        CountDownLatch done = new CountDownLatch(pairs);
+
+        Arrays.fill(timesToConnected, -1);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuStart = getProcessCpuTime();
+        long allocatedStart = getAllocatedBytes(threads);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < pairs; i++)
+        {
+            int pair = i;
+            Agent controlling = agents.get(i)[0];
+            long pairStart = System.nanoTime();
+
+            controlling.addStateChangeListener(evt ->
+            {
+                Object state = evt.getNewValue();
+
+                if (state == IceProcessingState.COMPLETED)
+                {
+                    timesToConnected[pair]
+                        = (System.nanoTime() - pairStart) / 1_000_000;
+                    done.countDown();
+                }
+                else if (state == IceProcessingState.FAILED)
+                {
+                    done.countDown();
+                }
+            });
+            agents.get(i)[1].startConnectivityEstablishment();
+            controlling.startConnectivityEstablishment();
+        }
+
+        boolean finished
+            = done.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        long cpu = (getProcessCpuTime() - cpuStart) / 1_000_000;
+        long allocated = getAllocatedBytes(threads) - allocatedStart;
+
+        for (Agent[] pair : agents)
+        {
+            pair[0].free();
+            pair[1].free();
+        }
+        network.close();
+
+        long[] connected
+            = Arrays.stream(timesToConnected).filter(t -> t >= 0).sorted()
+                .toArray();
+
+        logger.info(
+                "Pairs: " + pairs + ", latency: " + latency + "ms, loss: "
+                    + lossRate + ", NAT: " + natType
+                    + (finished ? "" : " (timed out)"));
+        logger.info(
+                "Connected: " + connected.length + "/" + pairs
+                    + ", time to connected (ms): min="
+                    + percentile(connected, 0) + " p50="
+                    + percentile(connected, 50) + " p95="
+                    + percentile(connected, 95) + " p99="
+                    + percentile(connected, 99) + " max="
+                    + percentile(connected, 100));
+        logger.info(
+                "Wall time: " + elapsed + "ms, CPU time: " + cpu
+                    + "ms, allocated: " + (allocated >> 20) + "MiB");
+        logger.info(
+                "Datagrams sent: " + network.getPacketsSent()
+                    + ", delivered: " + network.getPacketsDelivered()
+                    + ", lost: " + network.getPacketsLost()
+                    + ", dropped: " + network.getPacketsDropped());
+        System.exit(0);
+    }
+
+    /**
+     * Creates an agent with a single component whose host candidate is on a
+     * specific virtual host.
+     *
+     * @param host the virtual host of the agent.
+     * @return the new agent.
+     * @throws Exception if anything goes wrong.
+     */
+    private static Agent createAgent(VirtualHost host)
+        throws Exception
+    {
+        Agent agent = new Agent();
+
+        agent.setUseDynamicPorts(false);
+        agent.addCandidateHarvester(new VirtualHostCandidateHarvester(host));
+        agent.createComponent(
+                agent.createMediaStream("audio"),
+                KeepAliveStrategy.SELECTED_ONLY,
+                false);
+        return agent;
+    }
+
+    /**
+     * Installs the local candidates of <tt>remotePeer</tt> as the remote
+     * candidates of <tt>localAgent</tt>, as well as its credentials.
+     *
+     * @param localAgent the agent to install the remote candidates in.
+     * @param remotePeer the agent to take the candidates from.
+     */
+    private static void transferRemoteCandidates(
+            Agent localAgent,
+            Agent remotePeer)
+    {
+        Ice.transferRemoteCandidates(localAgent, remotePeer);
+        for (IceMediaStream stream : localAgent.getStreams())
+        {
+            stream.setRemoteUfrag(remotePeer.getLocalUfrag());
+            stream.setRemotePassword(remotePeer.getLocalPassword());
+        }
+    }
+
+    /**
+     * Returns the <tt>i</tt>-th address of a /16 benchmarking network (see
+     * RFC 2544).
+     *
+     * @param a the first byte of the network.
+     * @param b the second byte of the network.
+     * @param i the index of the address.
+     * @return the address.
+     * @throws UnknownHostException never.
+     */
+    private static InetAddress address(int a, int b, int i)
+        throws UnknownHostException
+    {
+        int host = i + 1;
+
+        return InetAddress.getByAddress(
+                new byte[] {
+                        (byte) a, (byte) b, (byte) (host >> 8), (byte) host });
+    }
+
+    /**
+     * Returns a percentile of sorted values.
+     *
+     * @param sorted the sorted values.
+     * @param percentile the percentile, between 0 and 100.
+     * @return the percentile, or -1 if there are no values.
+     */
+    private static long percentile(long[] sorted, int percentile)
+    {
+        if (sorted.length == 0)
+            return -1;
+
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Returns the CPU time used by the process.
+     *
+     * @return the CPU time used by the process in nanoseconds, or 0 if it is
+     * not available.
+     */
+    private static long getProcessCpuTime()
+    {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+        return
+            (os instanceof com.sun.management.OperatingSystemMXBean)
+                ? ((com.sun.management.OperatingSystemMXBean) os)
+                    .getProcessCpuTime()
+                : 0;
+    }
+
+    /**
+     * Returns the number of bytes allocated by the live threads. The threads
+     * which terminate in between two calls are not accounted for, so the
+     * difference is a lower bound.
+     *
+     * @param threads the <tt>ThreadMXBean</tt> of the process.
+     * @return the number of bytes allocated by the live threads, or 0 if it is
+     * not available.
+     */
+    private static long getAllocatedBytes(ThreadMXBean threads)
+    {
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return 0;
+
+        long sum = 0;
+
+        for (long allocated
+                : ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(threads.getAllThreadIds()))
+        {
+            if (allocated > 0)
+                sum += allocated;
+        }
+        return sum;
+    }
+}
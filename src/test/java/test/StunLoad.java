@@ -0,0 +1,791 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test;
+
+import java.io.*;
+import java.math.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import org.ice4j.*;
+import org.ice4j.attribute.*;
+import org.ice4j.ice.*;
+import org.ice4j.ice.harvest.*;
+import org.ice4j.message.*;
+import org.ice4j.security.*;
+import org.ice4j.socket.*;
+import org.ice4j.stack.*;
+
+/**
+ * Measures how many STUN Binding Requests per second a server can answer.
+ * The requests carry USERNAME, PRIORITY, ICE-CONTROLLED, MESSAGE-INTEGRITY and
+ * FINGERPRINT for many synthetic ufrags and are all encoded before the
+ * measurement starts. They are then sent over the loopback interface from
+ * several threads, each of which keeps a bounded number of requests in
+ * flight, and the throughput and response latency percentiles are reported.
+ * <p>
+ * Two servers are supported:
+ * <ul>
+ * <li><tt>stack</tt>: a bare {@link StunStack} with a
+ * {@link CredentialsAuthority} for the synthetic ufrags and a
+ * {@link RequestListener} which answers like the ICE connectivity check
+ * server;</li>
+ * <li><tt>agent</tt>: one {@link Agent} per synthetic ufrag, all of which
+ * share a {@link SinglePortUdpHarvester}, so the requests go through the
+ * demultiplexing of the harvester and the connectivity check server of the
+ * agents. The agents are not started, so every request is also queued as a
+ * pre-discovered pair.</li>
+ * </ul>
+ * Every client ufrag has its own client socket because the harvester binds a
+ * remote address to a single ufrag.
+ * <p>
+ * Usage: <tt>StunLoad [mode [ufrags [threads [requests [window]]]]]</tt>.
+ * Defaults: stack, 100 ufrags, 4 threads, 200000 requests and 32 requests in
+ * flight per thread.
+ */
+public class StunLoad
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>StunLoad</tt> class for logging
+     * output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(StunLoad.class.getName());
+
+    /**
+     * The time after which a request in flight is considered lost, so that
+     * the sender does not wait for its response any longer.
+     */
+    private static final long LOSS_TIMEOUT_MS = 100;
+
+    /**
+     * The time to wait for the last responses after all requests have been
+     * sent.
+     */
+    private static final long DRAIN_TIMEOUT_MS = 2000;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args command line arguments
+     *
+     * @throws Throwable if bad stuff happens.
+     */
+    public static void main(String[] args)
+        throws Throwable
+    {
+        String mode = (args.length > 0) ? args[0] : "stack";
+        int ufrags = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+        int threads = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+        int requests = (args.length > 3) ? Integer.parseInt(args[3]) : 200000;
+        int window = (args.length > 4) ? Integer.parseInt(args[4]) : 32;
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        Server server
+            = "agent".equals(mode)
+                ? new AgentServer(loopback, ufrags)
+                : new StackServer(loopback, ufrags);
+
+        try
+        {
+            run(server, threads, requests, window);
+        }
+        finally
+        {
+            server.close();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Sends the requests to a server and reports the results.
+     *
+     * @param server the server to send the requests to.
+     * @param threads the number of sending threads.
+     * @param requests the total number of requests.
+     * @param window the number of requests in flight per thread.
+     * @throws Exception if anything goes wrong.
+     */
+    private static void run(
+            Server server,
+            int threads,
+            int requests,
+            int window)
+        throws Exception
+    {
+        List<String> serverUfrags = new ArrayList<>(server.passwords.keySet());
+        List<Client> clients = new ArrayList<>(threads);
+        StunStack encoder = new StunStack();
+
+        encoder.getCredentialsManager().registerAuthority(
+                new Credentials(server.passwords, true));
+        try
+        {
+            for (int i = 0; i < threads; i++)
+            {
+                List<String> ufrags = new ArrayList<>();
+
+                for (int j = i; j < serverUfrags.size(); j += threads)
+                    ufrags.add(serverUfrags.get(j));
+                if (ufrags.isEmpty())
+                    ufrags.add(serverUfrags.get(i % serverUfrags.size()));
+                clients.add(
+                        new Client(
+                                i,
+                                encoder,
+                                server.address,
+                                ufrags,
+                                requests / threads
+                                    + (i < requests % threads ? 1 : 0),
+                                window));
+            }
+        }
+        finally
+        {
+            encoder.shutDown();
+        }
+
+        long start = System.nanoTime();
+
+        for (Client client : clients)
+            client.start();
+        for (Client client : clients)
+            client.join();
+
+        long elapsed = System.nanoTime() - start;
+        int sent = 0;
+        int unsent = 0;
+        int successes = 0;
+        int errors = 0;
+        List<long[]> latencies = new ArrayList<>(threads);
+
+        for (Client client : clients)
+        {
+            client.close();
+            sent += client.requests.length - client.unsent.get();
+            unsent += client.unsent.get();
+            successes += client.successes.get();
+            errors += client.errors.get();
+            latencies.add(client.getLatencies());
+        }
+
+        long[] sorted
+            = latencies.stream().flatMapToLong(Arrays::stream).sorted()
+                .toArray();
+
+        logger.info(
+                "Server: " + server + ", ufrags: " + serverUfrags.size()
+                    + ", threads: " + threads + ", window: " + window);
+        logger.info(
+                "Sent: " + sent + ", unsent: " + unsent
+                    + ", success responses: " + successes
+                    + ", error responses: " + errors + ", lost: "
+                    + (sent - successes - errors) + ", elapsed: "
+                    + elapsed / 1_000_000 + "ms, throughput: "
+                    + (long) (sorted.length * 1e9 / elapsed) + " responses/s");
+        logger.info(
+                "Latency (us): p50=" + percentile(sorted, 50)
+                    + " p99=" + percentile(sorted, 99)
+                    + " p99.9=" + percentile(sorted, 99.9)
+                    + " max=" + percentile(sorted, 100));
+    }
+
+    /**
+     * Returns a percentile of sorted latencies.
+     *
+     * @param sorted the sorted latencies in nanoseconds.
+     * @param percentile the percentile, between 0 and 100.
+     * @return the percentile in microseconds, or -1 if there are no values.
+     */
+    private static long percentile(long[] sorted, double percentile)
+    {
+        if (sorted.length == 0)
+            return -1;
+
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1000;
+    }
+
+    /**
+     * The passwords of the synthetic ufrags of a server, as a
+     * <tt>CredentialsAuthority</tt>. The server uses them as local keys, the
+     * encoder of the requests as remote keys.
+     */
+    private static class Credentials
+        implements CredentialsAuthority
+    {
+        /**
+         * The passwords of the ufrags.
+         */
+        private final Map<String, String> passwords;
+
+        /**
+         * Whether the passwords are the ones of the remote peer.
+         */
+        private final boolean remote;
+
+        /**
+         * Initializes a new <tt>Credentials</tt> instance.
+         *
+         * @param passwords the passwords of the ufrags.
+         * @param remote whether the passwords are the ones of the remote peer.
+         */
+        Credentials(Map<String, String> passwords, boolean remote)
+        {
+            this.passwords = passwords;
+            this.remote = remote;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public byte[] getLocalKey(String username)
+        {
+            return remote ? null : getKey(username);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public byte[] getRemoteKey(String username, String media)
+        {
+            return remote ? getKey(username) : null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean checkLocalUserName(String username)
+        {
+            return !remote && passwords.containsKey(username);
+        }
+
+        /**
+         * Returns the password of the ufrag at the start of a username.
+         *
+         * @param username the username or ufrag.
+         * @return the password, or <tt>null</tt> if the ufrag is unknown.
+         */
+        private byte[] getKey(String username)
+        {
+            int colon = username.indexOf(':');
+            String password
+                = passwords.get(
+                        (colon < 0) ? username : username.substring(0, colon));
+
+            return (password == null) ? null : password.getBytes();
+        }
+    }
+
+    /**
+     * A STUN server listening on the loopback interface.
+     */
+    private static abstract class Server
+        implements Closeable
+    {
+        /**
+         * The passwords of the ufrags of this server.
+         */
+        final Map<String, String> passwords = new LinkedHashMap<>();
+
+        /**
+         * The address of this server.
+         */
+        TransportAddress address;
+    }
+
+    /**
+     * A bare <tt>StunStack</tt> which answers Binding Requests.
+     */
+    private static class StackServer
+        extends Server
+        implements RequestListener
+    {
+        /**
+         * The stack.
+         */
+        private final StunStack stunStack = new StunStack();
+
+        /**
+         * Initializes a new <tt>StackServer</tt> and starts it.
+         *
+         * @param loopback the loopback address.
+         * @param ufrags the number of ufrags.
+         * @throws IOException if the socket cannot be bound.
+         */
+        StackServer(InetAddress loopback, int ufrags)
+            throws IOException
+        {
+            for (int i = 0; i < ufrags; i++)
+            {
+                passwords.put(
+                        "load" + i,
+                        new BigInteger(128, new Random(i)).toString(32));
+            }
+            stunStack.getCredentialsManager().registerAuthority(
+                    new Credentials(passwords, false));
+
+            DatagramSocket socket
+                = new DatagramSocket(new InetSocketAddress(loopback, 0));
+
+            address
+                = new TransportAddress(
+                        loopback, socket.getLocalPort(), Transport.UDP);
+            stunStack.addSocket(new IceUdpSocketWrapper(socket));
+            stunStack.addRequestListener(address, this);
+        }
+
+        /**
+         * Answers a Binding Request the way the ICE connectivity check server
+         * does.
+         *
+         * @param evt the event containing the request.
+         */
+        @Override
+        public void processRequest(StunMessageEvent evt)
+        {
+            UsernameAttribute username
+                = (UsernameAttribute)
+                    evt.getMessage().getAttribute(Attribute.USERNAME);
+            Response response
+                = MessageFactory.createBindingResponse(
+                        (Request) evt.getMessage(),
+                        evt.getRemoteAddress());
+
+            response.putAttribute(
+                    AttributeFactory.createUsernameAttribute(
+                            username.getUsername()));
+            response.putAttribute(
+                    AttributeFactory.createMessageIntegrityAttribute(
+                            new String(username.getUsername())));
+            try
+            {
+                stunStack.sendResponse(
+                        evt.getTransactionID().getBytes(),
+                        response,
+                        evt.getLocalAddress(),
+                        evt.getRemoteAddress());
+            }
+            catch (Exception e)
+            {
+                throw new RuntimeException("Failed to send a response", e);
+            }
+        }
+
+        /**
+         * Shuts the stack down.
+         */
+        @Override
+        public void close()
+        {
+            stunStack.shutDown();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString()
+        {
+            return "stack";
+        }
+    }
+
+    /**
+     * Agents sharing a <tt>SinglePortUdpHarvester</tt>.
+     */
+    private static class AgentServer
+        extends Server
+    {
+        /**
+         * The agents.
+         */
+        private final List<Agent> agents = new ArrayList<>();
+
+        /**
+         * The harvester shared by the agents.
+         */
+        private final SinglePortUdpHarvester harvester;
+
+        /**
+         * Initializes a new <tt>AgentServer</tt> and starts it.
+         *
+         * @param loopback the loopback address.
+         * @param ufrags the number of agents.
+         * @throws IOException if the socket cannot be bound.
+         */
+        AgentServer(InetAddress loopback, int ufrags)
+            throws IOException
+        {
+            harvester
+                = new SinglePortUdpHarvester(
+                        new TransportAddress(loopback, 0, Transport.UDP));
+            address = harvester.getLocalAddress();
+            for (int i = 0; i < ufrags; i++)
+            {
+                Agent agent = new Agent();
+
+                agent.setUseDynamicPorts(false);
+                agent.setControlling(true);
+                agent.addCandidateHarvester(harvester);
+                agent.createComponent(
+                        agent.createMediaStream("load"),
+                        KeepAliveStrategy.SELECTED_ONLY,
+                        false);
+                agents.add(agent);
+                passwords.put(agent.getLocalUfrag(), agent.getLocalPassword());
+            }
+        }
+
+        /**
+         * Frees the agents and closes the harvester.
+         */
+        @Override
+        public void close()
+        {
+            for (Agent agent : agents)
+                agent.free();
+            harvester.close();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString()
+        {
+            return "agent";
+        }
+    }
+
+    /**
+     * A thread which sends pre-encoded requests to a server through one
+     * socket per ufrag and receives the responses in another thread.
+     */
+    private static class Client
+        extends Thread
+    {
+        /**
+         * The sockets, one per ufrag.
+         */
+        private final DatagramChannel[] channels;
+
+        /**
+         * The requests. The first four bytes of the transaction ID of a
+         * request are its index.
+         */
+        private final ByteBuffer[] requests;
+
+        /**
+         * The times at which the requests were sent.
+         */
+        private final AtomicLongArray sentAt;
+
+        /**
+         * The response latencies, or 0 for the requests which have not been
+         * answered.
+         */
+        private final AtomicLongArray latencies;
+
+        /**
+         * Limits the number of requests in flight.
+         */
+        private final Semaphore window;
+
+        /**
+         * Whether each request holds a permit of {@link #window}. A request
+         * sent after a loss timeout holds none, so its response must not
+         * release one.
+         */
+        private final AtomicIntegerArray permits;
+
+        /**
+         * The number of requests which could not be written to their socket.
+         */
+        final AtomicInteger unsent = new AtomicInteger();
+
+        /**
+         * The number of success responses.
+         */
+        final AtomicInteger successes = new AtomicInteger();
+
+        /**
+         * The number of error responses.
+         */
+        final AtomicInteger errors = new AtomicInteger();
+
+        /**
+         * The selector of the receiving thread.
+         */
+        private final Selector selector;
+
+        /**
+         * The thread which receives the responses.
+         */
+        private final Thread receiver;
+
+        /**
+         * Initializes a new <tt>Client</tt> and encodes its requests.
+         *
+         * @param index the index of this client.
+         * @param encoder the stack whose credentials are used to encode the
+         * requests.
+         * @param server the address of the server.
+         * @param serverUfrags the ufrags of the server to send requests to.
+         * @param count the number of requests to send.
+         * @param window the number of requests in flight.
+         * @throws Exception if anything goes wrong.
+         */
+        Client(
+                int index,
+                StunStack encoder,
+                TransportAddress server,
+                List<String> serverUfrags,
+                int count,
+                int window)
+            throws Exception
+        {
+            super("StunLoad-" + index);
+
+            Random random = new Random(index);
+            String[] usernames = new String[serverUfrags.size()];
+
+            channels = new DatagramChannel[serverUfrags.size()];
+            selector = Selector.open();
+            for (int i = 0; i < channels.length; i++)
+            {
+                channels[i] = DatagramChannel.open();
+                channels[i].bind(
+                        new InetSocketAddress(server.getAddress(), 0));
+                channels[i].connect(server);
+                channels[i].configureBlocking(false);
+                channels[i].register(selector, SelectionKey.OP_READ);
+                usernames[i]
+                    = serverUfrags.get(i) + ":client" + index + "x" + i;
+            }
+
+            requests = new ByteBuffer[count];
+            for (int i = 0; i < count; i++)
+            {
+                Request request
+                    = MessageFactory.createBindingRequest(
+                            random.nextInt() & 0x7FFFFFFF,
+                            false,
+                            random.nextLong());
+                String username = usernames[i % usernames.length];
+                byte[] transactionID
+                    = new byte[TransactionID.RFC5389_TRANSACTION_ID_LENGTH];
+
+                random.nextBytes(transactionID);
+                ByteBuffer.wrap(transactionID).putInt(0, i);
+                request.setTransactionID(transactionID);
+                request.putAttribute(
+                        AttributeFactory.createUsernameAttribute(username));
+                request.putAttribute(
+                        AttributeFactory.createMessageIntegrityAttribute(
+                                username));
+                request.putAttribute(
+                        AttributeFactory.createFingerprintAttribute());
+                requests[i] = ByteBuffer.wrap(request.encode(encoder));
+            }
+
+            sentAt = new AtomicLongArray(count);
+            latencies = new AtomicLongArray(count);
+            this.window = new Semaphore(window);
+            permits = new AtomicIntegerArray(count);
+            receiver = new Thread(this::receive, getName() + "-receiver");
+        }
+
+        /**
+         * Sends the requests and waits for the last responses.
+         */
+        @Override
+        public void run()
+        {
+            receiver.start();
+            try
+            {
+                for (int i = 0; i < requests.length; i++)
+                {
+                    // After a loss timeout, the request is sent without a
+                    // permit.
+                    if (window.tryAcquire(
+                            LOSS_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                    {
+                        permits.set(i, 1);
+                    }
+                    sentAt.set(i, System.nanoTime());
+                    if (!write(channels[i % channels.length], requests[i]))
+                    {
+                        unsent.incrementAndGet();
+                        if (permits.compareAndSet(i, 1, 0))
+                            window.release();
+                    }
+                }
+
+                long deadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MS);
+
+                while (successes.get() + errors.get()
+                            < requests.length - unsent.get()
+                        && System.nanoTime() < deadline)
+                {
+                    Thread.sleep(10);
+                }
+            }
+            catch (InterruptedException | IOException e)
+            {
+                logger.log(Level.WARNING, "Failed to send a request", e);
+            }
+        }
+
+        /**
+         * Writes a request to a non-blocking channel, retrying for up to
+         * {@link #LOSS_TIMEOUT_MS} while the send buffer of the socket is
+         * full.
+         *
+         * @param channel the channel.
+         * @param request the request.
+         * @return <tt>true</tt> if the request was written, or <tt>false</tt>
+         * if the send buffer stayed full.
+         * @throws IOException if the write fails.
+         */
+        private static boolean write(
+                DatagramChannel channel,
+                ByteBuffer request)
+            throws IOException
+        {
+            long deadline
+                = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(LOSS_TIMEOUT_MS);
+
+            do
+            {
+                if (channel.write(request) > 0)
+                    return true;
+                Thread.yield();
+            }
+            while (System.nanoTime() < deadline);
+            return false;
+        }
+
+        /**
+         * Receives the responses and records their latencies.
+         */
+        private void receive()
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(1500);
+
+            try
+            {
+                while (selector.isOpen())
+                {
+                    selector.select();
+                    for (SelectionKey key : selector.selectedKeys())
+                    {
+                        DatagramChannel channel
+                            = (DatagramChannel) key.channel();
+
+                        buffer.clear();
+                        while (channel.read(buffer) > 0)
+                        {
+                            onResponse(buffer);
+                            buffer.clear();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            }
+            catch (IOException | ClosedSelectorException e)
+            {
+                // The client has been closed.
+            }
+        }
+
+        /**
+         * Records the latency of a response.
+         *
+         * @param response the response.
+         */
+        private void onResponse(ByteBuffer response)
+        {
+            if (response.position() < Message.HEADER_LENGTH)
+                return;
+
+            char type = response.getChar(0);
+            int i = response.getInt(8);
+
+            if ((type != Message.BINDING_SUCCESS_RESPONSE
+                        && type != Message.BINDING_ERROR_RESPONSE)
+                    || i < 0 || i >= requests.length
+                    || !latencies.compareAndSet(
+                            i, 0, System.nanoTime() - sentAt.get(i)))
+            {
+                return;
+            }
+            if (type == Message.BINDING_SUCCESS_RESPONSE)
+                successes.incrementAndGet();
+            else
+                errors.incrementAndGet();
+            if (permits.compareAndSet(i, 1, 0))
+                window.release();
+        }
+
+        /**
+         * Returns the latencies of the answered requests.
+         *
+         * @return the latencies of the answered requests in nanoseconds.
+         */
+        long[] getLatencies()
+        {
+            long[] result = new long[latencies.length()];
+            int n = 0;
+
+            for (int i = 0; i < result.length; i++)
+            {
+                long latency = latencies.get(i);
+
+                if (latency > 0)
+                    result[n++] = latency;
+            }
+            return Arrays.copyOf(result, n);
+        }
+
+        /**
+         * Stops the receiving thread and closes the sockets.
+         *
+         * @throws Exception if anything goes wrong.
+         */
+        void close()
+            throws Exception
+        {
+            selector.close();
+            receiver.join();
+            for (DatagramChannel channel : channels)
+                channel.close();
+        }
+    }
+}